@@ -0,0 +1,156 @@
+package de.bund.zrb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared pool of I/O buffers in fixed size classes, heap (byte[]) and direct (ByteBuffer).
+// Each class retains a bounded number of idle buffers; requests above the largest class are
+// allocated and dropped as usual. Buffers must be released exactly once and not used afterwards.
+public class BufferPool implements StatsProvider {
+
+    public static final int SMALL = 4 * 1024;
+    public static final int MEDIUM = 16 * 1024;
+    public static final int LARGE = 64 * 1024;
+
+    private static final int[] SIZE_CLASSES = { SMALL, MEDIUM, LARGE };
+    private static final int[] MAX_RETAINED = { 512, 256, 64 };
+
+    private static final BufferPool SHARED = new BufferPool();
+
+    private final SizeClass[] heapClasses = new SizeClass[SIZE_CLASSES.length];
+    private final SizeClass[] directClasses = new SizeClass[SIZE_CLASSES.length];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    BufferPool() {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            heapClasses[i] = new SizeClass(SIZE_CLASSES[i], MAX_RETAINED[i]);
+            directClasses[i] = new SizeClass(SIZE_CLASSES[i], MAX_RETAINED[i]);
+        }
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    // Array of at least minSize bytes (length may be larger).
+    public byte[] acquireArray(int minSize) {
+        SizeClass sc = classFor(heapClasses, minSize);
+        if (sc == null) {
+            unpooled.incrementAndGet();
+            return new byte[minSize];
+        }
+        outstanding.incrementAndGet();
+        Object cached = sc.idle.poll();
+        if (cached != null) {
+            hits.incrementAndGet();
+            return (byte[]) cached;
+        }
+        misses.incrementAndGet();
+        return new byte[sc.size];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        SizeClass sc = exactClass(heapClasses, buffer.length);
+        if (sc == null) {
+            return;
+        }
+        outstanding.decrementAndGet();
+        sc.idle.offer(buffer);
+    }
+
+    // Cleared direct buffer with capacity of at least minSize bytes.
+    public ByteBuffer acquireDirect(int minSize) {
+        SizeClass sc = classFor(directClasses, minSize);
+        if (sc == null) {
+            unpooled.incrementAndGet();
+            return ByteBuffer.allocateDirect(minSize);
+        }
+        outstanding.incrementAndGet();
+        Object cached = sc.idle.poll();
+        if (cached != null) {
+            hits.incrementAndGet();
+            ByteBuffer buf = (ByteBuffer) cached;
+            buf.clear();
+            return buf;
+        }
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(sc.size);
+    }
+
+    // Returns heap buffers to the array pool (if backed by a whole pooled array) and
+    // direct buffers to the direct pool. Other buffers are ignored.
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.isDirect()) {
+            SizeClass sc = exactClass(directClasses, buffer.capacity());
+            if (sc != null) {
+                outstanding.decrementAndGet();
+                sc.idle.offer(buffer);
+            }
+        } else if (buffer.hasArray() && buffer.arrayOffset() == 0
+                && buffer.capacity() == buffer.array().length) {
+            release(buffer.array());
+        }
+    }
+
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        long h = hits.get();
+        long m = misses.get();
+        out.append("buffers.hits: ").append(h).append('\n');
+        out.append("buffers.misses: ").append(m).append('\n');
+        out.append("buffers.hitRate: ").append(h + m == 0 ? 0 : (h * 100 / (h + m))).append("%\n");
+        out.append("buffers.unpooled: ").append(unpooled.get()).append('\n');
+        out.append("buffers.outstanding: ").append(outstanding.get()).append('\n');
+        StringBuilder idle = new StringBuilder();
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (i > 0) idle.append(", ");
+            idle.append(SIZE_CLASSES[i] / 1024).append("k=")
+                    .append(heapClasses[i].idle.size()).append('/').append(directClasses[i].idle.size());
+        }
+        out.append("buffers.idle (heap/direct): ").append(idle).append('\n');
+    }
+
+    private static SizeClass classFor(SizeClass[] classes, int minSize) {
+        for (SizeClass sc : classes) {
+            if (minSize <= sc.size) {
+                return sc;
+            }
+        }
+        return null;
+    }
+
+    private static SizeClass exactClass(SizeClass[] classes, int size) {
+        for (SizeClass sc : classes) {
+            if (sc.size == size) {
+                return sc;
+            }
+        }
+        return null;
+    }
+
+    private static final class SizeClass {
+
+        private final int size;
+        private final ArrayBlockingQueue<Object> idle;
+
+        SizeClass(int size, int maxRetained) {
+            this.size = size;
+            this.idle = new ArrayBlockingQueue<Object>(maxRetained);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package de.bund.zrb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// Blocking Socket API on top of a non-blocking SocketChannel. The socket of a blocking channel is
+// no substitute: on Java 8 its streams let a read and a write wait for each other, which stalls
+// every full-duplex user. Here each direction waits on its own selector, so a read and a write
+// run at the same time, and SO_TIMEOUT applies to reads as with a plain socket.
+// The channel stays available, e.g. to move an established tunnel to a selector loop.
+public class ChannelSocket extends Socket {
+
+    private final SocketChannel channel;
+    private final InputStream in = new Input();
+    private final OutputStream out = new Output();
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    // Opened on the first wait of each direction
+    private volatile Selector readSelector;
+    private volatile Selector writeSelector;
+    private volatile int soTimeout;
+    private volatile boolean closed;
+    private volatile boolean inputShutdown;
+    private volatile boolean outputShutdown;
+
+    public ChannelSocket(SocketChannel channel) throws IOException {
+        super((SocketImpl) null);
+        this.channel = channel;
+        channel.configureBlocking(false);
+    }
+
+    // Non-blocking; must only be used by others while no stream of this socket is in use.
+    @Override
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    // Closes the selectors, so the channel can be registered elsewhere without holding them.
+    // They are opened again if the socket is used afterwards.
+    public void detach() {
+        synchronized (readLock) {
+            closeSelector(readSelector);
+            readSelector = null;
+        }
+        synchronized (writeLock) {
+            closeSelector(writeSelector);
+            writeSelector = null;
+        }
+    }
+
+    // Sends count bytes of file from position with FileChannel.transferTo, i.e. sendfile where
+    // the platform supports it. Bytes still buffered in front of this socket must be flushed first.
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        if (file.size() < end) {
+            throw new EOFException("File shorter than " + end + " bytes");
+        }
+        synchronized (writeLock) {
+            try {
+                while (position < end) {
+                    long sent = file.transferTo(position, end - position, channel);
+                    if (sent == 0) {
+                        await(SelectionKey.OP_WRITE, 0);
+                    }
+                    position += sent;
+                }
+            } catch (ClosedChannelException e) {
+                throw closedException();
+            }
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        checkOpen();
+        return out;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        wakeup(readSelector);
+        wakeup(writeSelector);
+        channel.close();
+        // Each waits for a running select to return, which the wakeup above ensures
+        closeSelector(readSelector);
+        closeSelector(writeSelector);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed || !channel.isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return channel.socket().isBound();
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        throw new SocketException("Already connected");
+    }
+
+    @Override
+    public void bind(SocketAddress bindpoint) throws IOException {
+        throw new SocketException("Already bound");
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        try {
+            channel.shutdownInput();
+        } catch (ClosedChannelException e) {
+            throw closedException();
+        }
+        inputShutdown = true;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        try {
+            channel.shutdownOutput();
+        } catch (ClosedChannelException e) {
+            throw closedException();
+        }
+        outputShutdown = true;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return channel.socket().getPort();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return channel.socket().getLocalAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return channel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        setOption(StandardSocketOptions.TCP_NODELAY, on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return getOption(StandardSocketOptions.TCP_NODELAY);
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException {
+        setOption(StandardSocketOptions.SO_KEEPALIVE, on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return getOption(StandardSocketOptions.SO_KEEPALIVE);
+    }
+
+    @Override
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        setOption(StandardSocketOptions.SO_LINGER, on ? linger : -1);
+    }
+
+    @Override
+    public int getSoLinger() throws SocketException {
+        return getOption(StandardSocketOptions.SO_LINGER);
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        setOption(StandardSocketOptions.SO_SNDBUF, size);
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return getOption(StandardSocketOptions.SO_SNDBUF);
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) throws SocketException {
+        setOption(StandardSocketOptions.SO_RCVBUF, size);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws SocketException {
+        return getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) throws SocketException {
+        setOption(StandardSocketOptions.SO_REUSEADDR, on);
+    }
+
+    @Override
+    public boolean getReuseAddress() throws SocketException {
+        return getOption(StandardSocketOptions.SO_REUSEADDR);
+    }
+
+    @Override
+    public void setTrafficClass(int tc) throws SocketException {
+        setOption(StandardSocketOptions.IP_TOS, tc);
+    }
+
+    @Override
+    public int getTrafficClass() throws SocketException {
+        return getOption(StandardSocketOptions.IP_TOS);
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelSocket[" + channel + "]";
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        synchronized (readLock) {
+            int timeout = soTimeout;
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            try {
+                while (true) {
+                    int n = channel.read(buffer);
+                    if (n != 0) {
+                        return n;
+                    }
+                    long wait = 0;
+                    if (deadline != 0) {
+                        wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                    }
+                    await(SelectionKey.OP_READ, wait);
+                }
+            } catch (ClosedChannelException e) {
+                throw closedException();
+            }
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) == 0) {
+                        await(SelectionKey.OP_WRITE, 0);
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                throw closedException();
+            }
+        }
+    }
+
+    // Caller holds the lock of the direction. Returns on readiness, timeout or close.
+    private void await(int op, long timeoutMillis) throws IOException {
+        checkOpen();
+        Selector selector = op == SelectionKey.OP_READ ? readSelector : writeSelector;
+        if (selector == null) {
+            selector = Selector.open();
+            try {
+                channel.register(selector, op);
+            } catch (IOException e) {
+                closeSelector(selector);
+                throw e;
+            }
+            if (op == SelectionKey.OP_READ) {
+                readSelector = selector;
+            } else {
+                writeSelector = selector;
+            }
+            if (closed) {
+                // close() may have missed the new selector
+                closeSelector(selector);
+                throw closedException();
+            }
+        }
+        try {
+            selector.select(timeoutMillis);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw closedException();
+        }
+        checkOpen();
+    }
+
+    private void checkOpen() throws SocketException {
+        if (closed) {
+            throw closedException();
+        }
+    }
+
+    private static SocketException closedException() {
+        return new SocketException("Socket closed");
+    }
+
+    private <T> void setOption(SocketOption<T> option, T value) throws SocketException {
+        try {
+            channel.setOption(option, value);
+        } catch (IOException e) {
+            throw socketException(e);
+        }
+    }
+
+    private <T> T getOption(SocketOption<T> option) throws SocketException {
+        try {
+            return channel.getOption(option);
+        } catch (IOException e) {
+            throw socketException(e);
+        }
+    }
+
+    private static SocketException socketException(IOException e) {
+        if (e instanceof SocketException) {
+            return (SocketException) e;
+        }
+        SocketException wrapped = new SocketException(e.getMessage());
+        wrapped.initCause(e);
+        return wrapped;
+    }
+
+    private static void wakeup(Selector selector) {
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private static void closeSelector(Selector selector) {
+        if (selector == null) {
+            return;
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+
+    private final class Input extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return ChannelSocket.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ChannelSocket.this.close();
+        }
+    }
+
+    private final class Output extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            ChannelSocket.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ChannelSocket.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ChannelSocket.this.close();
+        }
+    }
+}
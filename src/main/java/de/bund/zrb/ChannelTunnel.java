@@ -0,0 +1,211 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+// Non-blocking bidirectional relay of two socket channels on one SelectorLoop.
+// Reads go through the loop's scratch buffer; a per-direction pooled buffer is only held
+// while the destination cannot take all bytes, so idle tunnels hold no buffers at all.
+// EOF on one side is propagated with shutdownOutput(), the tunnel closes when both sides are done.
+public class ChannelTunnel {
+
+    private final SelectorLoop loop;
+    private final Side client;
+    private final Side remote;
+    private final long idleTimeoutMillis;
+    private final Runnable onClose;
+
+    private long lastActivity;
+    private boolean closed;
+
+    private ChannelTunnel(SelectorLoop loop, SocketChannel client, SocketChannel remote,
+                          long idleTimeoutMillis, Runnable onClose) {
+        this.loop = loop;
+        this.client = new Side(client);
+        this.remote = new Side(remote);
+        this.client.peer = this.remote;
+        this.remote.peer = this.client;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.onClose = onClose;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    // Loop thread only. Both channels must be non-blocking. The optional initial buffers are
+    // written to the respective side before any relayed data.
+    public static ChannelTunnel start(SelectorLoop loop,
+                                      SocketChannel client,
+                                      SocketChannel remote,
+                                      ByteBuffer initialToClient,
+                                      ByteBuffer initialToRemote,
+                                      long idleTimeoutMillis,
+                                      Runnable onClose) {
+        ChannelTunnel tunnel = new ChannelTunnel(loop, client, remote, idleTimeoutMillis, onClose);
+        try {
+            tunnel.client.key = loop.register(client, SelectionKey.OP_READ, tunnel.client);
+            tunnel.remote.key = loop.register(remote, SelectionKey.OP_READ, tunnel.remote);
+            tunnel.client.pending = nonEmpty(initialToClient);
+            tunnel.remote.pending = nonEmpty(initialToRemote);
+            tunnel.flushPending(tunnel.client);
+            tunnel.flushPending(tunnel.remote);
+        } catch (IOException e) {
+            tunnel.close();
+        }
+        return tunnel;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        client.close();
+        remote.close();
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+
+    // Read from side, write to side.peer
+    private void relay(Side from) throws IOException {
+        Side to = from.peer;
+        ByteBuffer buf = loop.ioBuffer();
+        int n = from.channel.read(buf);
+        if (n < 0) {
+            from.inputDone = true;
+            from.setInterest(SelectionKey.OP_READ, false);
+            if (to.pending == null) {
+                to.shutdownOutput();
+            }
+            closeIfDone();
+            return;
+        }
+        if (n == 0) {
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        buf.flip();
+        to.channel.write(buf);
+        if (buf.hasRemaining()) {
+            // Destination is slow: keep the rest and stop reading until it drained
+            ByteBuffer rest = BufferPool.shared().acquireDirect(buf.remaining());
+            rest.put(buf);
+            rest.flip();
+            to.pending = rest;
+            to.pendingPooled = true;
+            from.setInterest(SelectionKey.OP_READ, false);
+            to.setInterest(SelectionKey.OP_WRITE, true);
+        }
+    }
+
+    private void flushPending(Side to) throws IOException {
+        if (to.pending != null) {
+            to.channel.write(to.pending);
+            if (to.pending.hasRemaining()) {
+                to.setInterest(SelectionKey.OP_WRITE, true);
+                to.peer.setInterest(SelectionKey.OP_READ, false);
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            to.releasePending();
+        }
+        to.setInterest(SelectionKey.OP_WRITE, false);
+        if (to.peer.inputDone) {
+            to.shutdownOutput();
+            closeIfDone();
+        } else {
+            to.peer.setInterest(SelectionKey.OP_READ, true);
+        }
+    }
+
+    private void closeIfDone() {
+        if (client.inputDone && remote.inputDone && client.pending == null && remote.pending == null) {
+            close();
+        }
+    }
+
+    private static ByteBuffer nonEmpty(ByteBuffer buf) {
+        return (buf != null && buf.hasRemaining()) ? buf : null;
+    }
+
+    private final class Side implements SelectorLoop.Handler {
+
+        private final SocketChannel channel;
+        private Side peer;
+        private SelectionKey key;
+        private ByteBuffer pending;     // bytes waiting to be written to this side
+        private boolean pendingPooled;  // initial buffers belong to the caller
+        private boolean inputDone;      // EOF read from this side
+        private boolean outputShutdown;
+
+        Side(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onReady(SelectionKey k) {
+            try {
+                if (k.isValid() && k.isWritable()) {
+                    flushPending(this);
+                }
+                if (!closed && k.isValid() && k.isReadable()) {
+                    relay(this);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void onTick(long nowMillis) {
+            if (idleTimeoutMillis > 0 && nowMillis - lastActivity > idleTimeoutMillis) {
+                close();
+            }
+        }
+
+        void setInterest(int op, boolean on) {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(on ? (ops | op) : (ops & ~op));
+        }
+
+        void shutdownOutput() {
+            if (outputShutdown) {
+                return;
+            }
+            outputShutdown = true;
+            try {
+                channel.socket().shutdownOutput();
+            } catch (IOException e) {
+                ChannelTunnel.this.close();
+            }
+        }
+
+        void releasePending() {
+            if (pendingPooled) {
+                BufferPool.shared().release(pending);
+                pendingPooled = false;
+            }
+            pending = null;
+        }
+
+        void close() {
+            releasePending();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        }
+    }
+}
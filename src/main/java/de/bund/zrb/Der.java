@@ -0,0 +1,211 @@
+package de.bund.zrb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+// Minimal ASN.1 DER encoder/decoder, just enough to issue X.509 certificates and read PKCS#1 keys
+// without depending on internal JDK classes or an extra library.
+final class Der {
+
+    static final int INTEGER = 0x02;
+    static final int BIT_STRING = 0x03;
+    static final int OCTET_STRING = 0x04;
+    static final int NULL = 0x05;
+    static final int OID = 0x06;
+    static final int UTF8_STRING = 0x0c;
+    static final int UTC_TIME = 0x17;
+    static final int GENERALIZED_TIME = 0x18;
+    static final int SEQUENCE = 0x30;
+    static final int SET = 0x31;
+    static final int BOOLEAN = 0x01;
+
+    private Der() {
+    }
+
+    static byte[] tlv(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] c : contents) {
+            length += c.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        writeLength(out, length);
+        for (byte[] c : contents) {
+            out.write(c, 0, c.length);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] sequence(byte[]... contents) {
+        return tlv(SEQUENCE, contents);
+    }
+
+    static byte[] set(byte[]... contents) {
+        return tlv(SET, contents);
+    }
+
+    static byte[] integer(BigInteger value) {
+        return tlv(INTEGER, value.toByteArray());
+    }
+
+    static byte[] integer(long value) {
+        return integer(BigInteger.valueOf(value));
+    }
+
+    static byte[] bool(boolean value) {
+        return tlv(BOOLEAN, new byte[]{(byte) (value ? 0xff : 0x00)});
+    }
+
+    static byte[] nullValue() {
+        return new byte[]{NULL, 0};
+    }
+
+    static byte[] octetString(byte[] value) {
+        return tlv(OCTET_STRING, value);
+    }
+
+    // Bit string without unused bits.
+    static byte[] bitString(byte[] value) {
+        return tlv(BIT_STRING, new byte[]{0}, value);
+    }
+
+    static byte[] utf8String(String value) {
+        try {
+            return tlv(UTF8_STRING, value.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // [tag] EXPLICIT, constructed.
+    static byte[] explicit(int tag, byte[]... contents) {
+        return tlv(0xa0 | tag, contents);
+    }
+
+    // [tag] IMPLICIT, primitive.
+    static byte[] implicit(int tag, byte[] value) {
+        return tlv(0x80 | tag, value);
+    }
+
+    static byte[] oid(String dotted) {
+        String[] parts = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(parts.length + 4);
+        out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long arc = Long.parseLong(parts[i]);
+            int shift = 63 - Long.numberOfLeadingZeros(arc | 1);
+            for (int s = shift / 7 * 7; s > 0; s -= 7) {
+                out.write((int) ((arc >>> s) & 0x7f) | 0x80);
+            }
+            out.write((int) (arc & 0x7f));
+        }
+        return tlv(OID, out.toByteArray());
+    }
+
+    // UTCTime up to 2049, GeneralizedTime afterwards (RFC 5280, 4.1.2.5).
+    static byte[] time(Date date) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTime(date);
+        boolean utc = calendar.get(Calendar.YEAR) < 2050;
+        SimpleDateFormat format = new SimpleDateFormat(utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return tlv(utc ? UTC_TIME : GENERALIZED_TIME, format.format(date).getBytes("US-ASCII"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+        if (length < 0x80) {
+            out.write(length);
+            return;
+        }
+        int bytes = (39 - Integer.numberOfLeadingZeros(length)) / 8;
+        out.write(0x80 | bytes);
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write(length >>> (i * 8));
+        }
+    }
+
+    // Sequential reader over one DER structure.
+    static final class Reader {
+
+        private final byte[] data;
+        private int pos;
+        private final int end;
+
+        Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        private Reader(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return pos < end;
+        }
+
+        int peekTag() throws IOException {
+            if (pos >= end) {
+                throw new IOException("Unexpected end of DER data");
+            }
+            return data[pos] & 0xff;
+        }
+
+        // Reader over the contents of the next element, which must have the given tag.
+        Reader enter(int tag) throws IOException {
+            int length = header(tag);
+            Reader inner = new Reader(data, pos, pos + length);
+            pos += length;
+            return inner;
+        }
+
+        byte[] read(int tag) throws IOException {
+            int length = header(tag);
+            byte[] value = new byte[length];
+            System.arraycopy(data, pos, value, 0, length);
+            pos += length;
+            return value;
+        }
+
+        BigInteger readInteger() throws IOException {
+            return new BigInteger(read(INTEGER));
+        }
+
+        private int header(int tag) throws IOException {
+            int actual = peekTag();
+            if (actual != tag) {
+                throw new IOException("Unexpected DER tag 0x" + Integer.toHexString(actual)
+                        + ", expected 0x" + Integer.toHexString(tag));
+            }
+            pos++;
+            if (pos >= end) {
+                throw new IOException("Truncated DER length");
+            }
+            int length = data[pos++] & 0xff;
+            if (length >= 0x80) {
+                int bytes = length & 0x7f;
+                if (bytes == 0 || bytes > 3 || pos + bytes > end) {
+                    throw new IOException("Unsupported DER length");
+                }
+                length = 0;
+                for (int i = 0; i < bytes; i++) {
+                    length = (length << 8) | (data[pos++] & 0xff);
+                }
+            }
+            if (length > end - pos) {
+                throw new IOException("Truncated DER element");
+            }
+            return length;
+        }
+    }
+}
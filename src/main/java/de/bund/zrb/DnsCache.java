@@ -0,0 +1,185 @@
+package de.bund.zrb;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process-wide host name cache with positive and negative TTL. An entry that is used after
+// three quarters of its TTL is refreshed in the background, so hot hosts never wait for a
+// lookup; cold entries simply expire.
+public final class DnsCache implements StatsProvider {
+
+    public static final String KEY_TTL_SECONDS = "proxy.dns.ttlSeconds";
+    public static final String KEY_NEGATIVE_TTL_SECONDS = "proxy.dns.negativeTtlSeconds";
+
+    private static final int DEFAULT_TTL_SECONDS = 60;
+    private static final int DEFAULT_NEGATIVE_TTL_SECONDS = 10;
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final DnsCache SHARED = new DnsCache();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ExecutorService refresher;
+
+    private volatile long ttlMillis = DEFAULT_TTL_SECONDS * 1000L;
+    private volatile long negativeTtlMillis = DEFAULT_NEGATIVE_TTL_SECONDS * 1000L;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private DnsCache() {
+        // One background thread, refreshes beyond the queue are skipped (the entry stays valid)
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(256), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "dns-refresh");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        this.refresher = executor;
+    }
+
+    public static DnsCache shared() {
+        return SHARED;
+    }
+
+    // TTL 0 disables caching of the respective kind.
+    public void configure(ProxyConfig config) {
+        ttlMillis = Math.max(0, config.getLong(KEY_TTL_SECONDS, DEFAULT_TTL_SECONDS)) * 1000L;
+        negativeTtlMillis = Math.max(0, config.getLong(KEY_NEGATIVE_TTL_SECONDS, DEFAULT_NEGATIVE_TTL_SECONDS)) * 1000L;
+        entries.clear();
+    }
+
+    // All addresses of host in resolver order. The returned array must not be modified.
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (isLiteral(host)) {
+            return InetAddress.getAllByName(host);
+        }
+        String key = host.toLowerCase();
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            if (entry.addresses == null) {
+                negativeHits.incrementAndGet();
+                throw new UnknownHostException(host + " (cached)");
+            }
+            hits.incrementAndGet();
+            if (now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true)) {
+                refreshAsync(key);
+            }
+            return entry.addresses;
+        }
+
+        misses.incrementAndGet();
+        return lookup(key, now);
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("dns.entries: ").append(entries.size()).append('\n');
+        out.append("dns.hits: ").append(hits.get()).append('\n');
+        out.append("dns.negativeHits: ").append(negativeHits.get()).append('\n');
+        out.append("dns.misses: ").append(misses.get()).append('\n');
+        out.append("dns.refreshes: ").append(refreshes.get()).append('\n');
+    }
+
+    private InetAddress[] lookup(String key, long now) throws UnknownHostException {
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(key);
+            if (ttlMillis > 0) {
+                store(key, new Entry(addresses, now, ttlMillis));
+            }
+            return addresses;
+        } catch (UnknownHostException e) {
+            if (negativeTtlMillis > 0) {
+                store(key, new Entry(null, now, negativeTtlMillis));
+            }
+            throw e;
+        }
+    }
+
+    private void refreshAsync(final String key) {
+        refresher.execute(new Runnable() {
+            @Override
+            public void run() {
+                refreshes.incrementAndGet();
+                try {
+                    InetAddress[] addresses = InetAddress.getAllByName(key);
+                    store(key, new Entry(addresses, System.currentTimeMillis(), ttlMillis));
+                } catch (UnknownHostException e) {
+                    // Keep the old addresses until they expire
+                }
+            }
+        });
+    }
+
+    private void store(String key, Entry entry) {
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(key)) {
+            evict(entry.resolvedAt);
+        }
+        entries.put(key, entry);
+    }
+
+    // Drop expired entries; if none expired, drop any entry so the map stays bounded.
+    private void evict(long now) {
+        boolean removed = false;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (now >= it.next().expiresAt) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (!removed) {
+            it = entries.values().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    // IPv4 or IPv6 literal, resolved without a lookup.
+    static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return !host.isEmpty();
+    }
+
+    private static final class Entry {
+        // null = negative entry
+        final InetAddress[] addresses;
+        final long resolvedAt;
+        final long expiresAt;
+        final long refreshAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, long now, long ttl) {
+            this.addresses = addresses;
+            this.resolvedAt = now;
+            this.expiresAt = now + ttl;
+            this.refreshAt = now + ttl * 3 / 4;
+        }
+    }
+}
@@ -1,40 +1,111 @@
 package de.bund.zrb;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
-import java.net.InetSocketAddress;
+import java.math.BigDecimal;
 import java.net.Socket;
+import java.nio.charset.Charset;
 import java.security.KeyStore;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-
-public class GenericMitmHandler implements MitmHandler {
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GenericMitmHandler implements MitmHandler, StatsProvider {
+
+    public static final String KEY_PARALLEL_HANDSHAKE = "proxy.mitm.parallelHandshake";
+    public static final String KEY_REWRITE_FIELDS = "proxy.mitm.rewrite.fields";
+    public static final String KEY_INSPECT_STREAMS = "proxy.mitm.inspectStreams";
+    // off | record | replay
+    public static final String KEY_STORE_MODE = "proxy.mitm.store.mode";
+    public static final String KEY_STORE_FILE = "proxy.mitm.store.file";
+    // original | fast
+    public static final String KEY_REPLAY_TIMING = "proxy.mitm.replay.timing";
+    public static final String KEY_POOL_ENABLED = "proxy.mitm.upstream.pool.enabled";
+    public static final String KEY_POOL_MAX_IDLE_PER_HOST = "proxy.mitm.upstream.pool.maxIdlePerHost";
+    public static final String KEY_POOL_MAX_PER_HOST = "proxy.mitm.upstream.pool.maxPerHost";
+    public static final String KEY_POOL_IDLE_TIMEOUT = "proxy.mitm.upstream.pool.idleTimeoutMillis";
+    // Connections opened per MITM host (port 443) at start, 0 = none
+    public static final String KEY_POOL_PREWARM = "proxy.mitm.upstream.pool.prewarm";
+    public static final String KEY_HTTP2_ENABLED = "proxy.mitm.http2.enabled";
+    public static final String KEY_HTTP2_MAX_STREAMS = "proxy.mitm.http2.maxConcurrentStreams";
 
     private static final int CONNECT_TIMEOUT_MILLIS = 15000;
     private static final int READ_TIMEOUT_MILLIS = 60000;
-    private static final int MAX_HEADER_BYTES = 64 * 1024;
-    private static final int MAX_BODY_BYTES = 1_048_576; // 1 MB
-
+    // A pooled connection is probed this long before reuse (a read that has to time out)
+    private static final int POOL_PROBE_MILLIS = 1;
+    private static final int POOL_MAX_IDLE = 64;
+    private static final int POOL_MAX_IDLE_PER_HOST = 4;
+    private static final long POOL_IDLE_TIMEOUT_MILLIS = 30000;
+    private static final int DEFAULT_HTTP2_MAX_STREAMS = 100;
+    private static final int MAX_BODY_BYTES = 1_048_576; // 1 MB, größere Bodies werden gestreamt
+    private static final String STORE_FILE_NAME = "traffic.store";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Static keystore certificate, used when no CA is available (or issuing fails); may be null
     private final SSLContext serverSslContext;
+    // Per-host certificates from the local CA; null if the CA files are missing
+    private final LeafCertificateCache leafCertificates;
     private final SSLSocketFactory clientSslFactory;
     private final Set<String> mitmHosts;
     private final MitmTrafficListener trafficListener;
+    private final WorkerPool workerPool;
+    private final StreamCopier copier;
+    private final UpstreamConnector connector;
+    private final TlsProfile clientTlsProfile;
+    private final TlsProfile upstreamTlsProfile;
+    private final boolean parallelHandshake;
+    private final boolean inspectStreams;
+    // h2 offered to clients via ALPN; 0 if disabled
+    private final int http2MaxStreams;
 
     // Rewrite-Konfiguration
     private final boolean rewriteEnabled;
     private final String modelToPatch;          // z.B. "gpt-5-mini"
     private final Double targetTemperature;     // z.B. 1.0; null = Temperatur nicht anfassen
 
-    private final Gson gson = new Gson();
+    // Interception and rewrite rules: the UI settings plus mitm-rules.json
+    private final MitmRules rules;
+    private final SseInspector.Sink streamSink = new StreamSink();
+
+    // Record/replay: the store (null if off), the stand-in origin in replay mode
+    private final TrafficStore store;
+    private final boolean recording;
+    private final ReplayOrigin replay;
+    // Responses to deterministic requests; null if disabled
+    private final ResponseCache cache;
+    // Identical requests in flight share one upstream exchange; null if disabled
+    private final InFlightRequests coalescer;
+    // Established upstream TLS connections, shared by the sessions; null if disabled or replaying
+    private final UpstreamConnectionPool upstreamPool;
+
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong http2Sessions = new AtomicLong();
+    private final AtomicLong http2Streams = new AtomicLong();
+    private final AtomicInteger http2ActiveStreams = new AtomicInteger();
+    private final AtomicInteger http2MaxActiveStreams = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong inspected = new AtomicLong();
+    private final AtomicLong rewritten = new AtomicLong();
+    private final AtomicLong patchedInPlace = new AtomicLong();
+    private final AtomicLong streams = new AtomicLong();
+    private final AtomicLong streamsIncomplete = new AtomicLong();
+    private final AtomicLong streamTtfbMillis = new AtomicLong();
+    private final AtomicLong streamTtftMillis = new AtomicLong();
+    private final AtomicLong streamsWithTokens = new AtomicLong();
+    private final AtomicLong streamTokens = new AtomicLong();
+    private final AtomicLong streamTokensPerSecondMilli = new AtomicLong();
 
     // Hauptkonstruktor (wird von ProxyControlFrame verwendet)
     public GenericMitmHandler(String keyStorePath,
@@ -43,20 +114,69 @@ public class GenericMitmHandler implements MitmHandler {
                               MitmTrafficListener trafficListener,
                               boolean rewriteEnabled,
                               String modelToPatch,
-                              Double targetTemperature) {
+                              Double targetTemperature,
+                              WorkerPool workerPool,
+                              ProxyConfig config) {
         try {
-            this.serverSslContext = createServerSslContext(keyStorePath, keyStorePassword);
-            this.clientSslFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+            TlsProfile.configureSessionTickets(config);
+            this.clientTlsProfile = TlsProfile.fromConfig(config, "client");
+            this.upstreamTlsProfile = TlsProfile.fromConfig(config, "upstream");
+            this.leafCertificates = LeafCertificateCache.fromConfig(config,
+                    new File(keyStorePath).getAbsoluteFile().getParentFile(), clientTlsProfile);
+            this.serverSslContext = leafCertificates == null || new File(keyStorePath).isFile()
+                    ? createServerSslContext(keyStorePath, keyStorePassword)
+                    : null;
+            this.clientSslFactory = createClientSslFactory();
             this.mitmHosts = normalizeHosts(mitmHosts);
             this.trafficListener = trafficListener;
             this.rewriteEnabled = rewriteEnabled;
             this.modelToPatch = modelToPatch != null ? modelToPatch.trim() : null;
             this.targetTemperature = targetTemperature;
+            this.rules = MitmRules.fromConfig(config, new File(keyStorePath).getAbsoluteFile().getParentFile(),
+                    createUiRules(config));
+            this.workerPool = workerPool != null ? workerPool : WorkerPool.threadPerTask();
+            this.copier = StreamCopier.fromConfig(config);
+            this.connector = UpstreamConnector.fromConfig(config);
+            // Off by default: an unreachable origin then fails the CONNECT, which clients report clearly
+            this.parallelHandshake = config.getBoolean(KEY_PARALLEL_HANDSHAKE, false);
+            this.inspectStreams = config.getBoolean(KEY_INSPECT_STREAMS, true);
+            this.http2MaxStreams = config.getBoolean(KEY_HTTP2_ENABLED, false)
+                    ? Math.max(1, config.getInt(KEY_HTTP2_MAX_STREAMS, DEFAULT_HTTP2_MAX_STREAMS))
+                    : 0;
+            String storeMode = config.getString(KEY_STORE_MODE, "off").trim();
+            this.recording = "record".equalsIgnoreCase(storeMode);
+            this.store = recording || "replay".equalsIgnoreCase(storeMode)
+                    ? new TrafficStore(storeFile(config, new File(keyStorePath).getAbsoluteFile().getParentFile()))
+                    : null;
+            this.replay = store != null && !recording ? startReplay(config) : null;
+            this.cache = ResponseCache.fromConfig(config, new File(keyStorePath).getAbsoluteFile().getParentFile());
+            this.coalescer = InFlightRequests.fromConfig(config, READ_TIMEOUT_MILLIS);
+            this.upstreamPool = replay == null ? createUpstreamPool(config) : null;
+            if (leafCertificates != null) {
+                leafCertificates.prewarm(this.mitmHosts);
+            }
+            int prewarm = config.getInt(KEY_POOL_PREWARM, 0);
+            if (upstreamPool != null && prewarm > 0) {
+                for (String host : this.mitmHosts) {
+                    upstreamPool.prewarm(host, 443, prewarm, CONNECT_TIMEOUT_MILLIS);
+                }
+            }
         } catch (Exception e) {
             throw new IllegalStateException("Failed to initialize GenericMitmHandler: " + e.getMessage(), e);
         }
     }
 
+    public GenericMitmHandler(String keyStorePath,
+                              String keyStorePassword,
+                              Set<String> mitmHosts,
+                              MitmTrafficListener trafficListener,
+                              boolean rewriteEnabled,
+                              String modelToPatch,
+                              Double targetTemperature) {
+        this(keyStorePath, keyStorePassword, mitmHosts, trafficListener,
+                rewriteEnabled, modelToPatch, targetTemperature, null, ProxyConfig.empty());
+    }
+
     // Convenience-Konstruktor (ohne Rewrite)
     public GenericMitmHandler(String keyStorePath,
                               String keyStorePassword,
@@ -67,280 +187,570 @@ public class GenericMitmHandler implements MitmHandler {
 
     @Override
     public boolean supports(String host, int port) {
-        if (host == null || port != 443) return false;
+        if (host == null) return false;
         String h = host.toLowerCase();
-        if (mitmHosts.isEmpty()) return true;
-        return mitmHosts.contains(h);
+        if (port == 443 && (mitmHosts.isEmpty() || mitmHosts.contains(h))) return true;
+        return rules.intercepts(h, port);
     }
 
     @Override
-    public void handleConnect(String host, int port, Socket clientSocket) throws IOException {
-        // TLS zum echten Server
-        SSLSocket remote = (SSLSocket) clientSslFactory.createSocket();
-        remote.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
-        remote.setSoTimeout(READ_TIMEOUT_MILLIS);
-        remote.startHandshake();
-        log("[MITM] Connected TLS to " + host + ":" + port);
+    public void handleConnect(String host, int port, Socket clientSocket, InputStream consumed) throws IOException {
+        if (parallelHandshake) {
+            handleConnectParallel(host, port, clientSocket, consumed);
+            return;
+        }
+
+        SSLContext serverContext = serverContextFor(host);
+
+        // TLS zum echten Server (aus dem Pool, sonst über DNS-Cache und parallele Verbindungsversuche)
+        SessionOrigin origin = new SessionOrigin(host, port);
+        UpstreamConnection remote;
+        try {
+            remote = origin.connect();
+        } catch (IOException e) {
+            writePlainBadGateway(clientSocket);
+            throw e;
+        }
 
         // CONNECT bestätigen
-        OutputStream clientOutPlain = clientSocket.getOutputStream();
-        clientOutPlain.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes("ISO-8859-1"));
-        clientOutPlain.flush();
+        writeConnectEstablished(clientSocket);
 
         // TLS ggü. Client mit unserem Zert
-        SSLSocket clientTls = (SSLSocket) serverSslContext
-                .getSocketFactory()
-                .createSocket(clientSocket, host, port, true);
-        clientTls.setUseClientMode(false);
-        clientTls.setNeedClientAuth(false);
-        clientTls.setSoTimeout(READ_TIMEOUT_MILLIS);
-        clientTls.startHandshake();
-        log("[MITM] Established TLS with client for " + host + ":" + port);
-
-        // erste Request ggf. patchen
-        handleFirstRequest(clientTls, remote);
+        SSLSocket clientTls;
+        try {
+            clientTls = acceptClientTls(serverContext, host, port, clientSocket, consumed);
+        } catch (IOException e) {
+            // Still unused
+            origin.release(remote, true);
+            throw e;
+        }
 
-        // rest tunneln
-        startBidirectionalTunnel(clientTls, remote);
+        // alle Requests der Verbindung einzeln weiterleiten (und ggf. patchen)
+        runSession(host, port, clientTls, origin, remote);
     }
 
-    private void handleFirstRequest(SSLSocket clientTls, SSLSocket remote) {
+    // CONNECT is answered right away; the origin connect and handshake run on a helper while
+    // this thread does the client handshake, so setup costs the slower of both instead of the sum.
+    // An unreachable origin is reported as 502 inside the client TLS session.
+    private void handleConnectParallel(String host, int port, Socket clientSocket, InputStream consumed)
+            throws IOException {
+        SessionOrigin origin = new SessionOrigin(host, port);
+        UpstreamHandshake upstream = new UpstreamHandshake(origin);
+        workerPool.spawn(upstream, "mitm-upstream");
+
+        SSLSocket clientTls;
         try {
-            InputStream in = clientTls.getInputStream();
-            OutputStream out = remote.getOutputStream();
+            SSLContext serverContext = serverContextFor(host);
+            writeConnectEstablished(clientSocket);
+            clientTls = acceptClientTls(serverContext, host, port, clientSocket, consumed);
+        } catch (IOException e) {
+            upstream.abandon();
+            throw e;
+        }
 
-            // Headers lesen
-            ByteArrayOutputStream headerBuf = new ByteArrayOutputStream();
-            if (!readUntilDoubleCrlf(in, headerBuf, MAX_HEADER_BYTES)) {
-                log("[MITM] Failed to read full request headers");
+        UpstreamConnection remote;
+        try {
+            remote = upstream.await();
+        } catch (IOException e) {
+            log("[MITM] Upstream " + host + ":" + port + " failed: " + e.getMessage());
+            if (!isHttp2(clientTls)) {
+                writeBadGateway(MitmSession.client(clientTls), e.getMessage());
                 return;
             }
+            // Every stream tries again and answers 502 on its own
+            remote = null;
+        }
 
-            byte[] headerBytes = headerBuf.toByteArray();
-            String headerStr = new String(headerBytes, "ISO-8859-1");
-            logTraffic("client->server headers", headerStr, false);
+        runSession(host, port, clientTls, origin, remote);
+    }
 
-            int contentLength = parseContentLength(headerStr);
+    // remote may only be null for HTTP/2.
+    private void runSession(String host, int port, SSLSocket clientTls, SessionOrigin origin,
+                            UpstreamConnection remote) {
+        sessions.incrementAndGet();
+        BitSet candidates = rules.forConnection(host.toLowerCase(Locale.ROOT), port);
+        if (isHttp2(clientTls)) {
+            runHttp2Session(host, port, clientTls, origin, remote, candidates);
+            return;
+        }
+        MitmSession.Stages stages = new RewriteStages(candidates);
+        new MitmSession(MitmSession.client(clientTls), origin, remote, stages, workerPool, copier, MAX_BODY_BYTES)
+                .run();
+    }
 
-            if (contentLength <= 0 || contentLength > MAX_BODY_BYTES) {
-                // nichts zu patchen / zu groß -> direkt weiter
-                out.write(headerBytes);
-                out.flush();
-                if (contentLength > 0) {
-                    pipeFixed(in, out, contentLength);
+    // Each stream is an exchange of its own with its own upstream connection from the origin
+    // (the pool, if enabled); the connection opened during the handshake serves the first one.
+    private void runHttp2Session(String host, int port, SSLSocket clientTls, final SessionOrigin origin,
+                                 UpstreamConnection remote, final BitSet candidates) {
+        http2Sessions.incrementAndGet();
+        log("[MITM] HTTP/2 with client for " + host + ":" + port);
+        final AtomicReference<UpstreamConnection> first = new AtomicReference<UpstreamConnection>(remote);
+        try {
+            new Http2Connection(clientTls, workerPool, http2MaxStreams, new Http2Connection.StreamHandler() {
+                @Override
+                public void handle(Http2Stream stream) {
+                    http2Streams.incrementAndGet();
+                    updateMax(http2MaxActiveStreams, http2ActiveStreams.incrementAndGet());
+                    try {
+                        UpstreamConnection upstream = first.getAndSet(null);
+                        if (upstream == null) {
+                            try {
+                                upstream = origin.connect();
+                            } catch (IOException e) {
+                                writeBadGateway(stream, e.getMessage());
+                                return;
+                            }
+                        }
+                        new MitmSession(stream, origin, upstream, new RewriteStages(candidates), workerPool, copier,
+                                MAX_BODY_BYTES).run();
+                    } finally {
+                        http2ActiveStreams.decrementAndGet();
+                    }
                 }
-                return;
-            }
-
-            // Body lesen
-            byte[] bodyBytes = readFixedBytes(in, contentLength);
-            if (bodyBytes == null) {
-                log("[MITM] Failed to read full request body");
-                return;
+            }).run();
+        } catch (IOException e) {
+            closeQuietly(clientTls);
+        } finally {
+            UpstreamConnection unused = first.getAndSet(null);
+            if (unused != null) {
+                origin.release(unused, true);
             }
+        }
+    }
 
-            String body = new String(bodyBytes, "UTF-8");
-            logTraffic("client->server body", body, looksLikeJson(body));
+    private boolean isHttp2(SSLSocket clientTls) {
+        return http2MaxStreams > 0 && "h2".equals(TlsProfile.applicationProtocol(clientTls));
+    }
 
-            // nur /v1/chat/completions + Rewrite aktiv + passendes Modell anfassen
-            if (!rewriteEnabled || !isChatCompletionsRequest(headerStr)) {
-                out.write(headerBytes);
-                out.write(bodyBytes);
-                out.flush();
-                return;
+    private UpstreamConnectionPool createUpstreamPool(ProxyConfig config) {
+        if (!config.getBoolean(KEY_POOL_ENABLED, true)) {
+            return null;
+        }
+        return new UpstreamConnectionPool("mitm.upstream.pool", new UpstreamConnectionPool.Opener() {
+            @Override
+            public Socket open(String host, int port, int timeoutMillis) throws IOException {
+                return connectUpstream(host, port);
             }
+        }, POOL_MAX_IDLE,
+                config.getInt(KEY_POOL_MAX_IDLE_PER_HOST, POOL_MAX_IDLE_PER_HOST),
+                config.getInt(KEY_POOL_MAX_PER_HOST, 0),
+                config.getLong(KEY_POOL_IDLE_TIMEOUT, POOL_IDLE_TIMEOUT_MILLIS),
+                POOL_PROBE_MILLIS);
+    }
 
-            String patchedBody = patchJsonBodyIfNeeded(body);
-            if (patchedBody == null || patchedBody.equals(body)) {
-                out.write(headerBytes);
-                out.write(bodyBytes);
-                out.flush();
-                return;
-            }
+    // In replay mode the stand-in origin, plain HTTP on loopback.
+    private Socket connectUpstream(String host, int port) throws IOException {
+        if (replay != null) {
+            Socket socket = replay.connect(CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            return socket;
+        }
+        Socket plain = connector.connect(host, port, CONNECT_TIMEOUT_MILLIS);
+        SSLSocket remote;
+        try {
+            remote = (SSLSocket) clientSslFactory.createSocket(plain, host, port, true);
+        } catch (IOException e) {
+            closeQuietly(plain);
+            throw e;
+        }
+        try {
+            remote.setSoTimeout(READ_TIMEOUT_MILLIS);
+            upstreamTlsProfile.configure(remote);
+            upstreamTlsProfile.handshake(remote);
+        } catch (IOException e) {
+            closeQuietly(remote);
+            throw e;
+        }
+        log("[MITM] Connected TLS to " + host + ":" + port);
+        return remote;
+    }
 
-            byte[] patchedBytes = patchedBody.getBytes("UTF-8");
-            String fixedHeaders = replaceContentLength(headerStr, patchedBytes.length);
+    private SSLSocket acceptClientTls(SSLContext serverContext, String host, int port, Socket clientSocket,
+                                      InputStream consumed) throws IOException {
+        SSLSocketFactory factory = serverContext.getSocketFactory();
+        // Bytes read ahead with the CONNECT head are the start of the handshake
+        SSLSocket clientTls = (SSLSocket) (consumed != null
+                ? factory.createSocket(clientSocket, consumed, true)
+                : factory.createSocket(clientSocket, host, port, true));
+        clientTls.setUseClientMode(false);
+        clientTls.setNeedClientAuth(false);
+        clientTls.setSoTimeout(READ_TIMEOUT_MILLIS);
+        clientTlsProfile.configure(clientTls);
+        if (http2MaxStreams > 0) {
+            TlsProfile.offerApplicationProtocols(clientTls, "h2", "http/1.1");
+        }
+        clientTlsProfile.handshake(clientTls);
+        log("[MITM] Established TLS with client for " + host + ":" + port);
+        return clientTls;
+    }
 
-            log("[MITM] Request body modified for model=" + modelToPatch);
-            logTraffic("client->server body (modified)", patchedBody, true);
+    private void writeConnectEstablished(Socket clientSocket) throws IOException {
+        OutputStream clientOutPlain = clientSocket.getOutputStream();
+        clientOutPlain.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes("ISO-8859-1"));
+        clientOutPlain.flush();
+    }
 
-            out.write(fixedHeaders.getBytes("ISO-8859-1"));
-            out.write(patchedBytes);
+    private void writePlainBadGateway(Socket clientSocket) {
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes("ISO-8859-1"));
             out.flush();
-
-        } catch (Exception e) {
-            log("[MITM] Error in first request handling: " + e.getMessage());
+        } catch (IOException ignored) {
+            // Client already gone
         }
     }
 
-    private void startBidirectionalTunnel(Socket clientTls, Socket remote) {
-        Thread t1 = new Thread(new TunnelPipeTask(clientTls, remote), "mitm-c2s");
-        Thread t2 = new Thread(new TunnelPipeTask(remote, clientTls), "mitm-s2c");
-        t1.setDaemon(true);
-        t2.setDaemon(true);
-        t1.start();
-        t2.start();
+    // Reads the client's request head first, so the response is not lost to a reset.
+    private void writeBadGateway(MitmSession.Client client, String reason) {
+        HttpInputStream in = null;
         try {
-            t1.join();
-            t2.join();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            in = new HttpInputStream(client.getInputStream());
+            if (in.readHead(new HttpHead())) {
+                byte[] body = ("Upstream connection failed: " + reason + "\n").getBytes("UTF-8");
+                OutputStream out = client.getOutputStream();
+                out.write(("HTTP/1.1 502 Bad Gateway\r\n"
+                        + "Content-Type: text/plain; charset=utf-8\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                out.write(body);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // Client already gone
         } finally {
-            closeQuietly(clientTls);
-            closeQuietly(remote);
+            if (in != null) {
+                in.release();
+            }
+            client.close();
+        }
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("mitm.sessions: ").append(sessions.get()).append('\n');
+        if (http2MaxStreams > 0) {
+            out.append("mitm.h2.sessions: ").append(http2Sessions.get()).append('\n');
+            out.append("mitm.h2.streams: ").append(http2Streams.get()).append('\n');
+            out.append("mitm.h2.activeStreams: ").append(http2ActiveStreams.get()).append('\n');
+            out.append("mitm.h2.maxActiveStreams: ").append(http2MaxActiveStreams.get()).append('\n');
+        }
+        out.append("mitm.requests: ").append(requests.get()).append('\n');
+        out.append("mitm.requests.inspected: ").append(inspected.get()).append('\n');
+        out.append("mitm.requests.rewritten: ").append(rewritten.get()).append('\n');
+        out.append("mitm.requests.patchedInPlace: ").append(patchedInPlace.get()).append('\n');
+        long streamCount = streams.get();
+        long tokenCount = streamsWithTokens.get();
+        out.append("mitm.streams: ").append(streamCount).append('\n');
+        out.append("mitm.streams.incomplete: ").append(streamsIncomplete.get()).append('\n');
+        out.append("mitm.streams.avgTtfbMillis: ")
+                .append(streamCount > 0 ? streamTtfbMillis.get() / streamCount : 0).append('\n');
+        out.append("mitm.streams.avgTtftMillis: ")
+                .append(tokenCount > 0 ? streamTtftMillis.get() / tokenCount : 0).append('\n');
+        out.append("mitm.streams.tokens: ").append(streamTokens.get()).append('\n');
+        out.append("mitm.streams.avgTokensPerSecond: ")
+                .append(tokenCount > 0 ? String.format(Locale.ROOT, "%.1f",
+                        streamTokensPerSecondMilli.get() / 1000.0 / tokenCount) : "0").append('\n');
+        rules.appendStats(out);
+        if (store != null) {
+            store.appendStats(out);
+        }
+        if (replay != null) {
+            replay.appendStats(out);
+        }
+        if (cache != null) {
+            cache.appendStats(out);
+        }
+        if (coalescer != null) {
+            coalescer.appendStats(out);
+        }
+        if (upstreamPool != null) {
+            upstreamPool.appendStats(out);
+        }
+        clientTlsProfile.appendStats(out);
+        upstreamTlsProfile.appendStats(out);
+        if (leafCertificates != null) {
+            leafCertificates.appendStats(out);
         }
     }
 
-    // ---- JSON Patch ----
+    @Override
+    public void close() {
+        if (upstreamPool != null) {
+            upstreamPool.shutdown();
+        }
+        if (replay != null) {
+            replay.close();
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
 
-    private String patchJsonBodyIfNeeded(String body) {
+    // Certificate for the CONNECT host (which clients also send as SNI).
+    private SSLContext serverContextFor(String host) throws IOException {
+        if (leafCertificates == null) {
+            return serverSslContext;
+        }
         try {
-            if (!looksLikeJson(body) || modelToPatch == null || modelToPatch.isEmpty()) {
-                return body;
+            return leafCertificates.contextFor(host);
+        } catch (IOException e) {
+            if (serverSslContext == null) {
+                throw e;
             }
+            log("[MITM] " + e.getMessage() + ", using keystore certificate");
+            return serverSslContext;
+        }
+    }
 
-            JsonElement root = JsonParser.parseString(body);
-            if (!root.isJsonObject()) {
-                return body;
-            }
+    // ---- Rewrite / inspection stages (every request on the connection) ----
+
+    private final class RewriteStages implements MitmSession.Stages {
+
+        // Rules for this connection's host and port
+        private final BitSet candidates;
+        // Rewriter of the current request (request thread only), null if no rule matches
+        private JsonBodyRewriter rewriter;
+        // Cache and flight key of the current request and the body they were computed from
+        private byte[] keyBody;
+        private String cacheKey;
+        private String flightKey;
+
+        RewriteStages(BitSet candidates) {
+            this.candidates = candidates;
+        }
+
+        @Override
+        public void requestHead(HttpHead request) {
+            requests.incrementAndGet();
+            rewriter = rules.rewriterFor(candidates, request);
+            logTraffic("client->server headers", request.toString(), false);
+        }
+
+        @Override
+        public boolean wantsRequestBody(HttpHead request) {
+            // Buffer only what gets rewritten, cached or shown in the UI, stream everything else
+            return rewritesRequestStream(request) || trafficListener != null
+                    || (cache != null && cache.handles(request))
+                    || (coalescer != null && coalescer.handles(request));
+        }
 
-            JsonObject obj = root.getAsJsonObject();
+        @Override
+        public byte[] rewriteRequestBody(HttpHead request, byte[] bodyBytes) {
+            inspected.incrementAndGet();
+            boolean json = looksLikeJson(bodyBytes);
+            logBody("client->server body", bodyBytes, json);
 
-            if (!obj.has("model")) {
-                return body;
+            // nur Requests mit passender Regel (Host, Pfad, Methode) anfassen, das Modell prüft der Rewriter
+            if (!rewritesRequestStream(request) || !json) {
+                return null;
             }
 
-            String model = obj.get("model").getAsString();
-            if (!modelToPatch.equalsIgnoreCase(model.trim())) {
-                return body;
+            byte[] patched = rewriter.patch(bodyBytes);
+            if (patched == bodyBytes) {
+                // Unchanged: the client's bytes go out as they are
+                return null;
+            }
+            if (patched != null) {
+                patchedInPlace.incrementAndGet();
+            } else {
+                // Too irregular for the byte scan: full token rewrite
+                ByteArrayOutputStream out = new ByteArrayOutputStream(bodyBytes.length + 32);
+                try {
+                    if (!rewriter.rewrite(new ByteArrayInputStream(bodyBytes), out)) {
+                        return null;
+                    }
+                } catch (IOException e) {
+                    log("[MITM] JSON patch failed: " + e.getMessage());
+                    return null;
+                }
+                patched = out.toByteArray();
             }
 
-            boolean changed = false;
+            rewritten.incrementAndGet();
+            // Which rule applied is counted in mitm.rules.*
+            log("[MITM] Request body modified");
+            logBody("client->server body (modified)", patched, true);
+            return patched;
+        }
 
-            if (targetTemperature != null) {
-                obj.addProperty("temperature", targetTemperature);
-                changed = true;
-            }
+        @Override
+        public boolean rewritesRequestStream(HttpHead request) {
+            return rewriter != null && !rewriter.isEmpty();
+        }
 
-            if (!changed) {
-                return body;
+        @Override
+        public void rewriteRequestBody(HttpHead request, InputStream in, OutputStream out) throws IOException {
+            inspected.incrementAndGet();
+            BufferedInputStream body = new BufferedInputStream(in, BufferPool.SMALL);
+            if (!startsWithObject(body)) {
+                // Not JSON: nothing to rewrite, forward as it is
+                StreamCopier.DIRECT.copy(body, out);
+                return;
+            }
+            try {
+                if (rewriter.rewrite(body, out)) {
+                    rewritten.incrementAndGet();
+                    log("[MITM] Request body modified (streamed)");
+                }
+            } catch (IOException e) {
+                // Part of the body is already sent, the request cannot be completed
+                log("[MITM] JSON patch failed: " + e.getMessage());
+                throw e;
             }
+        }
 
-            return gson.toJson(obj);
+        @Override
+        public void responseHead(HttpHead response) {
+            logTraffic("server->client headers", response.toString(), false);
+        }
 
-        } catch (Exception e) {
-            log("[MITM] JSON patch failed: " + e.getMessage());
-            return body;
+        @Override
+        public SseInspector.Sink responseStream(HttpHead response) {
+            return inspectStreams && SseInspector.isEventStream(response) ? streamSink : null;
         }
-    }
 
-    // ---- Helper ----
+        @Override
+        public boolean answer(HttpHead request, byte[] body, OutputStream client) throws IOException {
+            computeKeys(request, body);
+            if (cacheKey != null && !request.hasHeaderToken("Cache-Control", "no-cache")) {
+                ResponseCache.Entry entry = cache.get(cacheKey);
+                if (entry != null) {
+                    cache.write(entry, client);
+                    log("[MITM] Answered from cache: " + request.getStartLine());
+                    return true;
+                }
+            }
+            if (flightKey != null) {
+                InFlightRequests.Flight flight = coalescer.attach(flightKey);
+                if (flight != null && flight.follow(client)) {
+                    log("[MITM] Answered by identical request in flight: " + request.getStartLine());
+                    return true;
+                }
+            }
+            return false;
+        }
 
-    private boolean isChatCompletionsRequest(String headers) {
-        if (headers == null) return false;
-        String lower = headers.toLowerCase();
-        int end = lower.indexOf("\r\n");
-        String requestLine = (end > 0) ? lower.substring(0, end) : lower;
-        return requestLine.startsWith("post /v1/chat/completions ");
-    }
-
-    private boolean readUntilDoubleCrlf(InputStream in,
-                                        ByteArrayOutputStream buffer,
-                                        int maxBytes) throws IOException {
-        int state = 0;
-        while (buffer.size() < maxBytes) {
-            int b = in.read();
-            if (b == -1) return false;
-            buffer.write(b);
-
-            switch (state) {
-                case 0: state = (b == '\r') ? 1 : 0; break;
-                case 1: state = (b == '\n') ? 2 : 0; break;
-                case 2: state = (b == '\r') ? 3 : 0; break;
-                case 3:
-                    if (b == '\n') return true;
-                    state = 0;
-                    break;
+        @Override
+        public MitmSession.Exchange exchange(HttpHead request, byte[] body) {
+            MitmSession.Exchange recorder = recording && !request.hasHeader("Upgrade") ? store.record(request) : null;
+            if (body == null) {
+                return recorder;
             }
+            computeKeys(request, body);
+            MitmSession.Exchange follower = MitmSession.both(recorder, cacheKey != null ? cache.store(cacheKey) : null);
+            return MitmSession.both(follower, flightKey != null ? coalescer.lead(flightKey) : null);
         }
-        return false;
-    }
 
-    private int parseContentLength(String headers) {
-        String[] lines = headers.split("\r\n");
-        for (String line : lines) {
-            int colon = line.indexOf(':');
-            if (colon > 0) {
-                String name = line.substring(0, colon).trim();
-                if ("content-length".equalsIgnoreCase(name)) {
-                    String v = line.substring(colon + 1).trim();
-                    try {
-                        return Integer.parseInt(v);
-                    } catch (NumberFormatException ignored) {
-                        return -1;
-                    }
-                }
+        // Computed once per request body
+        private void computeKeys(HttpHead request, byte[] body) {
+            if (body != keyBody) {
+                keyBody = body;
+                cacheKey = cache != null ? cache.keyFor(request, body) : null;
+                flightKey = coalescer != null ? coalescer.keyFor(request, body) : null;
             }
         }
-        return -1;
     }
 
-    private byte[] readFixedBytes(InputStream in, int length) throws IOException {
-        byte[] data = new byte[length];
-        int off = 0;
-        while (off < length) {
-            int r = in.read(data, off, length - off);
-            if (r == -1) return null;
-            off += r;
+    // Events of streamed responses go to the listener one by one, the metrics into the stats.
+    private final class StreamSink implements SseInspector.Sink {
+
+        @Override
+        public void onEvent(String event, String data) {
+            if (trafficListener != null) {
+                trafficListener.onStreamEvent(event, data);
+            }
         }
-        return data;
-    }
 
-    private void pipeFixed(InputStream in, OutputStream out, int length) throws IOException {
-        byte[] buf = new byte[8192];
-        int remaining = length;
-        while (remaining > 0) {
-            int r = in.read(buf, 0, Math.min(buf.length, remaining));
-            if (r == -1) throw new EOFException("Unexpected EOF");
-            out.write(buf, 0, r);
-            remaining -= r;
+        @Override
+        public void onCompleted(StreamMetrics metrics) {
+            streams.incrementAndGet();
+            if (!metrics.isComplete()) {
+                streamsIncomplete.incrementAndGet();
+            }
+            streamTtfbMillis.addAndGet(metrics.getTtfbMillis());
+            if (metrics.getTtftMillis() >= 0) {
+                streamsWithTokens.incrementAndGet();
+                streamTtftMillis.addAndGet(metrics.getTtftMillis());
+                streamTokens.addAndGet(metrics.getCompletionTokens());
+                streamTokensPerSecondMilli.addAndGet(Math.round(metrics.getTokensPerSecond() * 1000));
+            }
+            log("[MITM] Stream: " + metrics);
+            if (trafficListener != null) {
+                trafficListener.onStreamCompleted(metrics);
+            }
         }
     }
 
-    private boolean looksLikeJson(String text) {
-        if (text == null) return false;
-        String t = text.trim();
-        return (t.startsWith("{") && t.endsWith("}"))
-                || (t.startsWith("[") && t.endsWith("]"));
-    }
+    // ---- Helper ----
 
-    private String replaceContentLength(String headerBlock, int newLen) {
-        int sep = headerBlock.indexOf("\r\n\r\n");
-        String headersOnly = (sep >= 0) ? headerBlock.substring(0, sep) : headerBlock;
+    private static File storeFile(ProxyConfig config, File defaultDir) {
+        String path = config.getString(KEY_STORE_FILE, null);
+        return path != null ? new File(path) : new File(defaultDir, STORE_FILE_NAME);
+    }
 
-        String[] lines = headersOnly.split("\r\n");
-        StringBuilder sb = new StringBuilder();
-        boolean replaced = false;
+    private ReplayOrigin startReplay(ProxyConfig config) throws IOException {
+        int records = store.load();
+        boolean originalTiming = !"fast".equalsIgnoreCase(config.getString(KEY_REPLAY_TIMING, "original").trim());
+        ReplayOrigin origin = new ReplayOrigin(store, originalTiming, workerPool);
+        log("[MITM] Replaying " + records + " recorded exchanges from " + store.getFile().getAbsolutePath());
+        return origin;
+    }
 
-        for (String line : lines) {
-            int colon = line.indexOf(':');
-            if (colon > 0) {
-                String name = line.substring(0, colon).trim();
-                if ("content-length".equalsIgnoreCase(name)) {
-                    sb.append("Content-Length: ").append(newLen).append("\r\n");
-                    replaced = true;
-                    continue;
-                }
-            }
-            sb.append(line).append("\r\n");
+    // The UI settings as rule "ui": POST /v1/chat/completions on the MITM hosts, for the model from
+    // the UI, sets the temperature plus further fields from proxy.mitm.rewrite.fields.
+    private List<MitmRules.Rule> createUiRules(ProxyConfig config) {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        if (targetTemperature != null) {
+            fields.put("temperature", targetTemperature.toString());
+        }
+        fields.putAll(JsonBodyRewriter.parseFields(config.getString(KEY_REWRITE_FIELDS, null)));
+        if (!rewriteEnabled || modelToPatch == null || modelToPatch.isEmpty() || fields.isEmpty()) {
+            return Collections.emptyList();
         }
+        return Collections.singletonList(new MitmRules.Rule("ui", mitmHosts,
+                Collections.<Integer>emptySet(), Collections.singleton("POST"),
+                Collections.singleton("/v1/chat/completions"), Collections.singleton(modelToPatch),
+                fields, Collections.<String>emptySet(), Collections.<String, BigDecimal[]>emptyMap()));
+    }
 
-        if (!replaced) {
-            sb.append("Content-Length: ").append(newLen).append("\r\n");
+    private static boolean startsWithObject(BufferedInputStream in) throws IOException {
+        in.mark(BufferPool.SMALL);
+        try {
+            int b;
+            do {
+                b = in.read();
+            } while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+            return b == '{';
+        } finally {
+            in.reset();
         }
+    }
 
-        sb.append("\r\n");
-        return sb.toString();
+    private static boolean looksLikeJson(byte[] body) {
+        int start = 0;
+        int end = body.length - 1;
+        while (start <= end && isWhitespace(body[start])) start++;
+        while (end >= start && isWhitespace(body[end])) end--;
+        if (start >= end) return false;
+        return (body[start] == '{' && body[end] == '}')
+                || (body[start] == '[' && body[end] == ']');
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    // Decodes the body only if a listener shows it
+    private void logBody(String direction, byte[] body, boolean isJson) {
+        if (trafficListener != null) {
+            trafficListener.onTraffic(direction, new String(body, UTF_8), isJson);
+        } else if (isJson) {
+            log("[MITM][" + direction + "] JSON len=" + body.length);
+        } else {
+            String head = new String(body, 0, Math.min(body.length, 300), UTF_8);
+            log("[MITM][" + direction + "] " + (body.length > 300 ? head + "..." : head));
+        }
     }
 
     private void logTraffic(String direction, String text, boolean isJson) {
@@ -364,6 +774,13 @@ public class GenericMitmHandler implements MitmHandler {
         System.out.println(msg);
     }
 
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
     private SSLContext createServerSslContext(String keyStorePath, String keyStorePassword) throws Exception {
         KeyStore ks = KeyStore.getInstance("JKS");
         InputStream in = new FileInputStream(keyStorePath);
@@ -378,9 +795,19 @@ public class GenericMitmHandler implements MitmHandler {
 
         SSLContext ctx = SSLContext.getInstance("TLS");
         ctx.init(kmf.getKeyManagers(), null, null);
+        clientTlsProfile.configure(ctx.getServerSessionContext());
         return ctx;
     }
 
+    // Own context (default trust) so the upstream session cache can be sized; sockets are created
+    // with host and port, which is the key JSSE resumes sessions by.
+    private SSLSocketFactory createClientSslFactory() throws Exception {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, null, null);
+        upstreamTlsProfile.configure(ctx.getClientSessionContext());
+        return ctx.getSocketFactory();
+    }
+
     private Set<String> normalizeHosts(Set<String> hosts) {
         if (hosts == null || hosts.isEmpty()) return Collections.emptySet();
         Set<String> out = new HashSet<String>();
@@ -393,6 +820,100 @@ public class GenericMitmHandler implements MitmHandler {
         return out;
     }
 
+    // Upstream connections of one session: leased from the pool if there is one, else opened for
+    // the session and closed with it.
+    private final class SessionOrigin implements MitmSession.Origin {
+
+        private final String host;
+        private final int port;
+
+        SessionOrigin(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public UpstreamConnection connect() throws IOException {
+            if (upstreamPool != null) {
+                return upstreamPool.acquire(host, port, CONNECT_TIMEOUT_MILLIS);
+            }
+            return new UpstreamConnection(host + ":" + port, connectUpstream(host, port));
+        }
+
+        @Override
+        public void release(UpstreamConnection upstream, boolean reusable) {
+            if (upstreamPool != null) {
+                upstreamPool.release(upstream, reusable, 0);
+            } else {
+                upstream.close();
+            }
+        }
+    }
+
+    // Origin connect (or pool lease) for the parallel mode. If the client side fails first the
+    // result is abandoned, i.e. given back unused as soon as it arrives.
+    private final class UpstreamHandshake implements Runnable {
+
+        private final SessionOrigin origin;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private UpstreamConnection connection;
+        private IOException failure;
+        private boolean abandoned;
+
+        UpstreamHandshake(SessionOrigin origin) {
+            this.origin = origin;
+        }
+
+        @Override
+        public void run() {
+            UpstreamConnection result = null;
+            IOException error = null;
+            try {
+                result = origin.connect();
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e.getMessage(), e);
+            }
+            synchronized (this) {
+                if (abandoned) {
+                    if (result != null) {
+                        origin.release(result, true);
+                    }
+                } else {
+                    connection = result;
+                    failure = error;
+                }
+            }
+            done.countDown();
+        }
+
+        UpstreamConnection await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon();
+                throw new InterruptedIOException("Interrupted while connecting to " + origin.host);
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return connection;
+            }
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            if (connection != null) {
+                origin.release(connection, true);
+                connection = null;
+            }
+        }
+    }
+
     private void closeQuietly(Socket s) {
         if (s == null) return;
         try {
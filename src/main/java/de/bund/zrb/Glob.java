@@ -0,0 +1,59 @@
+package de.bund.zrb;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+// A '*' wildcard pattern, compiled once: without '*' it is an equality check, with a single
+// trailing '*' a prefix check, anything else becomes a regular expression.
+final class Glob {
+
+    private final String pattern;
+    private final boolean ignoreCase;
+    private final String literal;
+    private final boolean prefix;
+    private final Pattern regex;
+
+    private Glob(String pattern, boolean ignoreCase) {
+        this.pattern = pattern;
+        this.ignoreCase = ignoreCase;
+        String p = ignoreCase ? pattern.toLowerCase(Locale.ROOT) : pattern;
+        int star = p.indexOf('*');
+        if (star < 0) {
+            literal = p;
+            prefix = false;
+            regex = null;
+        } else if (star == p.length() - 1) {
+            literal = p.substring(0, star);
+            prefix = true;
+            regex = null;
+        } else {
+            literal = null;
+            prefix = false;
+            StringBuilder re = new StringBuilder();
+            int from = 0;
+            for (int i = star; i >= 0; i = p.indexOf('*', from)) {
+                re.append(Pattern.quote(p.substring(from, i))).append(".*");
+                from = i + 1;
+            }
+            re.append(Pattern.quote(p.substring(from)));
+            regex = Pattern.compile(re.toString(), Pattern.DOTALL);
+        }
+    }
+
+    static Glob compile(String pattern, boolean ignoreCase) {
+        return new Glob(pattern, ignoreCase);
+    }
+
+    boolean matches(String value) {
+        String v = ignoreCase ? value.toLowerCase(Locale.ROOT) : value;
+        if (regex != null) {
+            return regex.matcher(v).matches();
+        }
+        return prefix ? v.startsWith(literal) : v.equals(literal);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
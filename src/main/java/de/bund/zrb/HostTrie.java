@@ -0,0 +1,72 @@
+package de.bund.zrb;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Host patterns of all rules in one trie over the reversed labels (com -> openai -> api), so a
+// lookup walks the host's labels once, however many rules there are. Patterns:
+// "api.openai.com" exactly that host, "*.openai.com" every subdomain (not the domain itself),
+// ".openai.com" the domain and every subdomain, "*" every host.
+final class HostTrie {
+
+    private final Node root = new Node();
+
+    void add(String pattern, int id) {
+        String p = pattern.trim().toLowerCase(Locale.ROOT);
+        if ("*".equals(p)) {
+            root.subdomains.set(id);
+            return;
+        }
+        boolean subdomains = false;
+        boolean exact = true;
+        if (p.startsWith("*.")) {
+            p = p.substring(2);
+            subdomains = true;
+            exact = false;
+        } else if (p.startsWith(".")) {
+            p = p.substring(1);
+            subdomains = true;
+        }
+        Node node = root;
+        String[] labels = p.split("\\.");
+        for (int i = labels.length - 1; i >= 0; i--) {
+            Node child = node.children.get(labels[i]);
+            if (child == null) {
+                child = new Node();
+                node.children.put(labels[i], child);
+            }
+            node = child;
+        }
+        if (exact) {
+            node.exact.set(id);
+        }
+        if (subdomains) {
+            node.subdomains.set(id);
+        }
+    }
+
+    // Ids of all patterns that match host.
+    BitSet match(String host) {
+        BitSet result = new BitSet();
+        String[] labels = host.toLowerCase(Locale.ROOT).split("\\.");
+        Node node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            // host has at least one more label below node
+            result.or(node.subdomains);
+            node = node.children.get(labels[i]);
+            if (node == null) {
+                return result;
+            }
+        }
+        result.or(node.exact);
+        return result;
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<String, Node>();
+        final BitSet exact = new BitSet();
+        final BitSet subdomains = new BitSet();
+    }
+}
@@ -0,0 +1,350 @@
+package de.bund.zrb;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// HPACK header compression (RFC 7541) for the HTTP/2 client leg. The decoder keeps the dynamic
+// table the client's encoder builds up; the encoder never adds to a table (static names or
+// literals, no Huffman), so only the decoder carries state across header blocks. Field names and
+// values are ISO-8859-1 strings, i.e. the bytes pass through unchanged into the HTTP/1.1 heads.
+final class Hpack {
+
+    // SETTINGS_HEADER_TABLE_SIZE we leave at its default
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    // Decoded fields per header block (names, values and 32 bytes each, as in the table size)
+    static final int MAX_HEADER_LIST_BYTES = 256 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // RFC 7541, Appendix A; index 0 is unused
+    private static final String[][] STATIC_TABLE = {
+            null,
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+            {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+            {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+            {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+            {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+            {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+            {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+            {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    // Lowest static index per name, and per "name value" for complete entries
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+    // RFC 7541, Appendix B: code and bit length per symbol, 256 = EOS
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    // Decoding tree: children of node n at [2n] and [2n + 1]; > 0 is the next node, <= 0 a
+    // leaf with symbol -value
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i > 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + ' ' + STATIC_TABLE[i][1], i);
+            }
+        }
+        int[] tree = new int[2 * 2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = -symbol;
+                } else {
+                    if (tree[slot] == 0) {
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    private Hpack() {
+    }
+
+    // Decoder for the header blocks of one connection, in the order they were received.
+    static final class Decoder {
+
+        // Newest entry first, each {name, value}
+        private final ArrayDeque<String[]> dynamic = new ArrayDeque<String[]>();
+        private int size;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+
+        // Fields of a complete header block as {name, value}. A failure leaves the table in an
+        // unknown state, the connection has to end (COMPRESSION_ERROR).
+        List<String[]> decode(byte[] block, int off, int len) throws MalformedHttpException {
+            List<String[]> fields = new ArrayList<String[]>();
+            int[] pos = {off};
+            int end = off + len;
+            int listBytes = 0;
+            boolean first = true;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xff;
+                String[] field;
+                if ((b & 0x80) != 0) {
+                    // Indexed field
+                    field = entry(readInt(block, pos, end, 7));
+                } else if ((b & 0xe0) == 0x20) {
+                    // Table size update, only before the first field
+                    int newSize = readInt(block, pos, end, 5);
+                    if (!first || newSize > DEFAULT_TABLE_SIZE) {
+                        throw new MalformedHttpException("Invalid HPACK table size update");
+                    }
+                    maxSize = newSize;
+                    evict(0);
+                    continue;
+                } else {
+                    // Literal: with indexing (01), without (0000) or never indexed (0001)
+                    boolean indexing = (b & 0xc0) == 0x40;
+                    int nameIndex = readInt(block, pos, end, indexing ? 6 : 4);
+                    String name = nameIndex == 0 ? readString(block, pos, end) : entry(nameIndex)[0];
+                    field = new String[]{name, readString(block, pos, end)};
+                    if (indexing) {
+                        add(field);
+                    }
+                }
+                first = false;
+                listBytes += field[0].length() + field[1].length() + 32;
+                if (listBytes > MAX_HEADER_LIST_BYTES) {
+                    throw new MalformedHttpException("Header list too large");
+                }
+                fields.add(field);
+            }
+            return fields;
+        }
+
+        private String[] entry(int index) throws MalformedHttpException {
+            if (index > 0 && index < STATIC_TABLE.length) {
+                return STATIC_TABLE[index];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length;
+            if (index <= 0 || dynamicIndex >= dynamic.size()) {
+                throw new MalformedHttpException("Invalid HPACK index " + index);
+            }
+            Iterator<String[]> it = dynamic.iterator();
+            for (int i = 0; i < dynamicIndex; i++) {
+                it.next();
+            }
+            return it.next();
+        }
+
+        private void add(String[] field) {
+            int entrySize = field[0].length() + field[1].length() + 32;
+            if (entrySize > maxSize) {
+                // Larger than the whole table: empties it
+                dynamic.clear();
+                size = 0;
+                return;
+            }
+            evict(entrySize);
+            dynamic.addFirst(field);
+            size += entrySize;
+        }
+
+        // Drops the oldest entries until room bytes fit.
+        private void evict(int room) {
+            while (size + room > maxSize && !dynamic.isEmpty()) {
+                String[] oldest = dynamic.removeLast();
+                size -= oldest[0].length() + oldest[1].length() + 32;
+            }
+        }
+    }
+
+    // Encoder for the header blocks sent on one connection.
+    static final class Encoder {
+
+        private boolean tableSizeUpdate;
+
+        // The peer changed SETTINGS_HEADER_TABLE_SIZE: the next block confirms a size (0, the
+        // encoder uses no table) as required before its first field.
+        void peerTableSizeChanged() {
+            tableSizeUpdate = true;
+        }
+
+        // Starts a header block.
+        void begin(ByteArrayOutputStream out) {
+            if (tableSizeUpdate) {
+                writeInt(out, 0x20, 5, 0);
+                tableSizeUpdate = false;
+            }
+        }
+
+        void encode(ByteArrayOutputStream out, String name, String value) {
+            Integer index = STATIC_FIELDS.get(name + ' ' + value);
+            if (index != null) {
+                writeInt(out, 0x80, 7, index);
+                return;
+            }
+            index = STATIC_NAMES.get(name);
+            if (index != null) {
+                // Literal without indexing, name from the static table
+                writeInt(out, 0x00, 4, index);
+            } else {
+                out.write(0x00);
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            byte[] bytes = s.getBytes(ISO_8859_1);
+            writeInt(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    // RFC 7541, 5.1: value in the low prefixBits of the first byte, continued in 7-bit groups.
+    static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readInt(byte[] src, int[] pos, int end, int prefixBits) throws MalformedHttpException {
+        int max = (1 << prefixBits) - 1;
+        int value = src[pos[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift <= 21; shift += 7) {
+            if (pos[0] >= end) {
+                break;
+            }
+            int b = src[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new MalformedHttpException("Invalid HPACK integer");
+    }
+
+    private static String readString(byte[] src, int[] pos, int end) throws MalformedHttpException {
+        if (pos[0] >= end) {
+            throw new MalformedHttpException("Truncated HPACK string");
+        }
+        boolean huffman = (src[pos[0]] & 0x80) != 0;
+        int length = readInt(src, pos, end, 7);
+        if (length > end - pos[0]) {
+            throw new MalformedHttpException("Truncated HPACK string");
+        }
+        int start = pos[0];
+        pos[0] += length;
+        return huffman ? decodeHuffman(src, start, length) : new String(src, start, length, ISO_8859_1);
+    }
+
+    static String decodeHuffman(byte[] src, int off, int len) throws MalformedHttpException {
+        StringBuilder out = new StringBuilder(len + len / 2);
+        int node = 0;
+        // Bits read since the last symbol, and whether all of them were ones (valid padding)
+        int pending = 0;
+        boolean ones = true;
+        for (int i = off; i < off + len; i++) {
+            int b = src[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + one];
+                pending++;
+                ones &= one == 1;
+                if (next > 0) {
+                    node = next;
+                    continue;
+                }
+                if (-next == 256) {
+                    throw new MalformedHttpException("Huffman EOS in string");
+                }
+                out.append((char) -next);
+                node = 0;
+                pending = 0;
+                ones = true;
+            }
+        }
+        if (pending > 7 || !ones) {
+            throw new MalformedHttpException("Invalid Huffman padding");
+        }
+        return out.toString();
+    }
+}
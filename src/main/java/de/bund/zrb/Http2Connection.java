@@ -0,0 +1,666 @@
+package de.bund.zrb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Server side of an HTTP/2 connection (RFC 9113) from a client that chose h2 via ALPN. The calling
+// thread reads the frames; every request stream goes to a worker as an Http2Stream, which looks
+// like a single HTTP/1.1 exchange to the handler, so streams run through the same pipeline as a
+// connection without HTTP/2. Flow control works both ways: the client's windows are refilled as
+// the pipeline consumes request bodies, DATA towards the client waits for the client's windows.
+// Server push and priorities are not used.
+final class Http2Connection {
+
+    // Runs one request stream to its end, on a worker thread.
+    interface StreamHandler {
+        void handle(Http2Stream stream);
+    }
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    // Receive windows granted to the client: per stream, and for the whole connection
+    static final int STREAM_WINDOW = 1 << 20;
+    private static final int CONNECTION_WINDOW = 16 << 20;
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("ISO-8859-1"));
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    // Also the largest frame we accept (we never raise SETTINGS_MAX_FRAME_SIZE)
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final WorkerPool workerPool;
+    private final StreamHandler handler;
+    private final int maxStreams;
+    private final ConcurrentHashMap<Integer, Http2Stream> streams = new ConcurrentHashMap<Integer, Http2Stream>();
+
+    // Reader thread only
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(1024);
+    private int headerStreamId;
+    private boolean headerEndStream;
+    private int lastStreamId;
+
+    // Frames go out whole; the encoder's state follows the order of the header blocks
+    private final Object writeLock = new Object();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    // Guarded by this: connection send window, the client's settings, receive accounting
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int receiveWindow = CONNECTION_WINDOW;
+    private int consumed;
+    private boolean closed;
+
+    Http2Connection(Socket socket, WorkerPool workerPool, int maxStreams, StreamHandler handler) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), DEFAULT_MAX_FRAME_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_MAX_FRAME_SIZE + 9);
+        this.workerPool = workerPool;
+        this.maxStreams = Math.max(1, maxStreams);
+        this.handler = handler;
+    }
+
+    // Blocks until the client closes the connection, stays idle or breaks the protocol.
+    void run() {
+        try {
+            byte[] preface = new byte[PREFACE.length];
+            in.readFully(preface);
+            if (!Arrays.equals(preface, PREFACE)) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+            }
+            writeSettings();
+            readFrames();
+        } catch (Http2Exception e) {
+            System.out.println("[MITM] HTTP/2 connection error: " + e.getMessage());
+            writeGoAway(e.errorCode);
+        } catch (IOException e) {
+            // Client gone
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        byte[] header = new byte[9];
+        byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+        while (readFrameHeader(header)) {
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = readInt(header, 5) & 0x7fffffff;
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            }
+            readFully(payload, length);
+            if (headerStreamId != 0 && type != CONTINUATION) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted");
+            }
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, payload, length);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, payload, length);
+                    break;
+                case CONTINUATION:
+                    if (streamId == 0 || streamId != headerStreamId) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                    }
+                    appendHeaderBlock(payload, 0, length, flags);
+                    break;
+                case PRIORITY:
+                    if (length != 5) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "PRIORITY of " + length + " bytes");
+                    }
+                    break;
+                case RST_STREAM:
+                    onReset(streamId, payload, length);
+                    break;
+                case SETTINGS:
+                    onSettings(streamId, flags, payload, length);
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+                case PING:
+                    if (streamId != 0 || length != 8) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid PING");
+                    }
+                    if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                    }
+                    break;
+                case GOAWAY:
+                    // The client opens no more streams; the running ones end as usual
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, payload, length);
+                    break;
+                default:
+                    // Unknown frame types are ignored
+                    break;
+            }
+        }
+    }
+
+    private void onData(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= padding(payload, length);
+            start = 1;
+        }
+        synchronized (this) {
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+            }
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // Stream already reset or finished: dropped, the connection window is given back
+            consumed(null, length);
+            return;
+        }
+        int error = stream.receive(payload, start, end - start, length, (flags & FLAG_END_STREAM) != 0);
+        if (error >= 0) {
+            consumed(null, length);
+            resetStream(stream, error);
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= padding(payload, length);
+            start = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+        if (start > end) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid HEADERS padding");
+        }
+        headerStreamId = streamId;
+        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        headerBlock.reset();
+        appendHeaderBlock(payload, start, end - start, flags);
+    }
+
+    private void appendHeaderBlock(byte[] payload, int off, int len, int flags) throws IOException {
+        headerBlock.write(payload, off, len);
+        if (headerBlock.size() > HttpHead.MAX_HEAD_BYTES) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+        }
+        if ((flags & FLAG_END_HEADERS) == 0) {
+            return;
+        }
+        int streamId = headerStreamId;
+        headerStreamId = 0;
+        List<String[]> fields;
+        try {
+            // Decoded even if the stream is refused, the table has to stay in sync
+            fields = decoder.decode(headerBlock.toByteArray(), 0, headerBlock.size());
+        } catch (MalformedHttpException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        onHeaderBlock(streamId, fields, headerEndStream);
+    }
+
+    private void onHeaderBlock(int streamId, List<String[]> fields, boolean endStream) throws IOException {
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            // Trailers end the request; they are not passed on
+            int error = endStream ? stream.receive(EMPTY, 0, 0, 0, true) : PROTOCOL_ERROR;
+            if (error >= 0) {
+                resetStream(stream, error);
+            }
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Even stream id " + streamId + " from client");
+        }
+        lastStreamId = streamId;
+        if (streams.size() >= maxStreams) {
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        int window;
+        synchronized (this) {
+            window = initialWindow;
+        }
+        try {
+            stream = new Http2Stream(this, streamId, fields, endStream, window);
+        } catch (MalformedHttpException e) {
+            System.out.println("[MITM] Malformed HTTP/2 request: " + e.getMessage());
+            writeReset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        streams.put(streamId, stream);
+        final Http2Stream started = stream;
+        try {
+            workerPool.spawn(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.handle(started);
+                    } finally {
+                        started.close();
+                    }
+                }
+            }, "mitm-h2-stream");
+        } catch (IOException e) {
+            // No thread for it: the client may retry the request later
+            System.out.println("[MITM] Refused HTTP/2 stream " + streamId + ": " + e.getMessage());
+            resetStream(started, REFUSED_STREAM);
+        }
+    }
+
+    private void onReset(int streamId, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        }
+        Http2Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.reset();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            int value = readInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.peerTableSizeChanged();
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        // Applies to the open streams as well
+                        int delta = value - initialWindow;
+                        initialWindow = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > Integer.MAX_VALUE) {
+                                throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                            }
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    maxFrameSize = value;
+                    break;
+                default:
+                    // SETTINGS_MAX_CONCURRENT_STREAMS limits pushes only; unknown ones are ignored
+                    break;
+            }
+        }
+        writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            synchronized (this) {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                notifyAll();
+            }
+            return;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return; // closed meanwhile
+        }
+        boolean overflow;
+        synchronized (this) {
+            stream.sendWindow += increment;
+            overflow = increment == 0 || stream.sendWindow > Integer.MAX_VALUE;
+            notifyAll();
+        }
+        if (overflow) {
+            resetStream(stream, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+        }
+    }
+
+    // ---- Called by the streams ----
+
+    // Response head; endStream if no body follows.
+    void writeHeaders(Http2Stream stream, List<String[]> fields, boolean endStream) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        synchronized (writeLock) {
+            encoder.begin(block);
+            for (String[] field : fields) {
+                encoder.encode(block, field[0], field[1]);
+            }
+            byte[] bytes = block.toByteArray();
+            int frameSize = maxFrameSize;
+            int off = 0;
+            do {
+                int n = Math.min(frameSize, bytes.length - off);
+                int flags = (off + n == bytes.length ? FLAG_END_HEADERS : 0)
+                        | (off == 0 && endStream ? FLAG_END_STREAM : 0);
+                writeFrameHeader(n, off == 0 ? HEADERS : CONTINUATION, flags, stream.id);
+                out.write(bytes, off, n);
+                off += n;
+            } while (off < bytes.length);
+            out.flush();
+        }
+    }
+
+    // Body towards the client, split into frames; waits for the stream's and the connection's
+    // send windows.
+    void writeData(Http2Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException {
+        if (len == 0 && !endStream) {
+            return;
+        }
+        do {
+            int n;
+            synchronized (this) {
+                while (true) {
+                    if (closed || stream.isReset()) {
+                        throw new IOException("HTTP/2 stream " + stream.id + " closed");
+                    }
+                    n = (int) Math.min(len, Math.min(maxFrameSize, Math.min(sendWindow, stream.sendWindow)));
+                    if (n > 0 || len == 0) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the HTTP/2 window");
+                    }
+                }
+                sendWindow -= n;
+                stream.sendWindow -= n;
+            }
+            writeFrame(DATA, endStream && n == len ? FLAG_END_STREAM : 0, stream.id, b, off, n);
+            off += n;
+            len -= n;
+        } while (len > 0);
+    }
+
+    // The stream's pipeline consumed credit bytes of request data (stream null: data that was
+    // dropped). Windows are refilled once half of them is used up.
+    void consumed(Http2Stream stream, int credit) {
+        int connectionUpdate = 0;
+        synchronized (this) {
+            consumed += credit;
+            if (consumed >= CONNECTION_WINDOW / 2) {
+                connectionUpdate = consumed;
+                receiveWindow += consumed;
+                consumed = 0;
+            }
+        }
+        int streamUpdate = stream != null ? stream.windowUpdate(credit) : 0;
+        try {
+            if (connectionUpdate > 0) {
+                writeWindowUpdate(0, connectionUpdate);
+            }
+            if (streamUpdate > 0) {
+                writeWindowUpdate(stream.id, streamUpdate);
+            }
+        } catch (IOException ignored) {
+            // Connection gone, the reader ends it
+        }
+    }
+
+    void writeReset(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    // The stream is finished (or given up) on our side.
+    void closed(Http2Stream stream) {
+        streams.remove(stream.id, stream);
+    }
+
+    // ---- Frame I/O ----
+
+    private void resetStream(Http2Stream stream, int errorCode) throws IOException {
+        streams.remove(stream.id, stream);
+        stream.reset();
+        synchronized (this) {
+            notifyAll();
+        }
+        writeReset(stream.id, errorCode);
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[12];
+        payload[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+        writeInt(payload, 2, maxStreams);
+        payload[7] = SETTINGS_INITIAL_WINDOW_SIZE;
+        writeInt(payload, 8, STREAM_WINDOW);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+        writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeGoAway(int errorCode) {
+        byte[] payload = new byte[8];
+        writeInt(payload, 0, lastStreamId);
+        writeInt(payload, 4, errorCode);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException ignored) {
+            // Client already gone
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            writeFrameHeader(len, type, flags, streamId);
+            out.write(payload, off, len);
+            out.flush();
+        }
+    }
+
+    // Holds writeLock
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(streamId >>> 24);
+        out.write(streamId >>> 16);
+        out.write(streamId >>> 8);
+        out.write(streamId);
+    }
+
+    // False at the end of the connection, or if it went idle without open streams. A read
+    // timeout while streams are open only means the client is waiting for responses.
+    private boolean readFrameHeader(byte[] header) throws IOException {
+        while (true) {
+            try {
+                int first = in.read();
+                if (first == -1) {
+                    return false;
+                }
+                header[0] = (byte) first;
+                readFully(header, 1, 8);
+                return true;
+            } catch (SocketTimeoutException e) {
+                if (streams.isEmpty()) {
+                    writeGoAway(NO_ERROR);
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        readFully(b, 0, len);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            int r;
+            try {
+                r = in.read(b, off, end - off);
+            } catch (SocketTimeoutException e) {
+                if (streams.isEmpty()) {
+                    throw e;
+                }
+                continue;
+            }
+            if (r == -1) {
+                throw new EOFException("Connection closed within a frame");
+            }
+            off += r;
+        }
+    }
+
+    private void shutdown() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Http2Stream stream : streams.values()) {
+            stream.reset();
+        }
+        streams.clear();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+
+    private static int padding(byte[] payload, int length) throws Http2Exception {
+        if (length < 1 || (payload[0] & 0xff) >= length) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+        }
+        return payload[0] & 0xff;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    // Connection error: GOAWAY with errorCode, then the connection ends.
+    private static final class Http2Exception extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+}
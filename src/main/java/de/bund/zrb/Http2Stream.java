@@ -0,0 +1,519 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// One request stream of an HTTP/2 client connection, presented to MitmSession as a client
+// connection that carries a single HTTP/1.1 exchange. The request becomes an HTTP/1.1 head with
+// the body as sent (Content-Length if the client declared one, else chunked); the HTTP/1.1
+// response written back is parsed as it arrives and goes out as HEADERS and DATA frames.
+// Connection-specific headers are dropped in both directions, interim (1xx) responses as well.
+final class Http2Stream implements MitmSession.Client {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final int MAX_LINE_BYTES = 8 * 1024;
+
+    // Not allowed in HTTP/2 (RFC 9113, 8.2.2), and not passed on from HTTP/1.1 responses
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te"));
+
+    final int id;
+    private final Http2Connection connection;
+    private final String method;
+    // Declared request body length, -1 if the body is sent chunked
+    private final long contentLength;
+    private final RequestInput input = new RequestInput();
+    private final ResponseOutput output = new ResponseOutput();
+
+    // Send window, guarded by the connection
+    long sendWindow;
+
+    // Guarded by this
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private Segment current;
+    private long received;
+    private int receiveWindow = Http2Connection.STREAM_WINDOW;
+    private int consumed;
+    private boolean requestEnded;
+    private boolean responseEnded;
+    private volatile boolean reset;
+    private boolean closed;
+
+    // fields: the decoded request header block. Throws if it is not a valid request.
+    Http2Stream(Http2Connection connection, int id, List<String[]> fields, boolean endStream, int sendWindow)
+            throws MalformedHttpException {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        String method = null;
+        String path = null;
+        String authority = null;
+        boolean scheme = false;
+        boolean regular = false;
+        boolean host = false;
+        long length = -1;
+        StringBuilder headers = new StringBuilder(256);
+        StringBuilder cookie = null;
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            checkValue(value);
+            if (name.startsWith(":")) {
+                if (regular) {
+                    throw new MalformedHttpException("Pseudo-header " + name + " after regular headers");
+                }
+                if (":method".equals(name)) {
+                    method = value;
+                } else if (":path".equals(name)) {
+                    path = value;
+                } else if (":authority".equals(name)) {
+                    authority = value;
+                } else if (":scheme".equals(name)) {
+                    scheme = true;
+                } else {
+                    throw new MalformedHttpException("Unknown pseudo-header " + name);
+                }
+                continue;
+            }
+            regular = true;
+            checkName(name);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            if ("cookie".equals(name)) {
+                // May arrive split into several fields (RFC 9113, 8.2.3)
+                cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+                continue;
+            }
+            if ("host".equals(name)) {
+                host = true;
+            } else if ("content-length".equals(name)) {
+                long declared = parseLength(value);
+                if (length >= 0 && declared != length) {
+                    throw new MalformedHttpException("Conflicting content-length");
+                }
+                length = declared;
+            }
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || path == null || !scheme || "CONNECT".equals(method)) {
+            throw new MalformedHttpException("Incomplete or unsupported request (" + method + ")");
+        }
+        checkToken(method);
+        if (path.isEmpty() || path.indexOf(' ') >= 0) {
+            throw new MalformedHttpException("Invalid :path");
+        }
+        if (endStream && length > 0) {
+            throw new MalformedHttpException("content-length without body");
+        }
+
+        StringBuilder head = new StringBuilder(headers.length() + 128);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (!host && authority != null) {
+            if (authority.indexOf(' ') >= 0) {
+                throw new MalformedHttpException("Invalid :authority");
+            }
+            head.append("Host: ").append(authority).append("\r\n");
+        }
+        head.append(headers);
+        if (cookie != null) {
+            head.append("cookie: ").append(cookie).append("\r\n");
+        }
+        if (!endStream && length < 0) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (length < 0 && !"GET".equals(method) && !"HEAD".equals(method)) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+
+        this.method = method;
+        this.contentLength = endStream ? 0 : length;
+        this.requestEnded = endStream;
+        segments.add(new Segment(head.toString().getBytes(ISO_8859_1), 0));
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    // Ends the stream on our side: a response that did not end is cancelled, the rest of a
+    // request body nobody read is refused (RFC 9113, 8.1).
+    @Override
+    public void close() {
+        boolean finish;
+        boolean cancel;
+        boolean unread;
+        int credit = 0;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            finish = !reset && !responseEnded && output.untilClose();
+            cancel = !reset && !responseEnded && !finish;
+            unread = !reset && responseEnded && !requestEnded;
+            for (Segment segment : segments) {
+                credit += segment.credit;
+            }
+            segments.clear();
+        }
+        try {
+            if (finish) {
+                // The body was delimited by the end of the upstream connection
+                connection.writeData(this, CRLF, 0, 0, true);
+            } else if (cancel) {
+                connection.writeReset(id, Http2Connection.INTERNAL_ERROR);
+            } else if (unread) {
+                connection.writeReset(id, Http2Connection.NO_ERROR);
+            }
+        } catch (IOException ignored) {
+            // Connection gone
+        }
+        if (credit > 0) {
+            connection.consumed(null, credit);
+        }
+        connection.closed(this);
+    }
+
+    boolean isReset() {
+        return reset;
+    }
+
+    // Reset by the client, or the connection ended: blocked reads and writes fail.
+    synchronized void reset() {
+        reset = true;
+        notifyAll();
+    }
+
+    // Request body from a DATA frame (or trailers: len 0, end). credit is the flow-controlled
+    // length of the frame, padding included. Returns an error code to reset the stream with, or -1.
+    int receive(byte[] b, int off, int len, int credit, boolean end) {
+        synchronized (this) {
+            if (requestEnded) {
+                return Http2Connection.STREAM_CLOSED;
+            }
+            receiveWindow -= credit;
+            if (receiveWindow < 0) {
+                return Http2Connection.FLOW_CONTROL_ERROR;
+            }
+            received += len;
+            if (contentLength >= 0 && (received > contentLength || (end && received != contentLength))) {
+                return Http2Connection.PROTOCOL_ERROR;
+            }
+            if (len > 0) {
+                segments.add(new Segment(contentLength >= 0 ? Arrays.copyOfRange(b, off, off + len) : chunk(b, off, len),
+                        credit));
+                credit = 0;
+            }
+            if (end) {
+                requestEnded = true;
+                if (contentLength < 0) {
+                    segments.add(new Segment(LAST_CHUNK, 0));
+                }
+            }
+            notifyAll();
+        }
+        if (credit > 0) {
+            // Nothing to read (padding only): the window is refilled right away
+            connection.consumed(this, credit);
+        }
+        return -1;
+    }
+
+    // Window increment to send for this stream after credit bytes were read, or 0.
+    synchronized int windowUpdate(int credit) {
+        if (requestEnded || reset || closed) {
+            return 0;
+        }
+        consumed += credit;
+        if (consumed < Http2Connection.STREAM_WINDOW / 2) {
+            return 0;
+        }
+        int update = consumed;
+        receiveWindow += update;
+        consumed = 0;
+        return update;
+    }
+
+    private static byte[] chunk(byte[] b, int off, int len) {
+        byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(ISO_8859_1);
+        byte[] chunk = new byte[size.length + len + 2];
+        System.arraycopy(size, 0, chunk, 0, size.length);
+        System.arraycopy(b, off, chunk, size.length, len);
+        chunk[chunk.length - 2] = '\r';
+        chunk[chunk.length - 1] = '\n';
+        return chunk;
+    }
+
+    // Response head for the client: :status plus everything but connection-specific headers.
+    private static List<String[]> responseFields(HttpHead response) {
+        List<String[]> fields = new ArrayList<String[]>(response.getHeaderCount() + 1);
+        fields.add(new String[]{":status", Integer.toString(response.getStatusCode())});
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            String name = response.getHeaderName(i).toLowerCase(Locale.ROOT);
+            if (!CONNECTION_HEADERS.contains(name) && !response.hasHeaderToken("Connection", name)) {
+                fields.add(new String[]{name, response.getHeaderValue(i)});
+            }
+        }
+        return fields;
+    }
+
+    private static void checkName(String name) throws MalformedHttpException {
+        if (name.isEmpty()) {
+            throw new MalformedHttpException("Empty header name");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7f || c == ':' || (c >= 'A' && c <= 'Z')) {
+                throw new MalformedHttpException("Invalid header name " + name);
+            }
+        }
+    }
+
+    private static void checkToken(String token) throws MalformedHttpException {
+        checkName(token.toLowerCase(Locale.ROOT));
+    }
+
+    // Line breaks would end the HTTP/1.1 header early (request smuggling).
+    private static void checkValue(String value) throws MalformedHttpException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                throw new MalformedHttpException("Invalid character in header value");
+            }
+        }
+    }
+
+    private static long parseLength(String value) throws MalformedHttpException {
+        String digits = value.trim();
+        if (digits.isEmpty() || digits.length() > 18) {
+            throw new MalformedHttpException("Invalid content-length " + value);
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                throw new MalformedHttpException("Invalid content-length " + value);
+            }
+        }
+        return Long.parseLong(digits);
+    }
+
+    // Piece of the HTTP/1.1 request and the flow-control credit it returns once read.
+    private static final class Segment {
+        final byte[] data;
+        final int credit;
+        int pos;
+
+        Segment(byte[] data, int credit) {
+            this.data = data;
+            this.credit = credit;
+        }
+    }
+
+    // The request as HTTP/1.1; ends after the body.
+    private final class RequestInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int credit = 0;
+            int n = -1;
+            synchronized (Http2Stream.this) {
+                while (current == null) {
+                    if (reset || closed) {
+                        throw new IOException("HTTP/2 stream " + id + " reset");
+                    }
+                    current = segments.poll();
+                    if (current != null) {
+                        credit = current.credit;
+                    } else if (requestEnded) {
+                        break;
+                    } else {
+                        try {
+                            Http2Stream.this.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while reading HTTP/2 stream " + id);
+                        }
+                    }
+                }
+                if (current != null) {
+                    n = Math.min(len, current.data.length - current.pos);
+                    System.arraycopy(current.data, current.pos, b, off, n);
+                    current.pos += n;
+                    if (current.pos == current.data.length) {
+                        current = null;
+                    }
+                }
+            }
+            if (credit > 0) {
+                connection.consumed(Http2Stream.this, credit);
+            }
+            return n;
+        }
+    }
+
+    // Parses the HTTP/1.1 response as it is written and sends it as frames.
+    private final class ResponseOutput extends OutputStream {
+
+        private static final int HEAD = 0;
+        private static final int FIXED = 1;
+        private static final int CHUNK_SIZE = 2;
+        private static final int CHUNK_DATA = 3;
+        private static final int CHUNK_END = 4;
+        private static final int TRAILERS = 5;
+        private static final int UNTIL_CLOSE = 6;
+        private static final int DONE = 7;
+
+        private final HttpHead response = new HttpHead();
+        private byte[] head = new byte[1024];
+        private int headLength;
+        private final StringBuilder line = new StringBuilder(16);
+        // Read by close() on another thread
+        private volatile int state = HEAD;
+        private long remaining;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n;
+                switch (state) {
+                    case HEAD:
+                        n = head(b, off, len);
+                        break;
+                    case FIXED:
+                        n = (int) Math.min(len, remaining);
+                        remaining -= n;
+                        data(b, off, n, remaining == 0);
+                        break;
+                    case CHUNK_DATA:
+                        n = (int) Math.min(len, remaining);
+                        remaining -= n;
+                        data(b, off, n, false);
+                        if (remaining == 0) {
+                            state = CHUNK_END;
+                        }
+                        break;
+                    case UNTIL_CLOSE:
+                        n = len;
+                        data(b, off, n, false);
+                        break;
+                    case DONE:
+                        // Nothing may follow the response on this stream
+                        return;
+                    default:
+                        n = 1;
+                        line(b[off]);
+                        break;
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        boolean untilClose() {
+            return state == UNTIL_CLOSE;
+        }
+
+        // Collects the head; returns how many bytes of b belong to it.
+        private int head(byte[] b, int off, int len) throws IOException {
+            if (headLength + len > head.length) {
+                head = Arrays.copyOf(head, Math.max(headLength + len, head.length * 2));
+            }
+            System.arraycopy(b, off, head, headLength, len);
+            int before = headLength;
+            headLength += len;
+            int end = response.parse(head, 0, headLength);
+            if (end < 0) {
+                return len;
+            }
+            headLength = 0;
+            int status = response.getStatusCode();
+            if (status < 200) {
+                // Interim response: the final one follows
+                return end - before;
+            }
+            long length = HttpBody.responseLength(method, response);
+            connection.writeHeaders(Http2Stream.this, responseFields(response), length == 0);
+            if (length == 0) {
+                ended();
+            } else if (length == HttpBody.CHUNKED) {
+                state = CHUNK_SIZE;
+            } else if (length == HttpBody.UNTIL_CLOSE) {
+                state = UNTIL_CLOSE;
+            } else {
+                state = FIXED;
+                remaining = length;
+            }
+            return end - before;
+        }
+
+        // Chunk size lines, the line break after a chunk and trailers (which are dropped).
+        private void line(byte b) throws IOException {
+            if (b != '\n') {
+                if (b != '\r') {
+                    if (line.length() >= MAX_LINE_BYTES) {
+                        throw new IOException("Chunk line too long");
+                    }
+                    line.append((char) (b & 0xff));
+                }
+                return;
+            }
+            if (state == CHUNK_SIZE) {
+                remaining = HttpBody.parseChunkSize(line);
+                state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+            } else if (state == CHUNK_END) {
+                state = CHUNK_SIZE;
+            } else if (line.length() == 0) {
+                // Empty line after the trailers: end of the body
+                data(CRLF, 0, 0, true);
+            }
+            line.setLength(0);
+        }
+
+        private void data(byte[] b, int off, int len, boolean end) throws IOException {
+            connection.writeData(Http2Stream.this, b, off, len, end);
+            if (end) {
+                ended();
+            }
+        }
+
+        private void ended() {
+            state = DONE;
+            synchronized (Http2Stream.this) {
+                responseEnded = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package de.bund.zrb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Message body framing for HTTP/1.x (RFC 7230, 3.3.3). Bodies are streamed, never buffered whole.
+public final class HttpBody {
+
+    public static final long CHUNKED = -2;
+    public static final long UNTIL_CLOSE = -1;
+
+    private static final int MAX_LINE_BYTES = 8 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private HttpBody() {
+    }
+
+    // Body length of a request: CHUNKED, or number of bytes (0 = no body). A Transfer-Encoding
+    // that does not end with chunked, or an invalid or ambiguous Content-Length is rejected: the
+    // origin might frame the request differently.
+    public static long requestLength(HttpHead request) throws MalformedHttpException {
+        if (request.hasHeader("Transfer-Encoding")) {
+            if (!request.isChunked()) {
+                throw new MalformedHttpException("Transfer-Encoding does not end with chunked");
+            }
+            return CHUNKED;
+        }
+        if (!request.hasHeader("Content-Length")) {
+            return 0;
+        }
+        long length = request.getContentLength();
+        if (length < 0) {
+            throw new MalformedHttpException("Invalid Content-Length");
+        }
+        return length;
+    }
+
+    // Body length of a response: CHUNKED, UNTIL_CLOSE or number of bytes.
+    public static long responseLength(String requestMethod, HttpHead response) {
+        int status = response.getStatusCode();
+        if ("HEAD".equalsIgnoreCase(requestMethod)
+                || (status >= 100 && status < 200) || status == 204 || status == 304) {
+            return 0;
+        }
+        if (response.hasHeader("Transfer-Encoding")) {
+            return response.isChunked() ? CHUNKED : UNTIL_CLOSE;
+        }
+        long length = response.getContentLength();
+        return length >= 0 ? length : UNTIL_CLOSE;
+    }
+
+    // Copy one body with the given framing. Chunked bodies are forwarded with their framing, each
+    // size line in canonical form (extensions dropped).
+    public static void copy(InputStream in, OutputStream out, long length, StreamCopier copier) throws IOException {
+        if (length == CHUNKED) {
+            copyChunked(in, out, copier);
+        } else if (length == UNTIL_CLOSE) {
+            copier.copy(in, out);
+        } else if (length > 0) {
+            if (copier.copy(in, out, length) < length) {
+                throw new EOFException("Unexpected EOF in message body");
+            }
+        }
+        out.flush();
+    }
+
+    // The decoded content of one body (fixed length or chunked, not UNTIL_CLOSE) as a stream that
+    // ends with the body and leaves in positioned at the next message. close() does not close in.
+    public static InputStream contentStream(InputStream in, long length) {
+        return length == CHUNKED ? new ChunkedInputStream(in) : new FixedLengthInputStream(in, length);
+    }
+
+    // Encodes everything written as chunks; close() writes the last chunk but does not close out.
+    public static OutputStream chunkedStream(OutputStream out) {
+        return new ChunkedOutputStream(out);
+    }
+
+    private static void copyChunked(InputStream in, OutputStream out, StreamCopier copier) throws IOException {
+        StringBuilder line = new StringBuilder(16);
+        while (true) {
+            readLine(in, line);
+            long size = parseChunkSize(line);
+            writeLine(out, Long.toHexString(size));
+            if (size == 0) {
+                // Trailer fields up to the empty line
+                do {
+                    readLine(in, line);
+                    writeLine(out, line);
+                } while (line.length() > 0);
+                return;
+            }
+            if (copier.copy(in, out, size) < size) {
+                throw new EOFException("Unexpected EOF in chunk");
+            }
+            readLine(in, line);
+            if (line.length() != 0) {
+                throw new MalformedHttpException("Invalid chunk terminator");
+            }
+            writeLine(out, line);
+        }
+    }
+
+    // chunk-size [ BWS ";" chunk-ext ] (RFC 9112, 7.1). Anything else after the hex digits is
+    // rejected, a lenient parser would frame the body differently than the origin.
+    static long parseChunkSize(CharSequence line) throws MalformedHttpException {
+        long size = 0;
+        int i = 0;
+        for (; i < line.length(); i++) {
+            int d = hexDigit(line.charAt(i));
+            if (d < 0) {
+                break;
+            }
+            if (i >= 15) {
+                throw new MalformedHttpException("Chunk size too large");
+            }
+            size = size * 16 + d;
+        }
+        if (i == 0) {
+            throw new MalformedHttpException("Invalid chunk size: " + line);
+        }
+        int rest = i;
+        while (rest < line.length() && (line.charAt(rest) == ' ' || line.charAt(rest) == '\t')) {
+            rest++;
+        }
+        if (rest < line.length() ? line.charAt(rest) != ';' : rest != i) {
+            throw new MalformedHttpException("Invalid chunk size: " + line);
+        }
+        return size;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    // Reads one line without CRLF; a bare LF also ends it, a CR elsewhere is invalid.
+    static void readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Unexpected EOF in chunked body");
+            }
+            if (b == '\r') {
+                b = in.read();
+                if (b != '\n') {
+                    throw b == -1 ? new EOFException("Unexpected EOF in chunked body")
+                            : new MalformedHttpException("CR without LF in chunked body");
+                }
+            }
+            if (b == '\n') {
+                return;
+            }
+            if (line.length() >= MAX_LINE_BYTES) {
+                throw new MalformedHttpException("Chunk line too long");
+            }
+            line.append((char) b);
+        }
+    }
+
+    private static void writeLine(OutputStream out, CharSequence line) throws IOException {
+        byte[] bytes = new byte[line.length() + 2];
+        for (int i = 0; i < line.length(); i++) {
+            bytes[i] = (byte) line.charAt(i);
+        }
+        bytes[bytes.length - 2] = '\r';
+        bytes[bytes.length - 1] = '\n';
+        out.write(bytes);
+    }
+
+    private static final class FixedLengthInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = Math.max(0, length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int r = in.read(b, off, (int) Math.min(len, remaining));
+            if (r == -1) {
+                throw new EOFException("Unexpected EOF in message body");
+            }
+            remaining -= r;
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Skip what the consumer did not read, the next message starts behind it
+            byte[] skip = new byte[4096];
+            while (read(skip, 0, skip.length) != -1) {
+                // Drain
+            }
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final InputStream in;
+        private final StringBuilder line = new StringBuilder(16);
+        private long chunkRemaining;
+        private boolean done;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (chunkRemaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            int r = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (r == -1) {
+                throw new EOFException("Unexpected EOF in chunk");
+            }
+            chunkRemaining -= r;
+            if (chunkRemaining == 0) {
+                readLine(in, line);
+                if (line.length() != 0) {
+                    throw new MalformedHttpException("Invalid chunk terminator");
+                }
+            }
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            byte[] skip = new byte[4096];
+            while (read(skip, 0, skip.length) != -1) {
+                // Drain
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (done) {
+                return false;
+            }
+            readLine(in, line);
+            chunkRemaining = parseChunkSize(line);
+            if (chunkRemaining == 0) {
+                // Trailer fields are dropped, the re-encoded body has none
+                do {
+                    readLine(in, line);
+                } while (line.length() > 0);
+                done = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class ChunkedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private boolean closed;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            writeLine(out, Integer.toHexString(len));
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.write(LAST_CHUNK);
+                out.flush();
+            }
+        }
+    }
+}
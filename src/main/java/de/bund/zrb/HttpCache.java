@@ -0,0 +1,964 @@
+package de.bund.zrb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared HTTP cache (RFC 7234) for plain HTTP forwarding, e.g. build agents that fetch the same
+// artifacts and metadata all day. GET responses are stored when Cache-Control, Expires or a
+// validator allow it, one variant per Vary selection. Fresh entries are served without asking
+// the origin, stale ones are revalidated with If-None-Match / If-Modified-Since and served on
+// 304. A successful unsafe request (POST, PUT, DELETE, ...) invalidates its URL.
+//
+// Bodies live on disk, one file per entry, LRU and bounded in bytes, and go to the client with
+// FileChannel.transferTo. Heads, validators and freshness stay in memory, so a lookup does not
+// touch the disk. A file is the body followed by a trailer with the metadata; the index is
+// rebuilt from the trailers at startup.
+public class HttpCache implements StatsProvider {
+
+    public static final String KEY_ENABLED = "proxy.http.cache.enabled";
+    public static final String KEY_DIR = "proxy.http.cache.dir";
+    public static final String KEY_MAX_MB = "proxy.http.cache.maxMB";
+    public static final String KEY_MAX_ENTRY_MB = "proxy.http.cache.maxEntryMB";
+
+    static final String DIR_NAME = "http-cache";
+    private static final int DEFAULT_MAX_MB = 1024;
+    private static final int DEFAULT_MAX_ENTRY_MB = 256;
+    // Heuristic freshness: a tenth of the time since Last-Modified, at most a day
+    private static final long MAX_HEURISTIC_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int FILE_MAGIC = 0x50584843; // "PXHC"
+    private static final String FILE_SUFFIX = ".cache";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAX_TRAILER_BYTES = 256 * 1024;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // Cacheable without explicit freshness (RFC 7231 6.1, RFC 7538)
+    private static final int[] CACHEABLE_STATUS = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+    // Hop-by-hop or recomputed when served, never stored
+    private static final String[] NOT_STORED = {
+            "Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding", "TE", "Trailer", "Upgrade",
+            "Proxy-Authenticate", "Proxy-Authorization", "Content-Length", "Age"
+    };
+    // Sent with a 304 to a conditional request (RFC 7232 4.1)
+    private static final String[] NOT_MODIFIED_HEADERS = {
+            "Cache-Control", "Content-Location", "Date", "ETag", "Expires", "Vary"
+    };
+
+    private final File dir;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final AtomicLong nextId = new AtomicLong();
+
+    // Guarded by this. Variants by URL, and all entries access-ordered, eldest first.
+    private final Map<String, Resource> resources = new HashMap<String, Resource>();
+    private final LinkedHashMap<Long, Entry> lru = new LinkedHashMap<Long, Entry>(256, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    public HttpCache(File dir, long maxBytes, long maxEntryBytes) {
+        this.dir = dir;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntryBytes = Math.min(Math.max(0, maxEntryBytes), this.maxBytes);
+        load();
+    }
+
+    // Null unless proxy.http.cache.enabled; the files live in ~/.proxy/http-cache by default.
+    public static HttpCache fromConfig(ProxyConfig config) {
+        if (!config.getBoolean(KEY_ENABLED, false)) {
+            return null;
+        }
+        String dirPath = config.getString(KEY_DIR, null);
+        File dir = dirPath != null
+                ? new File(dirPath)
+                : new File(new File(System.getProperty("user.home"), ".proxy"), DIR_NAME);
+        HttpCache cache = new HttpCache(dir,
+                config.getLong(KEY_MAX_MB, DEFAULT_MAX_MB) * 1024 * 1024,
+                config.getLong(KEY_MAX_ENTRY_MB, DEFAULT_MAX_ENTRY_MB) * 1024 * 1024);
+        System.out.println("[Proxy] HTTP cache " + dir.getAbsolutePath() + ", " + cache.entryCount() + " entries");
+        return cache;
+    }
+
+    // Cache key of a plain HTTP request.
+    public static String url(ProxyTarget target) {
+        return "http://" + target.getHost().toLowerCase(Locale.ROOT) + ":" + target.getPort() + target.getPath();
+    }
+
+    // Cache state of one request, null if the cache has nothing to do with it. Call close() when done.
+    public Lookup lookup(HttpHead request, String url, long requestLength) {
+        boolean get = request.isMethod("GET");
+        if (!get && !request.isMethod("HEAD")) {
+            boolean safe = request.isMethod("OPTIONS") || request.isMethod("TRACE");
+            return safe ? null : new Lookup(url, false, true, request);
+        }
+        Map<String, String> cacheControl = directives(request, "Cache-Control");
+        if (requestLength != 0 || request.hasHeader("Upgrade") || cacheControl.containsKey("no-store")
+                || request.hasHeader("Range") || request.hasHeader("If-Range")
+                || request.hasHeader("If-Match") || request.hasHeader("If-Unmodified-Since")) {
+            return null;
+        }
+        lookups.incrementAndGet();
+        Lookup lookup = new Lookup(url, get, false, request);
+        Entry entry;
+        synchronized (this) {
+            Resource resource = resources.get(url);
+            entry = resource != null ? resource.find(selector(resource.vary, request)) : null;
+            if (entry != null) {
+                lru.get(entry.id); // touch
+            }
+        }
+        if (entry == null) {
+            return lookup;
+        }
+        boolean noCache = cacheControl.containsKey("no-cache")
+                || (!request.hasHeader("Cache-Control") && request.hasHeaderToken("Pragma", "no-cache"));
+        long maxAge = seconds(cacheControl.get("max-age"));
+        long minFresh = Math.max(0, seconds(cacheControl.get("min-fresh")));
+        long age = entry.currentAge(System.currentTimeMillis());
+        lookup.fresh = !noCache
+                && age + TimeUnit.SECONDS.toMillis(minFresh) < entry.freshness
+                && (maxAge < 0 || age <= TimeUnit.SECONDS.toMillis(maxAge));
+        // A stale entry only helps if we can revalidate it ourselves
+        if (!lookup.fresh && (!get || lookup.conditional || (entry.etag == null && entry.lastModified == null))) {
+            return lookup;
+        }
+        try {
+            lookup.body = new FileInputStream(entry.file).getChannel();
+        } catch (IOException e) {
+            // Evicted meanwhile
+            lookup.fresh = false;
+            return lookup;
+        }
+        lookup.entry = entry;
+        return lookup;
+    }
+
+    // Answers the request from the entry of a fresh or revalidated lookup: 304 if the client's
+    // validators match, otherwise the stored response with its body sent from the file.
+    public void serve(Lookup lookup, Socket clientSocket, OutputStream clientOut, boolean keepAlive)
+            throws IOException {
+        Entry entry = lookup.entry;
+        if (lookup.fresh) {
+            hits.incrementAndGet();
+        }
+        String connection = keepAlive ? "keep-alive" : "close";
+        long age = TimeUnit.MILLISECONDS.toSeconds(entry.currentAge(System.currentTimeMillis()));
+        HttpHead head = entry.parsedHead();
+        if (lookup.matches(entry)) {
+            notModified.incrementAndGet();
+            StringBuilder out = new StringBuilder(256).append("HTTP/1.1 304 Not Modified\r\n");
+            for (int i = 0; i < head.getHeaderCount(); i++) {
+                if (contains(NOT_MODIFIED_HEADERS, head.getHeaderName(i))) {
+                    out.append(head.getHeaderName(i)).append(": ").append(head.getHeaderValue(i)).append("\r\n");
+                }
+            }
+            out.append("Age: ").append(age).append("\r\nX-Proxy-Cache: hit\r\nConnection: ").append(connection)
+                    .append("\r\n\r\n");
+            clientOut.write(out.toString().getBytes(ISO_8859_1));
+            clientOut.flush();
+            return;
+        }
+        clientOut.write(entry.head);
+        StringBuilder out = new StringBuilder(96);
+        if (head.getStatusCode() != 204) {
+            out.append("Content-Length: ").append(entry.bodyLength).append("\r\n");
+        }
+        out.append("Age: ").append(age).append("\r\nX-Proxy-Cache: hit\r\nConnection: ").append(connection)
+                .append("\r\n\r\n");
+        clientOut.write(out.toString().getBytes(ISO_8859_1));
+        clientOut.flush();
+        if (lookup.get && entry.bodyLength > 0) {
+            transfer(lookup.body, entry.bodyLength, clientSocket, clientOut);
+            bytesServed.addAndGet(entry.bodyLength);
+        }
+    }
+
+    // True if response is the 304 to the revalidation of lookup: the entry takes over its headers
+    // and freshness and is served from the cache.
+    public boolean revalidated(Lookup lookup, HttpHead response) {
+        if (lookup.entry == null || lookup.fresh || response.getStatusCode() != 304) {
+            return false;
+        }
+        Entry old = lookup.entry;
+        Entry updated;
+        try {
+            updated = new Entry(old.id, old.file, old.url, old.vary, old.selector, headBytes(old.parsedHead(), response),
+                    old.bodyLength, lookup.requestTime - ageMillis(response), System.currentTimeMillis());
+        } catch (IOException e) {
+            return false;
+        }
+        lookup.entry = updated;
+        revalidated.incrementAndGet();
+        synchronized (this) {
+            Resource resource = resources.get(old.url);
+            if (resource == null || !resource.variants.remove(old)) {
+                return true; // evicted meanwhile, still served from the open file
+            }
+            lru.remove(old.id);
+            bytes -= old.size;
+            try {
+                RandomAccessFile file = new RandomAccessFile(old.file, "rw");
+                try {
+                    file.setLength(old.bodyLength);
+                    file.seek(old.bodyLength);
+                    file.write(updated.trailer());
+                    updated.size = file.length();
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                System.out.println("[Proxy] Cannot update cache entry: " + e.getMessage());
+                if (resource.variants.isEmpty()) {
+                    resources.remove(old.url);
+                }
+                delete(old.file);
+                return true;
+            }
+            resource.variants.add(updated);
+            lru.put(updated.id, updated);
+            bytes += updated.size;
+        }
+        return true;
+    }
+
+    // Store for the response to lookup, null if it is not cacheable. An unsafe request that
+    // succeeded invalidates the URL here.
+    public Store store(Lookup lookup, HttpHead request, HttpHead response, long length) {
+        int status = response.getStatusCode();
+        if (lookup.invalidates) {
+            if (status < 400) {
+                invalidate(lookup.url);
+            }
+            return null;
+        }
+        if (!lookup.get || Arrays.binarySearch(CACHEABLE_STATUS, status) < 0
+                || length == HttpBody.UNTIL_CLOSE || length > maxEntryBytes) {
+            return null;
+        }
+        Map<String, String> cacheControl = directives(response, "Cache-Control");
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) {
+            return null;
+        }
+        // Shared cache: a response to credentials only if it says so (RFC 7234 3.2)
+        if (lookup.authorized && !cacheControl.containsKey("public") && !cacheControl.containsKey("s-maxage")
+                && !cacheControl.containsKey("must-revalidate")) {
+            return null;
+        }
+        // Session state of one client
+        if (response.hasHeader("Set-Cookie")) {
+            return null;
+        }
+        if (!cacheControl.containsKey("max-age") && !cacheControl.containsKey("s-maxage")
+                && !response.hasHeader("Expires") && !response.hasHeader("ETag")
+                && !response.hasHeader("Last-Modified")) {
+            return null; // could never be served
+        }
+        String vary = vary(response);
+        if (vary == null) {
+            return null;
+        }
+        try {
+            return new Store(lookup, vary, selector(vary, request), headBytes(response, null), ageMillis(response));
+        } catch (IOException e) {
+            System.out.println("[Proxy] Cannot create cache entry: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void invalidate(String url) {
+        List<Entry> dropped = new ArrayList<Entry>();
+        synchronized (this) {
+            Resource resource = resources.remove(url);
+            if (resource == null) {
+                return;
+            }
+            for (Entry entry : resource.variants) {
+                lru.remove(entry.id);
+                bytes -= entry.size;
+                dropped.add(entry);
+            }
+        }
+        invalidated.incrementAndGet();
+        for (Entry entry : dropped) {
+            delete(entry.file);
+        }
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        long served = hits.get() + revalidated.get();
+        long total = lookups.get();
+        int entries;
+        long size;
+        synchronized (this) {
+            entries = lru.size();
+            size = bytes;
+        }
+        out.append("http.cache.hits: ").append(hits.get()).append('\n');
+        out.append("http.cache.revalidated: ").append(revalidated.get()).append('\n');
+        out.append("http.cache.misses: ").append(total - served).append('\n');
+        out.append("http.cache.hitRatio: ").append(total > 0
+                ? String.format(Locale.ROOT, "%.3f", (double) served / total) : "0").append('\n');
+        out.append("http.cache.notModified: ").append(notModified.get()).append('\n');
+        out.append("http.cache.bytesServed: ").append(bytesServed.get()).append('\n');
+        out.append("http.cache.stored: ").append(stored.get()).append('\n');
+        out.append("http.cache.invalidated: ").append(invalidated.get()).append('\n');
+        out.append("http.cache.evicted: ").append(evicted.get()).append('\n');
+        out.append("http.cache.entries: ").append(entries).append('\n');
+        out.append("http.cache.bytes: ").append(size).append('\n');
+    }
+
+    private synchronized int entryCount() {
+        return lru.size();
+    }
+
+    // Sends the body with sendfile where the client socket is channel-backed (blocking engine);
+    // out must be flushed. Otherwise copies through out.
+    private static void transfer(FileChannel file, long length, Socket socket, OutputStream out) throws IOException {
+        if (socket instanceof ChannelSocket) {
+            ((ChannelSocket) socket).transferFrom(file, 0, length);
+            return;
+        }
+        long position = 0;
+        byte[] buffer = BufferPool.shared().acquireArray(BufferPool.LARGE);
+        try {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            while (position < length) {
+                wrapped.clear();
+                wrapped.limit((int) Math.min(buffer.length, length - position));
+                int read = file.read(wrapped, position);
+                if (read <= 0) {
+                    throw new EOFException("Cached body truncated");
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            out.flush();
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    // Start line and stored headers, each line ending with CRLF, without the empty line. With an
+    // update (304), its headers replace the stored ones of the same name (RFC 7234 4.3.4).
+    private static byte[] headBytes(HttpHead base, HttpHead update) {
+        StringBuilder out = new StringBuilder(512).append(base.getStartLine()).append("\r\n");
+        for (int i = 0; i < base.getHeaderCount(); i++) {
+            String name = base.getHeaderName(i);
+            if (!isNotStored(base, name) && (update == null || !update.hasHeader(name))) {
+                out.append(name).append(": ").append(base.getHeaderValue(i)).append("\r\n");
+            }
+        }
+        if (update != null) {
+            for (int i = 0; i < update.getHeaderCount(); i++) {
+                String name = update.getHeaderName(i);
+                if (!isNotStored(update, name)) {
+                    out.append(name).append(": ").append(update.getHeaderValue(i)).append("\r\n");
+                }
+            }
+        }
+        return out.toString().getBytes(ISO_8859_1);
+    }
+
+    private static boolean isNotStored(HttpHead head, String name) {
+        return contains(NOT_STORED, name) || head.hasHeaderToken("Connection", name);
+    }
+
+    // Normalized Vary field names ("" if none), null for "Vary: *".
+    private static String vary(HttpHead response) {
+        TreeSet<String> names = new TreeSet<String>();
+        for (String name : values(response, "Vary")) {
+            if ("*".equals(name)) {
+                return null;
+            }
+            names.add(name.toLowerCase(Locale.ROOT));
+        }
+        StringBuilder out = new StringBuilder();
+        for (String name : names) {
+            if (out.length() > 0) {
+                out.append(',');
+            }
+            out.append(name);
+        }
+        return out.toString();
+    }
+
+    // The request's values of the Vary fields, which select the variant.
+    private static String selector(String vary, HttpHead request) {
+        if (vary.isEmpty()) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder();
+        for (String name : vary.split(",")) {
+            for (String value : values(request, name)) {
+                out.append(value).append(',');
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    // Comma separated elements of all fields with this name.
+    private static List<String> values(HttpHead head, String name) {
+        List<String> out = new ArrayList<String>(2);
+        for (int i = 0; i < head.getHeaderCount(); i++) {
+            if (head.getHeaderName(i).equalsIgnoreCase(name)) {
+                for (String element : head.getHeaderValue(i).split(",")) {
+                    String trimmed = element.trim();
+                    if (!trimmed.isEmpty()) {
+                        out.add(trimmed);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    // Directives in lower case, values without quotes ("" if none).
+    private static Map<String, String> directives(HttpHead head, String name) {
+        Map<String, String> out = new HashMap<String, String>(4);
+        for (String element : values(head, name)) {
+            int eq = element.indexOf('=');
+            String directive = (eq < 0 ? element : element.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+            String value = eq < 0 ? "" : element.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            if (!out.containsKey(directive)) {
+                out.put(directive, value);
+            }
+        }
+        return out;
+    }
+
+    // The Age a response came with. The stored head has none, so it moves the request time back.
+    private static long ageMillis(HttpHead response) {
+        return TimeUnit.SECONDS.toMillis(Math.max(0, seconds(response.getHeader("Age"))));
+    }
+
+    // -1 if absent or invalid
+    private static long seconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // HTTP-date in any of the three formats of RFC 7231 7.1.1.1, -1 if absent or invalid.
+    static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        String[] patterns = {"EEE, dd MMM yyyy HH:mm:ss zzz", "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy"};
+        for (String pattern : patterns) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return format.parse(value.trim()).getTime();
+            } catch (ParseException ignored) {
+                // Next format
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void insert(Entry entry) {
+        List<Entry> dropped = new ArrayList<Entry>();
+        synchronized (this) {
+            Resource resource = resources.get(entry.url);
+            if (resource != null && !resource.vary.equals(entry.vary)) {
+                // Other Vary now, the old variants cannot be selected any more
+                resources.remove(entry.url);
+                for (Entry variant : resource.variants) {
+                    lru.remove(variant.id);
+                    bytes -= variant.size;
+                    dropped.add(variant);
+                }
+                resource = null;
+            }
+            if (resource == null) {
+                resource = new Resource(entry.vary);
+                resources.put(entry.url, resource);
+            }
+            Entry old = resource.find(entry.selector);
+            if (old != null) {
+                resource.variants.remove(old);
+                lru.remove(old.id);
+                bytes -= old.size;
+                dropped.add(old);
+            }
+            resource.variants.add(entry);
+            lru.put(entry.id, entry);
+            bytes += entry.size;
+            Iterator<Entry> eldest = lru.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Entry e = eldest.next();
+                eldest.remove();
+                bytes -= e.size;
+                Resource r = resources.get(e.url);
+                if (r != null) {
+                    r.variants.remove(e);
+                    if (r.variants.isEmpty()) {
+                        resources.remove(e.url);
+                    }
+                }
+                dropped.add(e);
+                evicted.incrementAndGet();
+            }
+        }
+        for (Entry e : dropped) {
+            delete(e.file);
+        }
+    }
+
+    // A lookup may still be sending the file; where the OS does not allow deleting it then, it goes at exit
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+    // ---- Files: body, trailer, trailer length ----
+
+    private void load() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("[Proxy] Cannot create cache directory " + dir.getAbsolutePath());
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Oldest first, so the LRU order roughly survives a restart
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long maxId = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_SUFFIX)) {
+                file.delete(); // interrupted store
+                continue;
+            }
+            if (!name.endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                long id = Long.parseLong(name.substring(0, name.length() - FILE_SUFFIX.length()), 16);
+                maxId = Math.max(maxId, id);
+                insert(readEntry(id, file));
+            } catch (NumberFormatException e) {
+                // Not ours
+            } catch (IOException e) {
+                file.delete();
+            }
+        }
+        nextId.set(maxId + 1);
+    }
+
+    private static Entry readEntry(long id, File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            if (length < 4) {
+                throw new EOFException("Truncated cache entry");
+            }
+            in.seek(length - 4);
+            int trailerLength = in.readInt();
+            if (trailerLength <= 0 || trailerLength > MAX_TRAILER_BYTES || trailerLength > length - 4) {
+                throw new IOException("Corrupt cache entry");
+            }
+            long bodyLength = length - 4 - trailerLength;
+            byte[] trailer = new byte[trailerLength];
+            in.seek(bodyLength);
+            in.readFully(trailer);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(trailer));
+            if (data.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a cache entry");
+            }
+            long requestTime = data.readLong();
+            long responseTime = data.readLong();
+            String url = data.readUTF();
+            String vary = data.readUTF();
+            String selector = data.readUTF();
+            byte[] head = new byte[data.readInt()];
+            data.readFully(head);
+            Entry entry = new Entry(id, file, url, vary, selector, head, bodyLength, requestTime, responseTime);
+            entry.size = length;
+            return entry;
+        } finally {
+            in.close();
+        }
+    }
+
+    private File file(long id, String suffix) {
+        return new File(dir, Long.toHexString(id) + suffix);
+    }
+
+    // Client side of one request.
+    public static final class Lookup {
+
+        private final String url;
+        private final boolean get;
+        private final boolean invalidates;
+        private final boolean authorized;
+        // The client's own validators
+        private final String ifNoneMatch;
+        private final String ifModifiedSince;
+        private final boolean conditional;
+        private final long requestTime = System.currentTimeMillis();
+        private boolean fresh;
+        private Entry entry;
+        private FileChannel body;
+
+        Lookup(String url, boolean get, boolean invalidates, HttpHead request) {
+            this.url = url;
+            this.get = get;
+            this.invalidates = invalidates;
+            this.authorized = request.hasHeader("Authorization");
+            this.ifNoneMatch = request.getHeader("If-None-Match");
+            this.ifModifiedSince = request.getHeader("If-Modified-Since");
+            this.conditional = ifNoneMatch != null || ifModifiedSince != null;
+        }
+
+        // Serve without asking the origin.
+        public boolean isFresh() {
+            return fresh && entry != null;
+        }
+
+        // Conditional header lines for the request upstream if a stale entry is revalidated, else null.
+        public String validators() {
+            if (entry == null || fresh) {
+                return null;
+            }
+            StringBuilder out = new StringBuilder(96);
+            if (entry.etag != null) {
+                out.append("If-None-Match: ").append(entry.etag).append("\r\n");
+            }
+            if (entry.lastModified != null) {
+                out.append("If-Modified-Since: ").append(entry.lastModified).append("\r\n");
+            }
+            return out.toString();
+        }
+
+        public void close() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                    // Ignore
+                }
+                body = null;
+            }
+        }
+
+        // The client's validators match the entry (RFC 7232 6: If-None-Match wins).
+        private boolean matches(Entry entry) {
+            if (ifNoneMatch != null) {
+                if (entry.etag == null) {
+                    return false;
+                }
+                for (String tag : ifNoneMatch.split(",")) {
+                    String t = tag.trim();
+                    if ("*".equals(t) || weak(t).equals(weak(entry.etag))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (ifModifiedSince != null && entry.lastModified != null) {
+                long since = parseDate(ifModifiedSince);
+                long modified = parseDate(entry.lastModified);
+                return since >= 0 && modified >= 0 && modified <= since;
+            }
+            return false;
+        }
+
+        private static String weak(String tag) {
+            return tag.startsWith("W/") ? tag.substring(2) : tag;
+        }
+    }
+
+    // Writes the body of a response to the client and keeps a copy; stored once it was complete.
+    public final class Store {
+
+        private final Lookup lookup;
+        private final String vary;
+        private final String selector;
+        private final byte[] head;
+        private final long ageMillis;
+        private final long id = nextId.getAndIncrement();
+        private final File tmp = file(id, TMP_SUFFIX);
+        private DataOutputStream file;
+        private long written;
+
+        Store(Lookup lookup, String vary, String selector, byte[] head, long ageMillis) throws IOException {
+            this.lookup = lookup;
+            this.vary = vary;
+            this.selector = selector;
+            this.head = head;
+            this.ageMillis = ageMillis;
+            this.file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BufferPool.LARGE));
+        }
+
+        // Relays the body with the given framing (chunked is re-chunked, trailers are dropped).
+        public void relay(InputStream in, OutputStream out, long length, StreamCopier copier) throws IOException {
+            long responseTime = System.currentTimeMillis();
+            boolean complete = false;
+            try {
+                InputStream content = HttpBody.contentStream(in, length);
+                final OutputStream body = length == HttpBody.CHUNKED ? HttpBody.chunkedStream(out) : out;
+                copier.copy(content, new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        body.write(b, off, len);
+                        keep(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        body.flush();
+                    }
+                });
+                if (body != out) {
+                    body.close(); // last chunk
+                }
+                out.flush();
+                complete = true;
+            } finally {
+                finish(complete, responseTime);
+            }
+        }
+
+        private void keep(byte[] b, int off, int len) {
+            if (file == null) {
+                return;
+            }
+            try {
+                if (written + len > maxEntryBytes) {
+                    throw new IOException("Response too large for the cache");
+                }
+                file.write(b, off, len);
+                written += len;
+            } catch (IOException e) {
+                System.out.println("[Proxy] Not cached: " + e.getMessage());
+                abort();
+            }
+        }
+
+        private void finish(boolean complete, long responseTime) {
+            if (!complete || file == null) {
+                abort();
+                return;
+            }
+            File target = file(id, FILE_SUFFIX);
+            Entry entry;
+            try {
+                entry = new Entry(id, target, lookup.url, vary, selector, head, written,
+                        lookup.requestTime - ageMillis, responseTime);
+                file.write(entry.trailer());
+                file.close();
+                file = null;
+                if (!tmp.renameTo(target)) {
+                    throw new IOException("Cannot rename " + tmp);
+                }
+            } catch (IOException e) {
+                System.out.println("[Proxy] Cannot write cache entry: " + e.getMessage());
+                abort();
+                return;
+            }
+            entry.size = target.length();
+            stored.incrementAndGet();
+            insert(entry);
+        }
+
+        private void abort() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                    // Ignore
+                }
+                file = null;
+            }
+            tmp.delete();
+        }
+    }
+
+    // All stored variants of one URL.
+    private static final class Resource {
+
+        final String vary;
+        final List<Entry> variants = new ArrayList<Entry>(1);
+
+        Resource(String vary) {
+            this.vary = vary;
+        }
+
+        Entry find(String selector) {
+            for (Entry entry : variants) {
+                if (entry.selector.equals(selector)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Index entry: the stored head plus what freshness and validation need.
+    private static final class Entry {
+
+        final long id;
+        final File file;
+        final String url;
+        final String vary;
+        final String selector;
+        final byte[] head;
+        final long bodyLength;
+        // Less the Age the response came with
+        final long requestTime;
+        final long responseTime;
+        final String etag;
+        final String lastModified;
+        // Age when received and freshness lifetime (RFC 7234 4.2)
+        final long initialAge;
+        final long freshness;
+        // Bytes on disk
+        long size;
+
+        Entry(long id, File file, String url, String vary, String selector, byte[] head, long bodyLength,
+              long requestTime, long responseTime) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.url = url;
+            this.vary = vary;
+            this.selector = selector;
+            this.head = head;
+            this.bodyLength = bodyLength;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+
+            HttpHead parsed = parsedHead();
+            this.etag = parsed.getHeader("ETag");
+            this.lastModified = parsed.getHeader("Last-Modified");
+            long date = parseDate(parsed.getHeader("Date"));
+            if (date < 0) {
+                date = responseTime;
+            }
+            this.initialAge = Math.max(Math.max(0, responseTime - date), Math.max(0, responseTime - requestTime));
+            this.freshness = freshness(parsed, date);
+        }
+
+        long currentAge(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+        HttpHead parsedHead() throws IOException {
+            byte[] complete = Arrays.copyOf(head, head.length + 2);
+            complete[head.length] = '\r';
+            complete[head.length + 1] = '\n';
+            HttpHead parsed = new HttpHead();
+            if (parsed.parse(complete, 0, complete.length) < 0) {
+                throw new IOException("Incomplete cached head");
+            }
+            return parsed;
+        }
+
+        // Metadata behind the body, followed by its length.
+        byte[] trailer() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(head.length + 256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_MAGIC);
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            out.writeUTF(url);
+            out.writeUTF(vary);
+            out.writeUTF(selector);
+            out.writeInt(head.length);
+            out.write(head);
+            out.writeInt(bytes.size());
+            return bytes.toByteArray();
+        }
+
+        private long freshness(HttpHead parsed, long date) {
+            Map<String, String> cacheControl = directives(parsed, "Cache-Control");
+            if (cacheControl.containsKey("no-cache")) {
+                return 0; // always revalidated
+            }
+            long seconds = seconds(cacheControl.get("s-maxage"));
+            if (seconds < 0) {
+                seconds = seconds(cacheControl.get("max-age"));
+            }
+            if (seconds >= 0) {
+                return TimeUnit.SECONDS.toMillis(seconds);
+            }
+            String expires = parsed.getHeader("Expires");
+            if (expires != null) {
+                long at = parseDate(expires);
+                return at < 0 ? 0 : Math.max(0, at - date);
+            }
+            long modified = parseDate(lastModified);
+            if (modified >= 0 && modified < date) {
+                return Math.min((date - modified) / 10, MAX_HEURISTIC_MILLIS);
+            }
+            return 0;
+        }
+    }
+}
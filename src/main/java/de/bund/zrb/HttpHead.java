@@ -0,0 +1,543 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+// Start line and header fields of an HTTP/1.x request or response, parsed on bytes.
+// The head is copied once into a reusable array and indexed by offsets, so parsing creates no
+// Strings; they are only built when a getter asks for one. An instance is reused for every
+// message of a connection (parse() overwrites the previous head).
+public class HttpHead {
+
+    public static final int MAX_HEAD_BYTES = 64 * 1024;
+    public static final int MAX_HEADERS = 256;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    // Methods and versions returned as constants instead of new Strings
+    private static final String[] KNOWN_TOKENS = {
+            "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "CONNECT", "TRACE",
+            "HTTP/1.1", "HTTP/1.0"
+    };
+
+    // Per header: name start, name end, value start, value end, line end
+    private static final int FIELDS = 5;
+
+    private byte[] data = new byte[1024];
+    private int length;
+    private int startLineEnd;
+    private int firstSpace;
+    private int secondSpace;
+    private int[] index = new int[32 * FIELDS];
+    private int count;
+
+    // Parses the head at src[off, limit). Returns the offset behind the empty line that ends it,
+    // or -1 if the head is not complete yet. Empty lines before the start line are skipped.
+    public int parse(byte[] src, int off, int limit) throws MalformedHttpException {
+        int start = skipBlankLines(src, off, limit);
+        int end = findEnd(src, start, limit);
+        if (end < 0) {
+            if (limit - off >= MAX_HEAD_BYTES) {
+                throw new MalformedHttpException("Message head too large");
+            }
+            return -1;
+        }
+        if (end - off > MAX_HEAD_BYTES) {
+            throw new MalformedHttpException("Message head too large");
+        }
+        length = end - start;
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+        System.arraycopy(src, start, data, 0, length);
+        index();
+        return end;
+    }
+
+    // True if src[off, limit) only contains line breaks.
+    static boolean isBlank(byte[] src, int off, int limit) {
+        return skipBlankLines(src, off, limit) == limit;
+    }
+
+    private static int skipBlankLines(byte[] src, int off, int limit) {
+        while (off < limit && (src[off] == '\r' || src[off] == '\n')) {
+            off++;
+        }
+        return off;
+    }
+
+    // Offset behind the first empty line (CRLF CRLF, tolerating bare LF), or -1.
+    private static int findEnd(byte[] src, int off, int limit) {
+        for (int i = off; i < limit; i++) {
+            if (src[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < limit && src[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < limit && src[i + 1] == '\r' && src[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private void index() throws MalformedHttpException {
+        int lf = indexOf((byte) '\n', 0, length);
+        startLineEnd = trimCr(0, lf);
+        if (startLineEnd == 0) {
+            throw new MalformedHttpException("Empty start line");
+        }
+        firstSpace = indexOf((byte) ' ', 0, startLineEnd);
+        secondSpace = firstSpace < 0 ? -1 : indexOf((byte) ' ', firstSpace + 1, startLineEnd);
+
+        // Requests are parsed strictly, a response only has to be readable (RFC 7230, 3.2.4)
+        boolean request = !equalsIgnoreCase(0, Math.min(5, startLineEnd), "HTTP/");
+        count = 0;
+        int p = lf + 1;
+        while (p < length) {
+            int nl = indexOf((byte) '\n', p, length);
+            int lineEnd = trimCr(p, nl);
+            if (lineEnd == p) {
+                break;
+            }
+            if (data[p] == ' ' || data[p] == '\t') {
+                throw new MalformedHttpException("Obsolete line folding");
+            }
+            int colon = indexOf((byte) ':', p, lineEnd);
+            if (request && colon <= p) {
+                throw new MalformedHttpException("Invalid header line");
+            }
+            if (request && isWhitespace(data[colon - 1])) {
+                throw new MalformedHttpException("Whitespace before colon");
+            }
+            if (colon > p) {
+                if (count == MAX_HEADERS) {
+                    throw new MalformedHttpException("Too many header fields");
+                }
+                if ((count + 1) * FIELDS > index.length) {
+                    int[] bigger = new int[index.length * 2];
+                    System.arraycopy(index, 0, bigger, 0, index.length);
+                    index = bigger;
+                }
+                int nameEnd = colon;
+                while (nameEnd > p && isWhitespace(data[nameEnd - 1])) {
+                    nameEnd--;
+                }
+                int valueStart = colon + 1;
+                while (valueStart < lineEnd && isWhitespace(data[valueStart])) {
+                    valueStart++;
+                }
+                int valueEnd = lineEnd;
+                while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1])) {
+                    valueEnd--;
+                }
+                int f = count * FIELDS;
+                index[f] = p;
+                index[f + 1] = nameEnd;
+                index[f + 2] = valueStart;
+                index[f + 3] = valueEnd;
+                index[f + 4] = lineEnd;
+                count++;
+            }
+            p = nl + 1;
+        }
+    }
+
+    public String getStartLine() {
+        return string(0, startLineEnd);
+    }
+
+    public boolean isValidRequest() {
+        return firstSpace > 0 && secondSpace > firstSpace + 1 && secondSpace < startLineEnd - 1;
+    }
+
+    // Request: method. Response: version.
+    public String getMethod() {
+        return token(0, firstSpace < 0 ? startLineEnd : firstSpace);
+    }
+
+    public boolean isMethod(String method) {
+        return equalsIgnoreCase(0, firstSpace < 0 ? startLineEnd : firstSpace, method);
+    }
+
+    public String getTarget() {
+        if (firstSpace < 0) {
+            return "";
+        }
+        return string(firstSpace + 1, secondSpace < 0 ? startLineEnd : secondSpace);
+    }
+
+    public boolean isTarget(String target) {
+        if (firstSpace < 0) {
+            return false;
+        }
+        int start = firstSpace + 1;
+        int end = secondSpace < 0 ? startLineEnd : secondSpace;
+        if (end - start != target.length()) {
+            return false;
+        }
+        for (int i = 0; i < target.length(); i++) {
+            if (data[start + i] != (byte) target.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Request: version. Response: reason phrase.
+    public String getVersion() {
+        return secondSpace < 0 ? "" : token(secondSpace + 1, startLineEnd);
+    }
+
+    public int getStatusCode() {
+        if (firstSpace < 0) {
+            return -1;
+        }
+        int end = secondSpace < 0 ? startLineEnd : secondSpace;
+        if (end - firstSpace != 4) {
+            return -1;
+        }
+        long code = parseDigits(firstSpace + 1, end);
+        return (int) code;
+    }
+
+    public int getHeaderCount() {
+        return count;
+    }
+
+    // Name and value of the i-th header field, in the order received.
+    public String getHeaderName(int i) {
+        return string(index[i * FIELDS], index[i * FIELDS + 1]);
+    }
+
+    public String getHeaderValue(int i) {
+        return string(index[i * FIELDS + 2], index[i * FIELDS + 3]);
+    }
+
+    public String getHeader(String name) {
+        int i = find(name, 0);
+        return i < 0 ? null : string(index[i * FIELDS + 2], index[i * FIELDS + 3]);
+    }
+
+    public boolean hasHeader(String name) {
+        return find(name, 0) >= 0;
+    }
+
+    // True if a comma separated header (e.g. Connection) contains the token.
+    public boolean hasHeaderToken(String name, String token) {
+        for (int i = find(name, 0); i >= 0; i = find(name, i + 1)) {
+            if (containsToken(i, token, 0, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -1 if absent, invalid or ambiguous. Repeated fields and lists ("5, 5") must all agree.
+    public long getContentLength() {
+        long length = -1;
+        for (int i = find("Content-Length", 0); i >= 0; i = find("Content-Length", i + 1)) {
+            int end = index[i * FIELDS + 3];
+            int start = index[i * FIELDS + 2];
+            while (start <= end) {
+                int comma = start;
+                while (comma < end && data[comma] != ',') {
+                    comma++;
+                }
+                int from = start;
+                int to = comma;
+                while (from < to && (data[from] == ' ' || data[from] == '\t')) {
+                    from++;
+                }
+                while (to > from && (data[to - 1] == ' ' || data[to - 1] == '\t')) {
+                    to--;
+                }
+                long value = parseDigits(from, to);
+                if (value < 0 || (length >= 0 && value != length)) {
+                    return -1;
+                }
+                length = value;
+                start = comma + 1;
+            }
+        }
+        return length;
+    }
+
+    // True if chunked is the final transfer coding and applied once (RFC 7230, 3.3.1). With any
+    // other Transfer-Encoding a request is invalid and a response lasts until the connection closes.
+    public boolean isChunked() {
+        boolean last = false;
+        int chunked = 0;
+        for (int i = find("Transfer-Encoding", 0); i >= 0; i = find("Transfer-Encoding", i + 1)) {
+            int f = i * FIELDS;
+            int p = index[f + 2];
+            int valueEnd = index[f + 3];
+            while (p <= valueEnd) {
+                int comma = indexOf((byte) ',', p, valueEnd);
+                int e = comma < 0 ? valueEnd : comma;
+                int s = p;
+                while (s < e && isWhitespace(data[s])) {
+                    s++;
+                }
+                while (e > s && isWhitespace(data[e - 1])) {
+                    e--;
+                }
+                if (e > s) {
+                    last = equalsIgnoreCase(s, e, "chunked");
+                    if (last) {
+                        chunked++;
+                    }
+                }
+                if (comma < 0) {
+                    break;
+                }
+                p = comma + 1;
+            }
+        }
+        return last && chunked == 1;
+    }
+
+    // Writes the head as received (line breaks normalized to CRLF). Next to Transfer-Encoding a
+    // Content-Length is dropped, it must not be forwarded (RFC 7230, 3.3.3).
+    public void writeTo(OutputStream out) throws IOException {
+        writeStartLine(out, null);
+        boolean transferEncoded = hasHeader("Transfer-Encoding");
+        for (int i = 0; i < count; i++) {
+            if (!(transferEncoded && nameEquals(i, "Content-Length"))) {
+                writeHeader(out, i);
+            }
+        }
+        out.write(CRLF);
+    }
+
+    // Write the head with another start line (null keeps the original). Hop-by-hop headers
+    // (Connection, Keep-Alive, Proxy-Connection and everything listed in Connection) are dropped,
+    // connectionValue is sent as the new Connection header if not null.
+    public void writeTo(OutputStream out, String newStartLine, String connectionValue) throws IOException {
+        writeTo(out, newStartLine, connectionValue, null);
+    }
+
+    // As above, extraHeaders (complete lines, each ending with CRLF) are appended if not null.
+    public void writeTo(OutputStream out, String newStartLine, String connectionValue, String extraHeaders)
+            throws IOException {
+        writeStartLine(out, newStartLine);
+        boolean transferEncoded = hasHeader("Transfer-Encoding");
+        for (int i = 0; i < count; i++) {
+            if (!isHopByHop(i) && !(transferEncoded && nameEquals(i, "Content-Length"))) {
+                writeHeader(out, i);
+            }
+        }
+        if (connectionValue != null) {
+            writeAscii(out, "Connection: ");
+            writeAscii(out, connectionValue);
+            out.write(CRLF);
+        }
+        if (extraHeaders != null) {
+            writeAscii(out, extraHeaders);
+        }
+        out.write(CRLF);
+    }
+
+    // Writes the head with Content-Length set to contentLength (replacing any body framing).
+    public void writeWithContentLength(OutputStream out, long contentLength) throws IOException {
+        writeStartLine(out, null);
+        for (int i = 0; i < count; i++) {
+            if (!nameEquals(i, "Content-Length") && !nameEquals(i, "Transfer-Encoding")) {
+                writeHeader(out, i);
+            }
+        }
+        writeAscii(out, "Content-Length: ");
+        writeAscii(out, Long.toString(contentLength));
+        out.write(CRLF);
+        out.write(CRLF);
+    }
+
+    // Writes the head for a body that follows in chunked encoding (length not known up front).
+    public void writeChunked(OutputStream out) throws IOException {
+        writeStartLine(out, null);
+        for (int i = 0; i < count; i++) {
+            if (!nameEquals(i, "Content-Length") && !nameEquals(i, "Transfer-Encoding")) {
+                writeHeader(out, i);
+            }
+        }
+        writeAscii(out, "Transfer-Encoding: chunked");
+        out.write(CRLF);
+        out.write(CRLF);
+    }
+
+    // The head as text, e.g. for the traffic log.
+    @Override
+    public String toString() {
+        return string(0, length);
+    }
+
+    private void writeStartLine(OutputStream out, String newStartLine) throws IOException {
+        if (newStartLine != null) {
+            writeAscii(out, newStartLine);
+        } else {
+            out.write(data, 0, startLineEnd);
+        }
+        out.write(CRLF);
+    }
+
+    private void writeHeader(OutputStream out, int i) throws IOException {
+        int f = i * FIELDS;
+        if (data[index[f + 1]] == ':') {
+            out.write(data, index[f], index[f + 4] - index[f]);
+        } else {
+            // Whitespace before the colon (response only) is removed
+            out.write(data, index[f], index[f + 1] - index[f]);
+            out.write(':');
+            out.write(' ');
+            out.write(data, index[f + 2], index[f + 3] - index[f + 2]);
+        }
+        out.write(CRLF);
+    }
+
+    private boolean isHopByHop(int i) {
+        if (nameEquals(i, "Connection") || nameEquals(i, "Proxy-Connection") || nameEquals(i, "Keep-Alive")) {
+            return true;
+        }
+        if (nameEquals(i, "Transfer-Encoding") || nameEquals(i, "Upgrade")) {
+            return false;
+        }
+        int f = i * FIELDS;
+        for (int c = find("Connection", 0); c >= 0; c = find("Connection", c + 1)) {
+            if (containsToken(c, null, index[f], index[f + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Token given as String, or as data[tokenStart, tokenEnd) if token is null.
+    private boolean containsToken(int header, String token, int tokenStart, int tokenEnd) {
+        int f = header * FIELDS;
+        int p = index[f + 2];
+        int valueEnd = index[f + 3];
+        while (p <= valueEnd) {
+            int comma = indexOf((byte) ',', p, valueEnd);
+            int end = comma < 0 ? valueEnd : comma;
+            int s = p;
+            int e = end;
+            while (s < e && isWhitespace(data[s])) {
+                s++;
+            }
+            while (e > s && isWhitespace(data[e - 1])) {
+                e--;
+            }
+            if (token != null ? equalsIgnoreCase(s, e, token) : equalsIgnoreCase(s, e, tokenStart, tokenEnd)) {
+                return true;
+            }
+            if (comma < 0) {
+                break;
+            }
+            p = comma + 1;
+        }
+        return false;
+    }
+
+    private int find(String name, int from) {
+        for (int i = from; i < count; i++) {
+            if (nameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int i, String name) {
+        return equalsIgnoreCase(index[i * FIELDS], index[i * FIELDS + 1], name);
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (lower(data[start + i]) != lower((byte) s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, int start2, int end2) {
+        if (end - start != end2 - start2) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (lower(data[start + i]) != lower(data[start2 + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -1 if empty, not a number or too large
+    private long parseDigits(int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int d = data[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private String token(int start, int end) {
+        for (String known : KNOWN_TOKENS) {
+            if (known.length() == end - start && equalsCase(start, known)) {
+                return known;
+            }
+        }
+        return string(start, end);
+    }
+
+    private boolean equalsCase(int start, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (data[start + i] != (byte) s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int start, int end) {
+        return new String(data, start, end - start, ISO_8859_1);
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // End of the line [start, lf) without a trailing CR.
+    private int trimCr(int start, int lf) {
+        return (lf > start && data[lf - 1] == '\r') ? lf - 1 : lf;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int lower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(ISO_8859_1));
+    }
+}
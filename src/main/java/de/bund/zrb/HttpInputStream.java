@@ -0,0 +1,136 @@
+package de.bund.zrb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Buffered input for HTTP/1.x messages. HttpHead parses directly in the pooled buffer, and
+// whatever was read ahead (body bytes, the next pipelined request) stays here for the next reader.
+// Not thread safe; release() returns the buffer to the pool once the connection is done.
+public class HttpInputStream extends InputStream {
+
+    private static final byte[] RELEASED = new byte[0];
+
+    private final InputStream in;
+    private final BufferPool bufferPool = BufferPool.shared();
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    public HttpInputStream(InputStream in) {
+        this.in = in;
+        this.buf = bufferPool.acquireArray(BufferPool.MEDIUM);
+    }
+
+    // Parse the next head into target. Returns false on EOF before the first byte.
+    public boolean readHead(HttpHead target) throws IOException {
+        while (true) {
+            int end = target.parse(buf, pos, limit);
+            if (end >= 0) {
+                pos = end;
+                return true;
+            }
+            if (!fill()) {
+                if (pos == limit || HttpHead.isBlank(buf, pos, limit)) {
+                    return false;
+                }
+                throw new EOFException("Unexpected EOF in message head");
+            }
+        }
+    }
+
+    // Write the bytes read ahead to out, e.g. before switching to a raw tunnel.
+    public int transferBuffered(OutputStream out) throws IOException {
+        int n = limit - pos;
+        if (n > 0) {
+            out.write(buf, pos, n);
+            pos = limit;
+        }
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = limit - pos;
+        if (n == 0) {
+            if (len >= buf.length) {
+                // Large reads bypass the buffer
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+            n = limit - pos;
+        }
+        n = Math.min(n, len);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        in.close();
+    }
+
+    public void release() {
+        if (buf != RELEASED) {
+            bufferPool.release(buf);
+            buf = RELEASED;
+            pos = 0;
+            limit = 0;
+        }
+    }
+
+    // Reads more bytes behind limit, compacting or growing the buffer if it is full.
+    // Returns false on EOF.
+    private boolean fill() throws IOException {
+        if (buf == RELEASED) {
+            throw new IOException("Stream released");
+        }
+        if (pos == limit) {
+            pos = 0;
+            limit = 0;
+        }
+        if (limit == buf.length) {
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            } else if (buf.length < HttpHead.MAX_HEAD_BYTES) {
+                // Head larger than the buffer: next size class
+                byte[] bigger = bufferPool.acquireArray(buf.length + 1);
+                System.arraycopy(buf, 0, bigger, 0, limit);
+                bufferPool.release(buf);
+                buf = bigger;
+            } else {
+                throw new MalformedHttpException("Message head too large");
+            }
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n <= 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+}
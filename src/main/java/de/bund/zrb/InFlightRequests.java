@@ -0,0 +1,258 @@
+package de.bund.zrb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single flight for identical requests (RequestKeys: same body, same credential): while one is on
+// its way upstream, further ones attach to it instead of paying for another completion. The
+// leader's response is kept as it arrives and every follower copies it from the start at its
+// own pace, so a slow client neither holds up the leader nor the other followers; event streams
+// reach all followers while they are generated. Late followers join until the response ended.
+public class InFlightRequests implements StatsProvider {
+
+    public static final String KEY_ENABLED = "proxy.mitm.coalesce.enabled";
+    public static final String KEY_PATHS = "proxy.mitm.coalesce.paths";
+    public static final String KEY_DETERMINISTIC_ONLY = "proxy.mitm.coalesce.deterministicOnly";
+    public static final String KEY_HEADERS = "proxy.mitm.coalesce.keyHeaders";
+
+    // Followers of a larger response are cut off, the leader goes on
+    private static final int MAX_FLIGHT_BYTES = 8 * 1024 * 1024;
+
+    private final RequestKeys keys;
+    private final long waitMillis;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong followers = new AtomicLong();
+    private final AtomicLong followersFailed = new AtomicLong();
+    private final AtomicLong bytesFannedOut = new AtomicLong();
+    private final AtomicLong maxFollowers = new AtomicLong();
+
+    // waitMillis: longest silence of the leader's response before a follower gives up.
+    public InFlightRequests(List<String> paths, boolean deterministicOnly, List<String> keyHeaders, long waitMillis) {
+        this.keys = new RequestKeys(paths, deterministicOnly, keyHeaders);
+        this.waitMillis = waitMillis;
+    }
+
+    // Null unless proxy.mitm.coalesce.enabled.
+    public static InFlightRequests fromConfig(ProxyConfig config, long waitMillis) {
+        if (!config.getBoolean(KEY_ENABLED, false)) {
+            return null;
+        }
+        return new InFlightRequests(
+                RequestKeys.split(config.getString(KEY_PATHS, RequestKeys.DEFAULT_PATHS)),
+                config.getBoolean(KEY_DETERMINISTIC_ONLY, false),
+                RequestKeys.split(config.getString(KEY_HEADERS, RequestKeys.DEFAULT_HEADERS)),
+                waitMillis);
+    }
+
+    public boolean handles(HttpHead request) {
+        return keys.handles(request);
+    }
+
+    public String keyFor(HttpHead request, byte[] body) {
+        return keys.keyFor(request, body);
+    }
+
+    // The running flight for key with the caller attached as follower, or null.
+    Flight attach(String key) {
+        Flight running = flights.get(key);
+        return running != null && running.attach() ? running : null;
+    }
+
+    // New flight for key led by the caller, or null if another one started just now.
+    Flight lead(String key) {
+        Flight flight = new Flight(key);
+        if (flights.putIfAbsent(key, flight) != null) {
+            return null;
+        }
+        leaders.incrementAndGet();
+        return flight;
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("mitm.coalesce.leaders: ").append(leaders.get()).append('\n');
+        out.append("mitm.coalesce.followers: ").append(followers.get()).append('\n');
+        out.append("mitm.coalesce.followersFailed: ").append(followersFailed.get()).append('\n');
+        out.append("mitm.coalesce.maxFollowers: ").append(maxFollowers.get()).append('\n');
+        out.append("mitm.coalesce.bytesFannedOut: ").append(bytesFannedOut.get()).append('\n');
+        out.append("mitm.coalesce.inFlight: ").append(flights.size()).append('\n');
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    // One upstream exchange and its followers. The leader's session feeds it as Exchange.
+    final class Flight implements MitmSession.Exchange, MitmSession.BodyTap {
+
+        private static final int RUNNING = 0;
+        private static final int COMPLETE = 1;
+        private static final int FAILED = 2;
+
+        private final String key;
+        // Guarded by this
+        private byte[] head;
+        private long contentLength = -1;
+        private final List<byte[]> segments = new ArrayList<byte[]>();
+        private long size;
+        private int state = RUNNING;
+        private int attached;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void requestBody(byte[] b, int off, int len) {
+            // The followers sent the same body
+        }
+
+        @Override
+        public MitmSession.BodyTap response(HttpHead response, long sentNanos, long headNanos) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try {
+                response.writeTo(bytes, null, null);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // not thrown by a byte array
+            }
+            synchronized (this) {
+                head = bytes.toByteArray();
+                contentLength = response.isChunked() ? -1 : response.getContentLength();
+                notifyAll();
+            }
+            return this;
+        }
+
+        @Override
+        public void onData(byte[] b, int off, int len) {
+            synchronized (this) {
+                if (state != RUNNING) {
+                    return;
+                }
+                if (size + len > MAX_FLIGHT_BYTES) {
+                    end(FAILED);
+                    return;
+                }
+                segments.add(Arrays.copyOfRange(b, off, off + len));
+                size += len;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onEnd(boolean complete) {
+            end(complete ? COMPLETE : FAILED);
+        }
+
+        @Override
+        public void failed() {
+            end(FAILED);
+        }
+
+        // False if it already ended (too late to follow).
+        synchronized boolean attach() {
+            if (state != RUNNING) {
+                return false;
+            }
+            attached++;
+            followers.incrementAndGet();
+            updateMax(maxFollowers, attached);
+            return true;
+        }
+
+        // Copies the leader's response to out. False if it failed before its head, nothing was
+        // written then and the request can still go upstream; a failure later ends the connection.
+        boolean follow(OutputStream out) throws IOException {
+            HttpHead response = new HttpHead();
+            long length;
+            synchronized (this) {
+                while (head == null && state == RUNNING) {
+                    await();
+                }
+                if (head == null) {
+                    followersFailed.incrementAndGet();
+                    return false;
+                }
+                response.parse(head, 0, head.length);
+                length = contentLength;
+            }
+            OutputStream body = out;
+            if (length >= 0) {
+                response.writeTo(out);
+            } else {
+                // Chunked or until close upstream, chunked for this client
+                response.writeChunked(out);
+                body = HttpBody.chunkedStream(out);
+            }
+            out.flush();
+            int next = 0;
+            while (true) {
+                byte[] segment;
+                synchronized (this) {
+                    while (next == segments.size() && state == RUNNING) {
+                        await();
+                    }
+                    if (next < segments.size()) {
+                        segment = segments.get(next++);
+                    } else if (state == COMPLETE) {
+                        break;
+                    } else {
+                        followersFailed.incrementAndGet();
+                        throw new IOException("Coalesced upstream response failed");
+                    }
+                }
+                body.write(segment);
+                body.flush();
+                bytesFannedOut.addAndGet(segment.length);
+            }
+            if (body != out) {
+                body.close();
+            }
+            out.flush();
+            return true;
+        }
+
+        // Holds the lock
+        private void await() throws IOException {
+            long before = System.nanoTime();
+            try {
+                wait(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while following " + key);
+            }
+            if (state == RUNNING && System.nanoTime() - before >= TimeUnit.MILLISECONDS.toNanos(waitMillis)) {
+                followersFailed.incrementAndGet();
+                throw new SocketTimeoutException("Coalesced upstream response stalled");
+            }
+        }
+
+        private void end(int outcome) {
+            synchronized (this) {
+                if (state != RUNNING) {
+                    return;
+                }
+                state = outcome;
+                if (outcome == FAILED) {
+                    segments.clear();
+                }
+                notifyAll();
+            }
+            flights.remove(key, this);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package de.bund.zrb;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token-streaming rewrite of a JSON request body: the first edit whose model pattern matches the
+// top-level "model" sets, removes or clamps top-level fields (set fields that are absent are
+// appended); every other token is copied through as it is read. Memory does not depend on the
+// body size, only on the largest single string in it. Target fields that appear before "model"
+// are held back (if they are scalars) until the edit is known, so they may move behind it -
+// field order is not significant in JSON. Buffered bodies go through patch() first, which
+// changes the values in place and leaves every other byte alone.
+public class JsonBodyRewriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Longer member names are never decoded to look them up
+    private static final int MAX_TARGET_NAME_BYTES = 256;
+
+    // Field changes for bodies whose model matches one of the patterns ('*' wildcards,
+    // case-insensitive; no pattern = every body, with or without model).
+    public static final class Edit {
+
+        private final String name;
+        private final List<Glob> models = new ArrayList<Glob>();
+        // Field name -> JSON literal (e.g. "1.0", "\"auto\"", "true")
+        private final Map<String, String> set;
+        private final Set<String> remove;
+        // Field name -> {min, max}, either may be null
+        private final Map<String, BigDecimal[]> clamp;
+        private final AtomicLong applied = new AtomicLong();
+
+        public Edit(String name, Collection<String> modelPatterns, Map<String, String> set,
+                    Collection<String> remove, Map<String, BigDecimal[]> clamp) {
+            this.name = name;
+            for (String pattern : modelPatterns) {
+                models.add(Glob.compile(pattern.trim(), true));
+            }
+            this.set = Collections.unmodifiableMap(new LinkedHashMap<String, String>(set));
+            this.remove = Collections.unmodifiableSet(new LinkedHashSet<String>(remove));
+            this.clamp = Collections.unmodifiableMap(new LinkedHashMap<String, BigDecimal[]>(clamp));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Bodies this edit changed
+        public long getApplied() {
+            return applied.get();
+        }
+
+        boolean isEmpty() {
+            return set.isEmpty() && remove.isEmpty() && clamp.isEmpty();
+        }
+
+        boolean matchesModel(String value) {
+            if (models.isEmpty()) {
+                return true;
+            }
+            if (value != null) {
+                for (Glob model : models) {
+                    if (model.matches(value.trim())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        boolean touches(String field) {
+            return set.containsKey(field) || remove.contains(field) || clamp.containsKey(field);
+        }
+
+        // New literal for a present scalar field, null to drop it.
+        String valueFor(String field, String original) {
+            if (remove.contains(field)) {
+                return null;
+            }
+            String value = set.get(field);
+            if (value != null) {
+                return value;
+            }
+            BigDecimal[] range = clamp.get(field);
+            return range != null ? clampNumber(original, range) : original;
+        }
+
+        // New literal for a present object or array, null to drop it; clamp leaves it alone.
+        String valueForStructure(String field) {
+            return remove.contains(field) ? null : set.get(field);
+        }
+
+        private static String clampNumber(String literal, BigDecimal[] range) {
+            BigDecimal value;
+            try {
+                value = new BigDecimal(literal);
+            } catch (NumberFormatException e) {
+                return literal; // not a number
+            }
+            if (range[0] != null && value.compareTo(range[0]) < 0) {
+                return range[0].toString();
+            }
+            if (range[1] != null && value.compareTo(range[1]) > 0) {
+                return range[1].toString();
+            }
+            return literal;
+        }
+    }
+
+    private final List<Edit> edits;
+    // Every field any edit touches
+    private final Set<String> targets = new HashSet<String>();
+
+    public JsonBodyRewriter(List<Edit> edits) {
+        this.edits = Collections.unmodifiableList(new ArrayList<Edit>(edits));
+        for (Edit edit : this.edits) {
+            targets.addAll(edit.set.keySet());
+            targets.addAll(edit.remove);
+            targets.addAll(edit.clamp.keySet());
+        }
+    }
+
+    public boolean isEmpty() {
+        for (Edit edit : edits) {
+            if (!edit.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<Edit> getEdits() {
+        return edits;
+    }
+
+    // Parses "name=value,name=value"; values are JSON literals, anything else is taken as a string.
+    public static Map<String, String> parseFields(String spec) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        if (spec == null) {
+            return result;
+        }
+        for (String part : spec.split(",")) {
+            int eq = part.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String name = part.substring(0, eq).trim();
+            String value = part.substring(eq + 1).trim();
+            if (!name.isEmpty()) {
+                result.put(name, toJsonLiteral(value));
+            }
+        }
+        return result;
+    }
+
+    static String toJsonLiteral(String value) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(value));
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NUMBER || token == JsonToken.BOOLEAN
+                    || token == JsonToken.NULL || token == JsonToken.STRING) {
+                reader.skipValue();
+                if (reader.peek() == JsonToken.END_DOCUMENT) {
+                    return value;
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Not a literal
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    // Reads one JSON document from in and writes the (possibly) rewritten document to out.
+    // Returns true if a field was changed. A body that is not a JSON object is an IOException.
+    public boolean rewrite(InputStream in, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, UTF_8);
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        JsonWriter json = new JsonWriter(writer);
+        json.setHtmlSafe(false);
+        try {
+            Edit edit = rewriteObject(reader, json);
+            json.flush();
+            if (edit != null) {
+                edit.applied.incrementAndGet();
+            }
+            return edit != null;
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Gson reports some syntax problems as unchecked exceptions
+            throw new IOException("Malformed JSON body: " + e.getMessage(), e);
+        }
+    }
+
+    // Byte-level fast path for a buffered body: one pass over the UTF-8 bytes finds the top-level
+    // members, then the body is copied with the changed values spliced in, removed members left
+    // out and new ones appended behind the last member. Whitespace, field order and all other
+    // values stay as sent. Returns body itself if nothing changes, or null if the structure is
+    // ambiguous (escapes in names or in the model, duplicate fields, malformed input) and
+    // rewrite() has to decide.
+    public byte[] patch(byte[] body) {
+        // Per member: name start, name end (closing quote), value start, value end
+        List<int[]> members = new ArrayList<int[]>();
+        Set<String> seen = new HashSet<String>();
+        String modelValue = null;
+
+        int n = body.length;
+        int pos = skipWhitespace(body, 0);
+        if (pos >= n || body[pos] != '{') {
+            return null;
+        }
+        int open = pos + 1;
+        pos = skipWhitespace(body, open);
+        if (pos < n && body[pos] != '}') {
+            while (true) {
+                int nameEnd = plainStringEnd(body, pos);
+                if (nameEnd < 0) {
+                    return null;
+                }
+                int nameStart = pos + 1;
+                pos = skipWhitespace(body, nameEnd + 1);
+                if (pos >= n || body[pos] != ':') {
+                    return null;
+                }
+                int valueStart = skipWhitespace(body, pos + 1);
+                int valueEnd = skipValue(body, valueStart);
+                if (valueEnd < 0) {
+                    return null;
+                }
+                String name = nameEquals(body, nameStart, nameEnd, "model") ? "model" : null;
+                if (name == null && nameEnd - nameStart <= MAX_TARGET_NAME_BYTES) {
+                    String candidate = new String(body, nameStart, nameEnd - nameStart, UTF_8);
+                    name = targets.contains(candidate) ? candidate : null;
+                }
+                if (name != null && !seen.add(name)) {
+                    return null; // duplicate
+                }
+                if ("model".equals(name)) {
+                    int close = plainStringEnd(body, valueStart);
+                    if (close < 0) {
+                        return null;
+                    }
+                    modelValue = new String(body, valueStart + 1, close - valueStart - 1, UTF_8);
+                }
+                members.add(new int[]{nameStart - 1, nameEnd, valueStart, valueEnd});
+                pos = skipWhitespace(body, valueEnd);
+                if (pos < n && body[pos] == ',') {
+                    pos = skipWhitespace(body, pos + 1);
+                } else if (pos < n && body[pos] == '}') {
+                    break;
+                } else {
+                    return null;
+                }
+            }
+        }
+        if (pos >= n || skipWhitespace(body, pos + 1) != n) {
+            return null;
+        }
+        Edit edit = select(modelValue);
+        if (edit == null) {
+            return body;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(n + 32);
+        out.write(body, 0, open);
+        boolean changed = false;
+        boolean emitted = false;
+        for (int i = 0; i < members.size(); i++) {
+            int[] m = members.get(i);
+            String name = new String(body, m[0] + 1, m[1] - m[0] - 1, UTF_8);
+            String value = null;
+            boolean touched = m[1] - m[0] - 1 <= MAX_TARGET_NAME_BYTES && edit.touches(name);
+            if (touched) {
+                value = isScalarStart(body[m[2]])
+                        ? edit.valueFor(name, new String(body, m[2], m[3] - m[2], UTF_8))
+                        : edit.valueForStructure(name);
+                if (value == null && !edit.remove.contains(name)) {
+                    touched = false; // clamp on an object or array: unchanged
+                }
+            }
+            if (touched && value == null) {
+                changed = true; // removed, together with one separator
+                continue;
+            }
+            // The separator in front of this member, or the whitespace in front of the first one
+            int gap = emitted ? members.get(i - 1)[3] : open;
+            int gapEnd = emitted ? m[0] : members.get(0)[0];
+            out.write(body, gap, gapEnd - gap);
+            if (touched) {
+                byte[] bytes = value.getBytes(UTF_8);
+                out.write(body, m[0], m[2] - m[0]);
+                out.write(bytes, 0, bytes.length);
+                changed |= !regionEquals(body, m[2], m[3], bytes);
+            } else {
+                out.write(body, m[0], m[3] - m[0]);
+            }
+            emitted = true;
+        }
+        for (Map.Entry<String, String> e : edit.set.entrySet()) {
+            if (!seen.contains(e.getKey())) {
+                byte[] member = ((emitted ? "," : "") + quote(e.getKey()) + ":" + e.getValue()).getBytes(UTF_8);
+                out.write(member, 0, member.length);
+                emitted = true;
+                changed = true;
+            }
+        }
+        int tail = members.isEmpty() ? open : members.get(members.size() - 1)[3];
+        out.write(body, tail, n - tail);
+        if (!changed) {
+            return body;
+        }
+        edit.applied.incrementAndGet();
+        return out.toByteArray();
+    }
+
+    // The first edit for this model (null = the body has none), or null.
+    private Edit select(String model) {
+        for (Edit edit : edits) {
+            if (edit.matchesModel(model)) {
+                return edit.isEmpty() ? null : edit;
+            }
+        }
+        return null;
+    }
+
+    // Returns the edit that changed something, or null.
+    private Edit rewriteObject(JsonReader reader, JsonWriter json) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IOException("JSON body is not an object");
+        }
+        reader.beginObject();
+        json.beginObject();
+
+        // Known up front if the first edit does not look at the model
+        boolean decided = !edits.isEmpty() && edits.get(0).models.isEmpty();
+        Edit edit = decided ? select(null) : null;
+        Map<String, String> held = new LinkedHashMap<String, String>();
+        Set<String> present = new HashSet<String>();
+        boolean changed = false;
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!decided && "model".equals(name) && reader.peek() == JsonToken.STRING) {
+                String value = reader.nextString();
+                json.name(name).value(value);
+                edit = select(value);
+                decided = true;
+                for (Map.Entry<String, String> e : held.entrySet()) {
+                    changed |= writeField(json, edit, e.getKey(), e.getValue());
+                }
+                held.clear();
+            } else if (targets.contains(name)) {
+                present.add(name);
+                if (isScalar(reader.peek())) {
+                    if (decided) {
+                        changed |= writeField(json, edit, name, readLiteral(reader));
+                    } else {
+                        held.put(name, readLiteral(reader));
+                    }
+                } else if (decided && edit != null && edit.touches(name)
+                        && (edit.remove.contains(name) || edit.set.containsKey(name))) {
+                    reader.skipValue();
+                    String value = edit.valueForStructure(name);
+                    if (value != null) {
+                        json.name(name).jsonValue(value);
+                    }
+                    changed = true;
+                } else {
+                    // Objects and arrays cannot be held back, before the model they stay as they are
+                    json.name(name);
+                    copyValue(reader, json);
+                }
+            } else {
+                json.name(name);
+                copyValue(reader, json);
+            }
+        }
+        if (!decided) {
+            // No (string) model at all
+            edit = select(null);
+            for (Map.Entry<String, String> e : held.entrySet()) {
+                changed |= writeField(json, edit, e.getKey(), e.getValue());
+            }
+        }
+        if (edit != null) {
+            for (Map.Entry<String, String> e : edit.set.entrySet()) {
+                if (!present.contains(e.getKey())) {
+                    json.name(e.getKey()).jsonValue(e.getValue());
+                    changed = true;
+                }
+            }
+        }
+        reader.endObject();
+        json.endObject();
+        return changed ? edit : null;
+    }
+
+    private static boolean writeField(JsonWriter json, Edit edit, String name, String original) throws IOException {
+        String value = edit != null ? edit.valueFor(name, original) : original;
+        if (value == null) {
+            return true;
+        }
+        json.name(name).jsonValue(value);
+        return !value.equals(original);
+    }
+
+    // ---- Byte scanning for patch() ----
+
+    private static int skipWhitespace(byte[] b, int pos) {
+        while (pos < b.length && (b[pos] == ' ' || b[pos] == '\t' || b[pos] == '\r' || b[pos] == '\n')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    // Index of the closing quote of the string at pos, -1 if there is none or it has escapes.
+    // UTF-8 continuation bytes are never a quote or a backslash, so no decoding is needed.
+    private static int plainStringEnd(byte[] b, int pos) {
+        if (pos >= b.length || b[pos] != '"') {
+            return -1;
+        }
+        for (int i = pos + 1; i < b.length; i++) {
+            if (b[i] == '"') {
+                return i;
+            }
+            if (b[i] == '\\') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // End (exclusive) of the value at pos, -1 if malformed.
+    private static int skipValue(byte[] b, int pos) {
+        if (pos >= b.length) {
+            return -1;
+        }
+        byte c = b[pos];
+        if (c == '"') {
+            return skipString(b, pos);
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            for (int i = pos; i < b.length; i++) {
+                byte d = b[i];
+                if (d == '"') {
+                    i = skipString(b, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    i--;
+                } else if (d == '{' || d == '[') {
+                    depth++;
+                } else if ((d == '}' || d == ']') && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+        if (!isScalarStart(c)) {
+            return -1;
+        }
+        int i = pos;
+        while (i < b.length && b[i] != ',' && b[i] != '}' && b[i] != ']'
+                && b[i] != ' ' && b[i] != '\t' && b[i] != '\r' && b[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    // End (exclusive) of the string at pos, escapes included.
+    private static int skipString(byte[] b, int pos) {
+        for (int i = pos + 1; i < b.length; i++) {
+            if (b[i] == '\\') {
+                i++;
+            } else if (b[i] == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isScalarStart(byte c) {
+        return c == '"' || c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f' || c == 'n';
+    }
+
+    private static boolean nameEquals(byte[] b, int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (b[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(byte[] b, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (b[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String quote(String name) {
+        try {
+            return toQuoted(name);
+        } catch (IOException e) {
+            // StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isScalar(JsonToken token) {
+        return token == JsonToken.NUMBER || token == JsonToken.STRING
+                || token == JsonToken.BOOLEAN || token == JsonToken.NULL;
+    }
+
+    // The current scalar as JSON literal (numbers keep their original spelling).
+    private static String readLiteral(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return reader.nextBoolean() ? "true" : "false";
+            case NULL:
+                reader.nextNull();
+                return "null";
+            default:
+                return toQuoted(reader.nextString());
+        }
+    }
+
+    private static String toQuoted(String value) throws IOException {
+        StringWriter out = new StringWriter(value.length() + 2);
+        JsonWriter json = new JsonWriter(out);
+        json.setHtmlSafe(false);
+        json.value(value);
+        json.flush();
+        return out.toString();
+    }
+
+    // Copies one value (of any depth) token by token.
+    private static void copyValue(JsonReader reader, JsonWriter json) throws IOException {
+        int depth = 0;
+        do {
+            switch (reader.peek()) {
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    json.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    json.endObject();
+                    depth--;
+                    break;
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    json.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    reader.endArray();
+                    json.endArray();
+                    depth--;
+                    break;
+                case NAME:
+                    json.name(reader.nextName());
+                    break;
+                case STRING:
+                    json.value(reader.nextString());
+                    break;
+                case NUMBER:
+                    json.jsonValue(reader.nextString());
+                    break;
+                case BOOLEAN:
+                    json.value(reader.nextBoolean());
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    json.nullValue();
+                    break;
+                default:
+                    throw new IOException("Unexpected JSON token " + reader.peek());
+            }
+        } while (depth > 0);
+    }
+}
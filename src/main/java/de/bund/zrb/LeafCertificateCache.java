@@ -0,0 +1,320 @@
+package de.bund.zrb;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Server-side SSLContexts for MITM hosts, each with a leaf certificate issued on the fly by the
+// local CA. All leaves share one key pair (generated once), so a new host costs one signature
+// and a known host nothing: contexts stay in an LRU cache, concurrent first connections to the
+// same host wait for a single issue, and the configured MITM hosts are prepared in the background.
+public class LeafCertificateCache implements StatsProvider {
+
+    public static final String KEY_CA_CERT = "proxy.mitm.caCert";
+    public static final String KEY_CA_KEY = "proxy.mitm.caKey";
+    public static final String KEY_CACHE_SIZE = "proxy.mitm.certCacheSize";
+    public static final String KEY_LEAF_KEY_TYPE = "proxy.mitm.leafKeyType";
+
+    static final String CA_CERT_FILE_NAME = "myproxy-ca.crt";
+    static final String CA_KEY_FILE_NAME = "myproxy-ca.key";
+
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    private static final int RSA_KEY_BITS = 2048;
+    private static final int EC_KEY_BITS = 256;
+    private static final String DEFAULT_LEAF_KEY_TYPE = "ec";
+    private static final String ALIAS = "leaf";
+
+    private final CertificateAuthority ca;
+    private final int maxEntries;
+    private final String leafKeyType;
+    // Session cache settings for the issued contexts; may be null
+    private final TlsProfile sessionProfile;
+    private final Map<String, SSLContext> contexts;
+    private final ConcurrentHashMap<String, FutureTask<SSLContext>> issuing =
+            new ConcurrentHashMap<String, FutureTask<SSLContext>>();
+
+    private KeyPair leafKeys;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong issueNanos = new AtomicLong();
+
+    // leafKeyType: "ec" (P-256), "ed25519" (Java 15+, falls back to P-256) or "rsa" (2048 bit).
+    public LeafCertificateCache(CertificateAuthority ca, int maxEntries, String leafKeyType, TlsProfile sessionProfile) {
+        this.ca = ca;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.leafKeyType = leafKeyType.toLowerCase(Locale.ROOT);
+        this.sessionProfile = sessionProfile;
+        this.contexts = new LinkedHashMap<String, SSLContext>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SSLContext> eldest) {
+                if (size() > LeafCertificateCache.this.maxEntries) {
+                    evicted.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // CA files default to myproxy-ca.crt / myproxy-ca.key in defaultDir. Returns null if they are
+    // missing or unreadable, the handler then uses the static keystore.
+    public static LeafCertificateCache fromConfig(ProxyConfig config, File defaultDir, TlsProfile sessionProfile) {
+        File certFile = caCertFile(config, defaultDir);
+        File keyFile = caKeyFile(config, defaultDir);
+        if (!certFile.isFile() || !keyFile.isFile()) {
+            return null;
+        }
+        try {
+            CertificateAuthority ca = CertificateAuthority.load(certFile, keyFile);
+            System.out.println("[MITM] Issuing host certificates with CA " + certFile.getAbsolutePath());
+            return new LeafCertificateCache(ca, config.getInt(KEY_CACHE_SIZE, DEFAULT_CACHE_SIZE),
+                    config.getString(KEY_LEAF_KEY_TYPE, DEFAULT_LEAF_KEY_TYPE), sessionProfile);
+        } catch (Exception e) {
+            System.out.println("[MITM] Cannot load CA from " + certFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static boolean isCaAvailable(ProxyConfig config, File defaultDir) {
+        return caCertFile(config, defaultDir).isFile() && caKeyFile(config, defaultDir).isFile();
+    }
+
+    // Context whose certificate is valid for host. Blocks only while the certificate is issued.
+    public SSLContext contextFor(String host) throws IOException {
+        final String key = host.toLowerCase(Locale.ROOT);
+        synchronized (contexts) {
+            SSLContext ctx = contexts.get(key);
+            if (ctx != null) {
+                hits.incrementAndGet();
+                return ctx;
+            }
+        }
+
+        FutureTask<SSLContext> task = new FutureTask<SSLContext>(new Callable<SSLContext>() {
+            @Override
+            public SSLContext call() throws Exception {
+                return issueAndCache(key);
+            }
+        });
+        FutureTask<SSLContext> running = issuing.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                issuing.remove(key, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while issuing certificate for " + host);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot issue certificate for " + host + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Issues certificates for hosts on a background thread, so first connections find them ready.
+    public void prewarm(Collection<String> hosts) {
+        final List<String> todo = new ArrayList<String>(hosts);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    leafKeys();
+                } catch (GeneralSecurityException e) {
+                    System.out.println("[MITM] Leaf key generation failed: " + e.getMessage());
+                    return;
+                }
+                for (String host : todo) {
+                    try {
+                        contextFor(host);
+                    } catch (IOException e) {
+                        System.out.println("[MITM] " + e.getMessage());
+                    }
+                }
+            }
+        }, "cert-prewarm");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        int cached;
+        synchronized (contexts) {
+            cached = contexts.size();
+        }
+        long count = issued.get();
+        KeyPair keys;
+        synchronized (this) {
+            keys = leafKeys;
+        }
+        out.append("mitm.certs.keyType: ").append(keys != null ? describe(keys) : leafKeyType).append('\n');
+        out.append("mitm.certs.cached: ").append(cached).append(" / ").append(maxEntries).append('\n');
+        out.append("mitm.certs.hits: ").append(hits.get()).append('\n');
+        out.append("mitm.certs.issued: ").append(count).append('\n');
+        out.append("mitm.certs.evicted: ").append(evicted.get()).append('\n');
+        out.append("mitm.certs.failures: ").append(failures.get()).append('\n');
+        out.append("mitm.certs.avgIssueMillis: ")
+                .append(count > 0 ? TimeUnit.NANOSECONDS.toMillis(issueNanos.get() / count) : 0).append('\n');
+    }
+
+    private SSLContext issueAndCache(String host) throws GeneralSecurityException {
+        synchronized (contexts) {
+            // Another thread may have finished the same host in the meantime
+            SSLContext ctx = contexts.get(host);
+            if (ctx != null) {
+                return ctx;
+            }
+        }
+        try {
+            KeyPair keys = leafKeys();
+            long start = System.nanoTime();
+            X509Certificate leaf = ca.issue(host, keys.getPublic());
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(new KeyManager[]{
+                    new FixedKeyManager(keys.getPrivate(), new X509Certificate[]{leaf, ca.getCertificate()})
+            }, null, null);
+            if (sessionProfile != null) {
+                sessionProfile.configure(ctx.getServerSessionContext());
+            }
+            issueNanos.addAndGet(System.nanoTime() - start);
+            issued.incrementAndGet();
+            synchronized (contexts) {
+                contexts.put(host, ctx);
+            }
+            return ctx;
+        } catch (GeneralSecurityException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private synchronized KeyPair leafKeys() throws GeneralSecurityException {
+        if (leafKeys == null) {
+            leafKeys = generateLeafKeys();
+            System.out.println("[MITM] Leaf key: " + describe(leafKeys));
+        }
+        return leafKeys;
+    }
+
+    // ECDSA and EdDSA handshakes need a fraction of the server CPU time of RSA-2048.
+    private KeyPair generateLeafKeys() throws GeneralSecurityException {
+        if ("rsa".equals(leafKeyType)) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(RSA_KEY_BITS);
+            return generator.generateKeyPair();
+        }
+        if ("ed25519".equals(leafKeyType)) {
+            try {
+                return KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                System.out.println("[MITM] Ed25519 not available on this JVM, using EC P-256");
+            }
+        } else if (!"ec".equals(leafKeyType)) {
+            System.out.println("[MITM] Unknown leaf key type '" + leafKeyType + "', using EC P-256");
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(EC_KEY_BITS);
+        return generator.generateKeyPair();
+    }
+
+    private static String describe(KeyPair keys) {
+        String algorithm = keys.getPublic().getAlgorithm();
+        if ("RSA".equals(algorithm)) {
+            return "RSA " + RSA_KEY_BITS;
+        }
+        return "EC".equals(algorithm) ? "EC P-256" : "Ed25519";
+    }
+
+    private static File caCertFile(ProxyConfig config, File defaultDir) {
+        String path = config.getString(KEY_CA_CERT, null);
+        return path != null ? new File(path) : new File(defaultDir, CA_CERT_FILE_NAME);
+    }
+
+    private static File caKeyFile(ProxyConfig config, File defaultDir) {
+        String path = config.getString(KEY_CA_KEY, null);
+        return path != null ? new File(path) : new File(defaultDir, CA_KEY_FILE_NAME);
+    }
+
+    // Serves exactly one key and chain, for every key type it matches.
+    static final class FixedKeyManager extends X509ExtendedKeyManager {
+
+        private final PrivateKey key;
+        private final X509Certificate[] chain;
+
+        FixedKeyManager(PrivateKey key, X509Certificate[] chain) {
+            this.key = key;
+            this.chain = chain;
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            return matches(keyType) ? ALIAS : null;
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            return matches(keyType) ? ALIAS : null;
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return matches(keyType) ? new String[]{ALIAS} : null;
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return ALIAS.equals(alias) ? chain.clone() : null;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return ALIAS.equals(alias) ? key : null;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return null;
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        // keyType is the key algorithm, optionally with the signature algorithm ("EC_EC", "RSA")
+        private boolean matches(String keyType) {
+            String algorithm = key.getAlgorithm();
+            return keyType != null && (keyType.equals(algorithm) || keyType.startsWith(algorithm + "_"));
+        }
+    }
+}
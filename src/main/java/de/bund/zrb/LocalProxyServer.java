@@ -1,21 +1,73 @@
 package de.bund.zrb;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
-public class LocalProxyServer {
+public class LocalProxyServer implements StatsProvider {
+
+    public static final String KEY_ENGINE = "proxy.engine";
+    public static final String KEY_NIO_SELECTORS = "proxy.nio.selectors";
+    public static final String KEY_TUNNEL_IDLE_TIMEOUT = "proxy.tunnel.idleTimeoutMillis";
+    public static final String KEY_RELAY_SELECTORS = "proxy.relay.selectors";
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
 
     private final int listenPort;
+    private final MitmHandler mitmHandler;
+    private final WorkerPool workerPool;
     private final ProxyConnectionHandler connectionHandler;
+    // Shared relay for CONNECT tunnels of the blocking engine
+    private final TunnelRelay tunnelRelay;
+    // Non-null when proxy.engine=nio
+    private final NioProxyEngine nioEngine;
+    // Keep-alive connections to origins for plain HTTP of the blocking engine, null if disabled
+    private final UpstreamConnectionPool upstreamPool;
+    // DNS cache plus staggered connects, shared by all upstream connections of this server
+    private final UpstreamConnector connector;
+    // Shared cache for plain HTTP of the blocking engine, null if disabled
+    private final HttpCache httpCache;
 
     private volatile boolean running;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
     private Thread acceptThread;
 
     public LocalProxyServer(int listenPort, MitmHandler mitmHandler) {
+        this(listenPort, mitmHandler, WorkerPool.fromConfig(ProxyConfig.empty()));
+    }
+
+    // The server owns the worker pool and shuts it down on stop().
+    public LocalProxyServer(int listenPort, MitmHandler mitmHandler, WorkerPool workerPool) {
+        this(listenPort, mitmHandler, workerPool, ProxyConfig.empty());
+    }
+
+    public LocalProxyServer(int listenPort, MitmHandler mitmHandler, WorkerPool workerPool, ProxyConfig config) {
         this.listenPort = listenPort;
-        this.connectionHandler = new ProxyConnectionHandler(mitmHandler);
+        this.mitmHandler = mitmHandler;
+        this.workerPool = workerPool;
+        long idleTimeout = config.getLong(KEY_TUNNEL_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT_MILLIS);
+        DnsCache.shared().configure(config);
+        this.connector = UpstreamConnector.fromConfig(config);
+
+        if ("nio".equalsIgnoreCase(config.getString(KEY_ENGINE, "blocking"))) {
+            int selectors = config.getInt(KEY_NIO_SELECTORS, Runtime.getRuntime().availableProcessors());
+            this.nioEngine = new NioProxyEngine(listenPort, mitmHandler, workerPool, selectors, idleTimeout, connector);
+            this.tunnelRelay = null;
+            this.upstreamPool = null;
+            this.httpCache = null;
+        } else {
+            this.nioEngine = null;
+            int relaySelectors = config.getInt(KEY_RELAY_SELECTORS,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            this.tunnelRelay = new TunnelRelay(relaySelectors, idleTimeout);
+            this.upstreamPool = UpstreamConnectionPool.fromConfig(config, connector);
+            this.httpCache = HttpCache.fromConfig(config);
+        }
+        this.connectionHandler = new ProxyConnectionHandler(mitmHandler, workerPool, tunnelRelay,
+                StreamCopier.fromConfig(config), upstreamPool, connector, httpCache);
     }
 
     public synchronized void start() throws IOException {
@@ -23,7 +75,22 @@ public class LocalProxyServer {
             return;
         }
 
-        serverSocket = new ServerSocket(listenPort);
+        if (nioEngine != null) {
+            nioEngine.start();
+            running = true;
+            return;
+        }
+
+        // Clients are served through ChannelSockets: blocking streams that work full-duplex on
+        // Java 8, while an established tunnel can still move to the TunnelRelay
+        serverSocket = ServerSocketChannel.open();
+        try {
+            serverSocket.socket().bind(new InetSocketAddress(listenPort));
+            tunnelRelay.start();
+        } catch (IOException e) {
+            closeServerSocket();
+            throw e;
+        }
         running = true;
 
         acceptThread = new Thread(new Runnable() {
@@ -33,7 +100,7 @@ public class LocalProxyServer {
                 try {
                     while (running) {
                         try {
-                            Socket clientSocket = serverSocket.accept();
+                            Socket clientSocket = accept();
                             System.out.println("[Proxy] Incoming connection from " + clientSocket.getRemoteSocketAddress());
                             handleClientAsync(clientSocket);
                         } catch (IOException e) {
@@ -57,6 +124,14 @@ public class LocalProxyServer {
             return;
         }
         running = false;
+        if (nioEngine != null) {
+            nioEngine.stop();
+        } else {
+            tunnelRelay.shutdown();
+        }
+        if (upstreamPool != null) {
+            upstreamPool.shutdown();
+        }
         closeServerSocket();
         if (acceptThread != null) {
             try {
@@ -65,16 +140,71 @@ public class LocalProxyServer {
                 Thread.currentThread().interrupt();
             }
         }
+        if (mitmHandler != null) {
+            mitmHandler.close();
+        }
+        workerPool.shutdown();
     }
 
     public boolean isRunning() {
         return running;
     }
 
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("proxy.running: ").append(running).append('\n');
+        workerPool.appendStats(out);
+        BufferPool.shared().appendStats(out);
+        DnsCache.shared().appendStats(out);
+        connector.appendStats(out);
+        if (nioEngine != null) {
+            nioEngine.appendStats(out);
+        } else {
+            tunnelRelay.appendStats(out);
+        }
+        if (upstreamPool != null) {
+            upstreamPool.appendStats(out);
+        }
+        if (httpCache != null) {
+            httpCache.appendStats(out);
+        }
+        if (mitmHandler instanceof StatsProvider) {
+            ((StatsProvider) mitmHandler).appendStats(out);
+        }
+    }
+
     private void handleClientAsync(final Socket clientSocket) {
-        Thread t = new Thread(new ClientConnectionTask(clientSocket, connectionHandler), "proxy-client");
-        t.setDaemon(true);
-        t.start();
+        if (!workerPool.execute(new ClientConnectionTask(clientSocket, connectionHandler))) {
+            System.err.println("[Proxy] Worker pool saturated, reject " + clientSocket.getRemoteSocketAddress());
+            rejectConnection(clientSocket);
+        }
+    }
+
+    private void rejectConnection(Socket clientSocket) {
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+        } catch (IOException ignored) {
+            // Ignore
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        }
+    }
+
+    private Socket accept() throws IOException {
+        SocketChannel channel = serverSocket.accept();
+        try {
+            return new ChannelSocket(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
     }
 
     private void closeServerSocket() {
@@ -0,0 +1,13 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+
+// Message head violates the syntax or the parser limits; answered with 400 where possible.
+public class MalformedHttpException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MalformedHttpException(String message) {
+        super(message);
+    }
+}
@@ -1,6 +1,7 @@
 package de.bund.zrb;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 
 public interface MitmHandler {
@@ -10,5 +11,11 @@ public interface MitmHandler {
 
     // Perform full MITM handling for this CONNECT.
     // Implement method as blocking: return only when tunnel is finished.
-    void handleConnect(String host, int port, Socket clientSocket) throws IOException;
+    // consumed holds bytes the client sent right behind the CONNECT head (e.g. an early TLS
+    // ClientHello) that were already read from the socket; they come first. Null if there are none.
+    void handleConnect(String host, int port, Socket clientSocket, InputStream consumed) throws IOException;
+
+    // Release what the handler holds beyond single connections; called when the proxy stops.
+    default void close() {
+    }
 }
@@ -0,0 +1,287 @@
+package de.bund.zrb;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Declarative interception and rewrite rules (mitm-rules.json in the config dir), compiled once:
+// the host patterns of all rules go into one suffix trie, paths and models become Globs. Per
+// CONNECT the trie yields the candidate rules for the host, per request only their method and
+// path matchers run; the body rewriter for each combination of matching rules is built once.
+//
+// {"rules": [{"name": "mini", "hosts": ["api.openai.com", "*.openai.azure.com"], "ports": [443],
+//   "methods": ["POST"], "paths": ["/v1/chat/completions", "/openai/deployments/*"],
+//   "models": ["gpt-5-mini*"], "set": {"temperature": 1.0}, "remove": ["logprobs"],
+//   "clamp": {"max_tokens": {"max": 4096}}}]}
+//
+// Missing lists match everything (ports: 443 only). The first matching rule whose model matches
+// edits the body.
+public class MitmRules implements StatsProvider {
+
+    public static final String KEY_RULES_FILE = "proxy.mitm.rulesFile";
+
+    static final String RULES_FILE_NAME = "mitm-rules.json";
+    private static final int DEFAULT_PORT = 443;
+
+    private final List<Rule> rules;
+    private final HostTrie hosts = new HostTrie();
+    private final Map<BitSet, JsonBodyRewriter> rewriters = new ConcurrentHashMap<BitSet, JsonBodyRewriter>();
+
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong evaluationNanos = new AtomicLong();
+
+    public MitmRules(List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+        for (int id = 0; id < this.rules.size(); id++) {
+            Rule rule = this.rules.get(id);
+            if (rule.hosts.isEmpty()) {
+                hosts.add("*", id);
+            }
+            for (String host : rule.hosts) {
+                hosts.add(host, id);
+            }
+        }
+    }
+
+    // Rules from proxy.mitm.rulesFile (default: mitm-rules.json in defaultDir) behind the given
+    // ones. A missing file means no further rules; invalid rules are skipped with a message.
+    public static MitmRules fromConfig(ProxyConfig config, File defaultDir, List<Rule> first) {
+        List<Rule> all = new ArrayList<Rule>(first);
+        String path = config.getString(KEY_RULES_FILE, null);
+        File file = path != null ? new File(path) : new File(defaultDir, RULES_FILE_NAME);
+        if (file.isFile()) {
+            try {
+                all.addAll(parse(file));
+                System.out.println("[MITM] Loaded rules from " + file.getAbsolutePath());
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                System.out.println("[MITM] Cannot read rules from " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        } else if (path != null) {
+            System.out.println("[MITM] Rules file not found: " + file.getAbsolutePath());
+        }
+        return new MitmRules(all);
+    }
+
+    // True if any rule matches the CONNECT target, i.e. the connection has to be intercepted.
+    public boolean intercepts(String host, int port) {
+        return !forConnection(host, port).isEmpty();
+    }
+
+    // Rules that can apply on a connection to host:port; evaluated once per CONNECT.
+    public BitSet forConnection(String host, int port) {
+        BitSet candidates = hosts.match(host);
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            if (!rules.get(id).matchesPort(port)) {
+                candidates.clear(id);
+            }
+        }
+        return candidates;
+    }
+
+    // Body rewriter for a request on a connection with these candidates, or null if no rule matches.
+    public JsonBodyRewriter rewriterFor(BitSet candidates, HttpHead request) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        String method = request.getMethod();
+        String path = path(request.getTarget());
+        BitSet matched = null;
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            Rule rule = rules.get(id);
+            if (rule.matches(method, path)) {
+                rule.hits.incrementAndGet();
+                if (matched == null) {
+                    matched = new BitSet();
+                }
+                matched.set(id);
+            }
+        }
+        JsonBodyRewriter rewriter = null;
+        if (matched != null) {
+            rewriter = rewriters.get(matched);
+            if (rewriter == null) {
+                List<JsonBodyRewriter.Edit> edits = new ArrayList<JsonBodyRewriter.Edit>();
+                for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+                    edits.add(rules.get(id).edit);
+                }
+                rewriter = new JsonBodyRewriter(edits);
+                rewriters.put(matched, rewriter);
+            }
+        }
+        evaluationNanos.addAndGet(System.nanoTime() - start);
+        evaluations.incrementAndGet();
+        return rewriter;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        long count = evaluations.get();
+        out.append("mitm.rules: ").append(rules.size()).append('\n');
+        out.append("mitm.rules.evaluations: ").append(count).append('\n');
+        out.append("mitm.rules.avgEvalNanos: ").append(count > 0 ? evaluationNanos.get() / count : 0).append('\n');
+        out.append("mitm.rules.evalMillisTotal: ")
+                .append(TimeUnit.NANOSECONDS.toMillis(evaluationNanos.get())).append('\n');
+        for (Rule rule : rules) {
+            out.append("mitm.rules.").append(rule.name).append(": ")
+                    .append(rule.hits.get()).append(" hits, ")
+                    .append(rule.edit.getApplied()).append(" applied").append('\n');
+        }
+    }
+
+    private static String path(String target) {
+        int query = target.indexOf('?');
+        return query >= 0 ? target.substring(0, query) : target;
+    }
+
+    private static List<Rule> parse(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        JsonElement root;
+        try {
+            root = JsonParser.parseReader(in);
+        } finally {
+            in.close();
+        }
+        JsonArray list = root.isJsonArray() ? root.getAsJsonArray() : root.getAsJsonObject().getAsJsonArray("rules");
+        List<Rule> result = new ArrayList<Rule>();
+        if (list == null) {
+            return result;
+        }
+        for (int i = 0; i < list.size(); i++) {
+            try {
+                result.add(parseRule(list.get(i).getAsJsonObject(), "rule" + (i + 1)));
+            } catch (RuntimeException e) {
+                System.out.println("[MITM] Skipping rule " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static Rule parseRule(JsonObject json, String defaultName) {
+        String name = json.has("name") ? json.get("name").getAsString() : defaultName;
+        Set<Integer> ports = new HashSet<Integer>();
+        for (String port : strings(json, "ports")) {
+            ports.add(Integer.valueOf(port));
+        }
+        Map<String, String> set = new LinkedHashMap<String, String>();
+        if (json.has("set")) {
+            for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("set").entrySet()) {
+                set.put(e.getKey(), e.getValue().toString());
+            }
+        }
+        Map<String, BigDecimal[]> clamp = new LinkedHashMap<String, BigDecimal[]>();
+        if (json.has("clamp")) {
+            for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("clamp").entrySet()) {
+                JsonObject range = e.getValue().getAsJsonObject();
+                clamp.put(e.getKey(), new BigDecimal[]{
+                        range.has("min") ? range.get("min").getAsBigDecimal() : null,
+                        range.has("max") ? range.get("max").getAsBigDecimal() : null});
+            }
+        }
+        return new Rule(name, strings(json, "hosts"), ports, strings(json, "methods"),
+                strings(json, "paths"), strings(json, "models"), set, strings(json, "remove"), clamp);
+    }
+
+    // A string or an array of strings (numbers as written), empty if absent
+    private static List<String> strings(JsonObject json, String name) {
+        JsonElement e = json.get(name);
+        List<String> result = new ArrayList<String>();
+        if (e == null || e.isJsonNull()) {
+            return result;
+        }
+        if (e.isJsonArray()) {
+            for (JsonElement item : e.getAsJsonArray()) {
+                result.add(item.getAsString());
+            }
+        } else {
+            result.add(e.getAsString());
+        }
+        return result;
+    }
+
+    // One compiled rule. Empty hosts, methods or paths match everything, empty ports mean 443.
+    public static final class Rule {
+
+        private final String name;
+        private final List<String> hosts;
+        private final Set<Integer> ports;
+        private final Set<String> methods;
+        private final List<Glob> paths;
+        private final JsonBodyRewriter.Edit edit;
+        private final AtomicLong hits = new AtomicLong();
+
+        // hosts: see HostTrie; paths and models: '*' patterns; set: field -> JSON literal.
+        public Rule(String name, Collection<String> hosts, Collection<Integer> ports, Collection<String> methods,
+                    Collection<String> paths, Collection<String> models, Map<String, String> set,
+                    Collection<String> remove, Map<String, BigDecimal[]> clamp) {
+            this.name = name;
+            this.hosts = new ArrayList<String>(hosts);
+            this.ports = new HashSet<Integer>(ports);
+            if (this.ports.isEmpty()) {
+                this.ports.add(DEFAULT_PORT);
+            }
+            this.methods = new HashSet<String>();
+            for (String method : methods) {
+                this.methods.add(method.trim().toUpperCase(Locale.ROOT));
+            }
+            this.paths = new ArrayList<Glob>();
+            for (String path : paths) {
+                this.paths.add(Glob.compile(path.trim(), false));
+            }
+            this.edit = new JsonBodyRewriter.Edit(name, models, set, remove, clamp);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        boolean matchesPort(int port) {
+            return ports.contains(port);
+        }
+
+        boolean matches(String method, String path) {
+            if (!methods.isEmpty() && !methods.contains(method.toUpperCase(Locale.ROOT))) {
+                return false;
+            }
+            if (paths.isEmpty()) {
+                return true;
+            }
+            for (Glob glob : paths) {
+                if (glob.matches(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
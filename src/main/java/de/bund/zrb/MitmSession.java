@@ -0,0 +1,615 @@
+package de.bund.zrb;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One intercepted TLS connection (or one HTTP/2 stream, see Http2Stream) as a sequence of HTTP/1.1
+// exchanges. Requests are framed on the
+// calling thread, responses on a helper; both pass every message head through the stages, and
+// only requests a stage asks for are buffered - everything else is streamed as before. Requests
+// are paired with responses in order (pipelining works), 1xx responses are passed on, and a
+// 101 Switching Protocols turns the connection into a plain byte tunnel. Bodies a stage wants to
+// see (event streams, recorded exchanges) are decoded and relayed read by read, the stage gets
+// each piece right after it was forwarded. A stage may answer a buffered request itself (e.g.
+// from a cache) while no upstream response is outstanding.
+//
+// The upstream connection comes from an Origin (e.g. a pool) and goes back to it when the session
+// ends, reusable if both directions stopped between two messages. The response side only reads
+// while a request is outstanding, so an idle upstream is never blocked on; one that was idle for a
+// while is probed before the next request and replaced if the origin closed it meanwhile.
+class MitmSession {
+
+    // The client side: a TLS connection, or one stream of an HTTP/2 connection.
+    interface Client {
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        // Also ends a read or write blocked on the other thread.
+        void close();
+    }
+
+    // Source of the upstream connections.
+    interface Origin {
+
+        UpstreamConnection connect() throws IOException;
+
+        // reusable: at a message boundary with nothing outstanding, else it is closed.
+        void release(UpstreamConnection upstream, boolean reusable);
+    }
+
+    // Rewrite and inspection hooks of the owning handler.
+    interface Stages {
+
+        void requestHead(HttpHead request);
+
+        // True if the body (known length, small enough) should be buffered and offered to
+        // rewriteRequestBody; false streams it straight through.
+        boolean wantsRequestBody(HttpHead request);
+
+        // Replacement body, or null to forward the original bytes. Content-Length is only
+        // rewritten if the replacement has a different length.
+        byte[] rewriteRequestBody(HttpHead request, byte[] body);
+
+        // True if a body that is not buffered (chunked, too large, or behind Expect) should be
+        // streamed through rewriteRequestBody(request, in, out); it is then sent chunked.
+        boolean rewritesRequestStream(HttpHead request);
+
+        // Reads the decoded body from in and writes the body to send to out.
+        void rewriteRequestBody(HttpHead request, InputStream in, OutputStream out) throws IOException;
+
+        void responseHead(HttpHead response);
+
+        // Receiver for the events of a text/event-stream response, or null to relay it untouched.
+        SseInspector.Sink responseStream(HttpHead response);
+
+        // Writes a complete response to a buffered request to client and returns true, or returns
+        // false to send the request upstream.
+        boolean answer(HttpHead request, byte[] body, OutputStream client) throws IOException;
+
+        // Follower for this request and its response (e.g. a recorder), or null. body is the
+        // client's body if it was buffered, else null.
+        Exchange exchange(HttpHead request, byte[] body);
+    }
+
+    // One request/response pair, bodies decoded.
+    interface Exchange {
+
+        // The request body as sent upstream, in pieces.
+        void requestBody(byte[] b, int off, int len);
+
+        // Tap for the response body, or null; times are System.nanoTime().
+        BodyTap response(HttpHead response, long sentNanos, long headNanos);
+
+        // The session ended before the response arrived.
+        void failed();
+    }
+
+    // Receives a decoded body piece by piece, each right after it was forwarded.
+    interface BodyTap {
+
+        void onData(byte[] b, int off, int len);
+
+        // complete is false if the connection ended within the body.
+        void onEnd(boolean complete);
+    }
+
+    private static final long UPGRADE_WAIT_MILLIS = 60000;
+    // Idle upstream connections older than this are probed before the next request
+    private static final long PROBE_AFTER_MILLIS = 1000;
+    private static final int PROBE_TIMEOUT_MILLIS = 1;
+
+    private final Client client;
+    private final Origin origin;
+    // Replaced only while no request is outstanding, null if the replacement failed
+    private volatile UpstreamConnection upstream;
+    private volatile long idleSinceNanos = System.nanoTime();
+    private final Stages stages;
+    private final WorkerPool workerPool;
+    private final StreamCopier copier;
+    private final int maxBodyBytes;
+
+    // Requests sent upstream whose response has not started yet
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+    // Requests sent upstream whose response is not completely relayed yet
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final BlockingQueue<Boolean> upgradeOutcome = new ArrayBlockingQueue<Boolean>(1);
+    private final Object lock = new Object();
+    // Guarded by lock
+    private boolean clientDone;
+    // Set when a direction ended between two messages
+    private volatile boolean requestsClean;
+    private volatile boolean responsesClean;
+
+    MitmSession(Client client, Origin origin, UpstreamConnection upstream, Stages stages, WorkerPool workerPool,
+                StreamCopier copier, int maxBodyBytes) {
+        this.client = client;
+        this.origin = origin;
+        this.upstream = upstream;
+        this.stages = stages;
+        this.workerPool = workerPool;
+        this.copier = copier;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    // Blocks until both directions are finished, then closes the client connection and gives the
+    // upstream connection back.
+    void run() {
+        try {
+            Thread responses = workerPool.spawn(new Runnable() {
+                @Override
+                public void run() {
+                    relayResponses();
+                }
+            }, "mitm-s2c");
+            relayRequests();
+            synchronized (lock) {
+                // Ends the response side once nothing is outstanding
+                clientDone = true;
+                lock.notifyAll();
+            }
+            responses.join();
+        } catch (IOException e) {
+            System.out.println("[MITM] Session not started: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            responsesClean = false;
+        } finally {
+            client.close();
+            UpstreamConnection current = upstream;
+            if (current != null) {
+                boolean reusable = requestsClean && responsesClean && pending.isEmpty();
+                if (!reusable) {
+                    closeQuietly(current.getSocket());
+                }
+                origin.release(current, reusable);
+            }
+            for (Pending unanswered; (unanswered = pending.poll()) != null; ) {
+                if (unanswered.exchange != null) {
+                    unanswered.exchange.failed();
+                }
+            }
+        }
+    }
+
+    private void relayRequests() {
+        HttpInputStream in = null;
+        // Between two requests: the upstream connection is at a message boundary
+        boolean between = true;
+        try {
+            in = new HttpInputStream(client.getInputStream());
+            OutputStream clientOut = null;
+            HttpHead request = new HttpHead();
+            while (in.readHead(request)) {
+                between = false;
+                stages.requestHead(request);
+                long length = HttpBody.requestLength(request);
+                byte[] body = null;
+                if (length > 0 && length <= maxBodyBytes
+                        && !request.hasHeader("Expect") && stages.wantsRequestBody(request)) {
+                    body = readFully(in, (int) length);
+                    // Only while the response side is idle, so responses stay in order
+                    if (unfinished.get() == 0) {
+                        if (clientOut == null) {
+                            clientOut = new BufferedOutputStream(client.getOutputStream(), BufferPool.MEDIUM);
+                        }
+                        if (stages.answer(request, body, clientOut)) {
+                            clientOut.flush();
+                            between = true;
+                            if (request.hasHeaderToken("Connection", "close")) {
+                                return;
+                            }
+                            continue;
+                        }
+                    }
+                }
+
+                if (unfinished.get() == 0) {
+                    checkIdleUpstream();
+                }
+                OutputStream out = upstream.getOutputStream();
+                Exchange exchange = stages.exchange(request, body);
+                boolean upgrade = request.hasHeader("Upgrade");
+                // Queued before the head goes out, the response may arrive right after
+                Pending sent = new Pending(request.getMethod(), upgrade, exchange);
+                unfinished.incrementAndGet();
+                synchronized (lock) {
+                    pending.add(sent);
+                    lock.notifyAll();
+                }
+
+                if (body != null) {
+                    byte[] replacement = stages.rewriteRequestBody(request, body);
+                    if (replacement != null && replacement.length == body.length) {
+                        // Same length (e.g. a number patched in place): the head stays as it is
+                        request.writeTo(out);
+                        out.write(replacement);
+                    } else if (replacement != null) {
+                        request.writeWithContentLength(out, replacement.length);
+                        out.write(replacement);
+                    } else {
+                        request.writeTo(out);
+                        out.write(body);
+                    }
+                    out.flush();
+                    if (exchange != null) {
+                        byte[] sentBody = replacement != null ? replacement : body;
+                        exchange.requestBody(sentBody, 0, sentBody.length);
+                    }
+                } else if (length != 0 && stages.rewritesRequestStream(request)) {
+                    streamRequestBody(request, in, out, length, exchange);
+                } else if (length != 0 && exchange != null) {
+                    relayDecoded(in, out, request, length, requestTap(exchange));
+                } else {
+                    request.writeTo(out);
+                    HttpBody.copy(in, out, length, copier);
+                }
+                out.flush();
+                sent.sentNanos = System.nanoTime();
+
+                if (upgrade && awaitUpgrade()) {
+                    in.transferBuffered(out);
+                    out.flush();
+                    copier.copy(in, out);
+                    return;
+                }
+                between = !upgrade;
+                if (request.hasHeaderToken("Connection", "close")) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection
+        } catch (MalformedHttpException e) {
+            System.out.println("[MITM] Malformed request: " + e.getMessage());
+            if (unfinished.get() == 0) {
+                // Nothing outstanding, the answer cannot overtake another response
+                writeBadRequest();
+            }
+        } catch (IOException e) {
+            // Client or origin gone
+        } finally {
+            requestsClean = between;
+            if (in != null) {
+                in.release();
+            }
+        }
+    }
+
+    private void writeBadRequest() {
+        try {
+            OutputStream out = client.getOutputStream();
+            out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+        } catch (IOException ignored) {
+            // Client gone
+        }
+    }
+
+    // Called while nothing is outstanding, so no other thread reads the upstream connection.
+    // After an idle gap the origin may have closed it; then the request goes out on a new one.
+    private void checkIdleUpstream() throws IOException {
+        if (System.nanoTime() - idleSinceNanos < TimeUnit.MILLISECONDS.toNanos(PROBE_AFTER_MILLIS)
+                || upstream.probe(PROBE_TIMEOUT_MILLIS)) {
+            return;
+        }
+        System.out.println("[MITM] Upstream connection closed while idle, reconnecting");
+        UpstreamConnection stale = upstream;
+        // Cleared first: if connecting fails, run() must not release it a second time
+        upstream = null;
+        origin.release(stale, false);
+        upstream = origin.connect();
+    }
+
+    private void relayResponses() {
+        boolean clean = false;
+        try {
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), BufferPool.MEDIUM);
+            HttpHead response = new HttpHead();
+            while (true) {
+                synchronized (lock) {
+                    // Nothing is read while idle, the connection may go back to the pool
+                    while (pending.isEmpty() && !clientDone) {
+                        lock.wait();
+                    }
+                    if (pending.isEmpty()) {
+                        clean = true;
+                        return;
+                    }
+                }
+                HttpInputStream in = upstream.getInputStream();
+                if (!in.readHead(response)) {
+                    return;
+                }
+                long headNanos = System.nanoTime();
+                int status = response.getStatusCode();
+                if (status == 101) {
+                    response.writeTo(out);
+                    in.transferBuffered(out);
+                    out.flush();
+                    Pending request = pending.poll();
+                    if (request != null && request.upgrade) {
+                        upgradeOutcome.offer(Boolean.TRUE);
+                    }
+                    copier.copy(in, out);
+                    return;
+                }
+                if (status >= 100 && status < 200) {
+                    // Interim (100 Continue, 103 Early Hints): the final response follows
+                    response.writeTo(out);
+                    out.flush();
+                    continue;
+                }
+
+                Pending request = pending.poll();
+                if (request != null && request.upgrade) {
+                    upgradeOutcome.offer(Boolean.FALSE);
+                }
+                stages.responseHead(response);
+                long length = HttpBody.responseLength(request != null ? request.method : "GET", response);
+                BodyTap tap = request != null ? responseTap(request, response, length, headNanos) : null;
+                if (tap != null) {
+                    relayDecoded(in, out, response, length, tap);
+                } else {
+                    response.writeTo(out);
+                    HttpBody.copy(in, out, length, copier);
+                }
+
+                if (request == null || length == HttpBody.UNTIL_CLOSE
+                        || response.hasHeaderToken("Connection", "close")) {
+                    return;
+                }
+                if (unfinished.get() == 1) {
+                    // Last one: the request side may answer the next request itself
+                    out.flush();
+                    idleSinceNanos = System.nanoTime();
+                }
+                unfinished.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Origin or client gone, or idle timeout
+        } finally {
+            responsesClean = clean;
+            upgradeOutcome.offer(Boolean.FALSE);
+            if (!clean) {
+                // Ends the request side if it still waits for the client or the origin
+                client.close();
+                UpstreamConnection current = upstream;
+                if (current != null) {
+                    closeQuietly(current.getSocket());
+                }
+            }
+        }
+    }
+
+    // The rewritten length is not known up front, so the body goes out chunked.
+    private void streamRequestBody(HttpHead request, HttpInputStream in, OutputStream out, long length,
+                                   Exchange exchange) throws IOException {
+        request.writeChunked(out);
+        InputStream body = HttpBody.contentStream(in, length);
+        OutputStream chunked = HttpBody.chunkedStream(out);
+        OutputStream buffered = new BufferedOutputStream(
+                exchange != null ? new TapOutputStream(chunked, requestTap(exchange)) : chunked, BufferPool.MEDIUM);
+        stages.rewriteRequestBody(request, body, buffered);
+        buffered.flush();
+        chunked.close();
+        // Consumes whatever the stage did not read, up to the end of this message
+        body.close();
+    }
+
+    // Event-stream inspection and the exchange's follower, whichever apply.
+    private BodyTap responseTap(Pending request, HttpHead response, long length, long headNanos) {
+        BodyTap tap = null;
+        SseInspector.Sink events = length != 0 ? stages.responseStream(response) : null;
+        if (events != null) {
+            tap = new SseInspector(request.sentNanos, headNanos, events);
+        }
+        if (request.exchange != null) {
+            tap = both(tap, request.exchange.response(response, request.sentNanos, headNanos));
+        }
+        return tap;
+    }
+
+    // Every read goes out (and is flushed) before the tap sees it, so inspecting adds no delay.
+    // A chunked body is re-chunked per read: the boundaries may differ, the content does not.
+    private void relayDecoded(HttpInputStream in, OutputStream out, HttpHead head, long length,
+                              BodyTap tap) throws IOException {
+        head.writeTo(out);
+        out.flush();
+        InputStream body = length == HttpBody.UNTIL_CLOSE ? in : HttpBody.contentStream(in, length);
+        OutputStream target = length == HttpBody.CHUNKED ? HttpBody.chunkedStream(out) : out;
+        BufferPool pool = BufferPool.shared();
+        byte[] buffer = pool.acquireArray(BufferPool.MEDIUM);
+        boolean complete = false;
+        try {
+            int read;
+            while ((read = body.read(buffer, 0, buffer.length)) != -1) {
+                target.write(buffer, 0, read);
+                target.flush();
+                tap.onData(buffer, 0, read);
+            }
+            if (target != out) {
+                // Last chunk; out itself stays open
+                target.close();
+            }
+            out.flush();
+            complete = true;
+        } finally {
+            pool.release(buffer);
+            tap.onEnd(complete);
+        }
+    }
+
+    private static BodyTap requestTap(final Exchange exchange) {
+        return new BodyTap() {
+            @Override
+            public void onData(byte[] b, int off, int len) {
+                exchange.requestBody(b, off, len);
+            }
+
+            @Override
+            public void onEnd(boolean complete) {
+                // The response side decides whether the exchange is complete
+            }
+        };
+    }
+
+    // Both followers (either may be null).
+    static Exchange both(final Exchange first, final Exchange second) {
+        if (first == null || second == null) {
+            return first != null ? first : second;
+        }
+        return new Exchange() {
+            @Override
+            public void requestBody(byte[] b, int off, int len) {
+                first.requestBody(b, off, len);
+                second.requestBody(b, off, len);
+            }
+
+            @Override
+            public BodyTap response(HttpHead response, long sentNanos, long headNanos) {
+                return both(first.response(response, sentNanos, headNanos),
+                        second.response(response, sentNanos, headNanos));
+            }
+
+            @Override
+            public void failed() {
+                first.failed();
+                second.failed();
+            }
+        };
+    }
+
+    private static BodyTap both(final BodyTap first, final BodyTap second) {
+        if (first == null || second == null) {
+            return first != null ? first : second;
+        }
+        return new BodyTap() {
+            @Override
+            public void onData(byte[] b, int off, int len) {
+                first.onData(b, off, len);
+                second.onData(b, off, len);
+            }
+
+            @Override
+            public void onEnd(boolean complete) {
+                first.onEnd(complete);
+                second.onEnd(complete);
+            }
+        };
+    }
+
+    private boolean awaitUpgrade() throws IOException {
+        try {
+            Boolean outcome = upgradeOutcome.poll(UPGRADE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            return outcome != null && outcome;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for upgrade response");
+        }
+    }
+
+    private static byte[] readFully(HttpInputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int r = in.read(data, off, length - off);
+            if (r == -1) {
+                throw new EOFException("Unexpected EOF in request body");
+            }
+            off += r;
+        }
+        return data;
+    }
+
+    // A client connection without HTTP/2.
+    static Client client(final Socket socket) {
+        return new Client() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public void close() {
+                closeQuietly(socket);
+            }
+        };
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+
+    // Passes everything on and shows it to the tap afterwards.
+    private static final class TapOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final BodyTap tap;
+
+        TapOutputStream(OutputStream out, BodyTap tap) {
+            this.out = out;
+            this.tap = tap;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            tap.onData(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class Pending {
+        final String method;
+        final boolean upgrade;
+        // Follower of this exchange, may be null
+        final Exchange exchange;
+        // When the request was forwarded completely (System.nanoTime())
+        volatile long sentNanos;
+
+        Pending(String method, boolean upgrade, Exchange exchange) {
+            this.method = method;
+            this.upgrade = upgrade;
+            this.exchange = exchange;
+            this.sentNanos = System.nanoTime();
+        }
+    }
+}
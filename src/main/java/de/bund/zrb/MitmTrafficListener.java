@@ -5,4 +5,13 @@ public interface MitmTrafficListener {
     // Log MITM traffic. direction e.g. "client->server" or "server->client".
     // If isJson is true, UI may pretty-print using JSON parser.
     void onTraffic(String direction, String text, boolean isJson);
+
+    // One event of a streamed (text/event-stream) response, right after it was forwarded.
+    // event is "message" unless the server named it; data is the payload (often JSON).
+    default void onStreamEvent(String event, String data) {
+    }
+
+    // Timing and usage of a streamed response, after its last event.
+    default void onStreamCompleted(StreamMetrics metrics) {
+    }
 }
@@ -0,0 +1,430 @@
+package de.bund.zrb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking proxy engine: a few selector threads handle accept, request head parsing,
+// CONNECT tunnels and plain HTTP forwarding. Only DNS lookups and MITM sessions (which use
+// blocking SSLSockets) run on the worker pool.
+public class NioProxyEngine implements StatsProvider {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int MAX_HEADER_BYTES = BufferPool.LARGE;
+
+    private final int listenPort;
+    private final MitmHandler mitmHandler;
+    private final WorkerPool workerPool;
+    private final int selectorThreads;
+    private final long idleTimeoutMillis;
+    private final UpstreamConnector connector;
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private final AtomicInteger openTunnels = new AtomicInteger();
+    private final AtomicLong mitmHandoffs = new AtomicLong();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private SelectorLoop[] loops;
+    private ServerSocketChannel serverChannel;
+
+    public NioProxyEngine(int listenPort,
+                          MitmHandler mitmHandler,
+                          WorkerPool workerPool,
+                          int selectorThreads,
+                          long idleTimeoutMillis,
+                          UpstreamConnector connector) {
+        this.listenPort = listenPort;
+        this.mitmHandler = mitmHandler;
+        this.workerPool = workerPool;
+        this.selectorThreads = Math.max(1, selectorThreads);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.connector = connector;
+    }
+
+    public synchronized void start() throws IOException {
+        if (loops != null) {
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(new InetSocketAddress(listenPort));
+            serverChannel.configureBlocking(false);
+
+            loops = new SelectorLoop[selectorThreads];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop("proxy-selector-" + i);
+            }
+        } catch (IOException e) {
+            serverChannel.close();
+            loops = null;
+            throw e;
+        }
+
+        final SelectorLoop acceptLoop = loops[0];
+        acceptLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor());
+                } catch (IOException e) {
+                    System.err.println("[Proxy] Cannot register accept channel: " + e.getMessage());
+                }
+            }
+        });
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+        System.out.println("[Proxy] NIO engine listening on port " + listenPort
+                + " with " + loops.length + " selector thread(s)");
+    }
+
+    public synchronized void stop() {
+        if (loops == null) {
+            return;
+        }
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+        loops = null;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+        System.out.println("[Proxy] Stopped listening on port " + listenPort);
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("nio.selectorThreads: ").append(selectorThreads).append('\n');
+        out.append("nio.accepted: ").append(acceptedConnections.get()).append('\n');
+        out.append("nio.sessions: ").append(openSessions.get()).append('\n');
+        out.append("nio.tunnels: ").append(openTunnels.get()).append('\n');
+        out.append("nio.mitmHandoffs: ").append(mitmHandoffs.get()).append('\n');
+    }
+
+    private SelectorLoop nextLoop() {
+        SelectorLoop[] current = loops;
+        int i = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % current.length;
+        return current[i];
+    }
+
+    private final class Acceptor implements SelectorLoop.Handler {
+
+        @Override
+        public void onReady(SelectionKey key) {
+            SocketChannel channel;
+            try {
+                while ((channel = serverChannel.accept()) != null) {
+                    acceptedConnections.incrementAndGet();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    final SocketChannel accepted = channel;
+                    final SelectorLoop loop = nextLoop();
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            new Session(loop, accepted).begin();
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                System.err.println("[Proxy] Accept failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onTick(long nowMillis) {
+            // Nothing to time out
+        }
+    }
+
+    // Per client connection state machine: READ_HEAD -> CONNECTING -> tunnel (or MITM handoff).
+    private final class Session implements SelectorLoop.Handler {
+
+        private final SelectorLoop loop;
+        private final SocketChannel client;
+        private SelectionKey clientKey;
+
+        private final BufferPool bufferPool = BufferPool.shared();
+        private ByteBuffer head;
+        private final HttpHead request = new HttpHead();
+        private long deadline;
+        private boolean done;
+
+        // Set once the head is parsed
+        private SocketChannel remote;
+        private ByteBuffer toClient;
+        private ByteBuffer toRemote;
+
+        Session(SelectorLoop loop, SocketChannel client) {
+            this.loop = loop;
+            this.client = client;
+        }
+
+        void begin() {
+            openSessions.incrementAndGet();
+            deadline = idleTimeoutMillis > 0 ? System.currentTimeMillis() + idleTimeoutMillis : Long.MAX_VALUE;
+            head = ByteBuffer.wrap(bufferPool.acquireArray(BufferPool.SMALL));
+            try {
+                clientKey = loop.register(client, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                readHead();
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        @Override
+        public void onTick(long nowMillis) {
+            if (nowMillis > deadline) {
+                System.out.println("[Proxy] Session timed out before tunnel was established");
+                fail();
+            }
+        }
+
+        private void readHead() throws IOException {
+            if (!head.hasRemaining()) {
+                if (head.capacity() >= MAX_HEADER_BYTES) {
+                    writeErrorAndClose("400 Bad Request");
+                    return;
+                }
+                // Next size class
+                ByteBuffer bigger = ByteBuffer.wrap(bufferPool.acquireArray(head.capacity() + 1));
+                head.flip();
+                bigger.put(head);
+                bufferPool.release(head.array());
+                head = bigger;
+            }
+
+            int n = client.read(head);
+            if (n < 0) {
+                fail();
+                return;
+            }
+
+            int end;
+            try {
+                end = request.parse(head.array(), 0, head.position());
+            } catch (MalformedHttpException e) {
+                System.out.println("[Proxy] Invalid request head: " + e.getMessage());
+                writeErrorAndClose("400 Bad Request");
+                return;
+            }
+            if (end < 0) {
+                return;
+            }
+
+            clientKey.interestOps(0);
+            // Bytes the client sent after the head (e.g. body or TLS ClientHello)
+            ByteBuffer leftover = ByteBuffer.allocate(head.position() - end);
+            leftover.put(head.array(), end, leftover.capacity()).flip();
+            releaseHead();
+            dispatch(leftover);
+        }
+
+        private void dispatch(ByteBuffer leftover) throws IOException {
+            System.out.println("[Proxy] Request line: " + request.getStartLine());
+            if (!request.isValidRequest()) {
+                writeErrorAndClose("400 Bad Request");
+                return;
+            }
+
+            String method = request.getMethod();
+            String target = request.getTarget();
+
+            if (request.isMethod("CONNECT")) {
+                ProxyTarget connectTarget = ProxyTarget.forConnect(target);
+                if (connectTarget == null) {
+                    writeErrorAndClose("400 Bad Request");
+                    return;
+                }
+                if (mitmHandler != null && mitmHandler.supports(connectTarget.getHost(), connectTarget.getPort())) {
+                    handOffToMitm(connectTarget, leftover);
+                    return;
+                }
+                toClient = ByteBuffer.wrap("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(ISO_8859_1));
+                toRemote = leftover;
+                connectRemote(connectTarget.getHost(), connectTarget.getPort());
+                return;
+            }
+
+            ProxyTarget requestTarget = ProxyTarget.forRequest(target, request.getHeader("Host"));
+            if (requestTarget == null) {
+                System.out.println("[Proxy] Missing Host header for: " + target);
+                writeErrorAndClose("400 Bad Request");
+                return;
+            }
+            try {
+                HttpBody.requestLength(request);
+            } catch (MalformedHttpException e) {
+                System.out.println("[Proxy] Invalid request head: " + e.getMessage());
+                writeErrorAndClose("400 Bad Request");
+                return;
+            }
+
+            // One request per connection: ask the origin to close after the response
+            ByteArrayOutputStream out = new ByteArrayOutputStream(512 + leftover.remaining());
+            request.writeTo(out, method + " " + requestTarget.getPath() + " " + request.getVersion(), "close");
+            out.write(leftover.array(), 0, leftover.remaining());
+            toRemote = ByteBuffer.wrap(out.toByteArray());
+            System.out.println("[Proxy] Forward " + method + " " + requestTarget.getHost() + ":"
+                    + requestTarget.getPort() + requestTarget.getPath());
+            connectRemote(requestTarget.getHost(), requestTarget.getPort());
+        }
+
+        // leftover (bytes behind the CONNECT head, e.g. an early ClientHello) goes to the handler.
+        private void handOffToMitm(final ProxyTarget target, ByteBuffer leftover) {
+            final InputStream consumed = leftover.hasRemaining()
+                    ? new ByteArrayInputStream(leftover.array(), leftover.position(), leftover.remaining())
+                    : null;
+            mitmHandoffs.incrementAndGet();
+            System.out.println("[Proxy] MITM handler for " + target.getHost() + ":" + target.getPort());
+            done = true;
+            openSessions.decrementAndGet();
+            // The MITM handler works on blocking streams: leave the selector first
+            loop.deregister(clientKey, new Runnable() {
+                @Override
+                public void run() {
+                    boolean accepted = workerPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                // Not client.socket(): its streams stall each other on Java 8
+                                mitmHandler.handleConnect(target.getHost(), target.getPort(), new ChannelSocket(client), consumed);
+                            } catch (IOException e) {
+                                System.err.println("[Proxy] Connection error: " + e.getMessage());
+                            } finally {
+                                closeQuietly(client);
+                            }
+                        }
+                    });
+                    if (!accepted) {
+                        closeQuietly(client);
+                    }
+                }
+            });
+        }
+
+        private void connectRemote(final String host, final int port) {
+            deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            // Name resolution and the staggered connect attempts block, keep them off the selector thread
+            boolean accepted = workerPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SocketChannel connected = null;
+                    IOException error = null;
+                    try {
+                        connected = connector.connectChannel(host, port, CONNECT_TIMEOUT_MILLIS);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    final SocketChannel channel = connected;
+                    final IOException failure = error;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            connected(host, port, channel, failure);
+                        }
+                    });
+                }
+            });
+            if (!accepted) {
+                writeErrorAndClose("503 Service Unavailable");
+            }
+        }
+
+        private void connected(String host, int port, SocketChannel channel, IOException failure) {
+            if (done) {
+                if (channel != null) {
+                    closeQuietly(channel);
+                }
+                return;
+            }
+            if (failure != null) {
+                System.out.println("[Proxy] Connect to " + host + ":" + port + " failed: " + failure.getMessage());
+                writeErrorAndClose("502 Bad Gateway");
+                return;
+            }
+            remote = channel;
+            try {
+                remote.configureBlocking(false);
+                remote.socket().setTcpNoDelay(true);
+                startTunnel();
+            } catch (IOException e) {
+                System.out.println("[Proxy] Connect to " + host + ":" + port + " failed: " + e.getMessage());
+                writeErrorAndClose("502 Bad Gateway");
+            }
+        }
+
+        private void startTunnel() {
+            done = true;
+            openSessions.decrementAndGet();
+            openTunnels.incrementAndGet();
+            ChannelTunnel.start(loop, client, remote, toClient, toRemote, idleTimeoutMillis, new Runnable() {
+                @Override
+                public void run() {
+                    openTunnels.decrementAndGet();
+                }
+            });
+        }
+
+        private void writeErrorAndClose(String status) {
+            try {
+                // Best effort, a small response fits into the socket buffer
+                client.write(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n")
+                        .getBytes(ISO_8859_1)));
+            } catch (IOException ignored) {
+                // Ignore
+            }
+            fail();
+        }
+
+        private void releaseHead() {
+            if (head != null) {
+                bufferPool.release(head.array());
+                head = null;
+            }
+        }
+
+        private void fail() {
+            releaseHead();
+            if (done) {
+                return;
+            }
+            done = true;
+            openSessions.decrementAndGet();
+            closeQuietly(client);
+            closeQuietly(remote);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+}
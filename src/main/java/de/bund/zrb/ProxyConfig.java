@@ -0,0 +1,69 @@
+package de.bund.zrb;
+
+import java.util.Properties;
+
+// Typed, read-only view on proxy.properties for settings that have no UI field.
+public class ProxyConfig {
+
+    private final Properties props;
+
+    public ProxyConfig(Properties props) {
+        this.props = new Properties();
+        if (props != null) {
+            this.props.putAll(props);
+        }
+    }
+
+    public static ProxyConfig empty() {
+        return new ProxyConfig(null);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("[Config] Invalid number for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("[Config] Invalid number for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    // Copy of all entries, used when the UI writes its own keys back to disk.
+    public Properties toProperties() {
+        Properties copy = new Properties();
+        copy.putAll(props);
+        return copy;
+    }
+}
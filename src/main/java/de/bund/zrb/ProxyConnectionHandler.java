@@ -1,98 +1,173 @@
 package de.bund.zrb;
 
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 public class ProxyConnectionHandler {
 
     private static final int CONNECT_TIMEOUT_MILLIS = 15000;
     private static final int READ_TIMEOUT_MILLIS = 60000;
+    private static final int STREAM_BUFFER_BYTES = 8192;
+    // How long a finished response waits for the last bytes of the request body
+    private static final long BODY_GRACE_MILLIS = 500;
 
     private final MitmHandler mitmHandler;
+    private final WorkerPool workerPool;
+    private final TunnelRelay tunnelRelay;
+    private final StreamCopier copier;
+    // Null: one upstream connection per request
+    private final UpstreamConnectionPool upstreamPool;
+    private final UpstreamConnector connector;
+    // Null: no caching of plain HTTP responses
+    private final HttpCache httpCache;
 
     public ProxyConnectionHandler() {
         this(null);
     }
 
     public ProxyConnectionHandler(MitmHandler mitmHandler) {
-        this.mitmHandler = mitmHandler;
+        this(mitmHandler, WorkerPool.threadPerTask());
     }
 
-    public void handle(Socket clientSocket) throws IOException {
-        try {
-            clientSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
-
-            InputStream clientIn = clientSocket.getInputStream();
-            OutputStream clientOut = clientSocket.getOutputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientIn, "ISO-8859-1"));
-
-            String requestLine = reader.readLine();
-            if (requestLine == null || requestLine.isEmpty()) {
-                System.out.println("[Proxy] Empty request line, close connection");
-                return;
-            }
+    public ProxyConnectionHandler(MitmHandler mitmHandler, WorkerPool workerPool) {
+        this(mitmHandler, workerPool, null);
+    }
 
-            String headerLine;
-            StringBuilder rawHeaders = new StringBuilder();
-            while ((headerLine = reader.readLine()) != null && headerLine.length() > 0) {
-                rawHeaders.append(headerLine).append("\r\n");
-            }
+    public ProxyConnectionHandler(MitmHandler mitmHandler, WorkerPool workerPool, TunnelRelay tunnelRelay) {
+        this(mitmHandler, workerPool, tunnelRelay, StreamCopier.fromConfig(ProxyConfig.empty()));
+    }
 
-            System.out.println("[Proxy] Request line: " + requestLine);
+    public ProxyConnectionHandler(MitmHandler mitmHandler,
+                                  WorkerPool workerPool,
+                                  TunnelRelay tunnelRelay,
+                                  StreamCopier copier) {
+        this(mitmHandler, workerPool, tunnelRelay, copier, null, UpstreamConnector.fromConfig(ProxyConfig.empty()));
+    }
 
-            String[] parts = requestLine.split(" ");
-            if (parts.length < 3) {
-                System.out.println("[Proxy] Invalid request line");
-                writeBadRequest(clientOut);
-                return;
-            }
+    public ProxyConnectionHandler(MitmHandler mitmHandler,
+                                  WorkerPool workerPool,
+                                  TunnelRelay tunnelRelay,
+                                  StreamCopier copier,
+                                  UpstreamConnectionPool upstreamPool,
+                                  UpstreamConnector connector) {
+        this(mitmHandler, workerPool, tunnelRelay, copier, upstreamPool, connector, null);
+    }
 
-            String method = parts[0];
-            String target = parts[1];
-            String httpVersion = parts[2];
+    public ProxyConnectionHandler(MitmHandler mitmHandler,
+                                  WorkerPool workerPool,
+                                  TunnelRelay tunnelRelay,
+                                  StreamCopier copier,
+                                  UpstreamConnectionPool upstreamPool,
+                                  UpstreamConnector connector,
+                                  HttpCache httpCache) {
+        this.mitmHandler = mitmHandler;
+        this.workerPool = workerPool;
+        this.tunnelRelay = tunnelRelay;
+        this.copier = copier;
+        this.upstreamPool = upstreamPool;
+        this.connector = connector;
+        this.httpCache = httpCache;
+    }
 
-            if ("CONNECT".equalsIgnoreCase(method)) {
-                String[] hostPort = target.split(":");
-                if (hostPort.length == 2) {
-                    String host = hostPort[0];
-                    int port = parsePort(hostPort[1], 443);
+    public void handle(Socket clientSocket) throws IOException {
+        boolean handedOver = false;
+        HttpInputStream clientIn = null;
+        try {
+            clientSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
 
-                    if (mitmHandler != null && mitmHandler.supports(host, port)) {
-                        System.out.println("[Proxy] MITM handler for " + host + ":" + port);
-                        mitmHandler.handleConnect(host, port, clientSocket);
+            clientIn = new HttpInputStream(clientSocket.getInputStream());
+            OutputStream clientOut = new BufferedOutputStream(clientSocket.getOutputStream(), STREAM_BUFFER_BYTES);
+            // Reused for every message on this connection
+            HttpHead request = new HttpHead();
+            HttpHead response = new HttpHead();
+
+            // Persistent connection: serve requests until one side asks to close
+            boolean keepAlive = true;
+            int served = 0;
+            while (keepAlive) {
+                try {
+                    if (!clientIn.readHead(request)) {
+                        if (served == 0) {
+                            System.out.println("[Proxy] Empty request line, close connection");
+                        }
                         return;
                     }
+                } catch (MalformedHttpException e) {
+                    System.out.println("[Proxy] Invalid request head: " + e.getMessage());
+                    writeBadRequest(clientOut);
+                    return;
                 }
 
-                // Fallback: normal CONNECT (tunnel)
-                handleConnect(target, clientSocket);
-                return;
-            } else {
-                System.out.println("[Proxy] HTTP " + method + " " + target);
-                handleHttpRequest(method, target, httpVersion, rawHeaders.toString(), clientSocket);
+                System.out.println("[Proxy] Request line: " + request.getStartLine());
+
+                if (!request.isValidRequest()) {
+                    System.out.println("[Proxy] Invalid request line");
+                    writeBadRequest(clientOut);
+                    return;
+                }
+
+                if (request.isMethod("CONNECT")) {
+                    handedOver = handleConnectRequest(request.getTarget(), clientSocket, clientIn);
+                    return;
+                }
+
+                System.out.println("[Proxy] HTTP " + request.getMethod() + " " + request.getTarget());
+                keepAlive = handleHttpRequest(request, response, clientSocket, clientIn, clientOut);
+                served++;
             }
         } finally {
-            closeQuietly(clientSocket);
+            if (!handedOver) {
+                closeQuietly(clientSocket);
+            }
+            if (clientIn != null) {
+                clientIn.release();
+            }
         }
     }
 
-    private void handleConnect(String target, Socket clientSocket) throws IOException {
-        String[] hostPort = target.split(":");
-        if (hostPort.length != 2) {
+    // Returns true if the client socket was handed over to the tunnel relay.
+    private boolean handleConnectRequest(String target,
+                                         Socket clientSocket,
+                                         HttpInputStream clientIn) throws IOException {
+        ProxyTarget connectTarget = ProxyTarget.forConnect(target);
+        if (connectTarget != null) {
+            String host = connectTarget.getHost();
+            int port = connectTarget.getPort();
+
+            if (mitmHandler != null && mitmHandler.supports(host, port)) {
+                System.out.println("[Proxy] MITM handler for " + host + ":" + port);
+                mitmHandler.handleConnect(host, port, clientSocket, takeBuffered(clientIn));
+                return false;
+            }
+        }
+
+        // Fallback: normal CONNECT (tunnel)
+        return handleConnect(target, clientSocket, clientIn);
+    }
+
+    // Returns true if the tunnel was handed over to the relay, which then owns both sockets.
+    // Bytes the client sent right behind the CONNECT head are forwarded before the tunnel starts.
+    private boolean handleConnect(String target, Socket clientSocket, HttpInputStream clientIn) throws IOException {
+        ProxyTarget connectTarget = ProxyTarget.forConnect(target);
+        if (connectTarget == null) {
             System.out.println("[Proxy] Invalid CONNECT target: " + target);
             writeBadRequest(clientSocket.getOutputStream());
-            return;
+            return false;
         }
 
-        String host = hostPort[0];
-        int port = parsePort(hostPort[1], 443);
+        String host = connectTarget.getHost();
+        int port = connectTarget.getPort();
+
+        if (tunnelRelay != null && clientSocket instanceof ChannelSocket) {
+            return handleConnectRelayed(host, port, (ChannelSocket) clientSocket, clientIn);
+        }
 
-        Socket remoteSocket = new Socket();
+        System.out.println("[Proxy] Opening tunnel to " + host + ":" + port);
+        Socket remoteSocket = connector.connect(host, port, CONNECT_TIMEOUT_MILLIS);
         try {
-            System.out.println("[Proxy] Opening tunnel to " + host + ":" + port);
-            remoteSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
             remoteSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            clientIn.transferBuffered(remoteSocket.getOutputStream());
 
             OutputStream clientOut = clientSocket.getOutputStream();
             clientOut.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes("ISO-8859-1"));
@@ -104,124 +179,383 @@ public class ProxyConnectionHandler {
         } finally {
             closeQuietly(remoteSocket);
         }
+        return false;
     }
 
-    private void handleHttpRequest(String method,
-                                   String target,
-                                   String httpVersion,
-                                   String rawHeaders,
-                                   Socket clientSocket) throws IOException {
-
-        String host;
-        int port;
-        String path = target;
+    private boolean handleConnectRelayed(String host,
+                                         int port,
+                                         ChannelSocket clientSocket,
+                                         HttpInputStream clientIn) throws IOException {
+        System.out.println("[Proxy] Opening tunnel to " + host + ":" + port);
+        SocketChannel remoteChannel = connector.connectChannel(host, port, CONNECT_TIMEOUT_MILLIS);
+        boolean handedOver = false;
+        try {
+            // Still blocking and used by this thread only
+            clientIn.transferBuffered(remoteChannel.socket().getOutputStream());
 
-        if (target.startsWith("http://") || target.startsWith("https://")) {
-            boolean https = target.startsWith("https://");
-            int schemeEnd = target.indexOf("://") + 3;
-            int pathIndex = target.indexOf('/', schemeEnd);
-            String hostPart = pathIndex > 0 ? target.substring(schemeEnd, pathIndex) : target.substring(schemeEnd);
+            OutputStream clientOut = clientSocket.getOutputStream();
+            clientOut.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes("ISO-8859-1"));
+            clientOut.flush();
 
-            int colonIndex = hostPart.indexOf(':');
-            if (colonIndex > 0) {
-                host = hostPart.substring(0, colonIndex);
-                port = parsePort(hostPart.substring(colonIndex + 1), https ? 443 : 80);
+            clientSocket.detach();
+            handedOver = tunnelRelay.relay(clientSocket.getChannel(), remoteChannel);
+            if (handedOver) {
+                System.out.println("[Proxy] Tunnel established " + host + ":" + port + " (relayed)");
             } else {
-                host = hostPart;
-                port = https ? 443 : 80;
+                startTunnelBlocking(clientSocket, new ChannelSocket(remoteChannel));
+                System.out.println("[Proxy] Tunnel closed " + host + ":" + port);
+            }
+            return handedOver;
+        } finally {
+            if (!handedOver) {
+                closeQuietly(remoteChannel);
             }
-
-            path = pathIndex > 0 ? target.substring(pathIndex) : "/";
-        } else {
-            host = extractHostFromHeaders(rawHeaders);
-            port = 80;
         }
+    }
+
+    // Answers one request from the cache or forwards it. Returns true if the client connection stays open.
+    private boolean handleHttpRequest(HttpHead request,
+                                      HttpHead response,
+                                      Socket clientSocket,
+                                      HttpInputStream clientIn,
+                                      OutputStream clientOut) throws IOException {
+        String target = request.getTarget();
 
-        if (host == null) {
+        ProxyTarget requestTarget = ProxyTarget.forRequest(target, request.getHeader("Host"));
+        if (requestTarget == null) {
             System.out.println("[Proxy] Missing Host header for: " + target);
-            writeBadRequest(clientSocket.getOutputStream());
-            return;
+            writeBadRequest(clientOut);
+            return false;
         }
 
+        long requestLength;
+        try {
+            requestLength = HttpBody.requestLength(request);
+        } catch (MalformedHttpException e) {
+            System.out.println("[Proxy] Invalid request head: " + e.getMessage());
+            writeBadRequest(clientOut);
+            return false;
+        }
+        HttpCache.Lookup cached = httpCache != null
+                ? httpCache.lookup(request, HttpCache.url(requestTarget), requestLength)
+                : null;
+        try {
+            if (cached != null && cached.isFresh()) {
+                boolean keepAlive = isPersistent(request);
+                httpCache.serve(cached, clientSocket, clientOut, keepAlive);
+                System.out.println("[Proxy] Cache hit " + request.getMethod() + " " + HttpCache.url(requestTarget));
+                return keepAlive;
+            }
+            return forward(request, response, clientSocket, clientIn, clientOut, requestTarget, requestLength, cached);
+        } finally {
+            if (cached != null) {
+                cached.close();
+            }
+        }
+    }
+
+    // Forwards one request and its response; cached (may be null) revalidates or stores it.
+    private boolean forward(HttpHead request,
+                            HttpHead response,
+                            Socket clientSocket,
+                            HttpInputStream clientIn,
+                            OutputStream clientOut,
+                            ProxyTarget requestTarget,
+                            long requestLength,
+                            HttpCache.Lookup cached) throws IOException {
+        String method = request.getMethod();
+        String host = requestTarget.getHost();
+        int port = requestTarget.getPort();
+        String path = requestTarget.getPath();
+
         System.out.println("[Proxy] Forward " + method + " " + host + ":" + port + path);
 
-        Socket remoteSocket = new Socket();
+        boolean upgrade = request.hasHeader("Upgrade")
+                && request.hasHeaderToken("Connection", "upgrade");
+        String startLine = method + " " + path + " " + request.getVersion();
+        String connection = upgrade ? "upgrade" : (upstreamPool != null ? "keep-alive" : "close");
+
+        UpstreamConnection upstream = null;
+        boolean reusable = false;
+        long keepAliveMillis = 0;
+        RequestBodyTask bodyTask = null;
+        Thread bodyThread = null;
         try {
-            remoteSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
-            remoteSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            boolean received = false;
+            while (!received) {
+                try {
+                    upstream = openUpstream(host, port);
+                } catch (IOException e) {
+                    System.out.println("[Proxy] Connect to " + host + ":" + port + " failed: " + e.getMessage());
+                    writeStatus(clientOut, "502 Bad Gateway");
+                    return false;
+                }
 
-            OutputStream remoteOut = remoteSocket.getOutputStream();
-            InputStream remoteIn = remoteSocket.getInputStream();
-            OutputStream clientOut = clientSocket.getOutputStream();
+                // The origin may have closed a pooled connection meanwhile. Requests without
+                // body have not consumed anything from the client yet and are simply sent again.
+                boolean retry = upstream.isReused() && requestLength == 0;
+                try {
+                    // Flushed right away: with "Expect: 100-continue" the client waits for the origin
+                    request.writeTo(upstream.getOutputStream(), startLine, connection,
+                            cached != null ? cached.validators() : null);
+                    upstream.getOutputStream().flush();
+                    if (requestLength != 0) {
+                        // Body goes up while the response comes down
+                        bodyTask = new RequestBodyTask(clientIn, upstream.getOutputStream(),
+                                upstream.getSocket(), requestLength, copier);
+                        bodyThread = workerPool.spawn(bodyTask, "request-body");
+                    }
+                    received = upstream.getInputStream().readHead(response);
+                } catch (MalformedHttpException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (!retry && !isMalformed(bodyTask)) {
+                        throw e;
+                    }
+                }
+                if (!received) {
+                    releaseUpstream(upstream, false, 0);
+                    upstream = null;
+                    if (isMalformed(bodyTask)) {
+                        // Nothing went to the client yet
+                        writeBadRequest(clientOut);
+                        return false;
+                    }
+                    if (!retry) {
+                        System.out.println("[Proxy] No response from " + host + ":" + port);
+                        writeStatus(clientOut, "502 Bad Gateway");
+                        return false;
+                    }
+                    System.out.println("[Proxy] Stale upstream connection to " + host + ":" + port + ", retry");
+                }
+            }
+            if (isMalformed(bodyTask)) {
+                // Answer to the cut off body, which the origin saw end before the close
+                writeBadRequest(clientOut);
+                return false;
+            }
+
+            HttpInputStream remoteIn = upstream.getInputStream();
+            readFinalResponse(response, remoteIn, clientOut);
+
+            if (response.getStatusCode() == 101) {
+                if (bodyTask != null && !awaitRequestBody(bodyTask, bodyThread, clientSocket, upstream)) {
+                    return false;
+                }
+                // Protocol switch (e.g. WebSocket): relay raw bytes until one side closes
+                response.writeTo(clientOut, null, "upgrade");
+                clientOut.flush();
+                relayUpgraded(clientIn, clientOut, upstream.getSocket(), remoteIn, upstream.getOutputStream());
+                return false;
+            }
+
+            long length = HttpBody.responseLength(method, response);
+            if (cached != null && httpCache.revalidated(cached, response)) {
+                // Our validators matched: the stored response answers the client
+                reusable = isPersistentResponse(response);
+                keepAliveMillis = keepAliveTimeoutMillis(response);
+                boolean keepAlive = isPersistent(request);
+                httpCache.serve(cached, clientSocket, clientOut, keepAlive);
+                System.out.println("[Proxy] Revalidated " + method + " " + host + ":" + port + path);
+                return keepAlive;
+            }
+            boolean keepAlive = isPersistent(request) && length != HttpBody.UNTIL_CLOSE;
 
-            String requestLine = method + " " + path + " " + httpVersion + "\r\n";
-            remoteOut.write(requestLine.getBytes("ISO-8859-1"));
-            remoteOut.write(rawHeaders.getBytes("ISO-8859-1"));
-            remoteOut.write("\r\n".getBytes("ISO-8859-1"));
-            remoteOut.flush();
+            response.writeTo(clientOut, null, keepAlive ? "keep-alive" : "close");
+            HttpCache.Store store = cached != null ? httpCache.store(cached, request, response, length) : null;
+            if (store != null) {
+                store.relay(remoteIn, clientOut, length, copier);
+            } else {
+                HttpBody.copy(remoteIn, clientOut, length, copier);
+            }
 
-            pipe(remoteIn, clientOut);
+            // Both messages must be complete, otherwise neither connection is at a message boundary
+            boolean bodySent = bodyTask == null || awaitRequestBody(bodyTask, bodyThread, clientSocket, upstream);
+
+            // Response fully delimited: the next request may go on the same upstream connection
+            reusable = bodySent && !upgrade && length != HttpBody.UNTIL_CLOSE && isPersistentResponse(response);
+            keepAliveMillis = keepAliveTimeoutMillis(response);
 
             System.out.println("[Proxy] Completed " + method + " " + host + ":" + port + path);
+            return keepAlive && bodySent;
         } finally {
-            closeQuietly(remoteSocket);
+            if (bodyTask != null) {
+                // The body task reads clientIn, it must be finished before the buffer is released
+                awaitRequestBody(bodyTask, bodyThread, clientSocket, upstream);
+            }
+            if (upstream != null) {
+                releaseUpstream(upstream, reusable, keepAliveMillis);
+            }
         }
     }
 
-    private void startTunnelBlocking(Socket clientSocket, Socket remoteSocket) {
-        TunnelPipeTask clientToRemote = new TunnelPipeTask(clientSocket, remoteSocket);
-        TunnelPipeTask remoteToClient = new TunnelPipeTask(remoteSocket, clientSocket);
+    // Waits for the request body task. If the exchange already ended (early response, error), the
+    // rest of the body is not read: the client input is shut down and the origin connection closed.
+    private boolean awaitRequestBody(RequestBodyTask bodyTask,
+                                     Thread bodyThread,
+                                     Socket clientSocket,
+                                     UpstreamConnection upstream) {
+        joinQuietly(bodyThread, BODY_GRACE_MILLIS);
+        if (!bodyTask.isDone()) {
+            System.out.println("[Proxy] Response finished before request body, close connection");
+            try {
+                clientSocket.shutdownInput();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+            if (upstream != null) {
+                closeQuietly(upstream.getSocket());
+            }
+        }
+        joinQuietly(bodyThread, 0);
+        return bodyTask.isComplete();
+    }
 
-        Thread t1 = new Thread(clientToRemote);
-        Thread t2 = new Thread(remoteToClient);
+    // The body task stopped at invalid framing and closed the upstream connection, so the response
+    // read ends instead of waiting.
+    private boolean isMalformed(RequestBodyTask bodyTask) {
+        return bodyTask != null && bodyTask.isMalformed();
+    }
 
-        t1.setDaemon(true);
-        t2.setDaemon(true);
+    private void joinQuietly(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        t1.start();
-        t2.start();
+    private UpstreamConnection openUpstream(String host, int port) throws IOException {
+        UpstreamConnection upstream;
+        if (upstreamPool != null) {
+            upstream = upstreamPool.acquire(host, port, CONNECT_TIMEOUT_MILLIS);
+        } else {
+            Socket socket = connector.connect(host, port, CONNECT_TIMEOUT_MILLIS);
+            upstream = new UpstreamConnection(host + ":" + port, socket);
+            upstream.markLeased();
+        }
+        upstream.getSocket().setSoTimeout(READ_TIMEOUT_MILLIS);
+        return upstream;
+    }
+
+    private void releaseUpstream(UpstreamConnection upstream, boolean reusable, long keepAliveMillis) {
+        if (upstreamPool != null) {
+            upstreamPool.release(upstream, reusable, keepAliveMillis);
+        } else {
+            upstream.close();
+        }
+    }
+
+    // Forwards interim 1xx responses (except 101) until response holds the final response head.
+    private void readFinalResponse(HttpHead response,
+                                   HttpInputStream remoteIn,
+                                   OutputStream clientOut) throws IOException {
+        while (true) {
+            int status = response.getStatusCode();
+            if (status < 100 || status >= 200 || status == 101) {
+                return;
+            }
+            response.writeTo(clientOut);
+            clientOut.flush();
+            if (!remoteIn.readHead(response)) {
+                throw new EOFException("Connection closed after interim response");
+            }
+        }
+    }
 
+    private void relayUpgraded(final InputStream clientIn,
+                               final OutputStream clientOut,
+                               final Socket remoteSocket,
+                               final InputStream remoteIn,
+                               final OutputStream remoteOut) throws IOException {
+        Thread helper = workerPool.spawn(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    copier.copy(remoteIn, clientOut);
+                } catch (IOException ignored) {
+                    // Connection closed
+                } finally {
+                    closeQuietly(remoteSocket);
+                }
+            }
+        }, "upgrade-s2c");
+        try {
+            copier.copy(clientIn, remoteOut);
+        } catch (IOException ignored) {
+            // Connection closed
+        } finally {
+            closeQuietly(remoteSocket);
+        }
         try {
-            t1.join();
-            t2.join();
+            helper.join();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
     }
 
-    private void pipe(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[8192];
-        int read;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-            out.flush();
+    // HTTP/1.1 is persistent unless "close" is requested, HTTP/1.0 only with explicit keep-alive.
+    private boolean isPersistent(HttpHead request) {
+        if (request.hasHeaderToken("Connection", "close")
+                || request.hasHeaderToken("Proxy-Connection", "close")) {
+            return false;
         }
+        if ("HTTP/1.0".equalsIgnoreCase(request.getVersion())) {
+            return request.hasHeaderToken("Connection", "keep-alive")
+                    || request.hasHeaderToken("Proxy-Connection", "keep-alive");
+        }
+        return true;
     }
 
-    private String extractHostFromHeaders(String rawHeaders) {
-        String[] lines = rawHeaders.split("\r\n");
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i];
-            if (line.toLowerCase().startsWith("host:")) {
-                String value = line.substring(5).trim();
-                if (value.length() == 0) {
-                    continue;
-                }
-                int colonIndex = value.indexOf(':');
-                if (colonIndex > 0) {
-                    return value.substring(0, colonIndex);
+    // For responses the version is the first token of the start line.
+    private boolean isPersistentResponse(HttpHead response) {
+        if (response.hasHeaderToken("Connection", "close")) {
+            return false;
+        }
+        if (response.isMethod("HTTP/1.0")) {
+            return response.hasHeaderToken("Connection", "keep-alive");
+        }
+        return true;
+    }
+
+    // "Keep-Alive: timeout=5" from the origin, minus a margin so we never send on a connection
+    // the origin is just closing. 0 if absent.
+    private static long keepAliveTimeoutMillis(HttpHead response) {
+        String value = response.getHeader("Keep-Alive");
+        if (value == null) {
+            return 0;
+        }
+        for (String param : value.split(",")) {
+            String p = param.trim();
+            if (p.regionMatches(true, 0, "timeout=", 0, 8)) {
+                try {
+                    long seconds = Long.parseLong(p.substring(8).trim());
+                    if (seconds > 0) {
+                        return Math.max(1, seconds * 1000L - 500);
+                    }
+                } catch (NumberFormatException ignored) {
+                    // Ignore invalid parameter
                 }
-                return value;
             }
         }
-        return null;
+        return 0;
     }
 
-    private int parsePort(String value, int defaultPort) {
+    // Bytes read ahead behind the CONNECT head, as a stream for the MITM handler; null if none.
+    private static InputStream takeBuffered(HttpInputStream clientIn) throws IOException {
+        ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+        return clientIn.transferBuffered(buffered) > 0 ? new ByteArrayInputStream(buffered.toByteArray()) : null;
+    }
+
+    private void startTunnelBlocking(Socket clientSocket, Socket remoteSocket) throws IOException {
+        // remote->client runs as helper, client->remote on the current worker (no idle join thread)
+        Thread helper = workerPool.spawn(new TunnelPipeTask(remoteSocket, clientSocket, copier), "tunnel-s2c");
+        new TunnelPipeTask(clientSocket, remoteSocket, copier).run();
+
         try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            return defaultPort;
+            helper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -231,6 +565,20 @@ public class ProxyConnectionHandler {
         out.flush();
     }
 
+    private void writeStatus(OutputStream out, String status) throws IOException {
+        String response = "HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        out.write(response.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+
     private void closeQuietly(Socket socket) {
         if (socket == null) {
             return;
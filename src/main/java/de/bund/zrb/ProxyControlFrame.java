@@ -50,9 +50,12 @@ public class ProxyControlFrame extends JFrame {
     private JButton applyButton;
     private JButton setupCertButton;
     private JButton installCaButton;
+    private JButton statsButton;
     private JTextPane trafficPane;
 
     private LocalProxyServer server;
+    // All keys from proxy.properties, including advanced settings without UI field
+    private ProxyConfig config = ProxyConfig.empty();
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
     public ProxyControlFrame() {
@@ -85,6 +88,7 @@ public class ProxyControlFrame extends JFrame {
         applyButton = new JButton("Apply settings");
         setupCertButton = new JButton("Generate MITM keystore");
         installCaButton = new JButton("Install CA into system trust store");
+        statsButton = new JButton("Show stats");
 
         trafficPane = new JTextPane();
         trafficPane.setContentType("text/html");
@@ -165,6 +169,7 @@ public class ProxyControlFrame extends JFrame {
         JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         buttons.add(setupCertButton);
         buttons.add(installCaButton);
+        buttons.add(statsButton);
         buttons.add(applyButton);
         buttons.add(startStopButton);
 
@@ -187,6 +192,7 @@ public class ProxyControlFrame extends JFrame {
         applyButton.addActionListener(e -> applySettings());
         setupCertButton.addActionListener(e -> runCertSetup());
         installCaButton.addActionListener(e -> runInstallCa());
+        statsButton.addActionListener(e -> showStats());
 
         mitmCheckBox.addActionListener(e -> updateRewriteControls());
         rewriteCheckBox.addActionListener(e -> updateRewriteControls());
@@ -214,6 +220,7 @@ public class ProxyControlFrame extends JFrame {
         boolean mitmEnabled = mitmCheckBox.isSelected();
         String keystorePath = keystoreField.getText().trim();
 
+        WorkerPool workerPool = WorkerPool.fromConfig(config);
         MitmHandler mitmHandler = null;
 
         if (mitmEnabled) {
@@ -222,7 +229,8 @@ public class ProxyControlFrame extends JFrame {
                 return;
             }
             File ksFile = new File(keystorePath);
-            if (!ksFile.exists()) {
+            // With the local CA next to the keystore, certificates are issued per host at runtime
+            if (!ksFile.exists() && !LeafCertificateCache.isCaAvailable(config, ksFile.getAbsoluteFile().getParentFile())) {
                 showError("Keystore not found at: " + ksFile.getAbsolutePath());
                 return;
             }
@@ -256,6 +264,12 @@ public class ProxyControlFrame extends JFrame {
                 public void onTraffic(String direction, String text, boolean isJson) {
                     appendTraffic(direction, text, isJson);
                 }
+
+                // Single events would flood the view, the summary is enough
+                @Override
+                public void onStreamCompleted(StreamMetrics metrics) {
+                    appendTraffic("server->client stream", metrics.toString(), false);
+                }
             };
 
             try {
@@ -267,7 +281,9 @@ public class ProxyControlFrame extends JFrame {
                         listener,
                         rewriteEnabled,
                         rewriteModel,
-                        rewriteTemperature
+                        rewriteTemperature,
+                        workerPool,
+                        config
                 );
 
                 appendTraffic("info",
@@ -275,6 +291,7 @@ public class ProxyControlFrame extends JFrame {
                         false
                 );
             } catch (IllegalStateException e) {
+                workerPool.shutdown();
                 showError("Failed to initialize MITM: " + e.getMessage());
                 return;
             }
@@ -282,11 +299,12 @@ public class ProxyControlFrame extends JFrame {
             appendTraffic("info", "Starting proxy without MITM", false);
         }
 
-        server = new LocalProxyServer(port, mitmHandler);
+        server = new LocalProxyServer(port, mitmHandler, workerPool, config);
         try {
             server.start();
         } catch (IOException e) {
             server = null;
+            workerPool.shutdown();
             showError("Failed to start proxy: " + e.getMessage());
             return;
         }
@@ -322,6 +340,17 @@ public class ProxyControlFrame extends JFrame {
         updateStatus();
     }
 
+    private void showStats() {
+        LocalProxyServer current = server;
+        if (current == null) {
+            appendTraffic("stats", "Proxy is not running.", false);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        current.appendStats(sb);
+        appendTraffic("stats", sb.toString(), false);
+    }
+
     private boolean isProxyRunning() {
         return server != null && server.isRunning();
     }
@@ -489,6 +518,7 @@ public class ProxyControlFrame extends JFrame {
         try {
             in = new FileInputStream(file);
             props.load(in);
+            config = new ProxyConfig(props);
 
             String port = props.getProperty(KEY_PORT, "8888");
             String ks = props.getProperty(KEY_KEYSTORE_PATH, defaultKeystorePath());
@@ -538,7 +568,8 @@ public class ProxyControlFrame extends JFrame {
             return false;
         }
 
-        Properties props = new Properties();
+        // Keep advanced keys that are not editable in the UI
+        Properties props = config.toProperties();
         props.setProperty(KEY_PORT, String.valueOf(port));
         props.setProperty(KEY_KEYSTORE_PATH, keystorePath);
         props.setProperty(KEY_MITM_ENABLED, String.valueOf(mitmEnabled));
@@ -551,6 +582,7 @@ public class ProxyControlFrame extends JFrame {
         try {
             out = new FileOutputStream(file);
             props.store(out, "Local proxy configuration");
+            config = new ProxyConfig(props);
         } catch (IOException e) {
             showError("Failed to save config: " + e.getMessage());
             return false;
@@ -0,0 +1,85 @@
+package de.bund.zrb;
+
+// Upstream host/port/path derived from a proxy request target, shared by both proxy engines.
+public class ProxyTarget {
+
+    private final String host;
+    private final int port;
+    private final String path;
+
+    private ProxyTarget(String host, int port, String path) {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    // "host:port" of a CONNECT request, null if invalid.
+    public static ProxyTarget forConnect(String target) {
+        String[] hostPort = target.split(":");
+        if (hostPort.length != 2 || hostPort[0].isEmpty()) {
+            return null;
+        }
+        return new ProxyTarget(hostPort[0], parsePort(hostPort[1], 443), null);
+    }
+
+    // Absolute URI or origin-form plus Host header value (may be null), null if no host can be determined.
+    public static ProxyTarget forRequest(String target, String hostHeader) {
+        String host;
+        int port;
+        String path = target;
+
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            boolean https = target.startsWith("https://");
+            int schemeEnd = target.indexOf("://") + 3;
+            int pathIndex = target.indexOf('/', schemeEnd);
+            String hostPart = pathIndex > 0 ? target.substring(schemeEnd, pathIndex) : target.substring(schemeEnd);
+
+            int colonIndex = hostPart.indexOf(':');
+            if (colonIndex > 0) {
+                host = hostPart.substring(0, colonIndex);
+                port = parsePort(hostPart.substring(colonIndex + 1), https ? 443 : 80);
+            } else {
+                host = hostPart;
+                port = https ? 443 : 80;
+            }
+
+            path = pathIndex > 0 ? target.substring(pathIndex) : "/";
+        } else {
+            host = hostWithoutPort(hostHeader);
+            port = 80;
+        }
+
+        if (host == null) {
+            return null;
+        }
+        return new ProxyTarget(host, port, path);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    static int parsePort(String value, int defaultPort) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultPort;
+        }
+    }
+
+    private static String hostWithoutPort(String hostHeader) {
+        if (hostHeader == null || hostHeader.isEmpty()) {
+            return null;
+        }
+        int colonIndex = hostHeader.indexOf(':');
+        return colonIndex > 0 ? hostHeader.substring(0, colonIndex) : hostHeader;
+    }
+}
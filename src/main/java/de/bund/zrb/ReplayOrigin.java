@@ -0,0 +1,201 @@
+package de.bund.zrb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Stands in for every origin in replay mode: a plain HTTP server on loopback that answers from
+// the traffic store. The MITM session connects here instead of upstream, so TLS towards the
+// client, parsing, rules, rewrites and inspection run exactly as with real traffic. Requests are
+// matched on Host, method, target and body (after rewrites, as recorded); unknown ones get a 502.
+final class ReplayOrigin implements StatsProvider {
+
+    private static final int MAX_REQUEST_BODY_BYTES = 64 * 1024 * 1024;
+
+    private final TrafficStore store;
+    // false: serve everything at once, true: with the recorded delays
+    private final boolean originalTiming;
+    private final WorkerPool workerPool;
+    private final ServerSocket serverSocket;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ReplayOrigin(TrafficStore store, boolean originalTiming, WorkerPool workerPool) throws IOException {
+        this.store = store;
+        this.originalTiming = originalTiming;
+        this.workerPool = workerPool;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "mitm-replay-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    // Connection standing in for the origin.
+    Socket connect(int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(serverSocket.getLocalSocketAddress(), timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) { }
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("mitm.replay.hits: ").append(hits.get()).append('\n');
+        out.append("mitm.replay.misses: ").append(misses.get()).append('\n');
+        out.append("mitm.replay.timing: ").append(originalTiming ? "original" : "fast").append('\n');
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("[MITM] Replay accept failed: " + e.getMessage());
+                }
+                continue;
+            }
+            try {
+                workerPool.spawn(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "mitm-replay");
+            } catch (IOException e) {
+                System.out.println("[MITM] Replay connection dropped: " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        HttpInputStream in = null;
+        try {
+            socket.setTcpNoDelay(true);
+            in = new HttpInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            HttpHead request = new HttpHead();
+            while (in.readHead(request)) {
+                byte[] body = readBody(in, HttpBody.requestLength(request));
+                long receivedNanos = System.nanoTime();
+                String host = request.getHeader("Host");
+                TrafficStore.Record record = store.lookup(host != null ? host.trim() : "",
+                        request.getMethod(), request.getTarget(), body);
+                if (record == null) {
+                    misses.incrementAndGet();
+                    System.out.println("[MITM] Replay: no recording for " + host + " " + request.getStartLine());
+                    writeMiss(out, request);
+                    continue;
+                }
+                hits.incrementAndGet();
+                if (!writeRecord(out, record, receivedNanos)) {
+                    break; // body ended with the connection
+                }
+            }
+        } catch (SocketException ignored) {
+            // Session closed the connection
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("[MITM] Replay failed: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                in.release();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    // False if the recorded response was delimited by closing the connection.
+    private boolean writeRecord(OutputStream out, TrafficStore.Record record, long receivedNanos)
+            throws IOException {
+        HttpHead head = record.responseHead();
+        long length = HttpBody.responseLength(record.method, head);
+        pause(record.headDelayMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - receivedNanos));
+        head.writeTo(out);
+        out.flush();
+        OutputStream body = length == HttpBody.CHUNKED ? HttpBody.chunkedStream(out) : out;
+        for (int i = 0; i < record.segments.size(); i++) {
+            pause(record.delays[i]);
+            body.write(record.segments.get(i));
+            body.flush();
+        }
+        if (body != out) {
+            body.close(); // last chunk, the connection stays open
+        }
+        out.flush();
+        return length != HttpBody.UNTIL_CLOSE;
+    }
+
+    private void pause(long millis) throws InterruptedIOException {
+        if (!originalTiming || millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted during replay");
+        }
+    }
+
+    private static byte[] readBody(InputStream in, long length) throws IOException {
+        if (length == 0) {
+            return new byte[0];
+        }
+        InputStream body = HttpBody.contentStream(in, length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? (int) Math.min(length, 65536) : 1024);
+        byte[] buffer = new byte[8192];
+        int r;
+        while ((r = body.read(buffer)) != -1) {
+            out.write(buffer, 0, r);
+            if (out.size() > MAX_REQUEST_BODY_BYTES) {
+                throw new IOException("Request body too large for replay");
+            }
+        }
+        body.close();
+        return out.toByteArray();
+    }
+
+    private static void writeMiss(OutputStream out, HttpHead request) throws IOException {
+        byte[] body = ("No recorded response for " + request.getStartLine() + "\n").getBytes("UTF-8");
+        out.write(("HTTP/1.1 502 Bad Gateway\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "X-Proxy-Replay: miss\r\n\r\n").getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+    }
+}
@@ -0,0 +1,75 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+// Streams one request body (Content-Length or chunked) to the origin while the caller already
+// reads the response, so uploads run at line rate and early responses (401, 413, 100-continue)
+// are not stuck behind the body. Memory is bounded by the copier's buffer.
+public class RequestBodyTask implements Runnable {
+
+    private final InputStream clientIn;
+    private final OutputStream remoteOut;
+    private final Socket remoteSocket;
+    private final long length;
+    private final StreamCopier copier;
+
+    private volatile boolean done;
+    private volatile boolean complete;
+    private volatile boolean malformed;
+
+    public RequestBodyTask(InputStream clientIn,
+                           OutputStream remoteOut,
+                           Socket remoteSocket,
+                           long length,
+                           StreamCopier copier) {
+        this.clientIn = clientIn;
+        this.remoteOut = remoteOut;
+        this.remoteSocket = remoteSocket;
+        this.length = length;
+        this.copier = copier;
+    }
+
+    @Override
+    public void run() {
+        try {
+            HttpBody.copy(clientIn, remoteOut, length, copier);
+            complete = true;
+        } catch (MalformedHttpException e) {
+            System.out.println("[Proxy] Invalid request body: " + e.getMessage());
+            // Set first: closing the socket ends the caller's wait for the response
+            malformed = true;
+            try {
+                remoteSocket.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        } catch (IOException e) {
+            System.out.println("[Proxy] Request body aborted: " + e.getMessage());
+            // The origin would wait for the rest of the body: signal EOF so the response side ends too
+            try {
+                remoteSocket.shutdownOutput();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        } finally {
+            done = true;
+        }
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    // True if the body framing was invalid (e.g. a bad chunk size); the origin connection is closed.
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    // True if the whole body was forwarded.
+    public boolean isComplete() {
+        return complete;
+    }
+}
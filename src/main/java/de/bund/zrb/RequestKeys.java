@@ -0,0 +1,179 @@
+package de.bund.zrb;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Identity of a completion request, for answering it from a cache or a running identical request:
+// a SHA-256 over host, method, target, a few relevant headers, the credential and cookies (hashed
+// with the rest, never stored) and the body in canonical JSON form (keys sorted, whitespace dropped).
+// Only POSTs to the given paths with a JSON object body get a key, optionally only with
+// temperature 0.
+final class RequestKeys {
+
+    static final String DEFAULT_PATHS = "/v1/chat/completions";
+    static final String DEFAULT_HEADERS =
+            "Accept,OpenAI-Organization,OpenAI-Project,OpenAI-Beta,anthropic-version,anthropic-beta";
+    // Credentials and session cookies: part of the key, so each key or session has its own entries
+    private static final String[] CREDENTIAL_HEADERS = {"Authorization", "x-api-key", "api-key", "Cookie"};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<Glob> paths;
+    private final boolean deterministicOnly;
+    private final String[] keyHeaders;
+
+    private final AtomicLong notDeterministic = new AtomicLong();
+
+    RequestKeys(List<String> paths, boolean deterministicOnly, List<String> keyHeaders) {
+        this.paths = new ArrayList<Glob>();
+        for (String path : paths) {
+            this.paths.add(Glob.compile(path.trim(), false));
+        }
+        this.deterministicOnly = deterministicOnly;
+        this.keyHeaders = keyHeaders.toArray(new String[0]);
+    }
+
+    // Method and path match (the body decides); Cache-Control: no-store opts out.
+    boolean handles(HttpHead request) {
+        if (!request.isMethod("POST") || request.hasHeaderToken("Cache-Control", "no-store")) {
+            return false;
+        }
+        String target = request.getTarget();
+        int query = target.indexOf('?');
+        String path = query >= 0 ? target.substring(0, query) : target;
+        for (Glob glob : paths) {
+            if (glob.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Hex key, or null if the request does not qualify.
+    String keyFor(HttpHead request, byte[] body) {
+        if (!handles(request)) {
+            return null;
+        }
+        JsonObject json;
+        try {
+            JsonElement parsed = JsonParser.parseString(new String(body, UTF_8));
+            if (!parsed.isJsonObject()) {
+                return null;
+            }
+            json = parsed.getAsJsonObject();
+        } catch (JsonParseException e) {
+            return null;
+        }
+        if (deterministicOnly && !isZero(json.get("temperature"))) {
+            notDeterministic.incrementAndGet();
+            return null;
+        }
+        MessageDigest sha = sha256();
+        String host = request.getHeader("Host");
+        update(sha, host != null ? host.trim().toLowerCase(Locale.ROOT) : "");
+        update(sha, request.getMethod());
+        update(sha, request.getTarget());
+        for (String name : keyHeaders) {
+            String value = request.getHeader(name);
+            update(sha, name.toLowerCase(Locale.ROOT) + ":" + (value != null ? value.trim() : ""));
+        }
+        for (String name : CREDENTIAL_HEADERS) {
+            String value = request.getHeader(name);
+            update(sha, value != null ? value.trim() : "");
+        }
+        StringBuilder canonical = new StringBuilder(body.length);
+        canonical(json, canonical);
+        sha.update(canonical.toString().getBytes(UTF_8));
+        return hex(sha.digest());
+    }
+
+    long getNotDeterministic() {
+        return notDeterministic.get();
+    }
+
+    private static boolean isZero(JsonElement value) {
+        if (value == null || !value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber()) {
+            return false;
+        }
+        return value.getAsBigDecimal().signum() == 0;
+    }
+
+    // Objects with sorted keys, no whitespace; numbers as written
+    private static void canonical(JsonElement e, StringBuilder out) {
+        if (e.isJsonObject()) {
+            TreeMap<String, JsonElement> sorted = new TreeMap<String, JsonElement>();
+            for (Map.Entry<String, JsonElement> m : e.getAsJsonObject().entrySet()) {
+                sorted.put(m.getKey(), m.getValue());
+            }
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<String, JsonElement> m : sorted.entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append(new JsonPrimitive(m.getKey()).toString()).append(':');
+                canonical(m.getValue(), out);
+            }
+            out.append('}');
+        } else if (e.isJsonArray()) {
+            out.append('[');
+            boolean first = true;
+            for (JsonElement item : e.getAsJsonArray()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                canonical(item, out);
+            }
+            out.append(']');
+        } else {
+            out.append(e.toString());
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Zero-terminated, so fields cannot run into each other
+    private static void update(MessageDigest sha, String value) {
+        sha.update(value.getBytes(UTF_8));
+        sha.update((byte) 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder s = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return s.toString();
+    }
+
+    // Comma-separated list, blanks dropped
+    static List<String> split(String list) {
+        List<String> result = new ArrayList<String>();
+        for (String item : list.split(",")) {
+            if (!item.trim().isEmpty()) {
+                result.add(item.trim());
+            }
+        }
+        return result;
+    }
+}
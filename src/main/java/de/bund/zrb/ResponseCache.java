@@ -0,0 +1,459 @@
+package de.bund.zrb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Exact-match cache for deterministic completion requests (temperature 0), keyed by RequestKeys:
+// formatting differences in the body still hit, every API key gets its own entries. Complete 200
+// responses are kept with their head, JSON and event streams alike, and served without asking
+// the origin.
+//
+// Two tiers, both LRU and bounded in bytes: memory, and optionally a directory on disk that gets
+// every entry as well (so the cache survives a restart) and serves what memory evicted. Entries
+// expire after a fixed TTL.
+public class ResponseCache implements StatsProvider {
+
+    public static final String KEY_ENABLED = "proxy.mitm.cache.enabled";
+    public static final String KEY_PATHS = "proxy.mitm.cache.paths";
+    public static final String KEY_DETERMINISTIC_ONLY = "proxy.mitm.cache.deterministicOnly";
+    public static final String KEY_TTL_SECONDS = "proxy.mitm.cache.ttlSeconds";
+    public static final String KEY_MEMORY_MB = "proxy.mitm.cache.memoryMB";
+    public static final String KEY_DISK_MB = "proxy.mitm.cache.diskMB";
+    public static final String KEY_DIR = "proxy.mitm.cache.dir";
+    public static final String KEY_HEADERS = "proxy.mitm.cache.keyHeaders";
+
+    static final String DIR_NAME = "response-cache";
+    private static final int DEFAULT_TTL_SECONDS = 3600;
+    private static final int DEFAULT_MEMORY_MB = 64;
+    private static final int MAX_ENTRY_BYTES = 8 * 1024 * 1024;
+    private static final int FILE_MAGIC = 0x50585243; // "PXRC"
+    private static final String FILE_SUFFIX = ".entry";
+
+    private final RequestKeys keys;
+    private final long ttlMillis;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final File dir;
+
+    // Access-ordered, eldest first; guarded by themselves
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<String, DiskEntry>(64, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    // dir may be null (no disk tier, as with maxDiskBytes 0).
+    public ResponseCache(List<String> paths, boolean deterministicOnly, long ttlMillis, List<String> keyHeaders,
+                         long maxMemoryBytes, long maxDiskBytes, File dir) {
+        this.keys = new RequestKeys(paths, deterministicOnly, keyHeaders);
+        this.ttlMillis = ttlMillis;
+        this.maxMemoryBytes = Math.max(0, maxMemoryBytes);
+        this.maxDiskBytes = dir != null ? Math.max(0, maxDiskBytes) : 0;
+        this.dir = dir;
+        if (this.maxDiskBytes > 0) {
+            loadDisk();
+        }
+    }
+
+    // Null unless proxy.mitm.cache.enabled; the disk tier lives in response-cache/ in defaultDir.
+    public static ResponseCache fromConfig(ProxyConfig config, File defaultDir) {
+        if (!config.getBoolean(KEY_ENABLED, false)) {
+            return null;
+        }
+        String dirPath = config.getString(KEY_DIR, null);
+        File dir = dirPath != null ? new File(dirPath) : new File(defaultDir, DIR_NAME);
+        long diskBytes = config.getLong(KEY_DISK_MB, 0) * 1024 * 1024;
+        ResponseCache cache = new ResponseCache(
+                RequestKeys.split(config.getString(KEY_PATHS, RequestKeys.DEFAULT_PATHS)),
+                config.getBoolean(KEY_DETERMINISTIC_ONLY, true),
+                TimeUnit.SECONDS.toMillis(config.getInt(KEY_TTL_SECONDS, DEFAULT_TTL_SECONDS)),
+                RequestKeys.split(config.getString(KEY_HEADERS, RequestKeys.DEFAULT_HEADERS)),
+                config.getLong(KEY_MEMORY_MB, DEFAULT_MEMORY_MB) * 1024 * 1024,
+                diskBytes, diskBytes > 0 ? dir : null);
+        System.out.println("[MITM] Response cache enabled" + (diskBytes > 0 ? ", disk tier " + dir.getAbsolutePath() : ""));
+        return cache;
+    }
+
+    // True if requests like this may be answered from the cache (method and path; the body decides).
+    public boolean handles(HttpHead request) {
+        return keys.handles(request);
+    }
+
+    // Cache key of the request, or null if it is not cacheable (not a JSON object, not deterministic).
+    public String keyFor(HttpHead request, byte[] body) {
+        return keys.keyFor(request, body);
+    }
+
+    // Fresh entry for key or null; a disk hit moves back into memory.
+    public Entry get(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (memory) {
+            entry = memory.get(key);
+            if (entry != null && entry.expiresAt <= now) {
+                memory.remove(key);
+                memoryBytes -= entry.size();
+                expired.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null && maxDiskBytes > 0) {
+            entry = readDisk(key, now);
+            if (entry != null) {
+                diskHits.incrementAndGet();
+                putMemory(key, entry);
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    // Writes the entry as a response: chunked as recorded (one chunk), else with Content-Length.
+    public void write(Entry entry, OutputStream out) throws IOException {
+        HttpHead head = entry.head();
+        if (head.isChunked()) {
+            head.writeTo(out);
+            OutputStream chunked = HttpBody.chunkedStream(out);
+            chunked.write(entry.body);
+            chunked.close();
+        } else {
+            head.writeWithContentLength(out, entry.body.length);
+            out.write(entry.body);
+        }
+        bytesSaved.addAndGet(entry.size());
+    }
+
+    // Follower that stores the response to this request under key once it is complete.
+    MitmSession.Exchange store(String key) {
+        return new Capture(key);
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        long h = hits.get();
+        long lookups = h + misses.get();
+        int memoryEntries;
+        long memoryNow;
+        synchronized (memory) {
+            memoryEntries = memory.size();
+            memoryNow = memoryBytes;
+        }
+        out.append("mitm.cache.hits: ").append(h).append('\n');
+        out.append("mitm.cache.diskHits: ").append(diskHits.get()).append('\n');
+        out.append("mitm.cache.misses: ").append(misses.get()).append('\n');
+        out.append("mitm.cache.hitRatio: ").append(lookups > 0
+                ? String.format(Locale.ROOT, "%.3f", (double) h / lookups) : "0").append('\n');
+        out.append("mitm.cache.bytesSaved: ").append(bytesSaved.get()).append('\n');
+        out.append("mitm.cache.notDeterministic: ").append(keys.getNotDeterministic()).append('\n');
+        out.append("mitm.cache.stored: ").append(stored.get()).append('\n');
+        out.append("mitm.cache.expired: ").append(expired.get()).append('\n');
+        out.append("mitm.cache.evicted: ").append(evicted.get()).append('\n');
+        out.append("mitm.cache.memoryEntries: ").append(memoryEntries).append('\n');
+        out.append("mitm.cache.memoryBytes: ").append(memoryNow).append('\n');
+        if (maxDiskBytes > 0) {
+            synchronized (disk) {
+                out.append("mitm.cache.diskEntries: ").append(disk.size()).append('\n');
+                out.append("mitm.cache.diskBytes: ").append(diskBytes).append('\n');
+            }
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        stored.incrementAndGet();
+        if (maxDiskBytes > 0) {
+            writeDisk(key, entry);
+        }
+        putMemory(key, entry);
+    }
+
+    // What memory evicts stays available on disk (if there is a disk tier)
+    private void putMemory(String key, Entry entry) {
+        int dropped = 0;
+        synchronized (memory) {
+            Entry old = memory.put(key, entry);
+            if (old != null) {
+                memoryBytes -= old.size();
+            }
+            memoryBytes += entry.size();
+            Iterator<Map.Entry<String, Entry>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> e = eldest.next();
+                eldest.remove();
+                memoryBytes -= e.getValue().size();
+                dropped++;
+            }
+        }
+        if (maxDiskBytes == 0) {
+            evicted.addAndGet(dropped);
+        }
+    }
+
+    // ---- Disk tier: one file per entry, the index in memory ----
+
+    private void loadDisk() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("[MITM] Cannot create cache directory " + dir.getAbsolutePath());
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Oldest first, so the LRU order roughly survives a restart
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long now = System.currentTimeMillis();
+        synchronized (disk) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(FILE_SUFFIX)) {
+                    continue;
+                }
+                long expiresAt = readExpiry(file);
+                if (expiresAt <= now) {
+                    file.delete();
+                    continue;
+                }
+                disk.put(name.substring(0, name.length() - FILE_SUFFIX.length()), new DiskEntry(file.length(), expiresAt));
+                diskBytes += file.length();
+            }
+            trimDisk();
+        }
+    }
+
+    private void writeDisk(String key, Entry entry) {
+        File file = file(key);
+        File tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeLong(entry.expiresAt);
+                out.writeInt(entry.head.length);
+                out.write(entry.head);
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + tmp);
+                }
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            System.out.println("[MITM] Cannot write cache entry: " + e.getMessage());
+            return;
+        }
+        synchronized (disk) {
+            DiskEntry old = disk.put(key, new DiskEntry(file.length(), entry.expiresAt));
+            if (old != null) {
+                diskBytes -= old.size;
+            }
+            diskBytes += file.length();
+            trimDisk();
+        }
+    }
+
+    // Holds the disk lock
+    private void trimDisk() {
+        Iterator<Map.Entry<String, DiskEntry>> eldest = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, DiskEntry> e = eldest.next();
+            eldest.remove();
+            diskBytes -= e.getValue().size;
+            file(e.getKey()).delete();
+            evicted.incrementAndGet();
+        }
+    }
+
+    private Entry readDisk(String key, long now) {
+        synchronized (disk) {
+            DiskEntry entry = disk.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt <= now) {
+                disk.remove(key);
+                diskBytes -= entry.size;
+                file(key).delete();
+                expired.incrementAndGet();
+                return null;
+            }
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file(key)));
+            try {
+                if (in.readInt() != FILE_MAGIC) {
+                    throw new IOException("Not a cache entry");
+                }
+                long expiresAt = in.readLong();
+                byte[] head = readBytes(in);
+                byte[] body = readBytes(in);
+                return new Entry(head, body, expiresAt);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            synchronized (disk) {
+                DiskEntry gone = disk.remove(key);
+                if (gone != null) {
+                    diskBytes -= gone.size;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static long readExpiry(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt() == FILE_MAGIC ? in.readLong() : 0;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_ENTRY_BYTES) {
+            throw new IOException("Corrupt cache entry");
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    private File file(String key) {
+        return new File(dir, key + FILE_SUFFIX);
+    }
+
+    // A cached response: head (without hop-by-hop headers) and decoded body.
+    public static final class Entry {
+
+        private final byte[] head;
+        private final byte[] body;
+        private final long expiresAt;
+
+        Entry(byte[] head, byte[] body, long expiresAt) {
+            this.head = head;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        HttpHead head() throws IOException {
+            HttpHead parsed = new HttpHead();
+            if (parsed.parse(head, 0, head.length) < 0) {
+                throw new IOException("Incomplete cached head");
+            }
+            return parsed;
+        }
+
+        long size() {
+            return head.length + body.length;
+        }
+    }
+
+    private static final class DiskEntry {
+        final long size;
+        final long expiresAt;
+
+        DiskEntry(long size, long expiresAt) {
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Collects a 200 response; stored once it ended completely and within the size limit.
+    private final class Capture implements MitmSession.Exchange, MitmSession.BodyTap {
+
+        private final String key;
+        private byte[] head;
+        private ByteArrayOutputStream body;
+
+        Capture(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void requestBody(byte[] b, int off, int len) {
+            // Keyed by the client's body, see keyFor
+        }
+
+        @Override
+        public MitmSession.BodyTap response(HttpHead response, long sentNanos, long headNanos) {
+            if (response.getStatusCode() != 200 || response.hasHeaderToken("Cache-Control", "no-store")) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try {
+                response.writeTo(bytes, null, null);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // not thrown by a byte array
+            }
+            head = bytes.toByteArray();
+            body = new ByteArrayOutputStream(4096);
+            return this;
+        }
+
+        @Override
+        public void failed() {
+            // Nothing to store
+        }
+
+        @Override
+        public void onData(byte[] b, int off, int len) {
+            if (body == null) {
+                return;
+            }
+            if (body.size() + len > MAX_ENTRY_BYTES) {
+                body = null;
+                return;
+            }
+            body.write(b, off, len);
+        }
+
+        @Override
+        public void onEnd(boolean complete) {
+            if (complete && body != null) {
+                put(key, new Entry(head, body.toByteArray(), System.currentTimeMillis() + ttlMillis));
+            }
+        }
+    }
+}
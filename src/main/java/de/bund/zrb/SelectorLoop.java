@@ -0,0 +1,201 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread. All channel state attached to this loop is only touched from its thread.
+public class SelectorLoop implements Runnable {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int IO_BUFFER_BYTES = 64 * 1024;
+
+    public interface Handler {
+
+        // Called on the loop thread for every ready key. Must not block.
+        void onReady(SelectionKey key);
+
+        // Called roughly once per second for timeouts.
+        void onTick(long nowMillis);
+    }
+
+    private final String name;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // Scratch buffer for reads, data only stays here while a single handler call runs
+    private final ByteBuffer ioBuffer = BufferPool.shared().acquireDirect(IO_BUFFER_BYTES);
+
+    private List<Runnable> afterNextSelect = new ArrayList<Runnable>();
+    private volatile boolean running;
+    private Thread thread;
+    private long lastTick;
+
+    public SelectorLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Run task on the loop thread.
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // Loop thread only.
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+            key.attach(handler);
+            return key;
+        }
+        return channel.register(selector, ops, handler);
+    }
+
+    // Loop thread only. Cancels the key; afterwards runs once the channel is really deregistered,
+    // so the channel may be switched back to blocking mode there.
+    public void deregister(SelectionKey key, Runnable afterwards) {
+        key.cancel();
+        afterNextSelect.add(afterwards);
+    }
+
+    public ByteBuffer ioBuffer() {
+        ioBuffer.clear();
+        return ioBuffer;
+    }
+
+    public int getChannelCount() {
+        return selector.keys().size();
+    }
+
+    @Override
+    public void run() {
+        lastTick = System.currentTimeMillis();
+        try {
+            while (running) {
+                if (afterNextSelect.isEmpty() && tasks.isEmpty()) {
+                    selector.select(TICK_MILLIS);
+                } else {
+                    selector.selectNow();
+                }
+
+                List<Runnable> deregistered = afterNextSelect;
+                afterNextSelect = new ArrayList<Runnable>();
+
+                processSelectedKeys();
+                runTasks();
+                for (Runnable r : deregistered) {
+                    runSafely(r);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_MILLIS) {
+                    lastTick = now;
+                    tick(now);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[Proxy] Selector loop " + name + " failed: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Object attachment = key.attachment();
+            if (!key.isValid() || !(attachment instanceof Handler)) {
+                continue;
+            }
+            try {
+                ((Handler) attachment).onReady(key);
+            } catch (CancelledKeyException ignored) {
+                // Channel closed by the other side of a session
+            } catch (RuntimeException e) {
+                System.err.println("[Proxy] Handler error in " + name + ": " + e);
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    private void tick(long now) {
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof Handler) {
+                try {
+                    ((Handler) attachment).onTick(now);
+                } catch (RuntimeException e) {
+                    closeQuietly(key);
+                }
+            }
+        }
+    }
+
+    private void runSafely(Runnable r) {
+        try {
+            r.run();
+        } catch (RuntimeException e) {
+            System.err.println("[Proxy] Task error in " + name + ": " + e);
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+        BufferPool.shared().release(ioBuffer);
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+}
@@ -1,33 +1,28 @@
 package de.bund.zrb;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
 
 public class SocketPipeTask implements Runnable {
 
     private final Socket source;
     private final Socket target;
+    private final StreamCopier copier;
 
     public SocketPipeTask(Socket source, Socket target) {
+        this(source, target, StreamCopier.DIRECT);
+    }
+
+    public SocketPipeTask(Socket source, Socket target, StreamCopier copier) {
         this.source = source;
         this.target = target;
+        this.copier = copier;
     }
 
     @Override
     public void run() {
-        byte[] buffer = new byte[8192];
         try {
-            InputStream in = source.getInputStream();
-            OutputStream out = target.getOutputStream();
-            int read;
-            while (!source.isClosed()
-                    && !target.isClosed()
-                    && (read = in.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-                out.flush();
-            }
+            copier.copy(source.getInputStream(), target.getOutputStream());
         } catch (IOException ignored) {
             // Ignore, connection closed
         }
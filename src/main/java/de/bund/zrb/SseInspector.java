@@ -0,0 +1,271 @@
+package de.bund.zrb;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Incremental parser for a text/event-stream body. Bytes are fed after they were forwarded, every
+// complete event goes to the sink right away. JSON payloads of LLM completion streams (OpenAI
+// chat/completions and responses, Anthropic messages) are recognised to measure time to first
+// token, tokens per second and the final usage block. One instance per response, one thread.
+final class SseInspector implements MitmSession.BodyTap {
+
+    interface Sink {
+
+        // One event; event is "message" unless the stream named it.
+        void onEvent(String event, String data);
+
+        // After the last byte of the stream (or the connection ended early).
+        void onCompleted(StreamMetrics metrics);
+    }
+
+    // Longer lines (which no completion stream sends) are skipped, not buffered
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long sentNanos;
+    private final long headNanos;
+    private final Sink sink;
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean lineTooLong;
+    private boolean afterCr;
+
+    private String eventType;
+    private StringBuilder data;
+
+    private int events;
+    private int contentEvents;
+    private long firstTokenNanos = -1;
+    private long lastTokenNanos = -1;
+    private String model;
+    private String usage;
+    private long usageTokens = -1;
+    private boolean finished;
+
+    // sentNanos: request sent upstream, headNanos: response head received (System.nanoTime()).
+    SseInspector(long sentNanos, long headNanos, Sink sink) {
+        this.sentNanos = sentNanos;
+        this.headNanos = headNanos;
+        this.sink = sink;
+    }
+
+    static boolean isEventStream(HttpHead response) {
+        String type = response.getHeader("Content-Type");
+        String encoding = response.getHeader("Content-Encoding");
+        return type != null && type.trim().toLowerCase(Locale.ROOT).startsWith("text/event-stream")
+                && (encoding == null || "identity".equalsIgnoreCase(encoding.trim()));
+    }
+
+    // Lines end with LF, CRLF or CR.
+    @Override
+    public void onData(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            byte c = b[i];
+            if (c == '\n') {
+                if (!afterCr) {
+                    endLine();
+                }
+                afterCr = false;
+            } else if (c == '\r') {
+                endLine();
+                afterCr = true;
+            } else {
+                afterCr = false;
+                append(c);
+            }
+        }
+    }
+
+    // An event without its closing blank line is dropped, as a browser would.
+    @Override
+    public void onEnd(boolean complete) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long end = System.nanoTime();
+        long tokens = usageTokens >= 0 ? usageTokens : contentEvents;
+        double tokensPerSecond = 0;
+        if (tokens > 1 && lastTokenNanos > firstTokenNanos) {
+            // The interval between first and last token covers all tokens but the first
+            tokensPerSecond = (tokens - 1) * 1e9 / (lastTokenNanos - firstTokenNanos);
+        }
+        sink.onCompleted(new StreamMetrics(model,
+                millis(headNanos - sentNanos),
+                firstTokenNanos >= 0 ? millis(firstTokenNanos - sentNanos) : -1,
+                millis(end - sentNanos),
+                events, contentEvents, tokens, tokensPerSecond, usage, complete));
+    }
+
+    private void append(byte c) {
+        if (lineTooLong) {
+            return;
+        }
+        if (lineLength == line.length) {
+            if (lineLength >= MAX_LINE_BYTES) {
+                lineTooLong = true;
+                return;
+            }
+            byte[] bigger = new byte[Math.min(MAX_LINE_BYTES, line.length * 2)];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        line[lineLength++] = c;
+    }
+
+    private void endLine() {
+        if (lineTooLong) {
+            lineTooLong = false;
+            lineLength = 0;
+            return;
+        }
+        if (lineLength == 0) {
+            dispatch();
+            return;
+        }
+        String text = new String(line, 0, lineLength, UTF_8);
+        lineLength = 0;
+        if (text.charAt(0) == ':') {
+            return; // comment / keep-alive
+        }
+        int colon = text.indexOf(':');
+        String field = colon < 0 ? text : text.substring(0, colon);
+        String value = colon < 0 ? "" : text.substring(colon + 1);
+        if (value.startsWith(" ")) {
+            value = value.substring(1);
+        }
+        if ("data".equals(field)) {
+            if (data == null) {
+                data = new StringBuilder(value.length());
+            } else {
+                data.append('\n');
+            }
+            data.append(value);
+        } else if ("event".equals(field)) {
+            eventType = value;
+        }
+        // id and retry do not matter here
+    }
+
+    private void dispatch() {
+        String event = eventType != null && !eventType.isEmpty() ? eventType : "message";
+        String payload = data != null ? data.toString() : "";
+        eventType = null;
+        data = null;
+        if (payload.isEmpty()) {
+            return;
+        }
+        events++;
+        inspect(payload);
+        sink.onEvent(event, payload);
+    }
+
+    private void inspect(String payload) {
+        if (payload.charAt(0) != '{') {
+            return; // e.g. "[DONE]"
+        }
+        JsonObject json;
+        try {
+            JsonElement parsed = JsonParser.parseString(payload);
+            if (!parsed.isJsonObject()) {
+                return;
+            }
+            json = parsed.getAsJsonObject();
+        } catch (JsonParseException e) {
+            return;
+        }
+
+        // Anthropic wraps the message, the responses API the response
+        JsonObject wrapped = object(json, "message");
+        if (wrapped == null) {
+            wrapped = object(json, "response");
+        }
+        if (model == null) {
+            model = string(json, "model");
+            if (model == null && wrapped != null) {
+                model = string(wrapped, "model");
+            }
+        }
+        if (hasText(json)) {
+            long now = System.nanoTime();
+            if (firstTokenNanos < 0) {
+                firstTokenNanos = now;
+            }
+            lastTokenNanos = now;
+            contentEvents++;
+        }
+        JsonObject usageBlock = object(json, "usage");
+        if (usageBlock == null && wrapped != null) {
+            usageBlock = object(wrapped, "usage");
+        }
+        if (usageBlock != null) {
+            usage = usageBlock.toString();
+            long tokens = number(usageBlock, "completion_tokens");
+            if (tokens < 0) {
+                tokens = number(usageBlock, "output_tokens");
+            }
+            if (tokens >= 0) {
+                usageTokens = tokens;
+            }
+        }
+    }
+
+    // Generated text in any of the known delta shapes.
+    private static boolean hasText(JsonObject json) {
+        JsonElement choices = json.get("choices");
+        if (choices != null && choices.isJsonArray()) {
+            for (JsonElement choice : choices.getAsJsonArray()) {
+                if (!choice.isJsonObject()) {
+                    continue;
+                }
+                JsonObject delta = object(choice.getAsJsonObject(), "delta");
+                if (delta != null && (nonEmpty(delta, "content") || nonEmpty(delta, "reasoning_content"))) {
+                    return true;
+                }
+                if (nonEmpty(choice.getAsJsonObject(), "text")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        JsonElement delta = json.get("delta");
+        if (delta != null && delta.isJsonPrimitive()) {
+            return !delta.getAsString().isEmpty();
+        }
+        if (delta != null && delta.isJsonObject()) {
+            return nonEmpty(delta.getAsJsonObject(), "text") || nonEmpty(delta.getAsJsonObject(), "thinking");
+        }
+        return false;
+    }
+
+    private static JsonObject object(JsonObject json, String name) {
+        JsonElement e = json.get(name);
+        return e != null && e.isJsonObject() ? e.getAsJsonObject() : null;
+    }
+
+    private static String string(JsonObject json, String name) {
+        JsonElement e = json.get(name);
+        return e != null && e.isJsonPrimitive() && e.getAsJsonPrimitive().isString() ? e.getAsString() : null;
+    }
+
+    private static boolean nonEmpty(JsonObject json, String name) {
+        String s = string(json, name);
+        return s != null && !s.isEmpty();
+    }
+
+    private static long number(JsonObject json, String name) {
+        JsonElement e = json.get(name);
+        return e != null && e.isJsonPrimitive() && e.getAsJsonPrimitive().isNumber() ? e.getAsLong() : -1;
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,7 @@
+package de.bund.zrb;
+
+public interface StatsProvider {
+
+    // Append a human readable snapshot of the current counters, one "key: value" line each.
+    void appendStats(StringBuilder out);
+}
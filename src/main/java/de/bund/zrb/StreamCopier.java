@@ -0,0 +1,97 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Copies streams for the blocking relays. In coalescing mode the bytes are collected in one
+// pooled buffer and written when the source has nothing more available right now, the buffer
+// is full (16k = one TLS record) or the oldest unwritten byte is older than maxDelay.
+// Interactive streams (SSE) therefore still go out immediately, bulk transfers get large writes.
+public class StreamCopier {
+
+    public static final String KEY_COALESCE = "proxy.relay.coalesce";
+    public static final String KEY_MAX_DELAY_MILLIS = "proxy.relay.maxDelayMillis";
+
+    private static final int DEFAULT_MAX_DELAY_MILLIS = 2;
+
+    // Old behaviour: write and flush after every read
+    public static final StreamCopier DIRECT = new StreamCopier(false, 0);
+
+    private final boolean coalesce;
+    private final long maxDelayNanos;
+    private final BufferPool bufferPool = BufferPool.shared();
+
+    public StreamCopier(boolean coalesce, long maxDelayMillis) {
+        this.coalesce = coalesce;
+        this.maxDelayNanos = maxDelayMillis * 1000000L;
+    }
+
+    public static StreamCopier fromConfig(ProxyConfig config) {
+        return new StreamCopier(
+                config.getBoolean(KEY_COALESCE, true),
+                Math.max(0, config.getInt(KEY_MAX_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS)));
+    }
+
+    // Copy until EOF. Returns the number of bytes copied.
+    public long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, Long.MAX_VALUE);
+    }
+
+    // Copy at most limit bytes (stops early on EOF). Returns the number of bytes copied.
+    public long copy(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = bufferPool.acquireArray(BufferPool.MEDIUM);
+        try {
+            return coalesce ? copyCoalescing(in, out, limit, buffer) : copyDirect(in, out, limit, buffer);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private long copyDirect(InputStream in, OutputStream out, long limit, byte[] buffer) throws IOException {
+        long total = 0;
+        while (total < limit) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total));
+            if (read == -1) {
+                break;
+            }
+            out.write(buffer, 0, read);
+            out.flush();
+            total += read;
+        }
+        return total;
+    }
+
+    private long copyCoalescing(InputStream in, OutputStream out, long limit, byte[] buffer) throws IOException {
+        long total = 0;
+        int pending = 0;
+        long firstPendingNanos = 0;
+        while (total < limit) {
+            // Only reached with pending > 0 if more bytes are available, so this never blocks
+            // while unwritten data sits in the buffer
+            int read = in.read(buffer, pending, (int) Math.min(buffer.length - pending, limit - total));
+            if (read == -1) {
+                break;
+            }
+            if (pending == 0) {
+                firstPendingNanos = System.nanoTime();
+            }
+            pending += read;
+            total += read;
+
+            if (pending == buffer.length
+                    || total >= limit
+                    || in.available() == 0
+                    || System.nanoTime() - firstPendingNanos >= maxDelayNanos) {
+                out.write(buffer, 0, pending);
+                out.flush();
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            out.write(buffer, 0, pending);
+            out.flush();
+        }
+        return total;
+    }
+}
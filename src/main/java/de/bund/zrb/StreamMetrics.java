@@ -0,0 +1,104 @@
+package de.bund.zrb;
+
+import java.util.Locale;
+
+// Timing and usage of one streamed (text/event-stream) response, measured on the MITM response
+// leg. All times are relative to the moment the request was sent upstream; -1 = not observed.
+public final class StreamMetrics {
+
+    private final String model;
+    private final long ttfbMillis;
+    private final long ttftMillis;
+    private final long durationMillis;
+    private final int events;
+    private final int contentEvents;
+    private final long completionTokens;
+    private final double tokensPerSecond;
+    private final String usage;
+    private final boolean complete;
+
+    public StreamMetrics(String model, long ttfbMillis, long ttftMillis, long durationMillis,
+                         int events, int contentEvents, long completionTokens, double tokensPerSecond,
+                         String usage, boolean complete) {
+        this.model = model;
+        this.ttfbMillis = ttfbMillis;
+        this.ttftMillis = ttftMillis;
+        this.durationMillis = durationMillis;
+        this.events = events;
+        this.contentEvents = contentEvents;
+        this.completionTokens = completionTokens;
+        this.tokensPerSecond = tokensPerSecond;
+        this.usage = usage;
+        this.complete = complete;
+    }
+
+    // "model" of the first event that has one, or null
+    public String getModel() {
+        return model;
+    }
+
+    // Until the response head arrived
+    public long getTtfbMillis() {
+        return ttfbMillis;
+    }
+
+    // Until the first event carrying generated text
+    public long getTtftMillis() {
+        return ttftMillis;
+    }
+
+    // Until the last byte of the stream
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getEvents() {
+        return events;
+    }
+
+    // Events that carried generated text
+    public int getContentEvents() {
+        return contentEvents;
+    }
+
+    // From the usage block if the stream had one, otherwise the number of content events
+    public long getCompletionTokens() {
+        return completionTokens;
+    }
+
+    // Completion tokens per second after the first token; 0 if not measurable
+    public double getTokensPerSecond() {
+        return tokensPerSecond;
+    }
+
+    // The last "usage" object of the stream as JSON, or null
+    public String getUsage() {
+        return usage;
+    }
+
+    // False if the connection ended before the stream did
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (model != null) {
+            sb.append("model=").append(model).append(' ');
+        }
+        sb.append("ttfb=").append(ttfbMillis).append("ms");
+        sb.append(" ttft=").append(ttftMillis >= 0 ? ttftMillis + "ms" : "n/a");
+        sb.append(" duration=").append(durationMillis).append("ms");
+        sb.append(" events=").append(events);
+        sb.append(" tokens=").append(completionTokens);
+        sb.append(String.format(Locale.ROOT, " (%.1f tok/s)", tokensPerSecond));
+        if (usage != null) {
+            sb.append(" usage=").append(usage);
+        }
+        if (!complete) {
+            sb.append(" (incomplete)");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,236 @@
+package de.bund.zrb;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// TLS settings and handshake metrics for one side of a MITM connection ("client" = towards the
+// IDE, "upstream" = towards the origin). Protocols and cipher suites are preference lists;
+// entries the JVM does not support are skipped, an empty list keeps the JVM defaults. On the
+// server side the list order wins over the client's order. Sessions are cached per SSLContext,
+// so reconnects can use an abbreviated handshake; resumed handshakes are counted separately.
+public class TlsProfile implements StatsProvider {
+
+    public static final String KEY_PROTOCOLS = ".protocols";
+    public static final String KEY_CIPHER_SUITES = ".cipherSuites";
+    public static final String KEY_SESSION_CACHE_SIZE = ".sessionCacheSize";
+    public static final String KEY_SESSION_TIMEOUT_SECONDS = ".sessionTimeoutSeconds";
+    public static final String KEY_SESSION_TICKETS = "proxy.mitm.sessionTickets";
+
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+    private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    // ALPN (Java 9+, backported to 8u252); looked up at runtime, the build targets the Java 8 API
+    private static final Method SET_APPLICATION_PROTOCOLS = method(SSLParameters.class, "setApplicationProtocols",
+            String[].class);
+    private static final Method GET_APPLICATION_PROTOCOL = method(SSLSocket.class, "getApplicationProtocol");
+
+    private final String name;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final int sessionCacheSize;
+    private final int sessionTimeoutSeconds;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private final AtomicLong cpuSamples = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+    private volatile String lastSuite;
+    // Filtered against the JVM's supported lists on first use
+    private volatile String[] enabledProtocols;
+    private volatile String[] enabledSuites;
+
+    public TlsProfile(String name, String[] protocols, String[] cipherSuites,
+                      int sessionCacheSize, int sessionTimeoutSeconds) {
+        this.name = name;
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+        this.sessionCacheSize = Math.max(0, sessionCacheSize);
+        this.sessionTimeoutSeconds = Math.max(0, sessionTimeoutSeconds);
+    }
+
+    // Reads proxy.mitm.<name>.protocols, .cipherSuites (comma separated), .sessionCacheSize and
+    // .sessionTimeoutSeconds.
+    public static TlsProfile fromConfig(ProxyConfig config, String name) {
+        String prefix = "proxy.mitm." + name;
+        return new TlsProfile(name,
+                split(config.getString(prefix + KEY_PROTOCOLS, null)),
+                split(config.getString(prefix + KEY_CIPHER_SUITES, null)),
+                config.getInt(prefix + KEY_SESSION_CACHE_SIZE, DEFAULT_SESSION_CACHE_SIZE),
+                config.getInt(prefix + KEY_SESSION_TIMEOUT_SECONDS, DEFAULT_SESSION_TIMEOUT_SECONDS));
+    }
+
+    // Stateless session tickets (RFC 5077 / TLS 1.3 PSK) are a JSSE-wide switch on Java 13+ and on
+    // by default there; Java 8 resumes by session ID only. Must run before the first handshake.
+    public static void configureSessionTickets(ProxyConfig config) {
+        String enabled = String.valueOf(config.getBoolean(KEY_SESSION_TICKETS, true));
+        setIfAbsent("jdk.tls.server.enableSessionTicketExtension", enabled);
+        setIfAbsent("jdk.tls.client.enableSessionTicketExtension", enabled);
+    }
+
+    // Sizes the session cache of a context this profile's sockets come from (0 = unlimited).
+    public void configure(SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+    }
+
+    public void configure(SSLSocket socket) {
+        if (protocols.length == 0 && cipherSuites.length == 0) {
+            return;
+        }
+        if (enabledProtocols == null) {
+            enabledSuites = supported(cipherSuites, socket.getSupportedCipherSuites());
+            enabledProtocols = supported(protocols, socket.getSupportedProtocols());
+        }
+        SSLParameters params = socket.getSSLParameters();
+        if (enabledProtocols.length > 0) {
+            params.setProtocols(enabledProtocols);
+        }
+        if (enabledSuites.length > 0) {
+            params.setCipherSuites(enabledSuites);
+            params.setUseCipherSuitesOrder(true);
+        }
+        socket.setSSLParameters(params);
+    }
+
+    // Offers protocols via ALPN in the next handshake (server side: picks the first one the client
+    // also offers). False if the JVM has no ALPN.
+    public static boolean offerApplicationProtocols(SSLSocket socket, String... protocols) {
+        if (SET_APPLICATION_PROTOCOLS == null) {
+            return false;
+        }
+        SSLParameters params = socket.getSSLParameters();
+        try {
+            SET_APPLICATION_PROTOCOLS.invoke(params, (Object) protocols);
+        } catch (Exception e) {
+            return false;
+        }
+        socket.setSSLParameters(params);
+        return true;
+    }
+
+    // Protocol agreed via ALPN in the completed handshake, or null.
+    public static String applicationProtocol(SSLSocket socket) {
+        if (GET_APPLICATION_PROTOCOL == null) {
+            return null;
+        }
+        try {
+            String protocol = (String) GET_APPLICATION_PROTOCOL.invoke(socket);
+            return protocol == null || protocol.isEmpty() ? null : protocol;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // startHandshake() with wall clock and (where the JVM supports it) thread CPU time recorded.
+    public void handshake(SSLSocket socket) throws IOException {
+        long cpuStart = threadCpuNanos();
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+        handshakeNanos.addAndGet(System.nanoTime() - start);
+        handshakes.incrementAndGet();
+        long cpuEnd = cpuStart >= 0 ? threadCpuNanos() : -1;
+        if (cpuEnd >= 0) {
+            cpuNanos.addAndGet(cpuEnd - cpuStart);
+            cpuSamples.incrementAndGet();
+        }
+        SSLSession session = socket.getSession();
+        // A resumed session keeps the creation time of the full handshake that established it
+        if (session.getCreationTime() < startMillis) {
+            resumed.incrementAndGet();
+        }
+        lastSuite = session.getProtocol() + " " + session.getCipherSuite();
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        String prefix = "mitm.tls." + name + ".";
+        long count = handshakes.get();
+        long samples = cpuSamples.get();
+        out.append(prefix).append("handshakes: ").append(count).append('\n');
+        out.append(prefix).append("failures: ").append(failures.get()).append('\n');
+        out.append(prefix).append("resumed: ").append(resumed.get())
+                .append(count > 0 ? " (" + resumed.get() * 100 / count + "%)" : "").append('\n');
+        out.append(prefix).append("avgMicros: ")
+                .append(count > 0 ? TimeUnit.NANOSECONDS.toMicros(handshakeNanos.get() / count) : 0).append('\n');
+        out.append(prefix).append("avgCpuMicros: ")
+                .append(samples > 0 ? TimeUnit.NANOSECONDS.toMicros(cpuNanos.get() / samples) : "n/a").append('\n');
+        out.append(prefix).append("cpuMillisTotal: ")
+                .append(TimeUnit.NANOSECONDS.toMillis(cpuNanos.get())).append('\n');
+        if (lastSuite != null) {
+            out.append(prefix).append("lastSuite: ").append(lastSuite).append('\n');
+        }
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameters) {
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static void setIfAbsent(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    // -1 if not measurable (disabled, unsupported, or a virtual thread).
+    private static long threadCpuNanos() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    // Preferred entries in preference order, restricted to what the socket supports.
+    private static String[] supported(String[] preferred, String[] available) {
+        Set<String> availableSet = new HashSet<String>(Arrays.asList(available));
+        List<String> result = new ArrayList<String>();
+        for (String p : preferred) {
+            if (availableSet.contains(p)) {
+                result.add(p);
+            } else {
+                System.out.println("[MITM] Ignoring unsupported TLS setting: " + p);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    private static String[] split(String value) {
+        if (value == null) {
+            return new String[0];
+        }
+        List<String> result = new ArrayList<String>();
+        for (String part : value.split(",")) {
+            String t = part.trim();
+            if (!t.isEmpty()) {
+                result.add(t);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,440 @@
+package de.bund.zrb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Append-only file of recorded exchanges: request as sent upstream (Host, method, target, body)
+// and response (head as received, decoded body in segments with the delay before each). One
+// record is written with a single append, a torn record at the end (crash) is ignored on load.
+//
+// File: "PXTS" version, then per record: int length, payload of that length.
+public class TrafficStore implements StatsProvider {
+
+    private static final int MAGIC = 0x50585453; // "PXTS"
+    private static final int VERSION = 1;
+    // Exchanges with larger bodies are forwarded but not recorded
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private final File file;
+
+    private final Object appendLock = new Object();
+    private OutputStream appendStream;
+
+    // Replay index: request key -> record offsets, served in turn
+    private final Map<String, long[]> index = new HashMap<String, long[]>();
+    private final Map<String, AtomicInteger> turns = new HashMap<String, AtomicInteger>();
+    private FileChannel readChannel;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong recordedBytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public TrafficStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Follower that records one exchange; request is the head as sent upstream.
+    MitmSession.Exchange record(HttpHead request) {
+        return new Recording(request);
+    }
+
+    // Reads the index of all complete records; call once before lookups.
+    public synchronized int load() throws IOException {
+        Map<String, List<Long>> offsets = new HashMap<String, List<Long>>();
+        int records = 0;
+        long fileLength = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            readHeader(in);
+            long offset = 8;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > fileLength - offset - 4) {
+                    System.out.println("[MITM] Ignoring truncated record at " + offset + " in " + file);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                Record record = Record.parse(payload);
+                List<Long> list = offsets.get(record.key());
+                if (list == null) {
+                    list = new ArrayList<Long>();
+                    offsets.put(record.key(), list);
+                }
+                list.add(offset);
+                records++;
+                offset += 4 + length;
+            }
+        } finally {
+            in.close();
+        }
+        for (Map.Entry<String, List<Long>> e : offsets.entrySet()) {
+            long[] list = new long[e.getValue().size()];
+            for (int i = 0; i < list.length; i++) {
+                list[i] = e.getValue().get(i);
+            }
+            index.put(e.getKey(), list);
+            turns.put(e.getKey(), new AtomicInteger());
+        }
+        readChannel = new RandomAccessFile(file, "r").getChannel();
+        return records;
+    }
+
+    // Recording for this request (repeated requests get their recordings in turn), or null.
+    Record lookup(String host, String method, String target, byte[] body) throws IOException {
+        String key = key(host, method, target, body);
+        long[] offsets = index.get(key);
+        if (offsets == null) {
+            return null;
+        }
+        long offset = offsets[(turns.get(key).getAndIncrement() & Integer.MAX_VALUE) % offsets.length];
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        ByteBuffer payload = ByteBuffer.allocate(length.getInt(0));
+        readFully(payload, offset + 4);
+        return Record.parse(payload.array());
+    }
+
+    public void close() {
+        synchronized (appendLock) {
+            closeQuietly(appendStream);
+            appendStream = null;
+        }
+        closeQuietly(readChannel);
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("mitm.store.file: ").append(file.getAbsolutePath()).append('\n');
+        out.append("mitm.store.recorded: ").append(recorded.get()).append('\n');
+        out.append("mitm.store.recordedBytes: ").append(recordedBytes.get()).append('\n');
+        out.append("mitm.store.skipped: ").append(skipped.get()).append('\n');
+        out.append("mitm.store.failed: ").append(failed.get()).append('\n');
+        if (!index.isEmpty()) {
+            out.append("mitm.store.indexedRequests: ").append(index.size()).append('\n');
+        }
+    }
+
+    private void append(byte[] payload) {
+        synchronized (appendLock) {
+            try {
+                if (appendStream == null) {
+                    boolean fresh = !file.isFile() || file.length() == 0;
+                    if (!fresh) {
+                        dropTornTail();
+                    }
+                    appendStream = new FileOutputStream(file, true);
+                    if (fresh) {
+                        DataOutputStream header = new DataOutputStream(appendStream);
+                        header.writeInt(MAGIC);
+                        header.writeInt(VERSION);
+                    }
+                }
+                byte[] record = new byte[4 + payload.length];
+                ByteBuffer.wrap(record).putInt(payload.length).put(payload);
+                appendStream.write(record);
+                appendStream.flush();
+                recorded.incrementAndGet();
+                recordedBytes.addAndGet(record.length);
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                System.out.println("[MITM] Cannot record to " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Cuts a record torn by a crash, so the next ones are not appended behind it.
+    private void dropTornTail() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < 8 || raf.readInt() != MAGIC) {
+                throw new IOException("Not a traffic store: " + file);
+            }
+            long end = 8;
+            while (end + 4 <= raf.length()) {
+                raf.seek(end);
+                int length = raf.readInt();
+                long next = end + 4 + length;
+                if (length < 0 || next > raf.length()) {
+                    break;
+                }
+                end = next;
+            }
+            if (end < raf.length()) {
+                System.out.println("[MITM] Dropping truncated record at " + end + " in " + file);
+                raf.setLength(end);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void readHeader(DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a traffic store: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported traffic store version " + version + ": " + file);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Empty traffic store: " + file);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (readChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Record beyond end of " + file);
+            }
+        }
+    }
+
+    // host is the Host header as sent (lower case), the body is compared by its hash.
+    static String key(String host, String method, String target, byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder key = new StringBuilder(host.length() + target.length() + 80);
+            key.append(host.toLowerCase(Locale.ROOT)).append(' ').append(method).append(' ')
+                    .append(target).append(' ');
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ignored) { }
+    }
+
+    // Collects one exchange; written once the response ended completely.
+    private final class Recording implements MitmSession.Exchange, MitmSession.BodyTap {
+
+        private final long recordedAt = System.currentTimeMillis();
+        private final String host;
+        private final String method;
+        private final String target;
+        private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+
+        private byte[] responseHead;
+        private long headDelayMillis;
+        private long lastNanos;
+        private final List<byte[]> segments = new ArrayList<byte[]>();
+        private final List<Long> delays = new ArrayList<Long>();
+        private ByteArrayOutputStream segment;
+        private long size;
+        private boolean tooLarge;
+
+        Recording(HttpHead request) {
+            String h = request.getHeader("Host");
+            this.host = h != null ? h.trim() : "";
+            this.method = request.getMethod();
+            this.target = request.getTarget();
+        }
+
+        @Override
+        public void requestBody(byte[] b, int off, int len) {
+            if (grow(len)) {
+                requestBody.write(b, off, len);
+            }
+        }
+
+        @Override
+        public MitmSession.BodyTap response(HttpHead response, long sentNanos, long headNanos) {
+            ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+            try {
+                response.writeTo(head);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // not thrown by a byte array
+            }
+            responseHead = head.toByteArray();
+            headDelayMillis = TimeUnit.NANOSECONDS.toMillis(headNanos - sentNanos);
+            lastNanos = headNanos;
+            return this;
+        }
+
+        @Override
+        public void failed() {
+            skipped.incrementAndGet();
+        }
+
+        // Reads within the same millisecond go into one segment
+        @Override
+        public void onData(byte[] b, int off, int len) {
+            if (!grow(len)) {
+                return;
+            }
+            long now = System.nanoTime();
+            long delay = TimeUnit.NANOSECONDS.toMillis(now - lastNanos);
+            if (segment == null || delay > 0) {
+                closeSegment();
+                segment = new ByteArrayOutputStream(len);
+                delays.add(delay);
+                lastNanos = now;
+            }
+            segment.write(b, off, len);
+        }
+
+        @Override
+        public void onEnd(boolean complete) {
+            if (!complete || tooLarge) {
+                skipped.incrementAndGet();
+                return;
+            }
+            closeSegment();
+            append(encode());
+        }
+
+        private boolean grow(int len) {
+            size += len;
+            if (size > MAX_RECORD_BYTES) {
+                tooLarge = true;
+                requestBody.reset();
+                segments.clear();
+                segment = null;
+            }
+            return !tooLarge;
+        }
+
+        private void closeSegment() {
+            if (segment != null) {
+                segments.add(segment.toByteArray());
+                segment = null;
+            }
+        }
+
+        private byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) size + 512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeLong(recordedAt);
+                out.writeUTF(host);
+                out.writeUTF(method);
+                out.writeUTF(target);
+                writeBytes(out, requestBody.toByteArray());
+                writeBytes(out, responseHead);
+                out.writeLong(headDelayMillis);
+                out.writeInt(segments.size());
+                for (int i = 0; i < segments.size(); i++) {
+                    out.writeLong(delays.get(i));
+                    writeBytes(out, segments.get(i));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // not thrown by a byte array
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    // One recorded exchange as read back for replay.
+    static final class Record {
+
+        final long recordedAt;
+        final String host;
+        final String method;
+        final String target;
+        final byte[] requestBody;
+        final byte[] responseHead;
+        final long headDelayMillis;
+        // Decoded response body; segments[i] followed delays[i] ms after the previous one
+        final List<byte[]> segments;
+        final long[] delays;
+
+        private Record(long recordedAt, String host, String method, String target, byte[] requestBody,
+                       byte[] responseHead, long headDelayMillis, List<byte[]> segments, long[] delays) {
+            this.recordedAt = recordedAt;
+            this.host = host;
+            this.method = method;
+            this.target = target;
+            this.requestBody = requestBody;
+            this.responseHead = responseHead;
+            this.headDelayMillis = headDelayMillis;
+            this.segments = segments;
+            this.delays = delays;
+        }
+
+        static Record parse(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long recordedAt = in.readLong();
+            String host = in.readUTF();
+            String method = in.readUTF();
+            String target = in.readUTF();
+            byte[] requestBody = readBytes(in);
+            byte[] responseHead = readBytes(in);
+            long headDelay = in.readLong();
+            int count = in.readInt();
+            List<byte[]> segments = new ArrayList<byte[]>(count);
+            long[] delays = new long[count];
+            for (int i = 0; i < count; i++) {
+                delays[i] = in.readLong();
+                segments.add(readBytes(in));
+            }
+            return new Record(recordedAt, host, method, target, requestBody, responseHead, headDelay,
+                    Collections.unmodifiableList(segments), delays);
+        }
+
+        String key() {
+            return TrafficStore.key(host, method, target, requestBody);
+        }
+
+        HttpHead responseHead() throws IOException {
+            HttpHead head = new HttpHead();
+            if (head.parse(responseHead, 0, responseHead.length) < 0) {
+                throw new IOException("Incomplete response head in record");
+            }
+            return head;
+        }
+    }
+}
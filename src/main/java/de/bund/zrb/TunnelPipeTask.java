@@ -1,36 +1,62 @@
 package de.bund.zrb;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 public class TunnelPipeTask implements Runnable {
 
     private final Socket source;
     private final Socket target;
+    private final StreamCopier copier;
 
     public TunnelPipeTask(Socket source, Socket target) {
+        this(source, target, StreamCopier.DIRECT);
+    }
+
+    public TunnelPipeTask(Socket source, Socket target, StreamCopier copier) {
         this.source = source;
         this.target = target;
+        this.copier = copier;
     }
 
     @Override
     public void run() {
-        byte[] buffer = new byte[8192];
         try {
-            InputStream in = source.getInputStream();
-            OutputStream out = target.getOutputStream();
-
-            int read;
-            while (!source.isClosed()
-                    && !target.isClosed()
-                    && (read = in.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-                out.flush();
+            copier.copy(source.getInputStream(), target.getOutputStream());
+
+            // Source finished sending: pass the half-close on, the other direction keeps running
+            if (!source.isClosed() && !target.isClosed()) {
+                shutdownOutput(target);
             }
+        } catch (SocketTimeoutException ignored) {
+            // Idle in this direction, the other direction may still be busy
+        } catch (IOException ignored) {
+            // Connection broken: close both so the other direction does not wait for its read timeout
+            closeQuietly(source);
+            closeQuietly(target);
+        }
+    }
+
+    private void shutdownOutput(Socket socket) {
+        try {
+            socket.shutdownOutput();
+            if (source.isOutputShutdown()) {
+                // Both directions done
+                closeQuietly(source);
+                closeQuietly(target);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // SSLSocket on older JREs cannot half-close, end the whole connection instead
+            closeQuietly(socket);
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
         } catch (IOException ignored) {
-            // Connection closed, stop piping
+            // Ignore
         }
     }
 }
@@ -0,0 +1,88 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared relay for established tunnels of the blocking engine. Instead of two pipe threads
+// plus a joining worker per tunnel, both directions are moved by a ChannelTunnel on one of a
+// few selector threads and the worker is released right after the CONNECT handshake.
+public class TunnelRelay implements StatsProvider {
+
+    private final int selectorThreads;
+    private final long idleTimeoutMillis;
+
+    private final AtomicInteger openTunnels = new AtomicInteger();
+    private final AtomicLong totalTunnels = new AtomicLong();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private SelectorLoop[] loops;
+
+    public TunnelRelay(int selectorThreads, long idleTimeoutMillis) {
+        this.selectorThreads = Math.max(1, selectorThreads);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public synchronized void start() throws IOException {
+        if (loops != null) {
+            return;
+        }
+        SelectorLoop[] created = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new SelectorLoop("proxy-relay-" + i);
+        }
+        for (SelectorLoop loop : created) {
+            loop.start();
+        }
+        loops = created;
+    }
+
+    public synchronized void shutdown() {
+        if (loops == null) {
+            return;
+        }
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+        loops = null;
+    }
+
+    // Hand over both channels. They are switched to non-blocking mode and closed by the relay.
+    // Returns false if the relay is not running; the caller keeps ownership then.
+    public boolean relay(final SocketChannel client, final SocketChannel remote) throws IOException {
+        SelectorLoop[] current;
+        synchronized (this) {
+            current = loops;
+        }
+        if (current == null) {
+            return false;
+        }
+
+        client.configureBlocking(false);
+        remote.configureBlocking(false);
+
+        final SelectorLoop loop = current[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+        openTunnels.incrementAndGet();
+        totalTunnels.incrementAndGet();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                ChannelTunnel.start(loop, client, remote, null, null, idleTimeoutMillis, new Runnable() {
+                    @Override
+                    public void run() {
+                        openTunnels.decrementAndGet();
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("relay.selectorThreads: ").append(selectorThreads).append('\n');
+        out.append("relay.tunnels: ").append(openTunnels.get()).append('\n');
+        out.append("relay.tunnelsTotal: ").append(totalTunnels.get()).append('\n');
+    }
+}
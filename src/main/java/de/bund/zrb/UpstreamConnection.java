@@ -0,0 +1,110 @@
+package de.bund.zrb;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+// Connection to an origin server with its buffered streams. The streams live as long as the
+// socket, so bytes read ahead by the buffer are never lost between two requests.
+public class UpstreamConnection {
+
+    private static final int STREAM_BUFFER_BYTES = 8192;
+
+    private final String key;
+    private final Socket socket;
+    private final HttpInputStream in;
+    private final OutputStream out;
+
+    private int requests;
+    private long idleSince;
+    private long expiresAt;
+
+    UpstreamConnection(String key, Socket socket) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.in = new HttpInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_BYTES);
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public HttpInputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    // True if the connection carried an earlier request, i.e. the origin may have closed it meanwhile.
+    public boolean isReused() {
+        return requests > 1;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    void markLeased() {
+        requests++;
+    }
+
+    void markIdle(long now, long expiresAt) {
+        this.idleSince = now;
+        this.expiresAt = expiresAt;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    // An idle connection must not have anything to read; unexpected bytes (or a closed socket)
+    // mean the message boundaries are lost.
+    boolean isUsable() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            return in.available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Active check for what available() does not show, e.g. a TLS close_notify or FIN not read
+    // yet: a read with a short timeout has to time out. Only while no other thread reads.
+    boolean probe(int timeoutMillis) {
+        try {
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(timeoutMillis);
+            try {
+                in.read();
+                return false; // closed, or bytes nobody asked for
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore
+        } finally {
+            in.release();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Idle keep-alive connections to origin servers, per host:port, for plain HTTP forwarding (and,
+// with a TLS opener, for the MITM handler). A connection is only released as reusable after its
+// response was fully delimited, so the next request on it always starts at a message boundary.
+public class UpstreamConnectionPool implements StatsProvider {
+
+    // Opens a new connection (TCP by default, the MITM handler adds the TLS handshake).
+    public interface Opener {
+        Socket open(String host, int port, int timeoutMillis) throws IOException;
+    }
+
+    public static final String KEY_ENABLED = "proxy.upstream.pool.enabled";
+    public static final String KEY_MAX_IDLE = "proxy.upstream.pool.maxIdle";
+    public static final String KEY_MAX_IDLE_PER_HOST = "proxy.upstream.pool.maxIdlePerHost";
+    public static final String KEY_MAX_PER_HOST = "proxy.upstream.pool.maxPerHost";
+    public static final String KEY_IDLE_TIMEOUT = "proxy.upstream.pool.idleTimeoutMillis";
+
+    private static final int DEFAULT_MAX_IDLE = 64;
+    private static final int DEFAULT_MAX_IDLE_PER_HOST = 8;
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    private static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+    private final int maxIdle;
+    private final int maxIdlePerHost;
+    private final int maxPerHost;
+    private final long idleTimeoutMillis;
+    // Prefix of the stats lines
+    private final String name;
+    private final Opener opener;
+    // > 0: an idle connection is probed with a read of this timeout before it is reused
+    private final int probeMillis;
+
+    // Guarded by this
+    private final Map<String, HostConnections> hosts = new HashMap<String, HostConnections>();
+    private int idleCount;
+    private boolean shutdown;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    private final ScheduledExecutorService evictor;
+
+    // maxPerHost = 0: no limit for open connections per host
+    public UpstreamConnectionPool(final UpstreamConnector connector,
+                                  int maxIdle,
+                                  int maxIdlePerHost,
+                                  int maxPerHost,
+                                  long idleTimeoutMillis) {
+        this("upstream.pool", new Opener() {
+            @Override
+            public Socket open(String host, int port, int timeoutMillis) throws IOException {
+                return connector.connect(host, port, timeoutMillis);
+            }
+        }, maxIdle, maxIdlePerHost, maxPerHost, idleTimeoutMillis, 0);
+    }
+
+    public UpstreamConnectionPool(String name,
+                                  Opener opener,
+                                  int maxIdle,
+                                  int maxIdlePerHost,
+                                  int maxPerHost,
+                                  long idleTimeoutMillis,
+                                  int probeMillis) {
+        this.name = name;
+        this.opener = opener;
+        this.probeMillis = Math.max(0, probeMillis);
+        this.maxIdle = Math.max(0, maxIdle);
+        this.maxIdlePerHost = Math.max(0, maxIdlePerHost);
+        this.maxPerHost = Math.max(0, maxPerHost);
+        this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name.replace('.', '-') + "-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictExpired();
+            }
+        }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns null if pooling is disabled.
+    public static UpstreamConnectionPool fromConfig(ProxyConfig config, UpstreamConnector connector) {
+        if (!config.getBoolean(KEY_ENABLED, true)) {
+            return null;
+        }
+        return new UpstreamConnectionPool(connector,
+                config.getInt(KEY_MAX_IDLE, DEFAULT_MAX_IDLE),
+                config.getInt(KEY_MAX_IDLE_PER_HOST, DEFAULT_MAX_IDLE_PER_HOST),
+                config.getInt(KEY_MAX_PER_HOST, 0),
+                config.getLong(KEY_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT_MILLIS));
+    }
+
+    // Reuses an idle connection or opens a new one. If maxPerHost connections are open, waits
+    // up to connectTimeoutMillis for one to be released.
+    public UpstreamConnection acquire(String host, int port, int connectTimeoutMillis) throws IOException {
+        while (true) {
+            UpstreamConnection conn = lease(host, port, connectTimeoutMillis);
+            if (!conn.isReused()) {
+                return conn;
+            }
+            // Probed outside the lock, it blocks for up to probeMillis
+            if (probeMillis == 0 || conn.probe(probeMillis)) {
+                reused.incrementAndGet();
+                return conn;
+            }
+            evicted.incrementAndGet();
+            conn.close();
+            closed(conn.getKey());
+        }
+    }
+
+    // Opens up to count connections to host:port in the background and keeps them idle, within
+    // maxIdlePerHost and maxPerHost, so the first requests skip connect and handshake.
+    public void prewarm(final String host, final int port, final int count, final int connectTimeoutMillis) {
+        evictor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String key = host + ":" + port;
+                for (int i = 0; i < count; i++) {
+                    synchronized (UpstreamConnectionPool.this) {
+                        HostConnections entry = entry(key);
+                        if (shutdown || entry.idle.size() >= maxIdlePerHost
+                                || (maxPerHost > 0 && entry.open >= maxPerHost)) {
+                            return;
+                        }
+                        entry.open++;
+                    }
+                    try {
+                        release(open(key, host, port, connectTimeoutMillis), true, 0);
+                    } catch (IOException e) {
+                        System.out.println("[Proxy] Prewarming " + key + " failed: " + e.getMessage());
+                        return;
+                    }
+                }
+                System.out.println("[Proxy] Prewarmed " + count + " connections to " + key);
+            }
+        });
+    }
+
+    private UpstreamConnection lease(String host, int port, int connectTimeoutMillis) throws IOException {
+        String key = host + ":" + port;
+        long deadline = System.currentTimeMillis() + connectTimeoutMillis;
+        List<UpstreamConnection> stale = new ArrayList<UpstreamConnection>();
+        try {
+            synchronized (this) {
+                if (shutdown) {
+                    throw new IOException("Upstream pool is shut down");
+                }
+                while (true) {
+                    // Looked up again after waiting, the entry may have been dropped meanwhile
+                    HostConnections entry = entry(key);
+                    long now = System.currentTimeMillis();
+                    UpstreamConnection idle;
+                    while ((idle = entry.idle.pollFirst()) != null) {
+                        idleCount--;
+                        if (!idle.isExpired(now) && idle.isUsable()) {
+                            idle.markLeased();
+                            return idle;
+                        }
+                        entry.open--;
+                        stale.add(idle);
+                    }
+                    if (maxPerHost == 0 || entry.open < maxPerHost) {
+                        entry.open++;
+                        break;
+                    }
+                    long wait = deadline - now;
+                    if (wait <= 0) {
+                        throw new IOException("Too many open connections to " + key);
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for " + key);
+                    }
+                }
+            }
+        } finally {
+            discard(stale);
+        }
+
+        // Slot reserved, connect outside the lock
+        return open(key, host, port, connectTimeoutMillis);
+    }
+
+    // New connection for a reserved slot; the slot is freed again if it fails.
+    private UpstreamConnection open(String key, String host, int port, int connectTimeoutMillis) throws IOException {
+        Socket socket = null;
+        try {
+            socket = opener.open(host, port, connectTimeoutMillis);
+            UpstreamConnection conn = new UpstreamConnection(key, socket);
+            conn.markLeased();
+            created.incrementAndGet();
+            return conn;
+        } catch (IOException e) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Ignore
+                }
+            }
+            closed(key);
+            throw e;
+        }
+    }
+
+    // Give a leased connection back. reusable must only be true if the last response was fully
+    // read and neither side asked to close. keepAliveMillis > 0 shortens the idle time (the
+    // origin's Keep-Alive timeout).
+    public void release(UpstreamConnection conn, boolean reusable, long keepAliveMillis) {
+        if (reusable) {
+            long now = System.currentTimeMillis();
+            long idleMillis = idleTimeoutMillis;
+            if (keepAliveMillis > 0 && keepAliveMillis < idleMillis) {
+                idleMillis = keepAliveMillis;
+            }
+            UpstreamConnection overflow = null;
+            synchronized (this) {
+                HostConnections entry = hosts.get(conn.getKey());
+                if (!shutdown && entry != null && idleMillis > 0
+                        && entry.idle.size() < maxIdlePerHost && maxIdle > 0) {
+                    if (idleCount >= maxIdle) {
+                        overflow = removeOldestIdle();
+                    }
+                    conn.markIdle(now, now + idleMillis);
+                    entry.idle.addFirst(conn);
+                    idleCount++;
+                    notifyAll();
+                    conn = null;
+                }
+            }
+            if (overflow != null) {
+                evicted.incrementAndGet();
+                overflow.close();
+            }
+            if (conn == null) {
+                return;
+            }
+        }
+        discarded.incrementAndGet();
+        conn.close();
+        closed(conn.getKey());
+    }
+
+    public void shutdown() {
+        List<UpstreamConnection> all = new ArrayList<UpstreamConnection>();
+        synchronized (this) {
+            shutdown = true;
+            for (HostConnections entry : hosts.values()) {
+                all.addAll(entry.idle);
+                entry.open -= entry.idle.size();
+                entry.idle.clear();
+            }
+            idleCount = 0;
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        for (UpstreamConnection conn : all) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        int idle;
+        int open = 0;
+        synchronized (this) {
+            idle = idleCount;
+            for (HostConnections entry : hosts.values()) {
+                open += entry.open;
+            }
+        }
+        out.append(name).append(".open: ").append(open).append('\n');
+        out.append(name).append(".idle: ").append(idle).append('\n');
+        out.append(name).append(".created: ").append(created.get()).append('\n');
+        out.append(name).append(".reused: ").append(reused.get()).append('\n');
+        out.append(name).append(".evicted: ").append(evicted.get()).append('\n');
+        out.append(name).append(".discarded: ").append(discarded.get()).append('\n');
+    }
+
+    private void evictExpired() {
+        List<UpstreamConnection> expired = new ArrayList<UpstreamConnection>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<HostConnections> it = hosts.values().iterator();
+            while (it.hasNext()) {
+                HostConnections entry = it.next();
+                Iterator<UpstreamConnection> idle = entry.idle.iterator();
+                while (idle.hasNext()) {
+                    UpstreamConnection conn = idle.next();
+                    if (conn.isExpired(now) || !conn.isUsable()) {
+                        idle.remove();
+                        idleCount--;
+                        entry.open--;
+                        expired.add(conn);
+                    }
+                }
+                if (entry.open == 0) {
+                    it.remove();
+                }
+            }
+            if (!expired.isEmpty()) {
+                notifyAll();
+            }
+        }
+        evicted.addAndGet(expired.size());
+        for (UpstreamConnection conn : expired) {
+            conn.close();
+        }
+    }
+
+    // Guarded by this. Idle lists are ordered newest first.
+    private UpstreamConnection removeOldestIdle() {
+        HostConnections oldestEntry = null;
+        for (HostConnections entry : hosts.values()) {
+            UpstreamConnection last = entry.idle.peekLast();
+            if (last != null && (oldestEntry == null
+                    || last.getIdleSince() < oldestEntry.idle.peekLast().getIdleSince())) {
+                oldestEntry = entry;
+            }
+        }
+        if (oldestEntry == null) {
+            return null;
+        }
+        idleCount--;
+        oldestEntry.open--;
+        return oldestEntry.idle.pollLast();
+    }
+
+    private synchronized void closed(String key) {
+        HostConnections entry = hosts.get(key);
+        if (entry != null) {
+            entry.open--;
+            if (entry.open <= 0 && entry.idle.isEmpty()) {
+                hosts.remove(key);
+            }
+            notifyAll();
+        }
+    }
+
+    private void discard(List<UpstreamConnection> stale) {
+        for (UpstreamConnection conn : stale) {
+            evicted.incrementAndGet();
+            conn.close();
+        }
+    }
+
+    private HostConnections entry(String key) {
+        HostConnections entry = hosts.get(key);
+        if (entry == null) {
+            entry = new HostConnections();
+            hosts.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static final class HostConnections {
+        // Most recently released first, so busy hosts keep reusing warm connections
+        final ArrayDeque<UpstreamConnection> idle = new ArrayDeque<UpstreamConnection>();
+        // Leased plus idle
+        int open;
+    }
+}
@@ -0,0 +1,227 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Opens origin connections with cached DNS and staggered parallel attempts ("happy eyeballs",
+// RFC 8305): addresses are tried in resolver order with alternating IPv6/IPv4, a new attempt
+// starts every staggerMillis (or as soon as one fails) and the first established one wins.
+// A dead address therefore costs the stagger delay instead of the whole connect timeout.
+// The race runs on non-blocking channels; stream users get a plain socket to the winning address.
+public class UpstreamConnector implements StatsProvider {
+
+    public static final String KEY_STAGGER_MILLIS = "proxy.connect.staggerMillis";
+
+    private static final long DEFAULT_STAGGER_MILLIS = 250;
+
+    private final DnsCache dnsCache;
+    private final long staggerMillis;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public UpstreamConnector(DnsCache dnsCache, long staggerMillis) {
+        this.dnsCache = dnsCache;
+        this.staggerMillis = Math.max(10, staggerMillis);
+    }
+
+    public static UpstreamConnector fromConfig(ProxyConfig config) {
+        return new UpstreamConnector(DnsCache.shared(),
+                config.getLong(KEY_STAGGER_MILLIS, DEFAULT_STAGGER_MILLIS));
+    }
+
+    // Returns a connected plain socket. Not channel-backed on purpose: on Java 8 a read and a
+    // write on the streams of such a socket wait for each other, which stalls full-duplex use.
+    public Socket connect(String host, int port, int timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            InetAddress[] addresses = dnsCache.resolve(host);
+            InetSocketAddress address;
+            if (addresses.length == 1) {
+                address = new InetSocketAddress(addresses[0], port);
+            } else {
+                // The winning channel only tells which address answers first
+                SocketChannel channel = connectStaggered(interleave(addresses), port, timeoutMillis);
+                address = (InetSocketAddress) channel.getRemoteAddress();
+                closeQuietly(channel);
+            }
+            attempts.incrementAndGet();
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, (int) Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            connects.incrementAndGet();
+            return socket;
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    // Returns a connected channel in blocking mode, for callers that only use the channel API.
+    public SocketChannel connectChannel(String host, int port, int timeoutMillis) throws IOException {
+        try {
+            InetAddress[] addresses = dnsCache.resolve(host);
+            SocketChannel channel = addresses.length == 1
+                    ? connectSingle(new InetSocketAddress(addresses[0], port), timeoutMillis)
+                    : connectStaggered(interleave(addresses), port, timeoutMillis);
+            connects.incrementAndGet();
+            return channel;
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("connect.connects: ").append(connects.get()).append('\n');
+        out.append("connect.attempts: ").append(attempts.get()).append('\n');
+        out.append("connect.fallbacks: ").append(fallbacks.get()).append('\n');
+        out.append("connect.failures: ").append(failures.get()).append('\n');
+    }
+
+    private SocketChannel connectSingle(InetSocketAddress address, int timeoutMillis) throws IOException {
+        attempts.incrementAndGet();
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, timeoutMillis);
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private SocketChannel connectStaggered(List<InetAddress> addresses, int port, int timeoutMillis)
+            throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<SocketChannel> pending = new ArrayList<SocketChannel>();
+        SocketChannel winner = null;
+        int winnerIndex = -1;
+        IOException lastError = null;
+        Selector selector = Selector.open();
+        try {
+            int next = 0;
+            long nextAttemptAt = 0;
+            while (winner == null) {
+                long now = System.currentTimeMillis();
+                if (next < addresses.size() && (now >= nextAttemptAt || pending.isEmpty())) {
+                    int index = next++;
+                    attempts.incrementAndGet();
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(new InetSocketAddress(addresses.get(index), port))) {
+                            winner = channel;
+                            winnerIndex = index;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, index);
+                        pending.add(channel);
+                        nextAttemptAt = now + staggerMillis;
+                    } catch (IOException e) {
+                        lastError = e;
+                        closeQuietly(channel);
+                    }
+                    continue;
+                }
+
+                if (pending.isEmpty()) {
+                    throw lastError != null ? lastError : new ConnectException("No address to connect to");
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect timed out");
+                }
+
+                long until = next < addresses.size() ? Math.min(deadline, nextAttemptAt) : deadline;
+                selector.select(Math.max(1, until - now));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                            winnerIndex = (Integer) key.attachment();
+                            break;
+                        }
+                    } catch (IOException e) {
+                        // Refused or unreachable: try the next address right away
+                        lastError = e;
+                        key.cancel();
+                        pending.remove(channel);
+                        closeQuietly(channel);
+                        nextAttemptAt = 0;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel channel : pending) {
+                if (channel != winner) {
+                    closeQuietly(channel);
+                }
+            }
+            // Deregisters the winner, so it can go back to blocking mode
+            selector.close();
+        }
+
+        try {
+            winner.configureBlocking(true);
+        } catch (IOException e) {
+            closeQuietly(winner);
+            throw e;
+        }
+        if (winnerIndex > 0) {
+            fallbacks.incrementAndGet();
+        }
+        return winner;
+    }
+
+    // Resolver order, but alternating address families, starting with the family of the first.
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        List<InetAddress> result = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                result.add(first.get(i));
+            }
+            if (i < second.size()) {
+                result.add(second.get(i));
+            }
+        }
+        return result;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package de.bund.zrb;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Execution strategy for connection handling and helper tasks (pipes).
+// Modes:
+//   thread  - one new platform thread per task (default)
+//   bounded - fixed size pool with bounded queue; when saturated, connections are rejected (503)
+//             and helpers beyond the same number fail their connection
+//   virtual - one virtual thread per task (Java 21+, falls back to thread)
+// thread is the default because a worker stays with its connection as long as the client keeps
+// it open (keep-alive, tunnels, MITM sessions, streams): a bounded pool fills up with idle
+// long-lived connections and then turns new clients away. bounded suits many short requests.
+public class WorkerPool implements StatsProvider {
+
+    public static final String KEY_MODE = "proxy.executor.mode";
+    public static final String KEY_THREADS = "proxy.executor.threads";
+    public static final String KEY_QUEUE = "proxy.executor.queue";
+
+    private static final int DEFAULT_THREADS = 200;
+    private static final int DEFAULT_QUEUE = 1000;
+
+    public enum Mode { THREAD, BOUNDED, VIRTUAL }
+
+    private final Mode mode;
+    private final ThreadPoolExecutor boundedExecutor;
+    private final ExecutorService virtualExecutor;
+    private final int queueCapacity;
+
+    // Helper limit in bounded mode, 0 = none
+    private final int maxHelpers;
+
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicInteger activeHelpers = new AtomicInteger();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    private WorkerPool(Mode mode, int threads, int queueCapacity) {
+        ExecutorService virtual = null;
+        if (mode == Mode.VIRTUAL) {
+            virtual = createVirtualExecutor();
+            if (virtual == null) {
+                System.out.println("[Proxy] Virtual threads not available on this JVM, using a thread per connection");
+                mode = Mode.THREAD;
+            }
+        }
+
+        this.mode = mode;
+        this.virtualExecutor = virtual;
+        this.queueCapacity = queueCapacity;
+        this.maxHelpers = mode == Mode.BOUNDED ? threads : 0;
+
+        if (mode == Mode.BOUNDED) {
+            BlockingQueue<Runnable> queue = queueCapacity > 0
+                    ? new ArrayBlockingQueue<Runnable>(queueCapacity)
+                    : new SynchronousQueue<Runnable>();
+            boundedExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "proxy-worker-" + threadCounter.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new CountingRejectionHandler());
+            boundedExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            boundedExecutor = null;
+        }
+    }
+
+    public static WorkerPool fromConfig(ProxyConfig config) {
+        Mode mode = parseMode(config.getString(KEY_MODE, "thread"));
+        int threads = Math.max(1, config.getInt(KEY_THREADS, DEFAULT_THREADS));
+        int queue = Math.max(0, config.getInt(KEY_QUEUE, DEFAULT_QUEUE));
+        return new WorkerPool(mode, threads, queue);
+    }
+
+    public static WorkerPool threadPerTask() {
+        return new WorkerPool(Mode.THREAD, 0, 0);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Run a connection task. Returns false if the task was rejected.
+    public boolean execute(Runnable task) {
+        Runnable counted = new CountingTask(task, true);
+        try {
+            switch (mode) {
+                case BOUNDED:
+                    boundedExecutor.execute(counted);
+                    return true;
+                case VIRTUAL:
+                    virtualExecutor.execute(counted);
+                    return true;
+                default:
+                    Thread t = new Thread(counted, "proxy-client");
+                    t.setDaemon(true);
+                    t.start();
+                    return true;
+            }
+        } catch (RejectedExecutionException e) {
+            if (mode != Mode.BOUNDED) {
+                rejectedTasks.incrementAndGet();
+            }
+            return false;
+        }
+    }
+
+    // Start a helper task that must run concurrently with its caller (e.g. the second pipe
+    // direction of a tunnel). Never queued behind connection tasks, so it cannot deadlock the pool.
+    // In bounded mode at most as many helpers as worker threads run; beyond that the caller
+    // gets an IOException and drops its connection, like a rejected connection.
+    public Thread spawn(Runnable task, String name) throws IOException {
+        // Counted before the thread exists, so concurrent spawns cannot overshoot the limit
+        if (activeHelpers.incrementAndGet() > maxHelpers && maxHelpers > 0) {
+            activeHelpers.decrementAndGet();
+            rejectedTasks.incrementAndGet();
+            throw new IOException("Worker pool saturated, no thread for " + name);
+        }
+        Runnable counted = new CountingTask(task, false);
+        Thread t = null;
+        if (mode == Mode.VIRTUAL) {
+            t = startVirtualThread(name, counted);
+        }
+        if (t == null) {
+            t = new Thread(counted, name);
+            t.setDaemon(true);
+            t.start();
+        }
+        return t;
+    }
+
+    public void shutdown() {
+        if (boundedExecutor != null) {
+            boundedExecutor.shutdownNow();
+        }
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdownNow();
+        }
+    }
+
+    public int getActiveCount() {
+        return activeTasks.get();
+    }
+
+    public int getPoolSize() {
+        return boundedExecutor != null ? boundedExecutor.getPoolSize() : activeTasks.get();
+    }
+
+    public int getQueueDepth() {
+        return boundedExecutor != null ? boundedExecutor.getQueue().size() : 0;
+    }
+
+    public long getRejectedCount() {
+        return rejectedTasks.get();
+    }
+
+    @Override
+    public void appendStats(StringBuilder out) {
+        out.append("executor.mode: ").append(mode.name().toLowerCase()).append('\n');
+        out.append("executor.active: ").append(getActiveCount()).append('\n');
+        out.append("executor.poolSize: ").append(getPoolSize()).append('\n');
+        if (boundedExecutor != null) {
+            out.append("executor.maxPoolSize: ").append(boundedExecutor.getMaximumPoolSize()).append('\n');
+            out.append("executor.queueDepth: ").append(getQueueDepth())
+                    .append(" / ").append(queueCapacity).append('\n');
+        }
+        out.append("executor.helpers: ").append(activeHelpers.get());
+        if (maxHelpers > 0) {
+            out.append(" / ").append(maxHelpers);
+        }
+        out.append('\n');
+        out.append("executor.completed: ").append(completedTasks.get()).append('\n');
+        out.append("executor.rejected: ").append(getRejectedCount()).append('\n');
+    }
+
+    private static Mode parseMode(String value) {
+        if ("bounded".equalsIgnoreCase(value)) return Mode.BOUNDED;
+        if ("virtual".equalsIgnoreCase(value)) return Mode.VIRTUAL;
+        return Mode.THREAD;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() via reflection, project still compiles for Java 8.
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Thread.ofVirtual().name(name).start(task) via reflection.
+    private static Thread startVirtualThread(String name, Runnable task) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class).invoke(builder, name);
+            return (Thread) builderType.getMethod("start", Runnable.class).invoke(builder, task);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Keeps the gauges of running tasks; completed only counts connection tasks.
+    private final class CountingTask implements Runnable {
+
+        private final Runnable delegate;
+        private final boolean connection;
+
+        CountingTask(Runnable delegate, boolean connection) {
+            this.delegate = delegate;
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            if (connection) {
+                activeTasks.incrementAndGet();
+            }
+            try {
+                delegate.run();
+            } finally {
+                if (connection) {
+                    activeTasks.decrementAndGet();
+                    completedTasks.incrementAndGet();
+                } else {
+                    activeHelpers.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Never runs the task on the caller: a connection may last minutes and would block the
+    // accept thread. The caller answers 503 and closes instead, so overload sheds connections.
+    private final class CountingRejectionHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            rejectedTasks.incrementAndGet();
+            throw new RejectedExecutionException("Worker pool saturated");
+        }
+    }
+}
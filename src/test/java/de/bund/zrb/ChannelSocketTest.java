@@ -0,0 +1,164 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.function.ThrowingSupplier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChannelSocketTest {
+
+    private ServerSocketChannel server;
+    private ChannelSocket socket;
+    private Socket peer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        peer = new Socket("127.0.0.1", server.socket().getLocalPort());
+        socket = new ChannelSocket(server.accept());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        socket.close();
+        peer.close();
+        server.close();
+    }
+
+    // A write far larger than the socket buffers completes while another thread sits in a read.
+    @Test
+    void readsAndWritesAtTheSameTime() throws Exception {
+        final byte[] payload = new byte[8 * 1024 * 1024];
+        Arrays.fill(payload, (byte) 7);
+        final AtomicReference<Integer> read = new AtomicReference<Integer>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.set(socket.getInputStream().read());
+                } catch (IOException e) {
+                    read.set(-2);
+                }
+            }
+        });
+        reader.start();
+        // The peer drains the payload and answers only afterwards
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = peer.getInputStream();
+                    byte[] buffer = new byte[65536];
+                    long total = 0;
+                    int n;
+                    while (total < payload.length && (n = in.read(buffer)) > 0) {
+                        total += n;
+                    }
+                    peer.getOutputStream().write(42);
+                } catch (IOException ignored) {
+                    // Fails the assertions below
+                }
+            }
+        });
+        drain.start();
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                OutputStream out = socket.getOutputStream();
+                out.write(payload);
+                out.flush();
+                reader.join();
+            }
+        });
+        assertEquals(Integer.valueOf(42), read.get());
+    }
+
+    @Test
+    void readHonorsSoTimeout() throws IOException {
+        socket.setSoTimeout(200);
+        long start = System.currentTimeMillis();
+        assertThrows(SocketTimeoutException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                socket.getInputStream().read();
+            }
+        });
+        assertTrue(System.currentTimeMillis() - start >= 150);
+    }
+
+    @Test
+    void closeEndsBlockedRead() throws Exception {
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    socket.close();
+                } catch (Exception ignored) {
+                    // Test fails by timeout
+                }
+            }
+        });
+        closer.start();
+        IOException error = assertTimeoutPreemptively(Duration.ofSeconds(5), new ThrowingSupplier<IOException>() {
+            @Override
+            public IOException get() {
+                try {
+                    socket.getInputStream().read();
+                    return null;
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+        assertTrue(error instanceof SocketException, String.valueOf(error));
+        assertTrue(socket.isClosed());
+    }
+
+    @Test
+    void shutdownOutputSignalsEofToPeer() throws IOException {
+        socket.getOutputStream().write(new byte[] {1, 2, 3});
+        socket.shutdownOutput();
+        InputStream in = peer.getInputStream();
+        byte[] received = new byte[3];
+        int total = 0;
+        while (total < 3) {
+            total += in.read(received, total, 3 - total);
+        }
+        assertArrayEquals(new byte[] {1, 2, 3}, received);
+        assertEquals(-1, in.read());
+        assertTrue(socket.isOutputShutdown());
+    }
+
+    // After detach() the socket opens its selectors again when it is used.
+    @Test
+    void usableAfterDetach() throws IOException {
+        socket.setSoTimeout(2000);
+        peer.getOutputStream().write(1);
+        assertEquals(1, socket.getInputStream().read());
+        socket.detach();
+        peer.getOutputStream().write(2);
+        assertEquals(2, socket.getInputStream().read());
+    }
+}
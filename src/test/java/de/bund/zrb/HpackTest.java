@@ -0,0 +1,213 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Examples from RFC 7541, Appendix C.
+class HpackTest {
+
+    private static final String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    @Test
+    void integers() throws Exception {
+        assertArrayEquals(hex("0a"), writeInt(0x00, 5, 10));
+        assertArrayEquals(hex("1f9a0a"), writeInt(0x00, 5, 1337));
+        assertArrayEquals(hex("2a"), writeInt(0x00, 8, 42));
+        assertEquals(1337, Hpack.readInt(hex("1f9a0a"), new int[]{0}, 3, 5));
+        assertEquals(42, Hpack.readInt(hex("2a"), new int[]{0}, 1, 8));
+        // Continuation byte missing
+        assertMalformed(new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                Hpack.readInt(hex("1f9a"), new int[]{0}, 2, 5);
+            }
+        });
+    }
+
+    @Test
+    void literalAndIndexedFields() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertFields(decode(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572"),
+                "custom-key", "custom-header");
+        // The entry just added is index 62
+        assertFields(decode(decoder, "be"), "custom-key", "custom-header");
+        assertFields(decode(new Hpack.Decoder(), "040c2f73616d706c652f70617468"), ":path", "/sample/path");
+        assertFields(decode(new Hpack.Decoder(), "100870617373776f726406736563726574"), "password", "secret");
+        assertFields(decode(new Hpack.Decoder(), "82"), ":method", "GET");
+    }
+
+    @Test
+    void requestsWithoutHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertFields(decode(decoder, "828684410f7777772e6578616d706c652e636f6d"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertFields(decode(decoder, "828684be58086e6f2d6361636865"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertFields(decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+    }
+
+    @Test
+    void requestsWithHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertFields(decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertFields(decode(decoder, "828684be5886a8eb10649cbf"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertFields(decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+    }
+
+    // The RFC runs these with a 256 byte table; the size update in front of the first block sets
+    // it, so the later blocks only decode right if the oldest entries were evicted.
+    @Test
+    void responsesEvictFromASmallTable() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertFields(decode(decoder, "3fe101"
+                        + "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d54"
+                        + "6e1768747470733a2f2f7777772e6578616d706c652e636f6d"),
+                ":status", "302", "cache-control", "private", "date", DATE_1,
+                "location", "https://www.example.com");
+        assertFields(decode(decoder, "4803333037c1c0bf"),
+                ":status", "307", "cache-control", "private", "date", DATE_1,
+                "location", "https://www.example.com");
+        assertFields(decode(decoder, "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c0"
+                        + "5a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b"
+                        + "206d61782d6167653d333630303b2076657273696f6e3d31"),
+                ":status", "200", "cache-control", "private", "date", DATE_2,
+                "location", "https://www.example.com", "content-encoding", "gzip", "set-cookie", COOKIE);
+    }
+
+    @Test
+    void responsesWithHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertFields(decode(decoder, "3fe101"
+                        + "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                        + "6e919d29ad171863c78f0b97c8e9ae82ae43d3"),
+                ":status", "302", "cache-control", "private", "date", DATE_1,
+                "location", "https://www.example.com");
+        assertFields(decode(decoder, "4883640effc1c0bf"),
+                ":status", "307", "cache-control", "private", "date", DATE_1,
+                "location", "https://www.example.com");
+        assertFields(decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab"
+                        + "77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"),
+                ":status", "200", "cache-control", "private", "date", DATE_2,
+                "location", "https://www.example.com", "content-encoding", "gzip", "set-cookie", COOKIE);
+    }
+
+    @Test
+    void rejectsInvalidHuffmanPadding() throws Exception {
+        assertEquals("www.example.com", Hpack.decodeHuffman(hex("f1e3c2e5f23a6ba0ab90f4ff"), 0, 12));
+        // "0" (00000) padded with ones is fine, padded with zeros is not
+        assertEquals("0", Hpack.decodeHuffman(hex("07"), 0, 1));
+        assertMalformed(new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                Hpack.decodeHuffman(hex("00"), 0, 1);
+            }
+        });
+        // Padding longer than 7 bits
+        assertMalformed(new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                Hpack.decodeHuffman(hex("f1e3c2e5f23a6ba0ab90f4ffff"), 0, 13);
+            }
+        });
+        // EOS (30 ones) inside the string
+        assertMalformed(new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                Hpack.decodeHuffman(hex("fffffffc"), 0, 4);
+            }
+        });
+    }
+
+    @Test
+    void rejectsInvalidBlocks() {
+        // Index beyond the static and the (empty) dynamic table
+        assertMalformed(decoding("be"));
+        assertMalformed(decoding("80"));
+        // Size update after the first field, or above the size we advertised
+        assertMalformed(decoding("823fe101"));
+        assertMalformed(decoding("3fe21f"));
+        // String longer than the block
+        assertMalformed(decoding("400a6375"));
+    }
+
+    @Test
+    void encoderOutputDecodes() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.peerTableSizeChanged();
+        encoder.begin(block);
+        encoder.encode(block, ":status", "200");
+        encoder.encode(block, ":status", "418");
+        encoder.encode(block, "content-type", "text/plain");
+        encoder.encode(block, "x-custom", "v");
+        byte[] bytes = block.toByteArray();
+        // Size update to 0 first, then :status 200 as static index 8
+        assertEquals(0x20, bytes[0] & 0xff);
+        assertEquals(0x88, bytes[1] & 0xff);
+        assertFields(decoder.decode(bytes, 0, bytes.length),
+                ":status", "200", ":status", "418", "content-type", "text/plain", "x-custom", "v");
+
+        block.reset();
+        encoder.begin(block);
+        encoder.encode(block, ":status", "204");
+        assertArrayEquals(hex("89"), block.toByteArray());
+    }
+
+    private static byte[] writeInt(int flags, int prefixBits, int value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.writeInt(out, flags, prefixBits, value);
+        return out.toByteArray();
+    }
+
+    private static List<String[]> decode(Hpack.Decoder decoder, String hex) throws MalformedHttpException {
+        byte[] block = hex(hex);
+        return decoder.decode(block, 0, block.length);
+    }
+
+    private static Executable decoding(final String hex) {
+        return new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                decode(new Hpack.Decoder(), hex);
+            }
+        };
+    }
+
+    private static void assertMalformed(Executable executable) {
+        assertThrows(MalformedHttpException.class, executable);
+    }
+
+    private static void assertFields(List<String[]> fields, String... expected) {
+        assertEquals(expected.length / 2, fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            assertEquals(expected[2 * i], fields.get(i)[0]);
+            assertEquals(expected[2 * i + 1], fields.get(i)[1]);
+        }
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
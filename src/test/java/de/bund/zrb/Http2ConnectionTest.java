@@ -0,0 +1,467 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+// Frames from a client over loopback. Each stream's handler reads the whole HTTP/1.1 request and
+// answers with the response the test set, written in small pieces.
+class Http2ConnectionTest {
+
+    private static final byte[] PREFACE = {'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0',
+            '\r', '\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'};
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final String GET = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n";
+
+    private final BlockingQueue<String> requests = new LinkedBlockingQueue<String>();
+    private volatile String response = "HTTP/1.1 204 No Content\r\n\r\n";
+
+    private Socket client;
+    private DataInputStream in;
+    private OutputStream out;
+    private Thread reader;
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        final Socket server;
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            server = listener.accept();
+        }
+        client.setSoTimeout(10000);
+        in = new DataInputStream(client.getInputStream());
+        out = client.getOutputStream();
+        final Http2Connection connection = new Http2Connection(server, WorkerPool.threadPerTask(), 2,
+                new Http2Connection.StreamHandler() {
+                    @Override
+                    public void handle(Http2Stream stream) {
+                        serve(stream);
+                    }
+                });
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connection.run();
+            }
+        }, "test-h2");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        client.close();
+        reader.join(5000);
+    }
+
+    @Test
+    void settingsAreAnnouncedAndAcknowledged() throws IOException {
+        out.write(PREFACE);
+        Frame settings = readFrame();
+        assertEquals(SETTINGS, settings.type);
+        assertEquals(0, settings.flags);
+        assertEquals(12, settings.payload.length);
+        // SETTINGS_MAX_CONCURRENT_STREAMS 2, SETTINGS_INITIAL_WINDOW_SIZE 1 MB
+        assertEquals(3, settings.payload[1]);
+        assertEquals(2, readInt(settings.payload, 2));
+        assertEquals(4, settings.payload[7]);
+        assertEquals(Http2Connection.STREAM_WINDOW, readInt(settings.payload, 8));
+        Frame window = readFrame();
+        assertEquals(WINDOW_UPDATE, window.type);
+        assertEquals(0, window.streamId);
+        assertEquals((16 << 20) - 65535, readInt(window.payload, 0));
+
+        writeFrame(SETTINGS, 0, 0, new byte[]{0, 4, 0, 0, 0x40, 0});
+        Frame ack = readFrame();
+        assertEquals(SETTINGS, ack.type);
+        assertEquals(ACK, ack.flags);
+        assertEquals(0, ack.payload.length);
+
+        writeFrame(PING, 0, 0, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        Frame pong = readFrame();
+        assertEquals(PING, pong.type);
+        assertEquals(ACK, pong.flags);
+        assertEquals(8, pong.payload[7]);
+
+        // A setting is 6 bytes
+        writeFrame(SETTINGS, 0, 0, new byte[5]);
+        assertGoAway(Http2Connection.FRAME_SIZE_ERROR);
+    }
+
+    @Test
+    void rejectsAnInvalidPreface() throws IOException {
+        out.write("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes("ISO-8859-1"));
+        assertGoAway(Http2Connection.PROTOCOL_ERROR);
+    }
+
+    @Test
+    void answersARequest() throws Exception {
+        start();
+        writeHeaders(1, END_STREAM | END_HEADERS, ":method", "GET", ":scheme", "https",
+                ":authority", "example.com", ":path", "/");
+        assertEquals(GET, nextRequest());
+        Frame headers = expect(HEADERS);
+        assertEquals(1, headers.streamId);
+        assertEquals(END_STREAM | END_HEADERS, headers.flags);
+        assertEquals(":status", fields(headers).get(0)[0]);
+        assertEquals("204", fields(headers).get(0)[1]);
+    }
+
+    @Test
+    void headerBlockContinues() throws Exception {
+        start();
+        byte[] block = block(":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        writeFrame(HEADERS, END_STREAM, 1, slice(block, 0, 3));
+        writeFrame(CONTINUATION, 0, 1, slice(block, 3, 5));
+        writeFrame(CONTINUATION, END_HEADERS, 1, slice(block, 5, block.length));
+        assertEquals(GET, nextRequest());
+        assertEquals(1, expect(HEADERS).streamId);
+    }
+
+    @Test
+    void headerBlockMustNotBeInterrupted() throws IOException {
+        start();
+        byte[] block = block(":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        writeFrame(HEADERS, END_STREAM, 1, slice(block, 0, 3));
+        writeFrame(PING, 0, 0, new byte[8]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR);
+    }
+
+    @Test
+    void continuationMustBelongToTheBlock() throws IOException {
+        start();
+        byte[] block = block(":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        writeFrame(HEADERS, END_STREAM, 1, slice(block, 0, 3));
+        writeFrame(CONTINUATION, END_HEADERS, 3, slice(block, 3, block.length));
+        assertGoAway(Http2Connection.PROTOCOL_ERROR);
+    }
+
+    @Test
+    void streamsBeyondTheLimitAreRefused() throws Exception {
+        start();
+        writeHeaders(1, END_HEADERS, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        writeHeaders(3, END_HEADERS, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        writeHeaders(5, END_HEADERS, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        Frame reset = expect(RST_STREAM);
+        assertEquals(5, reset.streamId);
+        assertEquals(Http2Connection.REFUSED_STREAM, readInt(reset.payload, 0));
+
+        // Once a stream is done, there is room again. The slot is free when the handler returns,
+        // which may be after the response arrived: refused streams are retried, like a client would.
+        writeFrame(DATA, END_STREAM, 1, EMPTY);
+        assertTrue(nextRequest().endsWith("0\r\n\r\n"));
+        assertEquals(1, expect(HEADERS).streamId);
+        int streamId = 7;
+        while (true) {
+            writeHeaders(streamId, END_STREAM | END_HEADERS, ":method", "GET", ":scheme", "https",
+                    ":authority", "example.com", ":path", "/");
+            Frame frame = expect(HEADERS, RST_STREAM);
+            assertEquals(streamId, frame.streamId);
+            if (frame.type == HEADERS) {
+                break;
+            }
+            assertEquals(Http2Connection.REFUSED_STREAM, readInt(frame.payload, 0));
+            streamId += 2;
+            Thread.sleep(10);
+        }
+        assertEquals(GET, nextRequest());
+    }
+
+    @Test
+    void evenOrReusedStreamIdsEndTheConnection() throws Exception {
+        start();
+        writeHeaders(2, END_STREAM | END_HEADERS, ":method", "GET", ":scheme", "https", ":path", "/");
+        assertGoAway(Http2Connection.PROTOCOL_ERROR);
+    }
+
+    @Test
+    void malformedRequestResetsOnlyItsStream() throws Exception {
+        start();
+        writeHeaders(1, END_STREAM | END_HEADERS, ":method", "GET", "accept", "*/*", ":scheme", "https", ":path", "/");
+        Frame reset = expect(RST_STREAM);
+        assertEquals(1, reset.streamId);
+        assertEquals(Http2Connection.PROTOCOL_ERROR, readInt(reset.payload, 0));
+        writeHeaders(3, END_STREAM | END_HEADERS, ":method", "GET", ":scheme", "https",
+                ":authority", "example.com", ":path", "/");
+        assertEquals(GET, nextRequest());
+        assertEquals(3, expect(HEADERS).streamId);
+    }
+
+    @Test
+    void resetByTheClientEndsTheStream() throws Exception {
+        start();
+        writeHeaders(1, END_HEADERS, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        writeFrame(RST_STREAM, 0, 1, new byte[]{0, 0, 0, 0x8});
+        // The handler's blocked read fails
+        assertTrue(nextRequest().startsWith("failed: "));
+        // DATA still in flight for the reset stream is dropped
+        writeFrame(DATA, END_STREAM, 1, new byte[]{'x'});
+        writeHeaders(3, END_STREAM | END_HEADERS, ":method", "GET", ":scheme", "https",
+                ":authority", "example.com", ":path", "/");
+        assertEquals(GET, nextRequest());
+        assertEquals(3, expect(HEADERS).streamId);
+
+        writeFrame(RST_STREAM, 0, 3, new byte[3]);
+        assertGoAway(Http2Connection.FRAME_SIZE_ERROR);
+    }
+
+    @Test
+    void dataWaitsForTheSendWindow() throws Exception {
+        start();
+        writeFrame(SETTINGS, 0, 0, new byte[]{0, 4, 0, 0, 0, 10});
+        response = "HTTP/1.1 200 OK\r\nContent-Length: 25\r\n\r\n0123456789012345678901234";
+        writeHeaders(1, END_STREAM | END_HEADERS, ":method", "GET", ":scheme", "https",
+                ":authority", "example.com", ":path", "/");
+        assertEquals(1, expect(HEADERS).streamId);
+        int sent = 0;
+        while (sent < 10) {
+            Frame data = expect(DATA);
+            assertEquals(0, data.flags);
+            sent += data.payload.length;
+        }
+        assertEquals(10, sent);
+        // Nothing more until the window opens
+        client.setSoTimeout(200);
+        try {
+            in.read();
+            fail("DATA beyond the stream window");
+        } catch (SocketTimeoutException expected) {
+            // Blocked on the window
+        }
+        client.setSoTimeout(10000);
+        writeFrame(WINDOW_UPDATE, 0, 1, new byte[]{0, 0, 0, 15});
+        assertEquals("012345678901234", body(1));
+    }
+
+    @Test
+    void windowUpdateOverflowResetsTheStream() throws Exception {
+        start();
+        writeHeaders(1, END_HEADERS, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        writeFrame(WINDOW_UPDATE, 0, 1, new byte[]{0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+        Frame reset = expect(RST_STREAM);
+        assertEquals(1, reset.streamId);
+        assertEquals(Http2Connection.FLOW_CONTROL_ERROR, readInt(reset.payload, 0));
+    }
+
+    @Test
+    void connectionWindowOverflowEndsTheConnection() throws IOException {
+        start();
+        writeFrame(WINDOW_UPDATE, 0, 0, new byte[]{0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+        assertGoAway(Http2Connection.FLOW_CONTROL_ERROR);
+    }
+
+    @Test
+    void windowUpdateOfZeroEndsTheConnection() throws IOException {
+        start();
+        writeFrame(WINDOW_UPDATE, 0, 0, new byte[4]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR);
+    }
+
+    @Test
+    void interimResponsesAreDropped() throws Exception {
+        response = "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-A: b\r\n\r\nhello";
+        List<String[]> fields = exchange();
+        assertEquals(3, fields.size());
+        assertEquals("200", fields.get(0)[1]);
+        assertEquals("content-length", fields.get(1)[0]);
+        assertEquals("x-a", fields.get(2)[0]);
+        assertEquals("hello", body(1));
+    }
+
+    @Test
+    void chunkedResponseIsDecoded() throws Exception {
+        response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nConnection: keep-alive, x-hop\r\n"
+                + "X-Hop: 1\r\nX-A: b\r\n\r\n5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: t\r\n\r\n";
+        List<String[]> fields = exchange();
+        assertEquals(2, fields.size());
+        assertEquals("200", fields.get(0)[1]);
+        assertEquals("x-a", fields.get(1)[0]);
+        assertEquals("hello world", body(1));
+    }
+
+    @Test
+    void responseUntilCloseEndsWithTheHandler() throws Exception {
+        response = "HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nuntil the end";
+        List<String[]> fields = exchange();
+        assertEquals("200", fields.get(0)[1]);
+        assertEquals("content-type", fields.get(1)[0]);
+        assertEquals("until the end", body(1));
+    }
+
+    // ---- Client side ----
+
+    private void serve(Http2Stream stream) {
+        try {
+            InputStream request = stream.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = request.read(buffer)) != -1) {
+                received.write(buffer, 0, n);
+            }
+            requests.add(received.toString("ISO-8859-1"));
+            byte[] bytes = response.getBytes("ISO-8859-1");
+            OutputStream responseOut = stream.getOutputStream();
+            for (int off = 0; off < bytes.length; off += 3) {
+                responseOut.write(bytes, off, Math.min(3, bytes.length - off));
+            }
+            responseOut.flush();
+        } catch (IOException e) {
+            requests.add("failed: " + e.getMessage());
+        }
+    }
+
+    private String nextRequest() throws InterruptedException {
+        String request = requests.poll(10, TimeUnit.SECONDS);
+        assertNotNull(request, "No request");
+        return request;
+    }
+
+    // Preface and SETTINGS; the server's SETTINGS are read by expect() later on.
+    private void start() throws IOException {
+        out.write(PREFACE);
+        writeFrame(SETTINGS, 0, 0, EMPTY);
+    }
+
+    // A GET on stream 1; returns the response fields.
+    private List<String[]> exchange() throws Exception {
+        start();
+        writeHeaders(1, END_STREAM | END_HEADERS, ":method", "GET", ":scheme", "https",
+                ":authority", "example.com", ":path", "/");
+        assertEquals(GET, nextRequest());
+        Frame headers = expect(HEADERS);
+        assertEquals(END_HEADERS, headers.flags);
+        return fields(headers);
+    }
+
+    // DATA of the stream up to END_STREAM.
+    private String body(int streamId) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            Frame data = expect(DATA);
+            assertEquals(streamId, data.streamId);
+            body.write(data.payload, 0, data.payload.length);
+            if ((data.flags & END_STREAM) != 0) {
+                return body.toString("ISO-8859-1");
+            }
+        }
+    }
+
+    private List<String[]> fields(Frame headers) throws MalformedHttpException {
+        return decoder.decode(headers.payload, 0, headers.payload.length);
+    }
+
+    private void assertGoAway(int errorCode) throws IOException {
+        Frame goAway = expect(GOAWAY);
+        assertEquals(errorCode, readInt(goAway.payload, 4));
+        // The connection ends after it
+        assertEquals(-1, in.read());
+    }
+
+    // The next frame of one of these types; SETTINGS, WINDOW_UPDATE and PING in between are skipped.
+    private Frame expect(int... types) throws IOException {
+        while (true) {
+            Frame frame = readFrame();
+            for (int type : types) {
+                if (frame.type == type) {
+                    return frame;
+                }
+            }
+            assertTrue(frame.type == SETTINGS || frame.type == WINDOW_UPDATE || frame.type == PING,
+                    "Unexpected frame type " + frame.type);
+        }
+    }
+
+    private Frame readFrame() throws IOException {
+        byte[] header = new byte[9];
+        in.readFully(header);
+        Frame frame = new Frame();
+        frame.type = header[3] & 0xff;
+        frame.flags = header[4] & 0xff;
+        frame.streamId = readInt(header, 5) & 0x7fffffff;
+        frame.payload = new byte[((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff)];
+        in.readFully(frame.payload);
+        return frame;
+    }
+
+    private void writeHeaders(int streamId, int flags, String... fields) throws IOException {
+        writeFrame(HEADERS, flags, streamId, block(fields));
+    }
+
+    private byte[] block(String... fields) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.begin(block);
+        for (int i = 0; i < fields.length; i += 2) {
+            encoder.encode(block, fields[i], fields[i + 1]);
+        }
+        return block.toByteArray();
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        byte[] frame = new byte[9 + payload.length];
+        frame[0] = (byte) (payload.length >>> 16);
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        frame[5] = (byte) (streamId >>> 24);
+        frame[6] = (byte) (streamId >>> 16);
+        frame[7] = (byte) (streamId >>> 8);
+        frame[8] = (byte) streamId;
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private static byte[] slice(byte[] b, int from, int to) {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(b, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static final class Frame {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+    }
+}
@@ -0,0 +1,134 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// The HTTP/1.1 request an Http2Stream hands to the pipeline. The body arrives with credit 0, so
+// no connection is needed to refill windows.
+class Http2StreamTest {
+
+    private static final byte[] HELLO = {'h', 'e', 'l', 'l', 'o'};
+
+    @Test
+    void hostComesFromAuthority() throws IOException {
+        Http2Stream stream = stream(true, ":method", "GET", ":scheme", "https", ":authority", "example.com:8443",
+                ":path", "/a?b=c", "accept", "*/*");
+        assertEquals("GET /a?b=c HTTP/1.1\r\nHost: example.com:8443\r\naccept: */*\r\n\r\n", request(stream));
+    }
+
+    @Test
+    void hostHeaderWinsOverAuthority() throws IOException {
+        Http2Stream stream = stream(true, ":method", "GET", ":scheme", "https", ":authority", "example.com",
+                ":path", "/", "host", "other.example");
+        assertEquals("GET / HTTP/1.1\r\nhost: other.example\r\n\r\n", request(stream));
+    }
+
+    @Test
+    void cookieFieldsAreJoined() throws IOException {
+        Http2Stream stream = stream(true, ":method", "GET", ":scheme", "https", ":authority", "example.com",
+                ":path", "/", "cookie", "a=1", "x-y", "z", "cookie", "b=2");
+        assertEquals("GET / HTTP/1.1\r\nHost: example.com\r\nx-y: z\r\ncookie: a=1; b=2\r\n\r\n", request(stream));
+    }
+
+    @Test
+    void connectionHeadersAreDropped() throws IOException {
+        Http2Stream stream = stream(true, ":method", "GET", ":scheme", "https", ":authority", "example.com",
+                ":path", "/", "connection", "close", "te", "trailers", "keep-alive", "1", "x-a", "b");
+        assertEquals("GET / HTTP/1.1\r\nHost: example.com\r\nx-a: b\r\n\r\n", request(stream));
+    }
+
+    @Test
+    void declaredLengthKeepsTheBodyAsIs() throws IOException {
+        Http2Stream stream = stream(false, ":method", "POST", ":scheme", "https", ":authority", "example.com",
+                ":path", "/upload", "content-length", "5");
+        assertEquals(-1, stream.receive(HELLO, 0, 3, 0, false));
+        assertEquals(-1, stream.receive(HELLO, 3, 2, 0, true));
+        assertEquals("POST /upload HTTP/1.1\r\nHost: example.com\r\ncontent-length: 5\r\n\r\nhello", request(stream));
+        assertEquals(Http2Connection.STREAM_CLOSED, stream.receive(HELLO, 0, 1, 0, false));
+    }
+
+    @Test
+    void bodyMustMatchTheDeclaredLength() throws IOException {
+        Http2Stream tooLong = stream(false, ":method", "POST", ":scheme", "https", ":path", "/", "content-length", "4");
+        assertEquals(Http2Connection.PROTOCOL_ERROR, tooLong.receive(HELLO, 0, 5, 0, false));
+        Http2Stream tooShort = stream(false, ":method", "POST", ":scheme", "https", ":path", "/", "content-length", "6");
+        assertEquals(Http2Connection.PROTOCOL_ERROR, tooShort.receive(HELLO, 0, 5, 0, true));
+    }
+
+    @Test
+    void undeclaredLengthIsSentChunked() throws IOException {
+        Http2Stream stream = stream(false, ":method", "POST", ":scheme", "https", ":authority", "example.com",
+                ":path", "/upload");
+        assertEquals(-1, stream.receive(HELLO, 0, 5, 0, false));
+        assertEquals(-1, stream.receive(HELLO, 0, 2, 0, false));
+        // Trailers end the body like an empty DATA frame
+        assertEquals(-1, stream.receive(HELLO, 0, 0, 0, true));
+        assertEquals("POST /upload HTTP/1.1\r\nHost: example.com\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n2\r\nhe\r\n0\r\n\r\n", request(stream));
+    }
+
+    @Test
+    void emptyBodyIsDeclared() throws IOException {
+        Http2Stream post = stream(true, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        assertEquals("POST / HTTP/1.1\r\nHost: example.com\r\nContent-Length: 0\r\n\r\n", request(post));
+        Http2Stream head = stream(true, ":method", "HEAD", ":scheme", "https", ":authority", "example.com", ":path", "/");
+        assertEquals("HEAD / HTTP/1.1\r\nHost: example.com\r\n\r\n", request(head));
+    }
+
+    @Test
+    void rejectsMalformedRequests() {
+        // Pseudo-header after a regular one
+        assertMalformed(true, ":method", "GET", ":scheme", "https", "accept", "*/*", ":path", "/");
+        assertMalformed(true, ":method", "GET", ":scheme", "https", ":path", "/", ":protocol", "websocket");
+        assertMalformed(true, ":method", "GET", ":scheme", "https");
+        assertMalformed(true, ":method", "GET", ":path", "/");
+        assertMalformed(true, ":method", "CONNECT", ":scheme", "https", ":path", "/");
+        assertMalformed(true, ":method", "G T", ":scheme", "https", ":path", "/");
+        assertMalformed(true, ":method", "GET", ":scheme", "https", ":path", "/a b");
+        assertMalformed(true, ":method", "GET", ":scheme", "https", ":path", "/", ":authority", "a b");
+        assertMalformed(true, ":method", "GET", ":scheme", "https", ":path", "/", "Accept", "*/*");
+        assertMalformed(true, ":method", "GET", ":scheme", "https", ":path", "/", "x-a", "b\r\nx-b: c");
+        assertMalformed(true, ":method", "POST", ":scheme", "https", ":path", "/", "content-length", "5");
+        assertMalformed(false, ":method", "POST", ":scheme", "https", ":path", "/",
+                "content-length", "5", "content-length", "6");
+        assertMalformed(false, ":method", "POST", ":scheme", "https", ":path", "/", "content-length", "-1");
+    }
+
+    private static void assertMalformed(final boolean endStream, final String... fields) {
+        assertThrows(MalformedHttpException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                stream(endStream, fields);
+            }
+        });
+    }
+
+    private static Http2Stream stream(boolean endStream, String... fields) throws MalformedHttpException {
+        List<String[]> list = new ArrayList<String[]>();
+        for (int i = 0; i < fields.length; i += 2) {
+            list.add(new String[]{fields[i], fields[i + 1]});
+        }
+        return new Http2Stream(null, 1, list, endStream, 65535);
+    }
+
+    // Everything up to the end of the request.
+    private static String request(Http2Stream stream) throws IOException {
+        InputStream in = stream.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,191 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpBodyTest {
+
+    @Test
+    void requestLengthAcceptsAgreeingValues() throws IOException {
+        assertEquals(0, HttpBody.requestLength(head("GET / HTTP/1.1\r\nHost: a\r\n")));
+        assertEquals(5, HttpBody.requestLength(head("POST / HTTP/1.1\r\nContent-Length: 5\r\n")));
+        assertEquals(5, HttpBody.requestLength(head("POST / HTTP/1.1\r\nContent-Length: 5, 5\r\n")));
+        assertEquals(5, HttpBody.requestLength(
+                head("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n")));
+    }
+
+    @Test
+    void requestLengthRejectsInvalidOrConflictingValues() throws IOException {
+        assertMalformed(head("POST / HTTP/1.1\r\nContent-Length: -1\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nContent-Length: 5x\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nContent-Length: \r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nContent-Length: 5, 6\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n"));
+    }
+
+    @Test
+    void chunkedRequestIsForwardedWithoutContentLength() throws IOException {
+        HttpHead request = head("POST / HTTP/1.1\r\nHost: a\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n");
+        assertEquals(HttpBody.CHUNKED, HttpBody.requestLength(request));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.writeTo(out, null, "close");
+        String forwarded = out.toString("ISO-8859-1");
+        assertFalse(forwarded.contains("Content-Length"), forwarded);
+        assertTrue(forwarded.contains("Transfer-Encoding: chunked\r\n"), forwarded);
+
+        out.reset();
+        request.writeTo(out);
+        assertFalse(out.toString("ISO-8859-1").contains("Content-Length"));
+    }
+
+    @Test
+    void transferEncodingMustEndWithChunked() throws IOException {
+        assertEquals(HttpBody.CHUNKED, HttpBody.requestLength(head("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n")));
+        assertEquals(HttpBody.CHUNKED, HttpBody.requestLength(
+                head("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: CHUNKED\r\n")));
+
+        assertMalformed(head("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, chunked\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: identity\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nTransfer-Encoding: \r\nContent-Length: 5\r\n"));
+        assertMalformed(head("POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n"));
+    }
+
+    // A response without final chunked coding lasts until the connection closes (RFC 7230, 3.3.3)
+    @Test
+    void responseWithOtherTransferEncodingIsReadUntilClose() throws IOException {
+        assertEquals(HttpBody.UNTIL_CLOSE, HttpBody.responseLength("GET",
+                head("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip\r\nContent-Length: 5\r\n")));
+        assertEquals(HttpBody.CHUNKED, HttpBody.responseLength("GET",
+                head("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n")));
+        assertEquals(0, HttpBody.responseLength("HEAD",
+                head("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n")));
+    }
+
+    @Test
+    void whitespaceBeforeColonIsRejectedInRequests() throws IOException {
+        assertMalformedHead("POST / HTTP/1.1\r\nTransfer-Encoding : chunked\r\n");
+        assertMalformedHead("POST / HTTP/1.1\r\nContent-Length\t: 5\r\n");
+        assertMalformedHead("POST / HTTP/1.1\r\nNo colon here\r\n");
+        assertMalformedHead("POST / HTTP/1.1\r\n: empty name\r\n");
+
+        // Responses are only cleaned up
+        HttpHead response = head("HTTP/1.1 200 OK\r\nX-Name : value\r\nContent-Length: 0\r\n");
+        assertEquals("value", response.getHeader("X-Name"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.writeTo(out);
+        assertEquals("HTTP/1.1 200 OK\r\nX-Name: value\r\nContent-Length: 0\r\n\r\n", out.toString("ISO-8859-1"));
+    }
+
+    @Test
+    void chunkSizeIsParsedStrictly() throws IOException {
+        assertEquals(5, HttpBody.parseChunkSize("5"));
+        assertEquals(0x1aF, HttpBody.parseChunkSize("1aF"));
+        assertEquals(5, HttpBody.parseChunkSize("0005"));
+        assertEquals(5, HttpBody.parseChunkSize("5;name=value"));
+        assertEquals(5, HttpBody.parseChunkSize("5 \t;name"));
+        assertEquals(0, HttpBody.parseChunkSize("0"));
+
+        assertMalformedChunkSize("5x");
+        assertMalformedChunkSize("5 ");
+        assertMalformedChunkSize(" 5");
+        assertMalformedChunkSize("0x5");
+        assertMalformedChunkSize("+5");
+        assertMalformedChunkSize("");
+        assertMalformedChunkSize(";ext");
+        assertMalformedChunkSize("5 x;ext");
+        assertMalformedChunkSize("1000000000000000");
+    }
+
+    @Test
+    void chunkedBodyIsForwardedWithCanonicalSizeLines() throws IOException {
+        String body = "005;ext=1\r\nhello\r\nA\r\n0123456789\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpBody.copy(new ByteArrayInputStream(body.getBytes("ISO-8859-1")), out, HttpBody.CHUNKED, StreamCopier.DIRECT);
+        assertEquals("5\r\nhello\r\na\r\n0123456789\r\n0\r\nX-Trailer: 1\r\n\r\n", out.toString("ISO-8859-1"));
+    }
+
+    @Test
+    void invalidChunkFramingIsRejected() {
+        assertMalformedChunked("5x\r\nhello\r\n0\r\n\r\n");
+        assertMalformedChunked("5\r\nhelloX\r\n0\r\n\r\n");
+        // CR inside a line
+        assertMalformedChunked("5\r;x\r\nhello\r\n0\r\n\r\n");
+        assertThrows(EOFException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                HttpBody.copy(new ByteArrayInputStream("5\r\nhel".getBytes("ISO-8859-1")),
+                        new ByteArrayOutputStream(), HttpBody.CHUNKED, StreamCopier.DIRECT);
+            }
+        });
+    }
+
+    private static void assertMalformedChunked(final String body) {
+        assertThrows(MalformedHttpException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                HttpBody.copy(new ByteArrayInputStream(body.getBytes("ISO-8859-1")),
+                        new ByteArrayOutputStream(), HttpBody.CHUNKED, StreamCopier.DIRECT);
+            }
+        });
+        assertThrows(MalformedHttpException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                InputStream content = HttpBody.contentStream(
+                        new ByteArrayInputStream(body.getBytes("ISO-8859-1")), HttpBody.CHUNKED);
+                content.close();
+            }
+        });
+    }
+
+    private static void assertMalformedChunkSize(final String line) {
+        assertThrows(MalformedHttpException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                HttpBody.parseChunkSize(line);
+            }
+        });
+    }
+
+    private static void assertMalformedHead(final String text) {
+        assertThrows(MalformedHttpException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                head(text);
+            }
+        });
+    }
+
+    private static void assertMalformed(final HttpHead request) {
+        assertThrows(MalformedHttpException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                HttpBody.requestLength(request);
+            }
+        });
+    }
+
+    private static HttpHead head(String text) throws IOException {
+        HttpInputStream in = new HttpInputStream(new ByteArrayInputStream((text + "\r\n").getBytes("ISO-8859-1")));
+        try {
+            HttpHead head = new HttpHead();
+            assertTrue(in.readHead(head));
+            return head;
+        } finally {
+            in.release();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpCacheTest {
+
+    private static final String URL = "http://example.com:80/a";
+    private static final String GET = "GET /a HTTP/1.1\r\nHost: example.com\r\n";
+
+    private File dir;
+    private HttpCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("http-cache").toFile();
+        cache = new HttpCache(dir, 16 * 1024 * 1024, 4 * 1024 * 1024);
+    }
+
+    @AfterEach
+    void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    void servesFreshEntryWithoutOrigin() throws IOException {
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 5\r\n", "hello");
+
+        HttpCache.Lookup lookup = cache.lookup(head(GET), URL, 0);
+        assertTrue(lookup.isFresh());
+        assertNull(lookup.validators());
+        String served = serve(lookup);
+        assertTrue(served.startsWith("HTTP/1.1 200 OK\r\n"), served);
+        assertTrue(served.contains("Content-Length: 5\r\n"), served);
+        assertTrue(served.contains("X-Proxy-Cache: hit\r\n"), served);
+        assertTrue(served.endsWith("\r\n\r\nhello"), served);
+    }
+
+    @Test
+    void staleWhenLifetimeIsUsedUp() throws IOException {
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nAge: 60\r\nETag: \"v1\"\r\nContent-Length: 1\r\n", "x");
+        assertFalse(cache.lookup(head(GET), URL, 0).isFresh());
+    }
+
+    @Test
+    void requestDirectivesLimitFreshness() throws IOException {
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nAge: 10\r\nETag: \"v1\"\r\nContent-Length: 1\r\n", "x");
+
+        assertTrue(cache.lookup(head(GET + "Cache-Control: max-age=30\r\n"), URL, 0).isFresh());
+        assertFalse(cache.lookup(head(GET + "Cache-Control: max-age=5\r\n"), URL, 0).isFresh());
+        assertFalse(cache.lookup(head(GET + "Cache-Control: min-fresh=55\r\n"), URL, 0).isFresh());
+        assertFalse(cache.lookup(head(GET + "Cache-Control: no-cache\r\n"), URL, 0).isFresh());
+        assertFalse(cache.lookup(head(GET + "Pragma: no-cache\r\n"), URL, 0).isFresh());
+    }
+
+    @Test
+    void expiredOrNoCacheResponsesAreRevalidated() throws IOException {
+        store(GET, "HTTP/1.1 200 OK\r\nDate: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+                + "Expires: Sun, 06 Nov 1994 08:49:37 GMT\r\nETag: \"v1\"\r\nContent-Length: 1\r\n", "x");
+        HttpCache.Lookup lookup = cache.lookup(head(GET), URL, 0);
+        assertFalse(lookup.isFresh());
+        assertEquals("If-None-Match: \"v1\"\r\n", lookup.validators());
+
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: no-cache, max-age=60\r\n"
+                + "Last-Modified: Sun, 06 Nov 1994 08:49:37 GMT\r\nContent-Length: 1\r\n", "x");
+        lookup = cache.lookup(head(GET), URL, 0);
+        assertFalse(lookup.isFresh());
+        assertEquals("If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\n", lookup.validators());
+    }
+
+    @Test
+    void notStoredWithoutPermission() throws IOException {
+        HttpHead request = head(GET);
+        HttpCache.Lookup lookup = cache.lookup(request, URL, 0);
+        assertNull(cache.store(lookup, request, head("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n"), 1));
+        assertNull(cache.store(lookup, request,
+                head("HTTP/1.1 200 OK\r\nCache-Control: no-store, max-age=60\r\nContent-Length: 1\r\n"), 1));
+        assertNull(cache.store(lookup, request,
+                head("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nSet-Cookie: a=b\r\nContent-Length: 1\r\n"), 1));
+        assertNull(cache.store(lookup, request,
+                head("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: *\r\nContent-Length: 1\r\n"), 1));
+        assertNull(cache.store(lookup, request,
+                head("HTTP/1.1 206 Partial Content\r\nCache-Control: max-age=60\r\nContent-Length: 1\r\n"), 1));
+
+        HttpHead authorized = head(GET + "Authorization: Basic eDp5\r\n");
+        HttpCache.Lookup authorizedLookup = cache.lookup(authorized, URL, 0);
+        assertNull(cache.store(authorizedLookup, authorized,
+                head("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 1\r\n"), 1));
+        assertNotNull(cache.store(authorizedLookup, authorized,
+                head("HTTP/1.1 200 OK\r\nCache-Control: public, max-age=60\r\nContent-Length: 1\r\n"), 1));
+    }
+
+    @Test
+    void varySelectsTheVariant() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: Accept-Encoding\r\nContent-Length: 4\r\n";
+        store(GET + "Accept-Encoding: gzip\r\n", response, "gzip");
+        store(GET + "Accept-Encoding: br\r\n", response, "brot");
+
+        assertTrue(serve(cache.lookup(head(GET + "Accept-Encoding:  gzip \r\n"), URL, 0)).endsWith("gzip"));
+        assertTrue(serve(cache.lookup(head(GET + "Accept-Encoding: br\r\n"), URL, 0)).endsWith("brot"));
+
+        HttpCache.Lookup other = cache.lookup(head(GET + "Accept-Encoding: identity\r\n"), URL, 0);
+        assertFalse(other.isFresh());
+        assertNull(other.validators());
+        assertFalse(cache.lookup(head(GET), URL, 0).isFresh());
+    }
+
+    @Test
+    void otherVaryReplacesAllVariants() throws IOException {
+        store(GET + "Accept-Encoding: gzip\r\n",
+                "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: Accept-Encoding\r\nContent-Length: 1\r\n", "x");
+        store(GET + "Accept-Language: de\r\n",
+                "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: Accept-Language\r\nContent-Length: 1\r\n", "y");
+
+        assertFalse(cache.lookup(head(GET + "Accept-Encoding: gzip\r\n"), URL, 0).isFresh());
+        assertTrue(cache.lookup(head(GET + "Accept-Encoding: gzip\r\nAccept-Language: de\r\n"), URL, 0).isFresh());
+    }
+
+    @Test
+    void notModifiedRevalidatesStaleEntry() throws IOException {
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=0\r\nETag: \"v1\"\r\nX-Version: 1\r\n"
+                + "Content-Length: 5\r\n", "hello");
+        HttpCache.Lookup lookup = cache.lookup(head(GET), URL, 0);
+        assertFalse(lookup.isFresh());
+        assertEquals("If-None-Match: \"v1\"\r\n", lookup.validators());
+
+        // Other status: not a revalidation
+        assertFalse(cache.revalidated(lookup, head("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n")));
+        assertTrue(cache.revalidated(lookup,
+                head("HTTP/1.1 304 Not Modified\r\nCache-Control: max-age=60\r\nX-Version: 2\r\n")));
+        String served = serve(lookup);
+        assertTrue(served.contains("X-Version: 2\r\n"), served);
+        assertFalse(served.contains("X-Version: 1"), served);
+        assertTrue(served.endsWith("hello"), served);
+
+        // The updated headers and freshness are kept
+        HttpCache.Lookup again = cache.lookup(head(GET), URL, 0);
+        assertTrue(again.isFresh());
+        assertTrue(serve(again).contains("X-Version: 2\r\n"));
+    }
+
+    @Test
+    void matchingClientValidatorsGetNotModified() throws IOException {
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nETag: W/\"v1\"\r\nContent-Length: 5\r\n", "hello");
+
+        String served = serve(cache.lookup(head(GET + "If-None-Match: \"v0\", \"v1\"\r\n"), URL, 0));
+        assertTrue(served.startsWith("HTTP/1.1 304 Not Modified\r\n"), served);
+        assertTrue(served.contains("ETag: W/\"v1\"\r\n"), served);
+        assertFalse(served.contains("hello"), served);
+
+        served = serve(cache.lookup(head(GET + "If-None-Match: \"v2\"\r\n"), URL, 0));
+        assertTrue(served.startsWith("HTTP/1.1 200 OK\r\n"), served);
+    }
+
+    @Test
+    void successfulUnsafeRequestInvalidates() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 1\r\n";
+        store(GET, response, "x");
+
+        HttpHead failedPost = head("POST /a HTTP/1.1\r\nHost: example.com\r\nContent-Length: 1\r\n");
+        HttpCache.Lookup lookup = cache.lookup(failedPost, URL, 1);
+        assertNull(cache.store(lookup, failedPost, head("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n"), 0));
+        assertTrue(cache.lookup(head(GET), URL, 0).isFresh());
+
+        HttpHead post = head("POST /a HTTP/1.1\r\nHost: example.com\r\nContent-Length: 1\r\n");
+        lookup = cache.lookup(post, URL, 1);
+        assertNull(cache.store(lookup, post, head("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n"), 0));
+        assertFalse(cache.lookup(head(GET), URL, 0).isFresh());
+
+        store(GET, response, "x");
+        HttpHead delete = head("DELETE /a HTTP/1.1\r\nHost: example.com\r\n");
+        cache.store(cache.lookup(delete, URL, 0), delete, head("HTTP/1.1 204 No Content\r\n"), 0);
+        assertFalse(cache.lookup(head(GET), URL, 0).isFresh());
+
+        // Safe methods leave the cache alone
+        assertNull(cache.lookup(head("OPTIONS /a HTTP/1.1\r\nHost: example.com\r\n"), URL, 0));
+    }
+
+    @Test
+    void entriesSurviveRestart() throws IOException {
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 5\r\n", "hello");
+
+        cache = new HttpCache(dir, 16 * 1024 * 1024, 4 * 1024 * 1024);
+        HttpCache.Lookup lookup = cache.lookup(head(GET), URL, 0);
+        assertTrue(lookup.isFresh());
+        assertTrue(serve(lookup).endsWith("hello"));
+    }
+
+    // The body of a hit goes out with transferTo on a channel-backed client socket.
+    @Test
+    void servesBodyFromFileToChannelSocket() throws IOException {
+        byte[] body = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        store(GET, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: " + body.length + "\r\n", body);
+        final HttpCache.Lookup lookup = cache.lookup(head(GET), URL, 0);
+        assertTrue(lookup.isFresh());
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            final Socket peer = new Socket("127.0.0.1", server.socket().getLocalPort());
+            final ChannelSocket client = new ChannelSocket(server.accept());
+            try {
+                Thread sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            cache.serve(lookup, client, client.getOutputStream(), false);
+                            client.shutdownOutput();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            lookup.close();
+                        }
+                    }
+                });
+                sender.start();
+                byte[] received = readAll(peer.getInputStream());
+                int end = indexOf(received, "\r\n\r\n".getBytes("ISO-8859-1")) + 4;
+                assertTrue(end > 4);
+                assertArrayEquals(body, Arrays.copyOfRange(received, end, received.length));
+            } finally {
+                client.close();
+                peer.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private void store(String request, String response, String body) throws IOException {
+        store(request, response, body.getBytes("ISO-8859-1"));
+    }
+
+    private void store(String request, String response, byte[] body) throws IOException {
+        HttpHead requestHead = head(request);
+        HttpCache.Lookup lookup = cache.lookup(requestHead, URL, 0);
+        HttpCache.Store store = cache.store(lookup, requestHead, head(response), body.length);
+        assertNotNull(store, response);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.relay(new ByteArrayInputStream(body), out, body.length, StreamCopier.DIRECT);
+        assertArrayEquals(body, out.toByteArray());
+        lookup.close();
+    }
+
+    // What serve() sends for a lookup that may be served.
+    private String serve(HttpCache.Lookup lookup) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            cache.serve(lookup, null, out, true);
+        } finally {
+            lookup.close();
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    private static HttpHead head(String text) throws IOException {
+        HttpInputStream in = new HttpInputStream(new ByteArrayInputStream((text + "\r\n").getBytes("ISO-8859-1")));
+        try {
+            HttpHead head = new HttpHead();
+            assertTrue(in.readHead(head));
+            return head;
+        } finally {
+            in.release();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
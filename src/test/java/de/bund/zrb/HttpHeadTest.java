@@ -0,0 +1,211 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpHeadTest {
+
+    @Test
+    void parseReturnsTheEndOfTheHead() throws Exception {
+        HttpHead head = new HttpHead();
+        byte[] src = bytes("xxGET /a HTTP/1.1\r\nHost: a\r\n\r\nBODY");
+        assertEquals(src.length - 4, head.parse(src, 2, src.length));
+        assertEquals("GET /a HTTP/1.1", head.getStartLine());
+        // Not complete yet
+        assertEquals(-1, head.parse(src, 2, src.length - 6));
+        assertEquals(-1, head.parse(src, 2, src.length - 5));
+    }
+
+    @Test
+    void bareLineFeedsEndLinesAndTheHead() throws Exception {
+        HttpHead head = new HttpHead();
+        byte[] src = bytes("GET / HTTP/1.1\nHost: a\nAccept: */*\n\nrest");
+        assertEquals(src.length - 4, head.parse(src, 0, src.length));
+        assertEquals("GET / HTTP/1.1", head.getStartLine());
+        assertEquals("a", head.getHeader("Host"));
+        assertEquals("*/*", head.getHeader("Accept"));
+
+        src = bytes("GET / HTTP/1.1\r\nHost: a\n\r\nrest");
+        assertEquals(src.length - 4, head.parse(src, 0, src.length));
+        assertEquals("a", head.getHeader("Host"));
+    }
+
+    @Test
+    void blankLinesBeforeTheStartLineAreSkipped() throws Exception {
+        HttpHead head = new HttpHead();
+        byte[] src = bytes("\r\n\n\r\nGET / HTTP/1.1\r\nHost: a\r\n\r\n");
+        assertEquals(src.length, head.parse(src, 0, src.length));
+        assertEquals("GET / HTTP/1.1", head.getStartLine());
+        assertEquals(1, head.getHeaderCount());
+
+        byte[] blank = bytes("\r\n\r\n");
+        assertEquals(-1, head.parse(blank, 0, blank.length));
+        assertTrue(HttpHead.isBlank(blank, 0, blank.length));
+        assertFalse(HttpHead.isBlank(src, 0, src.length));
+    }
+
+    @Test
+    void headSizeIsLimited() throws Exception {
+        StringBuilder big = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (big.length() < HttpHead.MAX_HEAD_BYTES) {
+            big.append("X-Filler: 0123456789012345678901234567890123456789\r\n");
+        }
+        // Incomplete and already at the limit, or complete but too large
+        assertMalformed(big.toString());
+        assertMalformed(big + "\r\n");
+
+        // Just below the limit
+        StringBuilder fits = new StringBuilder("GET / HTTP/1.1\r\n");
+        String value = new String(new char[398]).replace('\0', 'v');
+        while (fits.length() + 412 < HttpHead.MAX_HEAD_BYTES) {
+            fits.append("X-F: ").append(value).append("\r\n");
+        }
+        HttpHead head = head(fits.append("\r\n").toString());
+        assertTrue(head.getHeaderCount() > 100);
+    }
+
+    @Test
+    void headerCountIsLimited() throws Exception {
+        assertEquals(HttpHead.MAX_HEADERS, head(limitHeaders(HttpHead.MAX_HEADERS)).getHeaderCount());
+        assertMalformed(limitHeaders(HttpHead.MAX_HEADERS + 1));
+    }
+
+    @Test
+    void obsoleteLineFoldingIsRejected() {
+        assertMalformed("GET / HTTP/1.1\r\nX-A: a\r\n  b\r\n\r\n");
+        assertMalformed("GET / HTTP/1.1\r\nX-A: a\r\n\tb\r\n\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nX-A: a\r\n b\r\n\r\n");
+    }
+
+    @Test
+    void requestHeaderLinesAreStrict() throws Exception {
+        assertMalformed("GET / HTTP/1.1\r\nNoColon\r\n\r\n");
+        assertMalformed("GET / HTTP/1.1\r\n: value\r\n\r\n");
+        assertMalformed("GET / HTTP/1.1\r\nHost : a\r\n\r\n");
+
+        // A response only has to be readable
+        HttpHead response = head("HTTP/1.1 200 OK\r\nNoColon\r\nX-A : b\r\n\r\n");
+        assertEquals(1, response.getHeaderCount());
+        assertEquals("X-A", response.getHeaderName(0));
+        assertEquals("b", response.getHeader("x-a"));
+    }
+
+    @Test
+    void headersAreIndexedInOrder() throws Exception {
+        HttpHead head = head("POST /upload?x=1 HTTP/1.1\r\nHost: example.com\r\nX-Empty:\r\n"
+                + "X-Padded: \t value with  spaces \t\r\nConnection: keep-alive, Close\r\nhost: second\r\n\r\n");
+        assertEquals(5, head.getHeaderCount());
+        assertEquals("Host", head.getHeaderName(0));
+        assertEquals("example.com", head.getHeaderValue(0));
+        assertEquals("", head.getHeaderValue(1));
+        assertEquals("value with  spaces", head.getHeaderValue(2));
+        assertEquals("host", head.getHeaderName(4));
+
+        // Lookup ignores case and finds the first field
+        assertEquals("example.com", head.getHeader("HOST"));
+        assertTrue(head.hasHeader("x-empty"));
+        assertNull(head.getHeader("X-Missing"));
+        assertTrue(head.hasHeaderToken("connection", "close"));
+        assertTrue(head.hasHeaderToken("Connection", "Keep-Alive"));
+        assertFalse(head.hasHeaderToken("Connection", "upgrade"));
+    }
+
+    @Test
+    void startLineParts() throws Exception {
+        HttpHead request = head("DELETE http://a/b HTTP/1.0\r\n\r\n");
+        assertTrue(request.isValidRequest());
+        assertEquals("DELETE", request.getMethod());
+        assertTrue(request.isMethod("delete"));
+        assertEquals("http://a/b", request.getTarget());
+        assertTrue(request.isTarget("http://a/b"));
+        assertEquals("HTTP/1.0", request.getVersion());
+        assertFalse(head("GET /\r\n\r\n").isValidRequest());
+        assertFalse(head("GET  HTTP/1.1\r\n\r\n").isValidRequest());
+
+        HttpHead response = head("HTTP/1.1 404 Not Found\r\n\r\n");
+        assertEquals(404, response.getStatusCode());
+        assertEquals("Not Found", response.getVersion());
+        assertEquals(204, head("HTTP/1.1 204\r\n\r\n").getStatusCode());
+        assertEquals(-1, head("HTTP/1.1 20 OK\r\n\r\n").getStatusCode());
+        assertEquals(-1, head("HTTP/1.1 2x0 OK\r\n\r\n").getStatusCode());
+    }
+
+    @Test
+    void instanceIsReusedForTheNextHead() throws Exception {
+        HttpHead head = head("GET /first HTTP/1.1\r\nX-A: 1\r\nX-B: 2\r\n\r\n");
+        byte[] next = bytes("POST /second HTTP/1.1\r\nX-C: 3\r\n\r\n");
+        head.parse(next, 0, next.length);
+        assertEquals("/second", head.getTarget());
+        assertEquals(1, head.getHeaderCount());
+        assertNull(head.getHeader("X-A"));
+    }
+
+    // Body bytes and the next pipelined request read together with a head stay in the stream.
+    @Test
+    void bytesBehindTheHeadStayInTheStream() throws Exception {
+        HttpInputStream in = new HttpInputStream(new ByteArrayInputStream(bytes(
+                "\r\nPOST /a HTTP/1.1\r\nContent-Length: 4\r\n\r\nbodyGET /b HTTP/1.1\nHost: b\n\n\r\n")));
+        try {
+            HttpHead head = new HttpHead();
+            assertTrue(in.readHead(head));
+            assertEquals("/a", head.getTarget());
+            byte[] body = new byte[4];
+            assertEquals(4, in.read(body));
+            assertEquals("body", new String(body, "ISO-8859-1"));
+            assertTrue(in.readHead(head));
+            assertEquals("/b", head.getTarget());
+            // Only a line break left: no further head
+            assertFalse(in.readHead(head));
+        } finally {
+            in.release();
+        }
+    }
+
+    @Test
+    void writeToNormalizesLineBreaks() throws Exception {
+        HttpHead head = head("GET / HTTP/1.1\nHost: a\nX-A:b\n\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        head.writeTo(out);
+        assertEquals("GET / HTTP/1.1\r\nHost: a\r\nX-A:b\r\n\r\n", out.toString("ISO-8859-1"));
+    }
+
+    private static String limitHeaders(int count) {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < count; i++) {
+            head.append("X-").append(i).append(": v\r\n");
+        }
+        return head.append("\r\n").toString();
+    }
+
+    private static void assertMalformed(final String text) {
+        assertThrows(MalformedHttpException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                byte[] src = bytes(text);
+                new HttpHead().parse(src, 0, src.length);
+            }
+        });
+    }
+
+    private static HttpHead head(String text) throws IOException {
+        HttpHead head = new HttpHead();
+        byte[] src = bytes(text);
+        assertEquals(src.length, head.parse(src, 0, src.length));
+        return head;
+    }
+
+    private static byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+}
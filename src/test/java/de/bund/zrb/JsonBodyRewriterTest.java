@@ -0,0 +1,200 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonBodyRewriterTest {
+
+    @Test
+    void patchReplacesAValueInPlace() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Arrays.asList("gpt-*"), "temperature=1.0", ""));
+        assertEquals("{\"model\":\"gpt-4o\",\"temperature\":1.0,\"x\":1}",
+                patch(rewriter, "{\"model\":\"gpt-4o\",\"temperature\":0.7,\"x\":1}"));
+        // Also before the model
+        assertEquals("{\"temperature\":1.0,\"model\":\"gpt-4o\"}",
+                patch(rewriter, "{\"temperature\":0.7,\"model\":\"gpt-4o\"}"));
+        assertEquals(2, rewriter.getEdits().get(0).getApplied());
+    }
+
+    @Test
+    void patchKeepsWhitespaceByteForByte() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Arrays.asList("gpt-*"), "temperature=1", ""));
+        String body = "{ \"model\" : \"gpt-4o\" ,\n\t\"temperature\" :  0.7 , \"messages\":[ {\"role\": \"user\"} ] }\r\n";
+        assertEquals(body.replace("0.7", "1"), patch(rewriter, body));
+    }
+
+    @Test
+    void patchAppendsAbsentFields() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Collections.<String>emptyList(), "top_p=0.5,mode=auto", ""));
+        assertEquals("{\"model\":\"m\", \"x\":1,\"top_p\":0.5,\"mode\":\"auto\"}\n",
+                patch(rewriter, "{\"model\":\"m\", \"x\":1}\n"));
+        assertEquals("{\"top_p\":0.5,\"mode\":\"auto\" }", patch(rewriter, "{ }"));
+        // Present ones are replaced where they are
+        assertEquals("{\"mode\":\"auto\",\"top_p\":0.5}", patch(rewriter, "{\"mode\":\"manual\"}"));
+    }
+
+    @Test
+    void patchRemovesMembersWithOneSeparator() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Collections.<String>emptyList(), "", "x"));
+        // First, middle, last and only member
+        assertEquals("{\"model\":\"m\", \"b\":2}", patch(rewriter, "{\"x\":1, \"model\":\"m\", \"b\":2}"));
+        assertEquals("{\"model\":\"m\", \"b\":2}", patch(rewriter, "{\"model\":\"m\", \"x\":[1, {\"y\":2}], \"b\":2}"));
+        assertEquals("{\"model\":\"m\"}", patch(rewriter, "{\"model\":\"m\", \"x\":{\"y\":\"}\"}}"));
+        assertEquals("{}", patch(rewriter, "{\"x\":1}"));
+        assertEquals("{\n  \"model\": \"m\"\n}", patch(rewriter, "{\n  \"x\": 1,\n  \"model\": \"m\"\n}"));
+    }
+
+    @Test
+    void patchClampsNumbers() throws Exception {
+        Map<String, BigDecimal[]> clamp = new LinkedHashMap<String, BigDecimal[]>();
+        clamp.put("max_tokens", new BigDecimal[]{null, new BigDecimal("1000")});
+        clamp.put("n", new BigDecimal[]{BigDecimal.ONE, null});
+        JsonBodyRewriter rewriter = rewriter(new JsonBodyRewriter.Edit("clamp", Collections.<String>emptyList(),
+                Collections.<String, String>emptyMap(), Collections.<String>emptyList(), clamp));
+        assertEquals("{\"max_tokens\":1000,\"n\":1}", patch(rewriter, "{\"max_tokens\":4096,\"n\":0}"));
+        // Within range, not a number, or a structure: unchanged
+        byte[] inRange = bytes("{\"max_tokens\":10,\"n\":\"2\"}");
+        assertSame(inRange, rewriter.patch(inRange));
+        byte[] structure = bytes("{\"max_tokens\":[5000]}");
+        assertSame(structure, rewriter.patch(structure));
+    }
+
+    @Test
+    void patchReturnsTheBodyIfNothingChanges() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Arrays.asList("gpt-*"), "temperature=1", "user"));
+        byte[] same = bytes("{\"model\":\"gpt-4o\",\"temperature\":1}");
+        assertSame(same, rewriter.patch(same));
+        byte[] otherModel = bytes("{\"model\":\"claude\",\"temperature\":0.2,\"user\":\"u\"}");
+        assertSame(otherModel, rewriter.patch(otherModel));
+        byte[] noModel = bytes("{\"temperature\":0.2}");
+        assertSame(noModel, rewriter.patch(noModel));
+        assertEquals(0, rewriter.getEdits().get(0).getApplied());
+    }
+
+    @Test
+    void firstMatchingEditWins() throws Exception {
+        JsonBodyRewriter rewriter = new JsonBodyRewriter(Arrays.asList(
+                edit(Arrays.asList("gpt-4*"), "temperature=1", ""),
+                edit(Arrays.asList("gpt-*"), "temperature=2", "")));
+        assertEquals("{\"model\":\"GPT-4o\",\"temperature\":1}", patch(rewriter, "{\"model\":\"GPT-4o\",\"temperature\":0}"));
+        assertEquals("{\"model\":\"gpt-3\",\"temperature\":2}", patch(rewriter, "{\"model\":\"gpt-3\",\"temperature\":0}"));
+    }
+
+    @Test
+    void patchLeavesAmbiguousBodiesToRewrite() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Collections.<String>emptyList(), "temperature=1", ""));
+        // Duplicate target or model
+        assertNull(rewriter.patch(bytes("{\"temperature\":0.5,\"temperature\":0.7}")));
+        assertNull(rewriter.patch(bytes("{\"model\":\"a\",\"model\":\"b\"}")));
+        // Escapes in a name or in the model
+        assertNull(rewriter.patch(bytes("{\"temper\\u0061ture\":0.5}")));
+        assertNull(rewriter.patch(bytes("{\"model\":\"gpt\\\"4\",\"temperature\":0.5}")));
+        // Malformed
+        assertNull(rewriter.patch(bytes("{\"temperature\":0.5,}")));
+        assertNull(rewriter.patch(bytes("{\"temperature\":0.5} x")));
+        assertNull(rewriter.patch(bytes("[{\"temperature\":0.5}]")));
+        assertNull(rewriter.patch(bytes("{\"temperature\":0.5")));
+    }
+
+    @Test
+    void patchKeepsEscapesInOtherValues() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Collections.<String>emptyList(), "temperature=1", ""));
+        assertEquals("{\"msg\":\"a\\\"b\\\\\",\"temperature\":1,\"dup\":1,\"dup\":2}",
+                patch(rewriter, "{\"msg\":\"a\\\"b\\\\\",\"temperature\":0.5,\"dup\":1,\"dup\":2}"));
+        assertEquals("{\"text\":\"grüße\",\"temperature\":1}",
+                patch(rewriter, "{\"text\":\"grüße\",\"temperature\":0.5}"));
+    }
+
+    // Larger than the buffering limit of the MITM handler, so it would be streamed
+    @Test
+    void rewriteStreamsALargeBody() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Arrays.asList("gpt-*"), "temperature=1,mode=auto", "user"));
+        String content = largeContent(3 * 1024 * 1024 / 2);
+        String body = "{\"temperature\":0.7,\"user\":\"u\",\"model\":\"gpt-4o\","
+                + "\"messages\":[{\"role\":\"user\",\"content\":\"" + content + "\"}],\"stream\":true}";
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length());
+        assertTrue(rewriter.rewrite(new ByteArrayInputStream(bytes(body)), out));
+        // Fields before the model move behind it once the edit is known; absent ones are appended
+        assertEquals("{\"model\":\"gpt-4o\",\"temperature\":1,"
+                + "\"messages\":[{\"role\":\"user\",\"content\":\"" + content + "\"}],\"stream\":true,"
+                + "\"mode\":\"auto\"}", out.toString("UTF-8"));
+        assertEquals(1, rewriter.getEdits().get(0).getApplied());
+    }
+
+    @Test
+    void rewriteHandlesWhatPatchLeavesOut() throws Exception {
+        JsonBodyRewriter rewriter = rewriter(edit(Arrays.asList("gpt-*"), "temperature=1", ""));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(rewriter.rewrite(new ByteArrayInputStream(bytes(
+                "{\"model\":\"gpt-\\u0034\", \"temperature\": 0.5, \"n\": [1, 2]}")), out));
+        assertEquals("{\"model\":\"gpt-4\",\"temperature\":1,\"n\":[1,2]}", out.toString("UTF-8"));
+
+        out.reset();
+        assertFalse(rewriter.rewrite(new ByteArrayInputStream(bytes("{\"model\":\"other\",\"temperature\":0.5}")), out));
+        assertEquals("{\"model\":\"other\",\"temperature\":0.5}", out.toString("UTF-8"));
+    }
+
+    @Test
+    void rewriteRejectsWhatIsNotAnObject() {
+        final JsonBodyRewriter rewriter = rewriter(edit(Collections.<String>emptyList(), "temperature=1", ""));
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                rewriter.rewrite(new ByteArrayInputStream(bytes("[1, 2]")), new ByteArrayOutputStream());
+            }
+        });
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                rewriter.rewrite(new ByteArrayInputStream(bytes("{\"temperature\":")), new ByteArrayOutputStream());
+            }
+        });
+    }
+
+    // Text of the given length with some non-ASCII characters in it.
+    static String largeContent(int length) {
+        StringBuilder content = new StringBuilder(length);
+        while (content.length() < length) {
+            content.append("Grüße aus dem Stream ").append(content.length()).append(' ');
+        }
+        content.setLength(length);
+        return content.toString();
+    }
+
+    private static JsonBodyRewriter.Edit edit(List<String> models, String set, String remove) {
+        return new JsonBodyRewriter.Edit("test", models, JsonBodyRewriter.parseFields(set),
+                remove.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(remove.split(",")),
+                Collections.<String, BigDecimal[]>emptyMap());
+    }
+
+    private static JsonBodyRewriter rewriter(JsonBodyRewriter.Edit edit) {
+        return new JsonBodyRewriter(Collections.singletonList(edit));
+    }
+
+    private static String patch(JsonBodyRewriter rewriter, String body) throws UnsupportedEncodingException {
+        byte[] patched = rewriter.patch(bytes(body));
+        return patched != null ? new String(patched, "UTF-8") : null;
+    }
+
+    private static byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("UTF-8");
+    }
+}
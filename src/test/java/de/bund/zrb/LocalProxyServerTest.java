@@ -0,0 +1,178 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.ThrowingSupplier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalProxyServerTest {
+
+    // Far above the socket buffers, so the body cannot be written without the origin reading it
+    private static final int BODY_BYTES = 4 * 1024 * 1024;
+
+    private ServerSocket origin;
+    private Thread originThread;
+    private LocalProxyServer proxy;
+    private int proxyPort;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        origin = new ServerSocket(0);
+        originThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveOrigin();
+            }
+        }, "test-origin");
+        originThread.setDaemon(true);
+        originThread.start();
+
+        proxyPort = freePort();
+        proxy = new LocalProxyServer(proxyPort, null);
+        proxy.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        proxy.stop();
+        origin.close();
+    }
+
+    // The body goes up on its own thread while the handler already waits for the response head.
+    // On Java 8 this stalled until the read timeout when the upstream socket was channel-backed.
+    @Test
+    void forwardsPostBodyLargerThanSocketBuffers() {
+        String response = assertTimeoutPreemptively(Duration.ofSeconds(20), new ThrowingSupplier<String>() {
+            @Override
+            public String get() throws Throwable {
+                return post(BODY_BYTES);
+            }
+        });
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        assertTrue(response.endsWith("\r\n\r\n" + BODY_BYTES), response);
+    }
+
+    @Test
+    void rejectsInvalidFramingWith400() throws IOException {
+        String target = "POST http://127.0.0.1:" + origin.getLocalPort() + "/upload HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + origin.getLocalPort() + "\r\n";
+        assertBadRequest(exchange(target + "Transfer-Encoding: gzip\r\n\r\n"));
+        assertBadRequest(exchange(target + "Transfer-Encoding: chunked, gzip\r\n\r\n"));
+        assertBadRequest(exchange(target + "Transfer-Encoding : chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n"));
+        // Found while the body already streams to the origin
+        assertBadRequest(exchange(target + "Transfer-Encoding: chunked\r\n\r\n5x\r\nhello\r\n0\r\n\r\n"));
+    }
+
+    private static void assertBadRequest(String response) {
+        assertTrue(response.startsWith("HTTP/1.1 400 "), response);
+    }
+
+    // Sends raw bytes and returns everything up to the end of the connection.
+    private String exchange(final String request) {
+        return assertTimeoutPreemptively(Duration.ofSeconds(20), new ThrowingSupplier<String>() {
+            @Override
+            public String get() throws Throwable {
+                try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+                    client.setSoTimeout(30000);
+                    client.getOutputStream().write(request.getBytes("ISO-8859-1"));
+                    client.getOutputStream().flush();
+                    return new String(readAll(client.getInputStream()), "ISO-8859-1");
+                }
+            }
+        });
+    }
+
+    private String post(int length) throws IOException {
+        try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+            client.setSoTimeout(30000);
+            OutputStream out = client.getOutputStream();
+            String head = "POST http://127.0.0.1:" + origin.getLocalPort() + "/upload HTTP/1.1\r\n"
+                    + "Host: 127.0.0.1:" + origin.getLocalPort() + "\r\n"
+                    + "Content-Length: " + length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            out.write(head.getBytes("ISO-8859-1"));
+            byte[] chunk = new byte[64 * 1024];
+            Arrays.fill(chunk, (byte) 'x');
+            for (int sent = 0; sent < length; sent += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, length - sent));
+            }
+            out.flush();
+            return new String(readAll(client.getInputStream()), "ISO-8859-1");
+        }
+    }
+
+    // Answers each request with the number of body bytes it received, after reading all of them.
+    // A chunked body is read up to the end of the connection.
+    private void serveOrigin() {
+        while (!origin.isClosed()) {
+            try (Socket socket = origin.accept()) {
+                InputStream in = socket.getInputStream();
+                String head = readHead(in);
+                long length = head.toLowerCase().contains("transfer-encoding: chunked") ? Long.MAX_VALUE : contentLength(head);
+                long received = 0;
+                byte[] buffer = new byte[8192];
+                int n;
+                while (received < length
+                        && (n = in.read(buffer, 0, (int) Math.min(buffer.length, length - received))) > 0) {
+                    received += n;
+                }
+                String body = Long.toString(received);
+                String response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length()
+                        + "\r\nConnection: close\r\n\r\n" + body;
+                socket.getOutputStream().write(response.getBytes("ISO-8859-1"));
+                socket.getOutputStream().flush();
+            } catch (IOException ignored) {
+                // Closed by tearDown
+            }
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            head.append((char) c);
+            if (head.length() >= 4 && head.substring(head.length() - 4).equals("\r\n\r\n")) {
+                break;
+            }
+        }
+        return head.toString();
+    }
+
+    private static long contentLength(String head) {
+        for (String line : head.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                return Long.parseLong(line.substring(15).trim());
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
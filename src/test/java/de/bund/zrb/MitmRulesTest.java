@@ -0,0 +1,215 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MitmRulesTest {
+
+    @Test
+    void hostPatterns() {
+        HostTrie trie = new HostTrie();
+        trie.add("api.openai.com", 0);
+        trie.add("*.openai.com", 1);
+        trie.add(".openai.com", 2);
+        trie.add("*", 3);
+        trie.add("API.Example.COM ", 4);
+
+        assertEquals(ids(0, 1, 2, 3), trie.match("api.openai.com"));
+        // "*." only below the domain, "." the domain as well
+        assertEquals(ids(2, 3), trie.match("openai.com"));
+        assertEquals(ids(1, 2, 3), trie.match("a.b.openai.com"));
+        assertEquals(ids(3), trie.match("notopenai.com"));
+        assertEquals(ids(3), trie.match("openai.com.evil.net"));
+        assertEquals(ids(3), trie.match("com"));
+        assertEquals(ids(3, 4), trie.match("api.example.com"));
+        assertEquals(ids(1, 2, 3), trie.match("X.OpenAI.com"));
+    }
+
+    @Test
+    void globs() {
+        Glob exact = Glob.compile("/v1/chat.completions", false);
+        assertTrue(exact.matches("/v1/chat.completions"));
+        // '.' is no wildcard
+        assertFalse(exact.matches("/v1/chatXcompletions"));
+        assertFalse(exact.matches("/v1/chat.completions/x"));
+
+        Glob prefix = Glob.compile("/openai/deployments/*", false);
+        assertTrue(prefix.matches("/openai/deployments/"));
+        assertTrue(prefix.matches("/openai/deployments/gpt/chat/completions"));
+        assertFalse(prefix.matches("/openai/deployments"));
+        assertFalse(prefix.matches("/OpenAI/deployments/x"));
+
+        Glob middle = Glob.compile("/v1/*/completions*", false);
+        assertTrue(middle.matches("/v1/chat/completions"));
+        assertTrue(middle.matches("/v1/a/b/completions?x"));
+        assertFalse(middle.matches("/v2/chat/completions"));
+
+        Glob model = Glob.compile("gpt-5-mini*", true);
+        assertTrue(model.matches("GPT-5-mini-2025"));
+        assertFalse(model.matches("gpt-5"));
+        assertTrue(Glob.compile("*", false).matches(""));
+        assertTrue(Glob.compile("*(mini)?", true).matches("gpt (MINI)?"));
+        assertFalse(Glob.compile("*(mini)?", true).matches("gpt mini"));
+    }
+
+    @Test
+    void portsDefaultTo443() {
+        MitmRules rules = new MitmRules(Arrays.asList(
+                rule("default", hosts("api.openai.com"), Collections.<Integer>emptyList(), "", ""),
+                rule("alt", hosts("api.openai.com"), Arrays.asList(8443, 443), "", ""),
+                rule("anyHost", Collections.<String>emptyList(), Arrays.asList(9443), "", "")));
+        assertEquals(ids(0, 1), rules.forConnection("api.openai.com", 443));
+        assertEquals(ids(1), rules.forConnection("api.openai.com", 8443));
+        assertEquals(ids(2), rules.forConnection("other.example", 9443));
+        assertFalse(rules.intercepts("api.openai.com", 80));
+        assertTrue(rules.intercepts("other.example", 9443));
+    }
+
+    @Test
+    void methodAndPathSelectTheRules() throws Exception {
+        MitmRules rules = new MitmRules(Arrays.asList(
+                new MitmRules.Rule("chat", hosts("api.openai.com"), Collections.<Integer>emptyList(),
+                        Arrays.asList("post"), Arrays.asList("/v1/chat/*"), Collections.<String>emptyList(),
+                        JsonBodyRewriter.parseFields("temperature=1"), Collections.<String>emptyList(),
+                        Collections.<String, BigDecimal[]>emptyMap())));
+        BitSet candidates = rules.forConnection("api.openai.com", 443);
+        JsonBodyRewriter rewriter = rules.rewriterFor(candidates, head("POST /v1/chat/completions?x=1 HTTP/1.1"));
+        assertNotNull(rewriter);
+        // One rewriter per combination of rules
+        assertSame(rewriter, rules.rewriterFor(candidates, head("POST /v1/chat/other HTTP/1.1")));
+        assertNull(rules.rewriterFor(candidates, head("GET /v1/chat/completions HTTP/1.1")));
+        assertNull(rules.rewriterFor(candidates, head("POST /v1/embeddings HTTP/1.1")));
+        assertNull(rules.rewriterFor(new BitSet(), head("POST /v1/chat/completions HTTP/1.1")));
+        assertEquals(2, rules.getRules().get(0).getHits());
+    }
+
+    // Every matching rule is a candidate; the first one (in file order) whose model matches edits.
+    @Test
+    void firstRuleWithMatchingModelWins() throws Exception {
+        MitmRules rules = new MitmRules(Arrays.asList(
+                rule("subdomains", hosts("*.openai.com"), Collections.<Integer>emptyList(), "gpt-4*", "temperature=1"),
+                rule("exact", hosts("api.openai.com"), Collections.<Integer>emptyList(), "", "temperature=2"),
+                rule("domain", hosts(".openai.com"), Collections.<Integer>emptyList(), "", "temperature=3")));
+        JsonBodyRewriter api = rules.rewriterFor(rules.forConnection("api.openai.com", 443),
+                head("POST /v1/chat/completions HTTP/1.1"));
+        assertEquals("{\"model\":\"gpt-4o\",\"temperature\":1}", patch(api, "{\"model\":\"gpt-4o\",\"temperature\":0}"));
+        assertEquals("{\"model\":\"o3\",\"temperature\":2}", patch(api, "{\"model\":\"o3\",\"temperature\":0}"));
+
+        JsonBodyRewriter domain = rules.rewriterFor(rules.forConnection("openai.com", 443),
+                head("POST /v1/chat/completions HTTP/1.1"));
+        assertEquals("{\"model\":\"gpt-4o\",\"temperature\":3}", patch(domain, "{\"model\":\"gpt-4o\",\"temperature\":0}"));
+
+        StringBuilder stats = new StringBuilder();
+        rules.appendStats(stats);
+        assertTrue(stats.toString().contains("mitm.rules: 3\n"), stats.toString());
+        assertTrue(stats.toString().contains("mitm.rules.subdomains: 1 hits, 1 applied\n"), stats.toString());
+        assertTrue(stats.toString().contains("mitm.rules.exact: 1 hits, 1 applied\n"), stats.toString());
+    }
+
+    @Test
+    void rulesFileIsParsed() throws Exception {
+        File file = File.createTempFile("mitm-rules", ".json");
+        try {
+            write(file, "{\"rules\": [{\"name\": \"mini\", \"hosts\": [\"*.openai.azure.com\"], \"ports\": [443, 8443],"
+                    + " \"methods\": \"POST\", \"paths\": [\"/openai/deployments/*\"], \"models\": [\"gpt-5-mini*\"],"
+                    + " \"set\": {\"temperature\": 1.0, \"mode\": \"auto\"}, \"remove\": [\"logprobs\"],"
+                    + " \"clamp\": {\"max_tokens\": {\"max\": 4096}}},"
+                    + " {\"hosts\": \"x\", \"ports\": [\"no port\"]},"
+                    + " {\"hosts\": [\"api.openai.com\"]}]}");
+            Properties props = new Properties();
+            props.setProperty(MitmRules.KEY_RULES_FILE, file.getAbsolutePath());
+            MitmRules.Rule first = rule("builtin", hosts("localhost"), Collections.<Integer>emptyList(), "", "");
+            MitmRules rules = MitmRules.fromConfig(new ProxyConfig(props), null, Collections.singletonList(first));
+
+            // The invalid second rule is skipped, unnamed ones are numbered
+            assertEquals(3, rules.getRules().size());
+            assertEquals("builtin", rules.getRules().get(0).getName());
+            assertEquals("mini", rules.getRules().get(1).getName());
+            assertEquals("rule3", rules.getRules().get(2).getName());
+
+            assertEquals(ids(1), rules.forConnection("east.openai.azure.com", 8443));
+            JsonBodyRewriter rewriter = rules.rewriterFor(rules.forConnection("east.openai.azure.com", 443),
+                    head("POST /openai/deployments/mini/chat/completions HTTP/1.1"));
+            assertEquals("{\"model\":\"gpt-5-mini\",\"max_tokens\":4096,\"temperature\":1.0,\"mode\":\"auto\"}",
+                    patch(rewriter, "{\"model\":\"gpt-5-mini\",\"logprobs\":true,\"max_tokens\":10000}"));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    void missingRulesFileMeansNoFurtherRules() {
+        Properties props = new Properties();
+        props.setProperty(MitmRules.KEY_RULES_FILE, new File("does-not-exist.json").getAbsolutePath());
+        MitmRules rules = MitmRules.fromConfig(new ProxyConfig(props), null, Collections.<MitmRules.Rule>emptyList());
+        assertTrue(rules.getRules().isEmpty());
+        assertFalse(rules.intercepts("api.openai.com", 443));
+    }
+
+    private static MitmRules.Rule rule(String name, Collection<String> hosts, Collection<Integer> ports,
+                                       String model, String set) {
+        return new MitmRules.Rule(name, hosts, ports, Collections.<String>emptyList(), Collections.<String>emptyList(),
+                model.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(model),
+                JsonBodyRewriter.parseFields(set), Collections.<String>emptyList(),
+                Collections.<String, BigDecimal[]>emptyMap());
+    }
+
+    private static List<String> hosts(String... hosts) {
+        return new ArrayList<String>(Arrays.asList(hosts));
+    }
+
+    private static BitSet ids(int... ids) {
+        BitSet set = new BitSet();
+        for (int id : ids) {
+            set.set(id);
+        }
+        return set;
+    }
+
+    private static HttpHead head(String startLine) throws IOException {
+        HttpInputStream in = new HttpInputStream(new ByteArrayInputStream(
+                (startLine + "\r\nHost: a\r\n\r\n").getBytes("ISO-8859-1")));
+        try {
+            HttpHead head = new HttpHead();
+            assertTrue(in.readHead(head));
+            return head;
+        } finally {
+            in.release();
+        }
+    }
+
+    private static String patch(JsonBodyRewriter rewriter, String body) throws IOException {
+        byte[] patched = rewriter.patch(body.getBytes("UTF-8"));
+        assertNotNull(patched);
+        return new String(patched, "UTF-8");
+    }
+
+    private static void write(File file, String content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
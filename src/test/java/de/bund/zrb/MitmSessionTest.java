@@ -0,0 +1,296 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A session between a loopback client and a test origin that records each request it gets. The
+// stages rewrite JSON bodies the way GenericMitmHandler does: patch() on buffered bodies,
+// rewrite() on streamed ones.
+class MitmSessionTest {
+
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    private static final String RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<Received>();
+    private final JsonBodyRewriter rewriter = new JsonBodyRewriter(Collections.singletonList(
+            new JsonBodyRewriter.Edit("test", Collections.singletonList("gpt-*"),
+                    JsonBodyRewriter.parseFields("temperature=1,mode=auto"), Collections.<String>emptyList(),
+                    Collections.<String, BigDecimal[]>emptyMap())));
+
+    private ServerSocket origin;
+    private Socket client;
+    private Thread session;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        origin = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread originThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveOrigin();
+            }
+        }, "test-origin");
+        originThread.setDaemon(true);
+        originThread.start();
+
+        final Socket sessionSide;
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            sessionSide = listener.accept();
+        }
+        client.setSoTimeout(20000);
+        MitmSession.Origin upstreams = new MitmSession.Origin() {
+            @Override
+            public UpstreamConnection connect() throws IOException {
+                return new UpstreamConnection("test", new Socket(InetAddress.getLoopbackAddress(), origin.getLocalPort()));
+            }
+
+            @Override
+            public void release(UpstreamConnection upstream, boolean reusable) {
+                upstream.close();
+            }
+        };
+        final MitmSession mitm = new MitmSession(MitmSession.client(sessionSide), upstreams, upstreams.connect(),
+                new RewritingStages(), WorkerPool.threadPerTask(), StreamCopier.DIRECT, MAX_BODY_BYTES);
+        session = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mitm.run();
+            }
+        }, "test-session");
+        session.setDaemon(true);
+        session.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        client.close();
+        session.join(5000);
+        origin.close();
+    }
+
+    @Test
+    void patchedBodyGetsItsNewContentLength() throws Exception {
+        String body = "{\"model\":\"gpt-4o\", \"temperature\": 0.25, \"mode\":\"auto\"}";
+        Received request = exchange(post("Content-Length: " + body.length() + "\r\n", body));
+        String patched = "{\"model\":\"gpt-4o\", \"temperature\": 1, \"mode\":\"auto\"}";
+        assertEquals(patched, request.body);
+        assertEquals(String.valueOf(patched.length()), request.head.getHeader("Content-Length"));
+        assertFalse(request.head.hasHeader("Transfer-Encoding"));
+        assertEquals("yes", request.head.getHeader("X-Keep"));
+    }
+
+    @Test
+    void sameLengthPatchKeepsTheHead() throws Exception {
+        String body = "{\"model\":\"gpt-4o\",\"temperature\":0,\"mode\":\"user\"}";
+        Received request = exchange(post("Content-Length: " + body.length() + "\r\n", body));
+        assertEquals("{\"model\":\"gpt-4o\",\"temperature\":1,\"mode\":\"auto\"}", request.body);
+        assertEquals(String.valueOf(body.length()), request.head.getHeader("Content-Length"));
+    }
+
+    @Test
+    void untouchedBodyIsForwardedAsSent() throws Exception {
+        String body = "{\"model\":\"claude\", \"temperature\": 0.25}";
+        Received request = exchange(post("Content-Length: " + body.length() + "\r\n", body));
+        assertEquals(body, request.body);
+        assertEquals(String.valueOf(body.length()), request.head.getHeader("Content-Length"));
+    }
+
+    // Above the buffering limit: rewritten while it streams, so the length is not known up front
+    @Test
+    void largeBodyIsRewrittenChunked() throws Exception {
+        String content = JsonBodyRewriterTest.largeContent(MAX_BODY_BYTES + 100000);
+        String body = "{\"model\":\"gpt-4o\",\"messages\":[{\"role\":\"user\",\"content\":\"" + content
+                + "\"}],\"temperature\":0.25}";
+        Received request = exchange(post("Content-Length: " + body.getBytes("UTF-8").length + "\r\n", body));
+        assertTrue(request.head.isChunked());
+        assertFalse(request.head.hasHeader("Content-Length"));
+        assertEquals(body.replace("0.25}", "1,\"mode\":\"auto\"}"), request.body);
+    }
+
+    @Test
+    void chunkedBodyIsRewrittenChunked() throws Exception {
+        String content = JsonBodyRewriterTest.largeContent(200000);
+        String body = "{\"temperature\":0.25,\"model\":\"gpt-4o\",\"messages\":[{\"content\":\"" + content + "\"}]}";
+        byte[] bytes = body.getBytes("UTF-8");
+        StringBuilder chunks = new StringBuilder();
+        for (int off = 0; off < bytes.length; off += 70000) {
+            int n = Math.min(70000, bytes.length - off);
+            chunks.append(Integer.toHexString(n)).append(";ext=1\r\n")
+                    .append(new String(bytes, off, n, "ISO-8859-1")).append("\r\n");
+        }
+        chunks.append("0\r\nX-Trailer: t\r\n\r\n");
+        Received request = exchange(post("Transfer-Encoding: chunked\r\n", "").getBytes("UTF-8"),
+                chunks.toString().getBytes("ISO-8859-1"));
+        assertTrue(request.head.isChunked());
+        assertEquals("{\"model\":\"gpt-4o\",\"temperature\":1,\"messages\":[{\"content\":\"" + content
+                + "\"}],\"mode\":\"auto\"}", request.body);
+
+        // The connection stays usable for the next request
+        String next = "{\"model\":\"claude\"}";
+        assertEquals(next, exchange(post("Content-Length: " + next.length() + "\r\n", next)).body);
+    }
+
+    // ---- Client and origin ----
+
+    private static String post(String framing, String body) {
+        return "POST /v1/chat HTTP/1.1\r\nHost: api.example.com\r\nX-Keep: yes\r\n" + framing + "\r\n" + body;
+    }
+
+    // Sends the request, waits for the response and returns what the origin got.
+    private Received exchange(String request) throws Exception {
+        return exchange(request.getBytes("UTF-8"), new byte[0]);
+    }
+
+    private Received exchange(byte[] head, byte[] body) throws Exception {
+        OutputStream out = client.getOutputStream();
+        out.write(head);
+        out.write(body);
+        out.flush();
+        assertEquals(RESPONSE, readResponse(client.getInputStream()));
+        Received got = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull(got, "No request at the origin");
+        assertNull(got.error, got.error);
+        return got;
+    }
+
+    private static String readResponse(InputStream in) throws IOException {
+        byte[] response = new byte[RESPONSE.length()];
+        int off = 0;
+        while (off < response.length) {
+            int n = in.read(response, off, response.length - off);
+            if (n == -1) {
+                break;
+            }
+            off += n;
+        }
+        return new String(response, 0, off, "ISO-8859-1");
+    }
+
+    private void serveOrigin() {
+        while (!origin.isClosed()) {
+            try (Socket socket = origin.accept()) {
+                HttpInputStream in = new HttpInputStream(socket.getInputStream());
+                try {
+                    HttpHead head = new HttpHead();
+                    while (in.readHead(head)) {
+                        Received request = new Received();
+                        request.head = head;
+                        try {
+                            InputStream body = HttpBody.contentStream(in, HttpBody.requestLength(head));
+                            request.body = new String(readAll(body), "UTF-8");
+                        } catch (IOException e) {
+                            request.error = e.toString();
+                        }
+                        received.add(request);
+                        if (request.error != null) {
+                            break;
+                        }
+                        socket.getOutputStream().write(RESPONSE.getBytes("ISO-8859-1"));
+                        socket.getOutputStream().flush();
+                        head = new HttpHead();
+                    }
+                } finally {
+                    in.release();
+                }
+            } catch (IOException ignored) {
+                // Closed by tearDown
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Received {
+        HttpHead head;
+        String body;
+        String error;
+    }
+
+    private final class RewritingStages implements MitmSession.Stages {
+
+        @Override
+        public void requestHead(HttpHead request) {
+        }
+
+        @Override
+        public boolean wantsRequestBody(HttpHead request) {
+            return true;
+        }
+
+        @Override
+        public byte[] rewriteRequestBody(HttpHead request, byte[] body) {
+            byte[] patched = rewriter.patch(body);
+            if (patched == body) {
+                return null;
+            }
+            if (patched != null) {
+                return patched;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                return rewriter.rewrite(new ByteArrayInputStream(body), out) ? out.toByteArray() : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean rewritesRequestStream(HttpHead request) {
+            return true;
+        }
+
+        @Override
+        public void rewriteRequestBody(HttpHead request, InputStream in, OutputStream out) throws IOException {
+            rewriter.rewrite(in, out);
+        }
+
+        @Override
+        public void responseHead(HttpHead response) {
+        }
+
+        @Override
+        public SseInspector.Sink responseStream(HttpHead response) {
+            return null;
+        }
+
+        @Override
+        public boolean answer(HttpHead request, byte[] body, OutputStream client) {
+            return false;
+        }
+
+        @Override
+        public MitmSession.Exchange exchange(HttpHead request, byte[] body) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestKeysTest {
+
+    private static final String PATH = "/v1/chat/completions";
+    private static final String BODY = "{\"model\":\"gpt-4o\",\"temperature\":0,\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+
+    private final RequestKeys keys = new RequestKeys(RequestKeys.split(RequestKeys.DEFAULT_PATHS + ",/openai/*"),
+            false, RequestKeys.split(RequestKeys.DEFAULT_HEADERS));
+
+    @Test
+    void sameRequestGetsTheSameKey() throws Exception {
+        String key = key(keys, post(PATH, "Authorization: Bearer a\r\n"), BODY);
+        assertNotNull(key);
+        assertEquals(64, key.length());
+        assertEquals(key, key(keys, post(PATH, "Authorization: Bearer a\r\n"), BODY));
+        // Host case and surrounding whitespace do not matter
+        assertEquals(key, key(keys, "POST " + PATH + " HTTP/1.1\r\nHost:  API.example.com \r\n"
+                + "Authorization: Bearer a \r\n\r\n", BODY));
+    }
+
+    @Test
+    void bodyIsComparedInCanonicalForm() throws Exception {
+        String key = key(keys, post(PATH, ""), BODY);
+        assertEquals(key, key(keys, post(PATH, ""),
+                "{ \"messages\" : [ {\"content\":\"hi\", \"role\":\"user\"} ],\n\"temperature\":0, \"model\":\"gpt-4o\" }"));
+        // Array order and values do
+        assertNotEquals(key, key(keys, post(PATH, ""), BODY.replace("\"hi\"", "\"ho\"")));
+        assertNotEquals(key, key(keys, post(PATH, ""), BODY.replace("0,", "0.0,")));
+    }
+
+    // One cache entry per credential and per session
+    @Test
+    void credentialsAndCookiesSeparateTheKeys() throws Exception {
+        String key = key(keys, post(PATH, "Authorization: Bearer a\r\nCookie: session=1\r\n"), BODY);
+        assertNotEquals(key, key(keys, post(PATH, "Authorization: Bearer b\r\nCookie: session=1\r\n"), BODY));
+        assertNotEquals(key, key(keys, post(PATH, "Authorization: Bearer a\r\nCookie: session=2\r\n"), BODY));
+        assertNotEquals(key, key(keys, post(PATH, "Authorization: Bearer a\r\n"), BODY));
+        assertNotEquals(key, key(keys, post(PATH, "Cookie: session=1\r\n"), BODY));
+        assertNotEquals(key(keys, post(PATH, "x-api-key: a\r\n"), BODY), key(keys, post(PATH, "x-api-key: b\r\n"), BODY));
+        // The same value in another header is another credential
+        assertNotEquals(key(keys, post(PATH, "x-api-key: a\r\n"), BODY), key(keys, post(PATH, "api-key: a\r\n"), BODY));
+    }
+
+    @Test
+    void hostTargetAndKeyHeadersSeparateTheKeys() throws Exception {
+        String key = key(keys, post(PATH, ""), BODY);
+        assertNotEquals(key, key(keys, "POST " + PATH + " HTTP/1.1\r\nHost: other.example.com\r\n\r\n", BODY));
+        assertNotEquals(key, key(keys, post(PATH + "?api-version=1", ""), BODY));
+        assertNotEquals(key, key(keys, post("/openai/chat", ""), BODY));
+        assertNotEquals(key, key(keys, post(PATH, "anthropic-version: 2023-06-01\r\n"), BODY));
+        assertNotEquals(key, key(keys, post(PATH, "Accept: text/event-stream\r\n"), BODY));
+        // Other headers are not part of the key
+        assertEquals(key, key(keys, post(PATH, "User-Agent: test\r\nX-Request-Id: 1\r\n"), BODY));
+    }
+
+    @Test
+    void onlyQualifyingRequestsGetAKey() throws Exception {
+        assertNull(key(keys, "GET " + PATH + " HTTP/1.1\r\nHost: api.example.com\r\n\r\n", BODY));
+        assertNull(key(keys, post("/v1/embeddings", ""), BODY));
+        assertNull(key(keys, post(PATH, "Cache-Control: no-cache, no-store\r\n"), BODY));
+        assertNull(key(keys, post(PATH, ""), "[1, 2]"));
+        assertNull(key(keys, post(PATH, ""), "{\"model\":"));
+        assertNotNull(key(keys, post(PATH + "?x=1", "Cache-Control: no-cache\r\n"), BODY));
+    }
+
+    @Test
+    void deterministicOnlyNeedsTemperatureZero() throws Exception {
+        RequestKeys deterministic = new RequestKeys(Arrays.asList(PATH), true,
+                RequestKeys.split(RequestKeys.DEFAULT_HEADERS));
+        assertNotNull(key(deterministic, post(PATH, ""), BODY));
+        assertNotNull(key(deterministic, post(PATH, ""), BODY.replace("0,", "0.0,")));
+        assertNull(key(deterministic, post(PATH, ""), BODY.replace("0,", "0.7,")));
+        assertNull(key(deterministic, post(PATH, ""), BODY.replace("0,", "\"0\",")));
+        assertNull(key(deterministic, post(PATH, ""), "{\"model\":\"gpt-4o\"}"));
+        assertEquals(3, deterministic.getNotDeterministic());
+        assertEquals(0, keys.getNotDeterministic());
+    }
+
+    @Test
+    void listsAreSplitAtCommas() {
+        assertEquals(Arrays.asList("a", "b c"), RequestKeys.split(" a,, b c ,"));
+        assertTrue(RequestKeys.split(" , ").isEmpty());
+    }
+
+    private static String post(String target, String headers) {
+        return "POST " + target + " HTTP/1.1\r\nHost: api.example.com\r\n" + headers + "\r\n";
+    }
+
+    private static String key(RequestKeys keys, String head, String body) throws IOException {
+        HttpInputStream in = new HttpInputStream(new ByteArrayInputStream(bytes(head)));
+        try {
+            HttpHead request = new HttpHead();
+            assertTrue(in.readHead(request));
+            return keys.keyFor(request, bytes(body));
+        } finally {
+            in.release();
+        }
+    }
+
+    private static byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("UTF-8");
+    }
+}
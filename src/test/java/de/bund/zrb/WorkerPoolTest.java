@@ -0,0 +1,102 @@
+package de.bund.zrb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WorkerPoolTest {
+
+    @Test
+    void threadPerConnectionIsTheDefault() {
+        assertEquals(WorkerPool.Mode.THREAD, WorkerPool.fromConfig(ProxyConfig.empty()).getMode());
+        assertEquals(WorkerPool.Mode.THREAD, pool("unknown", 1, 0).getMode());
+        assertEquals(WorkerPool.Mode.BOUNDED, pool("bounded", 1, 0).getMode());
+    }
+
+    @Test
+    void boundedRejectsConnectionsAndHelpersBeyondTheLimit() throws Exception {
+        final WorkerPool pool = pool("bounded", 1, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            assertTrue(pool.execute(blocked));
+            assertFalse(pool.execute(blocked));
+            Thread helper = pool.spawn(blocked, "helper");
+            assertThrows(IOException.class, new Executable() {
+                @Override
+                public void execute() throws Throwable {
+                    pool.spawn(new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    }, "helper");
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(2, pool.getRejectedCount());
+
+            release.countDown();
+            helper.join(5000);
+            // The helper slot is free again
+            pool.spawn(blocked, "helper").join(5000);
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void completedCountsConnectionTasksOnly() throws Exception {
+        WorkerPool pool = WorkerPool.threadPerTask();
+        final CountDownLatch done = new CountDownLatch(1);
+        pool.spawn(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, "helper").join(5000);
+        assertTrue(pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        StringBuilder stats = new StringBuilder();
+        long deadline = System.currentTimeMillis() + 5000;
+        do {
+            stats.setLength(0);
+            pool.appendStats(stats);
+        } while (!stats.toString().contains("executor.completed: 1\n") && System.currentTimeMillis() < deadline);
+        assertTrue(stats.toString().contains("executor.completed: 1\n"), stats.toString());
+        assertTrue(stats.toString().contains("executor.helpers: 0\n"), stats.toString());
+    }
+
+    private static WorkerPool pool(String mode, int threads, int queue) {
+        Properties props = new Properties();
+        props.setProperty(WorkerPool.KEY_MODE, mode);
+        props.setProperty(WorkerPool.KEY_THREADS, String.valueOf(threads));
+        props.setProperty(WorkerPool.KEY_QUEUE, String.valueOf(queue));
+        return WorkerPool.fromConfig(new ProxyConfig(props));
+    }
+}